@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xalan.processor.TransformerFactoryImpl;
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.sax2dtm.DTMImage;
+import org.apache.xml.dtm.ref.sax2dtm.DTMImageSource;
+import org.apache.xpath.objects.XMLStringFactoryImpl;
+
+/**
+ * What it does: this sample checks that a document opened from a DTM
+ * image gives the same results as the document it was written from.
+ * <p>
+ * It writes a lookup document with namespace declarations, ID attributes
+ * and enough nodes to need extended addressing, and writes an image of
+ * it. A stylesheet then reads the lookup document with document(), from
+ * a URIResolver which returns either the document itself or the image,
+ * so that the image is opened as the second document of the
+ * transformation, with a different DTM ID from the one it was written
+ * with. The stylesheet copies the document and uses id(), key() and the
+ * names of namespace nodes.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java ImageCheck [codes]
+ * </pre>
+ * The lookup document has the given number of code elements, 30000 by
+ * default, each of which is several nodes. The exit status is 1 if the
+ * outputs differ.</p>
+ */
+public class ImageCheck
+{
+  static final String STYLESHEET =
+    "<xsl:stylesheet version='1.0'"
+    + " xmlns:xsl='http://www.w3.org/1999/XSL/Transform'"
+    + " xmlns:p='urn:image-check:p'>"
+    + "<xsl:output method='xml' omit-xml-declaration='yes'/>"
+    + "<xsl:key name='value' match='p:code' use='@p:value'/>"
+    + "<xsl:template match='/'>"
+    + "<result>"
+    + "<xsl:variable name='lookup' select=\"document('lookup.xml')\"/>"
+    + "<xsl:copy-of select='$lookup'/>"
+    + "<xsl:for-each select='refs/ref'>"
+    + "<xsl:variable name='ref' select='.'/>"
+    + "<xsl:for-each select='$lookup'>"
+    + "<id><xsl:copy-of select='id($ref/@id)'/></id>"
+    + "<key><xsl:copy-of select=\"key('value', $ref/@value)\"/></key>"
+    + "</xsl:for-each>"
+    + "</xsl:for-each>"
+    + "<xsl:for-each select='$lookup//note/namespace::*'>"
+    + "<ns><xsl:value-of select='name()'/>=<xsl:value-of select='.'/></ns>"
+    + "</xsl:for-each>"
+    + "</result>"
+    + "</xsl:template>"
+    + "</xsl:stylesheet>";
+
+  public static void main(String[] args) throws Exception
+  {
+    int codes = 30000;
+    if (args.length > 0)
+      codes = Integer.parseInt(args[0]);
+
+    File dir = createDocuments(codes);
+    final File lookup = new File(dir, "lookup.xml");
+    final File image = new File(dir, "lookup.img");
+    image.deleteOnExit();
+
+    DTMManager dtmManager =
+      DTMManager.newInstance(XMLStringFactoryImpl.getFactory());
+    DTM dtm = dtmManager.getDTM(new StreamSource(lookup), false, null,
+                                true, false);
+    DTMImage.write(dtm, image);
+
+    Templates templates = new TransformerFactoryImpl().newTemplates(
+      new StreamSource(new StringReader(STYLESHEET)));
+    String input = new File(dir, "refs.xml").toURI().toString();
+
+    String expected = run(templates, input, new URIResolver()
+    {
+      public Source resolve(String href, String base)
+      {
+        return new StreamSource(lookup);
+      }
+    });
+    String actual = run(templates, input, new URIResolver()
+    {
+      public Source resolve(String href, String base)
+      {
+        return new DTMImageSource(image, lookup.toURI().toString());
+      }
+    });
+
+    if (expected.equals(actual))
+      System.out.println("Output from the image matches, "
+                         + actual.length() + " characters");
+    else
+    {
+      int at = 0;
+      while (at < expected.length() && at < actual.length()
+             && expected.charAt(at) == actual.charAt(at))
+        at++;
+      System.out.println("Output from the image differs at character " + at);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Transform the input once, reading the lookup document through the
+   * given resolver.
+   */
+  static String run(Templates templates, String input, URIResolver resolver)
+    throws Exception
+  {
+    Transformer transformer = templates.newTransformer();
+    transformer.setURIResolver(resolver);
+    StringWriter out = new StringWriter();
+    transformer.transform(new StreamSource(input), new StreamResult(out));
+    return out.toString();
+  }
+
+  /**
+   * Write the lookup document and the input into a new temporary
+   * directory.
+   */
+  static File createDocuments(int codes) throws IOException
+  {
+    File dir = File.createTempFile("imagecheck", "");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("<!DOCTYPE codes [<!ATTLIST p:code id ID #IMPLIED>]>")
+          .append("<codes xmlns='urn:image-check' xmlns:p='urn:image-check:p'>");
+    for (int i = 0; i < codes; i++)
+    {
+      buffer.append("<p:code id='c").append(i).append("' p:value='v")
+            .append(i % 97).append("'>");
+      if (i % 1000 == 999)
+        buffer.append("<note xmlns:n='urn:image-check:n").append(i)
+              .append("'>n").append(i).append("</note>");
+      else
+        buffer.append("Code ").append(i);
+      buffer.append("</p:code>");
+    }
+    buffer.append("</codes>");
+    write(new File(dir, "lookup.xml"), buffer.toString());
+
+    buffer = new StringBuffer("<refs>");
+    for (int i = 0; i < 20; i++)
+    {
+      buffer.append("<ref id='c").append(i * 1499 % codes)
+            .append("' value='v").append(i * 13 % 97).append("'/>");
+    }
+    buffer.append("</refs>");
+    write(new File(dir, "refs.xml"), buffer.toString());
+
+    return dir;
+  }
+
+  static void write(File file, String text) throws IOException
+  {
+    file.deleteOnExit();
+    FileWriter writer = new FileWriter(file);
+    try
+    {
+      writer.write(text);
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+}
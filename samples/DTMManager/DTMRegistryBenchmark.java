@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.DTMManagerDefault;
+
+/**
+ * What it does: this sample times the DTM table of a DTMManagerDefault
+ * under contention, with 1 to 32 threads sharing one manager.
+ * <p>
+ * Each thread repeatedly registers a document: it takes an ID with
+ * getFirstFreeDTMID(), binds its document to it with addDTM(), resolves a
+ * number of node handles of the document with getDTM(int), and releases
+ * it. The documents are stand-ins which do nothing, so only the table
+ * itself is timed; since they are not DTMDefaultBase objects, release()
+ * finds their IDs by scanning the table.
+ * <p>
+ * Every run is made twice: once calling the manager directly, and once
+ * with each call synchronized on the manager, as the manager itself was
+ * before its table was made lock-free.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java DTMRegistryBenchmark [max threads] [registrations] [lookups]
+ * </pre>
+ * The default is up to 32 threads, 1000000 registrations in all for each
+ * run, and 16 node handle lookups for each registration. The exit status
+ * is 1 if a lookup finds the wrong document.</p>
+ */
+public class DTMRegistryBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    int maxThreads = 32;
+    int registrations = 1000000;
+    int lookups = 16;
+    if (args.length > 0)
+      maxThreads = Integer.parseInt(args[0]);
+    if (args.length > 1)
+      registrations = Integer.parseInt(args[1]);
+    if (args.length > 2)
+      lookups = Integer.parseInt(args[2]);
+
+    // Warm up
+    for (int i = 0; i < 3; i++)
+    {
+      run(new DTMManagerDefault(), 4, registrations / 4, lookups, false);
+      run(new DTMManagerDefault(), 4, registrations / 4, lookups, true);
+    }
+
+    int errors = 0;
+    System.out.println("threads  lock-free  synchronized  (registrations/ms)");
+    for (int threads = 1; threads <= maxThreads; threads *= 2)
+    {
+      long[] times = new long[2];
+      for (int locked = 0; locked < 2; locked++)
+      {
+        DTMManagerDefault manager = new DTMManagerDefault();
+        long start = System.nanoTime();
+        errors += run(manager, threads, registrations / threads, lookups,
+                      locked == 1);
+        times[locked] = System.nanoTime() - start;
+      }
+      System.out.println(pad(threads, 7) + pad(rate(registrations, times[0]), 11)
+                         + pad(rate(registrations, times[1]), 14));
+    }
+
+    if (errors > 0)
+    {
+      System.out.println(errors + " lookups found the wrong document");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Register documents on a number of threads at once, and return the
+   * number of lookups which found the wrong document.
+   */
+  static int run(final DTMManagerDefault manager, int threads,
+                 final int registrations, final int lookups,
+                 final boolean locked)
+    throws InterruptedException
+  {
+    final CountDownLatch ready = new CountDownLatch(threads);
+    final CountDownLatch go = new CountDownLatch(1);
+    final AtomicInteger errors = new AtomicInteger();
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++)
+    {
+      workers[t] = new Thread()
+      {
+        public void run()
+        {
+          DTM document = newDocument();
+          ready.countDown();
+          try
+          {
+            go.await();
+          }
+          catch (InterruptedException e)
+          {
+            return;
+          }
+          for (int i = 0; i < registrations; i++)
+          {
+            if (!register(manager, document, lookups, locked))
+              errors.incrementAndGet();
+          }
+        }
+      };
+      workers[t].start();
+    }
+
+    ready.await();
+    go.countDown();
+    for (int t = 0; t < threads; t++)
+      workers[t].join();
+    return errors.get();
+  }
+
+  /**
+   * Register a document, resolve some of its node handles, and release
+   * it.
+   *
+   * @return false if a lookup found the wrong document.
+   */
+  static boolean register(DTMManagerDefault manager, DTM document,
+                          int lookups, boolean locked)
+  {
+    int id;
+    if (locked)
+    {
+      synchronized (manager)
+      {
+        id = manager.getFirstFreeDTMID();
+        manager.addDTM(document, id);
+      }
+    }
+    else
+    {
+      id = manager.getFirstFreeDTMID();
+      manager.addDTM(document, id);
+    }
+
+    boolean found = true;
+    int handle = id << DTMManager.IDENT_DTM_NODE_BITS;
+    for (int i = 0; i < lookups; i++)
+    {
+      DTM dtm;
+      if (locked)
+      {
+        synchronized (manager)
+        {
+          dtm = manager.getDTM(handle + i);
+        }
+      }
+      else
+        dtm = manager.getDTM(handle + i);
+      found &= (dtm == document);
+    }
+
+    if (locked)
+    {
+      synchronized (manager)
+      {
+        manager.release(document, true);
+      }
+    }
+    else
+      manager.release(document, true);
+    return found;
+  }
+
+  /**
+   * Create a stand-in document, whose methods do nothing.
+   */
+  static DTM newDocument()
+  {
+    return (DTM) Proxy.newProxyInstance(DTM.class.getClassLoader(),
+                                        new Class[] { DTM.class },
+                                        new InvocationHandler()
+    {
+      public Object invoke(Object proxy, Method method, Object[] args)
+      {
+        if (method.getName().equals("hashCode"))
+          return new Integer(System.identityHashCode(proxy));
+        if (method.getName().equals("equals"))
+          return Boolean.valueOf(proxy == args[0]);
+        if (method.getReturnType() == Boolean.TYPE)
+          return Boolean.FALSE;
+        if (method.getReturnType() == Integer.TYPE)
+          return new Integer(DTM.NULL);
+        return null;
+      }
+    });
+  }
+
+  static long rate(int registrations, long nanos)
+  {
+    return registrations * 1000000L / Math.max(1, nanos);
+  }
+
+  static String pad(long value, int width)
+  {
+    String text = Long.toString(value);
+    StringBuffer buffer = new StringBuffer();
+    for (int i = text.length(); i < width; i++)
+      buffer.append(' ');
+    return buffer.append(text).toString();
+  }
+}
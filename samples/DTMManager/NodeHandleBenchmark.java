@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.DTMDefaultBase;
+import org.apache.xml.dtm.ref.DTMManagerDefault;
+import org.apache.xml.utils.SuballocatedIntVector;
+import org.apache.xpath.objects.XMLStringFactoryImpl;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * What it does: this sample times the decoding of node handles in a
+ * document too large for a single DTM ID, with and without the arithmetic
+ * fast path.
+ * <p>
+ * The same document is built twice. The first time, its extra DTM IDs
+ * follow on from its first one, so makeNodeHandle() and
+ * makeNodeIdentity() are an add and a range check against m_identBase and
+ * m_identRange. The second time, the ID following each one it owns is
+ * taken by a stand-in document just before it is needed, so its IDs are
+ * scattered and every handle is decoded through the m_dtmIdent table and
+ * the manager's registry, as all extended-addressing handles were before.
+ * <p>
+ * For each document the sample times converting every node identity to a
+ * handle and back, and walking the whole tree with getFirstChild() and
+ * getNextSibling().
+ * <p>
+ * Usage:
+ * <pre>
+ *   java NodeHandleBenchmark [nodes] [passes]
+ * </pre>
+ * The default is 1000000 element nodes and 20 passes over each document.
+ * The exit status is 1 if a handle does not decode to the identity it was
+ * made from, or a walk misses nodes.</p>
+ */
+public class NodeHandleBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    int nodes = 1000000;
+    int passes = 20;
+    if (args.length > 0)
+      nodes = Integer.parseInt(args[0]);
+    if (args.length > 1)
+      passes = Integer.parseInt(args[1]);
+
+    DTMManagerDefault manager = (DTMManagerDefault)
+      DTMManager.newInstance(XMLStringFactoryImpl.getFactory());
+    DTMDefaultBase consecutive = build(manager, nodes, false);
+    DTMDefaultBase scattered = build(manager, nodes, true);
+    System.out.println("DTM IDs, consecutive: " + ids(consecutive));
+    System.out.println("DTM IDs, scattered:   " + ids(scattered));
+
+    // The document node, the root element and its children
+    int count = nodes + 2;
+
+    // Warm up
+    for (int i = 0; i < 3; i++)
+    {
+      roundTrip(consecutive, count);
+      roundTrip(scattered, count);
+      walk(consecutive);
+      walk(scattered);
+    }
+
+    int errors = 0;
+    long[] times = new long[4];
+    for (int i = 0; i < passes; i++)
+    {
+      long start = System.nanoTime();
+      errors += roundTrip(consecutive, count);
+      times[0] += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      errors += roundTrip(scattered, count);
+      times[1] += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      if (walk(consecutive) != count)
+        errors++;
+      times[2] += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      if (walk(scattered) != count)
+        errors++;
+      times[3] += System.nanoTime() - start;
+    }
+
+    long handles = (long) count * passes;
+    System.out.println("              round trip  tree walk  (ns/node)");
+    System.out.println("consecutive" + pad(times[0], handles, 13)
+                       + pad(times[2], handles, 11));
+    System.out.println("scattered  " + pad(times[1], handles, 13)
+                       + pad(times[3], handles, 11));
+
+    if (errors > 0)
+    {
+      System.out.println(errors + " handles or walks were wrong");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Build a document of a root element with the given number of empty
+   * children. If scatter is true, the DTM ID following each one the
+   * document owns is taken by a stand-in document first, so that the
+   * document's IDs are not consecutive.
+   */
+  static DTMDefaultBase build(DTMManagerDefault manager, int nodes,
+                              boolean scatter)
+    throws Exception
+  {
+    DTMDefaultBase dtm =
+      (DTMDefaultBase) manager.getDTM(null, false, null, false, false);
+    ContentHandler handler = dtm.getContentHandler();
+    AttributesImpl atts = new AttributesImpl();
+    int blocked = -1;
+
+    handler.startDocument();
+    handler.startElement("", "root", "root", atts);
+    for (int i = 0; i < nodes; i++)
+    {
+      if (scatter)
+      {
+        SuballocatedIntVector ids = dtm.getDTMIDs();
+        int next = (ids.elementAt(ids.size() - 1)
+                    >>> DTMManager.IDENT_DTM_NODE_BITS) + 1;
+        if (next != blocked && manager.reserveDTMID(next))
+        {
+          manager.addDTM(newDocument(), next);
+          blocked = next;
+        }
+      }
+      handler.startElement("", "item", "item", atts);
+      handler.endElement("", "item", "item");
+    }
+    handler.endElement("", "root", "root");
+    handler.endDocument();
+    return dtm;
+  }
+
+  /**
+   * Convert the first count node identities of a document to handles and
+   * back, and return the number which came back different.
+   */
+  static int roundTrip(DTMDefaultBase dtm, int count)
+  {
+    int errors = 0;
+    for (int identity = 0; identity < count; identity++)
+    {
+      if (dtm.makeNodeIdentity(dtm.makeNodeHandle(identity)) != identity)
+        errors++;
+    }
+    return errors;
+  }
+
+  /**
+   * Visit every node of a document in document order, and return the
+   * number of nodes visited.
+   */
+  static int walk(DTM dtm)
+  {
+    int count = 0;
+    int node = dtm.getDocument();
+    while (DTM.NULL != node)
+    {
+      count++;
+      int next = dtm.getFirstChild(node);
+      while (DTM.NULL == next && DTM.NULL != node)
+      {
+        next = dtm.getNextSibling(node);
+        if (DTM.NULL == next)
+          node = dtm.getParent(node);
+      }
+      node = next;
+    }
+    return count;
+  }
+
+  /**
+   * List the DTM IDs a document owns.
+   */
+  static String ids(DTMDefaultBase dtm)
+  {
+    SuballocatedIntVector ids = dtm.getDTMIDs();
+    StringBuffer buffer = new StringBuffer();
+    for (int i = 0; i < ids.size(); i++)
+    {
+      if (i > 0)
+        buffer.append(' ');
+      buffer.append(ids.elementAt(i) >>> DTMManager.IDENT_DTM_NODE_BITS);
+    }
+    return buffer.toString();
+  }
+
+  /**
+   * Create a stand-in document, whose methods do nothing.
+   */
+  static DTM newDocument()
+  {
+    return (DTM) Proxy.newProxyInstance(DTM.class.getClassLoader(),
+                                        new Class[] { DTM.class },
+                                        new InvocationHandler()
+    {
+      public Object invoke(Object proxy, Method method, Object[] args)
+      {
+        if (method.getName().equals("hashCode"))
+          return new Integer(System.identityHashCode(proxy));
+        if (method.getName().equals("equals"))
+          return Boolean.valueOf(proxy == args[0]);
+        if (method.getReturnType() == Boolean.TYPE)
+          return Boolean.FALSE;
+        if (method.getReturnType() == Integer.TYPE)
+          return new Integer(DTM.NULL);
+        return null;
+      }
+    });
+  }
+
+  static String pad(long nanos, long count, int width)
+  {
+    String text = Double.toString(Math.round(nanos * 100.0 / count) / 100.0);
+    StringBuffer buffer = new StringBuffer();
+    for (int i = text.length(); i < width; i++)
+      buffer.append(' ');
+    return buffer.append(text).toString();
+  }
+}
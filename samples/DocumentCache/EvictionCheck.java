@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xalan.processor.TransformerFactoryImpl;
+import org.apache.xalan.xsltc.DOM;
+import org.apache.xalan.xsltc.dom.DocumentCache;
+import org.apache.xalan.xsltc.dom.XSLTCDTMManager;
+import org.apache.xalan.xsltc.runtime.AbstractTranslet;
+import org.apache.xalan.xsltc.runtime.output.TransletOutputHandlerFactory;
+import org.apache.xalan.xsltc.trax.TemplatesImpl;
+import org.apache.xml.dtm.ref.SharedDTMCache;
+import org.apache.xml.serializer.SerializationHandler;
+
+/**
+ * What it does: this sample checks that documents evicted from a shared
+ * source-document cache stay usable by the transformations which are
+ * still using them.
+ * <p>
+ * The stylesheet holds one lookup document in a global variable, reads
+ * several others with document(), which evicts the first from a cache
+ * that only holds two documents, and then uses the first again with
+ * key(). Each transformation's output is compared with that of a
+ * transformation which does not use the cache.
+ * <p>
+ * With -xsltc, the stylesheet is compiled by XSLTC and its translets read
+ * the lookup documents through an XSLTC DocumentCache of two documents,
+ * which keeps them in a SharedDTMCache too.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java EvictionCheck [-xsltc] [threads] [transformations]
+ * </pre>
+ * The default is 8 threads and 80 transformations. The exit status is 1
+ * if any transformation fails or gives the wrong output.</p>
+ */
+public class EvictionCheck
+{
+  static final int LOOKUPS = 6;
+
+  static final String STYLESHEET =
+    "<xsl:stylesheet version='1.0'"
+    + " xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+    + "<xsl:output method='text'/>"
+    + "<xsl:key name='code' match='code' use='@id'/>"
+    + "<xsl:variable name='first' select=\"document('lookup1.xml')\"/>"
+    + "<xsl:template match='/'>"
+    + "<xsl:for-each select='refs/ref'>"
+    + "<xsl:variable name='id' select='@id'/>"
+    + "<xsl:for-each select='document(@doc)'>"
+    + "<xsl:value-of select=\"key('code', $id)/@value\"/>"
+    + "</xsl:for-each>"
+    + "<xsl:text>/</xsl:text>"
+    + "<xsl:for-each select='$first'>"
+    + "<xsl:value-of select=\"key('code', $id)/@value\"/>"
+    + "</xsl:for-each>"
+    + "<xsl:text>&#10;</xsl:text>"
+    + "</xsl:for-each>"
+    + "</xsl:template>"
+    + "</xsl:stylesheet>";
+
+  public static void main(String[] args) throws Exception
+  {
+    boolean xsltc = false;
+    int threads = 8;
+    int count = 80;
+    int arg = 0;
+    if (args.length > arg && args[arg].equals("-xsltc"))
+    {
+      xsltc = true;
+      arg++;
+    }
+    if (args.length > arg)
+      threads = Integer.parseInt(args[arg++]);
+    if (args.length > arg)
+      count = Integer.parseInt(args[arg++]);
+
+    File dir = createDocuments();
+    String input = new File(dir, "refs.xml").toURI().toString();
+    String stylesheet = new File(dir, "check.xsl").toURI().toString();
+
+    // What the transformation should produce
+    TransformerFactory plainFactory = new TransformerFactoryImpl();
+    String expected = run(plainFactory.newTemplates(new StreamSource(stylesheet)),
+                          input);
+
+    SharedDTMCache cache;
+    Transformation transformation;
+    if (xsltc)
+    {
+      DocumentCache documentCache = new DocumentCache(2, Long.MAX_VALUE, null);
+      cache = documentCache.getSharedCache();
+      transformation = new CompiledTransformation(stylesheet, documentCache);
+    }
+    else
+    {
+      cache = new SharedDTMCache(2, Long.MAX_VALUE);
+      TransformerFactory tFactory = new TransformerFactoryImpl();
+      tFactory.setAttribute(TransformerFactoryImpl.ATTRIBUTE_SOURCE_DOCUMENT_CACHE,
+                            cache);
+      transformation = new TrAXTransformation(
+        tFactory.newTemplates(new StreamSource(stylesheet)));
+    }
+
+    int failures = check(transformation, input, expected, threads, count);
+
+    System.out.println("Transformations: " + count + ", failed: " + failures
+                       + ", evictions: " + cache.getEvictionCount());
+    if (failures > 0)
+      System.exit(1);
+  }
+
+  /**
+   * Run transformations on a number of threads, and count those which
+   * fail or give the wrong output.
+   */
+  static int check(final Transformation transformation, final String input,
+                   String expected, int threads, int count)
+    throws InterruptedException
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List results = new ArrayList();
+    for (int i = 0; i < count; i++)
+    {
+      results.add(executor.submit(new Callable()
+      {
+        public Object call() throws Exception
+        {
+          return transformation.run(input);
+        }
+      }));
+    }
+
+    int failures = 0;
+    for (int i = 0; i < count; i++)
+    {
+      try
+      {
+        if (!expected.equals(((Future) results.get(i)).get()))
+          failures++;
+      }
+      catch (ExecutionException ee)
+      {
+        if (failures++ == 0)
+          ee.getCause().printStackTrace();
+      }
+    }
+    executor.shutdown();
+    return failures;
+  }
+
+  /**
+   * One way of transforming the input.
+   */
+  interface Transformation
+  {
+    String run(String input) throws Exception;
+  }
+
+  /**
+   * Transforms with a new Transformer each time.
+   */
+  static class TrAXTransformation implements Transformation
+  {
+    private final Templates m_templates;
+
+    TrAXTransformation(Templates templates)
+    {
+      m_templates = templates;
+    }
+
+    public String run(String input) throws Exception
+    {
+      return EvictionCheck.run(m_templates, input);
+    }
+  }
+
+  /**
+   * Transforms with a new instance of an XSLTC translet each time, which
+   * reads documents through a DocumentCache.
+   */
+  static class CompiledTransformation implements Transformation
+  {
+    private final Class m_transletClass;
+    private final DocumentCache m_documentCache;
+
+    CompiledTransformation(String stylesheet, DocumentCache documentCache)
+      throws Exception
+    {
+      TemplatesImpl templates = (TemplatesImpl)
+        new org.apache.xalan.xsltc.trax.TransformerFactoryImpl()
+          .newTemplates(new StreamSource(stylesheet));
+      m_transletClass =
+        templates.getTransletClasses()[templates.getTransletIndex()];
+      m_documentCache = documentCache;
+    }
+
+    public String run(String input) throws Exception
+    {
+      AbstractTranslet translet =
+        (AbstractTranslet) m_transletClass.newInstance();
+      translet.postInitialization();
+      translet.setDOMCache(m_documentCache);
+
+      XSLTCDTMManager dtmManager = XSLTCDTMManager.newInstance();
+      DOM dom = (DOM) dtmManager.getDTM(new StreamSource(input), false, null,
+                                        true, false, translet.hasIdCall());
+
+      StringWriter out = new StringWriter();
+      TransletOutputHandlerFactory tohFactory =
+        TransletOutputHandlerFactory.newInstance();
+      tohFactory.setOutputType(TransletOutputHandlerFactory.STREAM);
+      tohFactory.setEncoding(translet._encoding);
+      tohFactory.setOutputMethod(translet._method);
+      tohFactory.setWriter(out);
+      SerializationHandler handler = tohFactory.getSerializationHandler();
+      translet.transform(dom, handler);
+      return out.toString();
+    }
+  }
+
+  /**
+   * Transform the input once.
+   */
+  static String run(Templates templates, String input) throws Exception
+  {
+    Transformer transformer = templates.newTransformer();
+    StringWriter out = new StringWriter();
+    transformer.transform(new StreamSource(input), new StreamResult(out));
+    return out.toString();
+  }
+
+  /**
+   * Write the stylesheet, the lookup documents and the input into a new
+   * temporary directory.
+   */
+  static File createDocuments() throws IOException
+  {
+    File dir = File.createTempFile("evictioncheck", "");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+
+    write(new File(dir, "check.xsl"), STYLESHEET);
+
+    for (int d = 1; d <= LOOKUPS; d++)
+    {
+      StringBuffer buffer = new StringBuffer("<codes>");
+      for (int i = 0; i < 200; i++)
+      {
+        buffer.append("<code id='c").append(i).append("' value='")
+              .append(d).append('-').append(i).append("'/>");
+      }
+      buffer.append("</codes>");
+      write(new File(dir, "lookup" + d + ".xml"), buffer.toString());
+    }
+
+    StringBuffer buffer = new StringBuffer("<refs>");
+    for (int i = 0; i < 60; i++)
+    {
+      buffer.append("<ref doc='lookup").append(2 + i % (LOOKUPS - 1))
+            .append(".xml' id='c").append(i * 7 % 200).append("'/>");
+    }
+    buffer.append("</refs>");
+    write(new File(dir, "refs.xml"), buffer.toString());
+
+    return dir;
+  }
+
+  static void write(File file, String text) throws IOException
+  {
+    file.deleteOnExit();
+    FileWriter writer = new FileWriter(file);
+    try
+    {
+      writer.write(text);
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+}
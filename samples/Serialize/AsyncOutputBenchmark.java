@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.OutputStream;
+import java.io.StringReader;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xml.serializer.OutputPropertiesFactory;
+
+/**
+ * What it does: this sample times a transformation writing to a slow
+ * output stream, such as a socket or a compressing stream would be, with
+ * the serializer writing to the stream itself, and with a background
+ * thread writing rings of 2, 4 and 8 buffers to it while the
+ * transformation goes on.
+ * <p>
+ * The background thread is asked for with the xalan:async-output-buffers
+ * output property, which can also be given as an attribute of
+ * xsl:output:
+ * <pre>
+ *   &lt;xsl:output method="xml" xalan:async-output-buffers="4"
+ *       xmlns:xalan="http://xml.apache.org/xalan"/&gt;
+ * </pre>
+ * <p>
+ * Usage:
+ * <pre>
+ *   java AsyncOutputBenchmark [number of records] [MB per second] [runs]
+ * </pre>
+ * The default is 20000 records written at 20 MB per second, 5 runs.</p>
+ */
+public class AsyncOutputBenchmark
+{
+  static final String STYLESHEET =
+    "<xsl:stylesheet version='1.0'"
+    + " xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+    + "<xsl:template match='/'>"
+    + "<table><xsl:apply-templates select='records/record'/></table>"
+    + "</xsl:template>"
+    + "<xsl:template match='record'>"
+    + "<tr id='{@id}'>"
+    + "<td><xsl:value-of select='translate(name, \"abcdefghij\", \"ABCDEFGHIJ\")'/></td>"
+    + "<td><xsl:value-of select='format-number(amount * 1.07, \"#,##0.00\")'/></td>"
+    + "<td><xsl:value-of select='concat(name, \" / \", @id, \" / \", amount)'/></td>"
+    + "</tr>"
+    + "</xsl:template>"
+    + "</xsl:stylesheet>";
+
+  public static void main(String[] args) throws Exception
+  {
+    int records = 20000;
+    double rate = 20;
+    int runs = 5;
+    if (args.length > 0)
+      records = Integer.parseInt(args[0]);
+    if (args.length > 1)
+      rate = Double.parseDouble(args[1]);
+    if (args.length > 2)
+      runs = Integer.parseInt(args[2]);
+
+    String input = generate(records);
+    TransformerFactory tFactory = TransformerFactory.newInstance();
+    Templates templates =
+      tFactory.newTemplates(new StreamSource(new StringReader(STYLESHEET)));
+
+    int[] rings = { 0, 2, 4, 8 };
+    for (int r = 0; r < rings.length; r++)
+    {
+      // Warm up
+      run(templates, input, rings[r], 0);
+
+      long bytes = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < runs; i++)
+        bytes = run(templates, input, rings[r], rate);
+      long time = (System.nanoTime() - start) / runs;
+
+      System.out.println((rings[r] == 0 ? "direct:    "
+                                        : rings[r] + " buffers: ")
+                         + (time / 1000000) + "ms, "
+                         + (bytes * 1000 / time) + "MB/s");
+    }
+
+    // The transformation alone, for comparison
+    long start = System.nanoTime();
+    for (int i = 0; i < runs; i++)
+      run(templates, input, 0, 0);
+    System.out.println("no throttle: "
+                       + ((System.nanoTime() - start) / runs / 1000000)
+                       + "ms");
+  }
+
+  /**
+   * Transform the input once, returning the number of bytes written.
+   */
+  static long run(Templates templates, String input, int buffers,
+                  double rate) throws Exception
+  {
+    Transformer transformer = templates.newTransformer();
+    if (buffers > 0)
+      transformer.setOutputProperty(
+        OutputPropertiesFactory.S_KEY_ASYNC_OUTPUT_BUFFERS,
+        Integer.toString(buffers));
+    ThrottledOutputStream out = new ThrottledOutputStream(rate);
+    transformer.transform(new StreamSource(new StringReader(input)),
+                          new StreamResult(out));
+    return out.count;
+  }
+
+  /**
+   * Generate a document of records.
+   */
+  static String generate(int records)
+  {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("<records>");
+    for (int i = 0; i < records; i++)
+    {
+      buffer.append("<record id='r").append(i).append("'>");
+      buffer.append("<name>customer-").append(i % 97)
+        .append(" of the eastern region</name>");
+      buffer.append("<amount>").append(i % 1000).append(".5</amount>");
+      buffer.append("</record>");
+    }
+    buffer.append("</records>");
+    return buffer.toString();
+  }
+
+  /**
+   * Discards what is written to it, counting the bytes, and takes as
+   * long over each write as a stream writing the given number of megabytes
+   * a second would. A rate of 0 means no throttling.
+   */
+  static class ThrottledOutputStream extends OutputStream
+  {
+    final double nanosPerByte;
+    long count;
+
+    /**
+     * When the writes so far would be done. Short waits are put off until
+     * they add up to a millisecond, as sleep() takes longer than that.
+     */
+    long due;
+
+    ThrottledOutputStream(double rate)
+    {
+      nanosPerByte = (rate > 0) ? 1000.0 / rate : 0;
+    }
+
+    public void write(int b) throws java.io.IOException
+    {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws java.io.IOException
+    {
+      count += len;
+      if (nanosPerByte == 0)
+        return;
+      due = Math.max(due, System.nanoTime()) + (long) (len * nanosPerByte);
+      long wait = due - System.nanoTime();
+      if (wait > 1000000)
+      {
+        try
+        {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+        catch (InterruptedException e)
+        {
+          throw new java.io.InterruptedIOException();
+        }
+      }
+    }
+  }
+}
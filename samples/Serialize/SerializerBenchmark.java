@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.xml.serializer.Method;
+import org.apache.xml.serializer.OutputPropertiesFactory;
+import org.apache.xml.serializer.Serializer;
+import org.apache.xml.serializer.SerializerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * What it does: this sample times the serializer on its own, writing a
+ * text-heavy document and an attribute-heavy document as XML and HTML in
+ * UTF-8, ISO-8859-1, US-ASCII, windows-1252, Shift_JIS and EBCDIC, to an
+ * output stream that discards what is written to it.
+ * <p>
+ * The text is mostly plain ASCII, with the odd character to escape
+ * (&amp;, &lt;) and the odd character outside of ASCII, Latin and
+ * Japanese, which has to be written as a character reference in the
+ * encodings that do not have it.</p>
+ * <p>
+ * Usage:
+ * <pre>
+ *   java SerializerBenchmark [number of elements] [runs]
+ * </pre>
+ * The default is 20000 elements and 20 runs.</p>
+ */
+public class SerializerBenchmark
+{
+  static final String[] ENCODINGS =
+    { "UTF-8", "ISO-8859-1", "US-ASCII", "windows-1252", "Shift_JIS",
+      "EBCDIC-CP-US" };
+
+  static final String TEXT =
+    "The quick brown fox jumps over the lazy dog, again & again, "
+    + "while the caf\u00e9 owner counts 3 < 4 sheep in the meadow "
+    + "(\u6771\u4eac). ";
+
+  public static void main(String[] args) throws Exception
+  {
+    int elements = 20000;
+    int runs = 20;
+    if (args.length > 0)
+      elements = Integer.parseInt(args[0]);
+    if (args.length > 1)
+      runs = Integer.parseInt(args[1]);
+
+    String[] methods = { Method.XML, Method.HTML };
+    for (int m = 0; m < methods.length; m++)
+    {
+      for (int e = 0; e < ENCODINGS.length; e++)
+      {
+        for (int attrs = 0; attrs < 2; attrs++)
+        {
+          boolean attributes = (attrs == 1);
+          for (int r = 0; r < 3; r++)
+            run(methods[m], ENCODINGS[e], attributes, elements);
+
+          long start = System.nanoTime();
+          long bytes = 0;
+          for (int r = 0; r < runs; r++)
+            bytes = run(methods[m], ENCODINGS[e], attributes, elements);
+          long time = (System.nanoTime() - start) / runs;
+
+          System.out.println(methods[m] + " " + ENCODINGS[e]
+                             + (attributes ? " attributes: " : " text: ")
+                             + (time / 1000000) + "ms, "
+                             + (bytes * 1000 / time) + "MB/s");
+        }
+      }
+    }
+  }
+
+  /**
+   * Serialize one document, returning the number of bytes written.
+   */
+  static long run(String method, String encoding, boolean attributes,
+                  int elements) throws Exception
+  {
+    Properties props = OutputPropertiesFactory.getDefaultMethodProperties(method);
+    props.setProperty("encoding", encoding);
+    Serializer serializer = SerializerFactory.getSerializer(props);
+    CountingOutputStream out = new CountingOutputStream();
+    serializer.setOutputStream(out);
+
+    ContentHandler handler = serializer.asContentHandler();
+    char[] text = TEXT.toCharArray();
+    AttributesImpl none = new AttributesImpl();
+
+    handler.startDocument();
+    handler.startElement("", "records", "records", none);
+    for (int i = 0; i < elements; i++)
+    {
+      if (attributes)
+      {
+        AttributesImpl atts = new AttributesImpl();
+        atts.addAttribute("", "id", "id", "CDATA", "record-" + i);
+        atts.addAttribute("", "title", "title", "CDATA", TEXT);
+        atts.addAttribute("", "note", "note", "CDATA", TEXT + i);
+        handler.startElement("", "record", "record", atts);
+        handler.endElement("", "record", "record");
+      }
+      else
+      {
+        handler.startElement("", "record", "record", none);
+        for (int j = 0; j < 4; j++)
+          handler.characters(text, 0, text.length);
+        handler.endElement("", "record", "record");
+      }
+    }
+    handler.endElement("", "records", "records");
+    handler.endDocument();
+    return out.count;
+  }
+
+  /**
+   * Discards what is written to it, counting the bytes.
+   */
+  static class CountingOutputStream extends OutputStream
+  {
+    long count;
+
+    public void write(int b)
+    {
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * What it does: this sample times xsl:sort on a text key (text.xsl), a
+ * numeric key (number.xsl) and three keys (multikey.xsl), over a generated
+ * document of records held in memory.
+ * <p>
+ * Each stylesheet is run a few times to warm up, then timed over several
+ * runs. unsorted.xsl writes the same output without sorting: its time is
+ * taken from the others, so that what is printed is the time of the sort
+ * itself.</p>
+ * <p>
+ * Usage: run in the Sorting directory:
+ * <pre>
+ *   java SortBenchmark [number of records] [runs]
+ * </pre>
+ * The default is 100000 records and 10 runs. To time XSLTC instead of the
+ * interpretive processor, set the javax.xml.transform.TransformerFactory
+ * system property to org.apache.xalan.xsltc.trax.TransformerFactoryImpl.</p>
+ */
+public class SortBenchmark
+{
+  /** The stylesheets timed, the one that does not sort first. */
+  static final String[] STYLESHEETS =
+    { "unsorted.xsl", "text.xsl", "number.xsl", "multikey.xsl" };
+
+  public static void main(String[] args) throws Exception
+  {
+    int records = 100000;
+    int runs = 10;
+    if (args.length > 0)
+      records = Integer.parseInt(args[0]);
+    if (args.length > 1)
+      runs = Integer.parseInt(args[1]);
+
+    byte[] document = generate(records);
+    TransformerFactory tFactory = TransformerFactory.newInstance();
+
+    long[] times = new long[STYLESHEETS.length];
+    for (int i = 0; i < STYLESHEETS.length; i++)
+    {
+      Templates templates =
+        tFactory.newTemplates(new StreamSource(STYLESHEETS[i]));
+      for (int r = 0; r < 3; r++)
+        run(templates, document);
+
+      long start = System.nanoTime();
+      for (int r = 0; r < runs; r++)
+        run(templates, document);
+      times[i] = (System.nanoTime() - start) / runs;
+    }
+
+    System.out.println(records + " records, "
+                       + (times[0] / 1000000) + "ms without sorting");
+    for (int i = 1; i < STYLESHEETS.length; i++)
+    {
+      long sort = times[i] - times[0];
+      System.out.println(STYLESHEETS[i] + ": " + (sort / 1000000) + "ms, "
+                         + (sort / records) + "ns per record");
+    }
+  }
+
+  /**
+   * Run one transformation, discarding its output.
+   */
+  static void run(Templates templates, byte[] document) throws Exception
+  {
+    templates.newTransformer().transform(
+        new StreamSource(new ByteArrayInputStream(document)),
+        new StreamResult(new NullOutputStream()));
+  }
+
+  /**
+   * Generate a document of records, with keys in random order and many
+   * ties, so that the later keys are used.
+   */
+  static byte[] generate(int records) throws Exception
+  {
+    String[] customers =
+      { "Acme Corp", "acme corp", "Globex", "Initech", "initech", "Umbrella",
+        "Hooli", "Stark", "Wayne Enterprises", "Cyberdyne" };
+    Random random = new Random(42);
+
+    StringBuffer buf = new StringBuffer(records * 100);
+    buf.append("<?xml version=\"1.0\"?>\n<records>\n");
+    for (int i = 0; i < records; i++)
+    {
+      buf.append("  <record id=\"r").append(i)
+         .append("\" status=\"").append((random.nextInt(3) == 0) ? "open" : "closed")
+         .append("\">\n    <customer>")
+         .append(customers[random.nextInt(customers.length)])
+         .append(' ').append(random.nextInt(100))
+         .append("</customer>\n    <amount>").append(random.nextInt(10000))
+         .append('.').append(random.nextInt(100))
+         .append("</amount>\n  </record>\n");
+    }
+    buf.append("</records>\n");
+    return buf.toString().getBytes("UTF-8");
+  }
+
+  /**
+   * Discards what is written to it.
+   */
+  static class NullOutputStream extends OutputStream
+  {
+    public void write(int b)
+    {
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * What it does: this sample checks xsl:sort keys which depend on the
+ * context node list, such as position() and last(), which must be
+ * evaluated with the list positioned on the node whose key they are.
+ * <p>
+ * Each sort key below puts the items in reverse document order. The items
+ * are sorted by the interpretive processor and by XSLTC, and both outputs
+ * are compared with the reversed list. A small list is checked, and one
+ * large enough to be collated and sorted in parallel.</p>
+ * <p>
+ * Usage:
+ * <pre>
+ *   java SortCheck
+ * </pre>
+ * The exit status is 1 if any output is wrong.</p>
+ */
+public class SortCheck
+{
+  /** Sort keys, each of which reverses the items. */
+  static final String[] SORTS =
+  {
+    "<xsl:sort select='position()' data-type='number' order='descending'/>",
+    "<xsl:sort select='last() - position()' data-type='number'/>",
+    "<xsl:sort select='string(100000 - position())'/>",
+    "<xsl:sort select=\"substring('x', 2)\"/>"
+      + "<xsl:sort select='last() - position()' data-type='number'/>"
+  };
+
+  /** The numbers of items checked. */
+  static final int[] SIZES = { 8, 10000 };
+
+  public static void main(String[] args) throws Exception
+  {
+    TransformerFactory[] factories =
+    {
+      new org.apache.xalan.processor.TransformerFactoryImpl(),
+      new org.apache.xalan.xsltc.trax.TransformerFactoryImpl()
+    };
+
+    int failures = 0;
+    for (int s = 0; s < SORTS.length; s++)
+    {
+      for (int z = 0; z < SIZES.length; z++)
+      {
+        String input = generate(SIZES[z]);
+        String expected = expected(SIZES[z]);
+        for (int f = 0; f < factories.length; f++)
+        {
+          String actual = run(factories[f], SORTS[s], input);
+          if (!expected.equals(actual))
+          {
+            failures++;
+            System.out.println("Wrong order from "
+                               + factories[f].getClass().getName()
+                               + " for " + SIZES[z] + " items and "
+                               + SORTS[s]);
+          }
+        }
+      }
+    }
+
+    System.out.println("Sorts checked: "
+                       + SORTS.length * SIZES.length * factories.length
+                       + ", wrong: " + failures);
+    if (failures > 0)
+      System.exit(1);
+  }
+
+  /**
+   * Sort the items of the input with the given xsl:sort elements, and
+   * return their names in the sorted order.
+   */
+  static String run(TransformerFactory tFactory, String sort, String input)
+    throws Exception
+  {
+    String stylesheet =
+      "<xsl:stylesheet version='1.0'"
+      + " xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+      + "<xsl:output method='text'/>"
+      + "<xsl:template match='/'>"
+      + "<xsl:for-each select='items/item'>"
+      + sort
+      + "<xsl:value-of select='.'/><xsl:text>,</xsl:text>"
+      + "</xsl:for-each>"
+      + "</xsl:template>"
+      + "</xsl:stylesheet>";
+
+    Templates templates = tFactory.newTemplates(
+      new StreamSource(new StringReader(stylesheet)));
+    StringWriter out = new StringWriter();
+    templates.newTransformer().transform(
+      new StreamSource(new StringReader(input)), new StreamResult(out));
+    return out.toString();
+  }
+
+  /**
+   * Generate a document of the given number of items, in order.
+   */
+  static String generate(int items)
+  {
+    StringBuffer buffer = new StringBuffer("<items>");
+    for (int i = 1; i <= items; i++)
+      buffer.append("<item>i").append(i).append("</item>");
+    return buffer.append("</items>").toString();
+  }
+
+  /**
+   * The output expected for the given number of items: their names in
+   * reverse order.
+   */
+  static String expected(int items)
+  {
+    StringBuffer buffer = new StringBuffer();
+    for (int i = items; i >= 1; i--)
+      buffer.append('i').append(i).append(',');
+    return buffer.toString();
+  }
+}
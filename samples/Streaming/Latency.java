@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.OutputStream;
+import java.io.Reader;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.xml.sax.InputSource;
+
+/**
+ * What it does: this sample compares the two ways of building a document
+ * incrementally: pulling parse events on the transformation thread, or
+ * running a SAX parser on a second thread and handing control back and
+ * forth with it (IncrementalSAXSource_Filter). Events are pulled from
+ * Xerces' pull configuration if Xerces is the default parser, and from a
+ * StAX reader otherwise; a parser supplied by the user, as here in the
+ * second case, always runs on a second thread.
+ * <p>
+ * For each, the time until the first output is written and the total
+ * time of the transformation are printed, averaged over several runs
+ * after a warm-up.</p>
+ * <p>
+ * Usage: run in the Streaming directory:
+ * <pre>
+ *   java Latency [size in MB] [runs]
+ * </pre>
+ * The default is a 64MB document and 5 runs.</p>
+ */
+public class Latency
+{
+  public static void main(String[] args) throws Exception
+  {
+    long size = 64;
+    int runs = 5;
+    if (args.length > 0)
+      size = Long.parseLong(args[0]);
+    if (args.length > 1)
+      runs = Integer.parseInt(args[1]);
+
+    TransformerFactory tFactory = TransformerFactory.newInstance();
+    tFactory.setAttribute("http://xml.apache.org/xalan/features/incremental",
+                          Boolean.TRUE);
+    Templates templates = tFactory.newTemplates(new StreamSource("records.xsl"));
+
+    // Warm up, then interleave the runs so that each way gets the same
+    // conditions.
+    for (int mode = 0; mode < MODES.length; mode++)
+    {
+      for (int r = 0; r < 3; r++)
+        run(templates, 8, mode);
+    }
+
+    long[] first = new long[MODES.length];
+    long[] total = new long[MODES.length];
+    for (int r = 0; r < runs; r++)
+    {
+      for (int mode = 0; mode < MODES.length; mode++)
+      {
+        long[] times = run(templates, size, mode);
+        first[mode] += times[0];
+        total[mode] += times[1];
+      }
+    }
+
+    for (int mode = 0; mode < MODES.length; mode++)
+    {
+      System.out.println(MODES[mode]
+                         + "first output " + (first[mode] / runs / 1000) + "us, "
+                         + "total " + (total[mode] / runs / 1000000) + "ms, "
+                         + (size * 1000000000L * runs / total[mode]) + "MB/s");
+    }
+  }
+
+  /** Names of the modes: pulled on this thread, or a second thread. */
+  static final String[] MODES = { "Pull:          ", "Thread filter: " };
+
+  /**
+   * Run one transformation.
+   *
+   * @return the times to the first output and to the end, in nanoseconds
+   */
+  static long[] run(Templates templates, long size, int mode)
+    throws Exception
+  {
+    Transformer transformer = templates.newTransformer();
+    Reader in = new Streaming.RecordReader(size << 20);
+    Source source;
+    if (1 == mode)
+    {
+      // A reader supplied by the user is always run on a second thread.
+      SAXParserFactory spf = SAXParserFactory.newInstance();
+      spf.setNamespaceAware(true);
+      source = new SAXSource(spf.newSAXParser().getXMLReader(),
+                             new InputSource(in));
+    }
+    else
+      source = new StreamSource(in);
+
+    FirstWriteOutputStream out = new FirstWriteOutputStream();
+    long start = System.nanoTime();
+    transformer.transform(source, new StreamResult(out));
+    long end = System.nanoTime();
+    return new long[] { out.m_first - start, end - start };
+  }
+
+  /**
+   * Discards what is written to it, noting when the first write happens.
+   */
+  static class FirstWriteOutputStream extends OutputStream
+  {
+    long m_first = 0;
+
+    public void write(int b)
+    {
+      if (0 == m_first)
+        m_first = System.nanoTime();
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+      if (0 == m_first)
+        m_first = System.nanoTime();
+    }
+  }
+}
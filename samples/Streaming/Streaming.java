@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Iterator;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * What it does: this sample measures the memory used to transform a
+ * large, record-oriented document, with and without the streaming and
+ * incremental features.
+ * <p>
+ * The document is generated as it is parsed, so no disk space is needed
+ * however large it is. records.xsl only moves forward through it, so the
+ * records already processed can be discarded: in streaming or incremental
+ * mode the memory used stays about the same whatever the size of the
+ * document, while the default mode needs it all in memory.</p>
+ * <p>
+ * Usage: run in the Streaming directory:
+ * <pre>
+ *   java -Xmx256m Streaming [size in MB] [none|incremental|streaming]
+ * </pre>
+ * The default is a 2048MB document, in streaming mode. The peak heap used,
+ * the time taken and the size of the output are printed.</p>
+ */
+public class Streaming
+{
+  public static void main(String[] args) throws Exception
+  {
+    long size = 2048;
+    String mode = "streaming";
+    if (args.length > 0)
+      size = Long.parseLong(args[0]);
+    if (args.length > 1)
+      mode = args[1];
+
+    TransformerFactory tFactory = TransformerFactory.newInstance();
+    tFactory.setAttribute("http://xml.apache.org/xalan/features/incremental",
+                          Boolean.valueOf("incremental".equals(mode)));
+    tFactory.setAttribute("http://xml.apache.org/xalan/features/streaming",
+                          Boolean.valueOf("streaming".equals(mode)));
+    Templates templates = tFactory.newTemplates(new StreamSource("records.xsl"));
+
+    CountingOutputStream out = new CountingOutputStream();
+    resetPeakUsage();
+    long start = System.currentTimeMillis();
+
+    templates.newTransformer().transform(
+        new StreamSource(new RecordReader(size << 20)),
+        new StreamResult(out));
+
+    long time = System.currentTimeMillis() - start;
+    System.out.println("Mode:         " + mode);
+    System.out.println("Input:        " + size + "MB");
+    System.out.println("Output:       " + (out.m_count >> 10) + "KB");
+    System.out.println("Time:         " + time + "ms");
+    System.out.println("Peak heap:    " + (getPeakUsage() >> 20) + "MB");
+  }
+
+  /**
+   * Reset the peak usage of the heap memory pools.
+   */
+  static void resetPeakUsage()
+  {
+    System.gc();
+    Iterator pools = ManagementFactory.getMemoryPoolMXBeans().iterator();
+    while (pools.hasNext())
+    {
+      MemoryPoolMXBean pool = (MemoryPoolMXBean) pools.next();
+      if (pool.getType() == MemoryType.HEAP)
+        pool.resetPeakUsage();
+    }
+  }
+
+  /**
+   * @return the sum of the peak usage of the heap memory pools
+   */
+  static long getPeakUsage()
+  {
+    long peak = 0;
+    Iterator pools = ManagementFactory.getMemoryPoolMXBeans().iterator();
+    while (pools.hasNext())
+    {
+      MemoryPoolMXBean pool = (MemoryPoolMXBean) pools.next();
+      if (pool.getType() == MemoryType.HEAP)
+        peak += pool.getPeakUsage().getUsed();
+    }
+    return peak;
+  }
+
+  /**
+   * Generates a document of records, of about the given size.
+   */
+  static class RecordReader extends Reader
+  {
+    private static final String[] CUSTOMERS =
+      { "Acme Corp", "Globex", "Initech", "Umbrella", "Hooli", "Stark" };
+
+    private final long m_size;
+    private long m_written = 0;
+    private int m_record = 0;
+    private String m_pending = "<?xml version=\"1.0\"?>\n<records>\n";
+    private int m_pos = 0;
+
+    RecordReader(long size)
+    {
+      m_size = size;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+      if (null != m_pending && m_pos == m_pending.length())
+      {
+        m_pending = nextChunk();
+        m_pos = 0;
+      }
+      if (null == m_pending)
+        return -1;
+      int n = Math.min(len, m_pending.length() - m_pos);
+      m_pending.getChars(m_pos, m_pos + n, cbuf, off);
+      m_pos += n;
+      m_written += n;
+      return n;
+    }
+
+    private String nextChunk()
+    {
+      if (m_written >= m_size)
+        return (m_record < 0) ? null : endDocument();
+
+      StringBuffer buf = new StringBuffer(8192);
+      for (int i = 0; i < 64; i++, m_record++)
+      {
+        buf.append("  <record id=\"r").append(m_record)
+           .append("\" status=\"").append((m_record % 3 == 0) ? "open" : "closed")
+           .append("\">\n    <customer>")
+           .append(CUSTOMERS[m_record % CUSTOMERS.length])
+           .append("</customer>\n    <amount>").append(m_record % 1000)
+           .append(".50</amount>\n    <note>Lorem ipsum dolor sit amet, ")
+           .append("consectetur adipiscing elit.</note>\n  </record>\n");
+      }
+      return buf.toString();
+    }
+
+    private String endDocument()
+    {
+      m_record = -1;
+      return "</records>\n";
+    }
+
+    public void close()
+    {
+    }
+  }
+
+  /**
+   * Discards what is written to it, counting the bytes.
+   */
+  static class CountingOutputStream extends OutputStream
+  {
+    long m_count = 0;
+
+    public void write(int b)
+    {
+      m_count++;
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+      m_count += len;
+    }
+  }
+}
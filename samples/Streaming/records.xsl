@@ -0,0 +1,42 @@
+<xsl:stylesheet
+  xmlns:xsl="http://www.w3.org/1999/XSL/Transform" version="1.0">
+
+  <!--
+   * Licensed to the Apache Software Foundation (ASF) under one
+   * or more contributor license agreements. See the NOTICE file
+   * distributed with this work for additional information
+   * regarding copyright ownership. The ASF licenses this file
+   * to you under the Apache License, Version 2.0 (the  "License");
+   * you may not use this file except in compliance with the License.
+   * You may obtain a copy of the License at
+   *
+   *     http://www.apache.org/licenses/LICENSE-2.0
+   *
+   * Unless required by applicable law or agreed to in writing, software
+   * distributed under the License is distributed on an "AS IS" BASIS,
+   * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   * See the License for the specific language governing permissions and
+   * limitations under the License.
+  -->
+
+  <!-- Purpose: a record-oriented stylesheet which only moves forward
+       through its input, so that it can be run in streaming mode. -->
+
+  <xsl:output method="text"/>
+
+  <xsl:template match="/">
+    <xsl:apply-templates select="records/record"/>
+  </xsl:template>
+
+  <xsl:template match="record[@status = 'open']">
+    <xsl:value-of select="@id"/>
+    <xsl:text>,</xsl:text>
+    <xsl:value-of select="customer"/>
+    <xsl:text>,</xsl:text>
+    <xsl:value-of select="amount * 1.2"/>
+    <xsl:text>&#10;</xsl:text>
+  </xsl:template>
+
+  <xsl:template match="record"/>
+
+</xsl:stylesheet>
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.OutputStream;
+import java.io.StringReader;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * What it does: this sample times template matching on a stylesheet with
+ * thousands of templates. Most of the templates match on an element name,
+ * some with a predicate, some only in a mode; others match any element with
+ * a predicate, or any element in a namespace, which every element has to
+ * be tested against.
+ * <p>
+ * The input has elements of all the names the templates match on, in both
+ * namespaces, and each is processed in the default mode and in a named
+ * mode.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java TemplateMatchBenchmark [number of templates] [number of elements] [runs]
+ * </pre>
+ * The default is 5000 templates, 20000 elements and 5 runs.</p>
+ */
+public class TemplateMatchBenchmark
+{
+  public static void main(String[] args) throws Exception
+  {
+    int templates = 5000;
+    int elements = 20000;
+    int runs = 5;
+    if (args.length > 0)
+      templates = Integer.parseInt(args[0]);
+    if (args.length > 1)
+      elements = Integer.parseInt(args[1]);
+    if (args.length > 2)
+      runs = Integer.parseInt(args[2]);
+
+    // Each name gets about four templates
+    int names = Math.max(1, templates / 4);
+    String stylesheet = generateStylesheet(templates, names);
+    String input = generateInput(elements, names);
+
+    TransformerFactory tFactory = TransformerFactory.newInstance();
+    long start = System.nanoTime();
+    Templates compiled =
+      tFactory.newTemplates(new StreamSource(new StringReader(stylesheet)));
+    System.out.println("compile: "
+                       + ((System.nanoTime() - start) / 1000000) + "ms");
+
+    // Warm up
+    CountingOutputStream out = new CountingOutputStream();
+    run(compiled, input, out);
+
+    start = System.nanoTime();
+    for (int i = 0; i < runs; i++)
+      run(compiled, input, new CountingOutputStream());
+    System.out.println("transform: "
+                       + ((System.nanoTime() - start) / runs / 1000000)
+                       + "ms, " + out.count + " bytes, checksum "
+                       + Integer.toHexString(out.checksum));
+  }
+
+  static void run(Templates templates, String input, OutputStream out)
+    throws Exception
+  {
+    templates.newTransformer().transform(
+      new StreamSource(new StringReader(input)), new StreamResult(out));
+  }
+
+  /**
+   * Generate a stylesheet with the given number of templates, matching on
+   * the given number of element names.
+   */
+  static String generateStylesheet(int templates, int names)
+  {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("<xsl:stylesheet version='1.0'"
+                  + " xmlns:xsl='http://www.w3.org/1999/XSL/Transform'"
+                  + " xmlns:a='urn:a' xmlns:b='urn:b'>");
+    buffer.append("<xsl:template match='/'><out>"
+                  + "<xsl:apply-templates select='*/*'/>"
+                  + "<xsl:apply-templates select='*/*' mode='m'/>"
+                  + "</out></xsl:template>");
+
+    for (int i = 0; i < templates; i++)
+    {
+      int name = i % names;
+      String match;
+      String mode = "";
+      switch (i % 20)
+      {
+      case 0 :
+      case 4 :
+      case 8 :
+        match = "e" + name;
+        break;
+      case 1 :
+      case 5 :
+        match = "e" + name + "[@k='" + (i % 7) + "']";
+        break;
+      case 2 :
+        match = "a:e" + name;
+        break;
+      case 3 :
+      case 7 :
+      case 11 :
+        match = "e" + name;
+        mode = " mode='m'";
+        break;
+      case 6 :
+        match = "doc/e" + name + "[2]";
+        break;
+      case 9 :
+        match = "e" + name + "[@k]";
+        mode = " mode='m'";
+        break;
+      case 10 :
+        match = "*[@t='" + name + "']";
+        break;
+      case 12 :
+        match = "b:*[@k='" + (i % 5) + "']";
+        break;
+      case 13 :
+        match = "a:e" + name + "|b:e" + name;
+        mode = " mode='m'";
+        break;
+      case 14 :
+        match = "e" + name;
+        mode = " mode='m' priority='" + (i % 3) + "'";
+        break;
+      default :
+        match = "x" + i;
+      }
+      buffer.append("<xsl:template match=\"").append(match).append('"')
+            .append(mode).append("><t").append(i).append("/></xsl:template>");
+    }
+
+    buffer.append("</xsl:stylesheet>");
+    return buffer.toString();
+  }
+
+  /**
+   * Generate a document with the given number of elements.
+   */
+  static String generateInput(int elements, int names)
+  {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("<doc xmlns:a='urn:a' xmlns:b='urn:b'>");
+    for (int i = 0; i < elements; i++)
+    {
+      String prefix = (i % 5 == 0) ? "a:" : (i % 7 == 0) ? "b:" : "";
+      int name = (i * 31) % (names + names / 10 + 1);
+      buffer.append('<').append(prefix).append('e').append(name)
+            .append(" k='").append(i % 9).append("' t='").append(i % 50)
+            .append("'/>");
+    }
+    buffer.append("</doc>");
+    return buffer.toString();
+  }
+
+  /**
+   * Discards what is written to it, counting the bytes and summing them up.
+   */
+  static class CountingOutputStream extends OutputStream
+  {
+    long count;
+    int checksum;
+
+    public void write(int b)
+    {
+      count++;
+      checksum = checksum * 31 + b;
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+      for (int i = 0; i < len; i++)
+        write(b[off + i]);
+    }
+  }
+}
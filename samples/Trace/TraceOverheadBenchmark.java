@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+import java.io.OutputStream;
+import java.io.StringReader;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xalan.trace.GenerateEvent;
+import org.apache.xalan.trace.SelectionEvent;
+import org.apache.xalan.trace.TraceListener;
+import org.apache.xalan.trace.TraceManager;
+import org.apache.xalan.trace.TracerEvent;
+import org.apache.xalan.transformer.TransformerImpl;
+
+/**
+ * What it does: this sample times what tracing costs a transformation.
+ * It runs the same transformation with a transformer which never had a
+ * trace listener, with one whose listener was removed again before the
+ * transformation, and with one whose listener does nothing.
+ * <p>
+ * The transformer only takes its tracing path while trace listeners are
+ * registered with its TraceManager, so the first two should take the same
+ * time.
+ * <p>
+ * Usage:
+ * <pre>
+ *   java TraceOverheadBenchmark [number of records] [runs]
+ * </pre>
+ * The default is 20000 records and 10 runs.</p>
+ */
+public class TraceOverheadBenchmark
+{
+  static final String STYLESHEET =
+    "<xsl:stylesheet version='1.0'"
+    + " xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+    + "<xsl:template match='/'>"
+    + "<table><xsl:apply-templates select='records/record'/></table>"
+    + "</xsl:template>"
+    + "<xsl:template match='record'>"
+    + "<tr id='{@id}'>"
+    + "<xsl:for-each select='*'>"
+    + "<td><xsl:value-of select='.'/></td>"
+    + "</xsl:for-each>"
+    + "<xsl:if test='amount &gt; 500'><td>large</td></xsl:if>"
+    + "</tr>"
+    + "</xsl:template>"
+    + "</xsl:stylesheet>";
+
+  static final String[] MODES =
+    { "no listener", "removed listener", "idle listener" };
+
+  public static void main(String[] args) throws Exception
+  {
+    int records = 20000;
+    int runs = 10;
+    if (args.length > 0)
+      records = Integer.parseInt(args[0]);
+    if (args.length > 1)
+      runs = Integer.parseInt(args[1]);
+
+    String input = generate(records);
+    TransformerFactory tFactory = TransformerFactory.newInstance();
+    Templates templates =
+      tFactory.newTemplates(new StreamSource(new StringReader(STYLESHEET)));
+
+    // Warm up all the paths before timing any of them
+    for (int i = 0; i < 3; i++)
+    {
+      for (int m = 0; m < MODES.length; m++)
+        run(templates, input, m);
+    }
+
+    // Take turns, so that each mode sees the same state of the JVM
+    long[] times = new long[MODES.length];
+    for (int i = 0; i < runs; i++)
+    {
+      for (int m = 0; m < MODES.length; m++)
+      {
+        long start = System.nanoTime();
+        run(templates, input, m);
+        times[m] += System.nanoTime() - start;
+      }
+    }
+
+    for (int m = 0; m < MODES.length; m++)
+      System.out.println(MODES[m] + ": " + (times[m] / runs / 1000000) + "ms");
+  }
+
+  /**
+   * Transform the input once, with a transformer set up for a mode.
+   */
+  static void run(Templates templates, String input, int mode)
+    throws Exception
+  {
+    Transformer transformer = templates.newTransformer();
+    if (mode > 0 && transformer instanceof TransformerImpl)
+    {
+      TraceManager tm = ((TransformerImpl) transformer).getTraceManager();
+      TraceListener listener = new IdleTraceListener();
+      tm.addTraceListener(listener);
+      if (mode == 1)
+        tm.removeTraceListener(listener);
+    }
+    transformer.transform(new StreamSource(new StringReader(input)),
+                          new StreamResult(new NullOutputStream()));
+  }
+
+  /**
+   * Generate a document of records.
+   */
+  static String generate(int records)
+  {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append("<records>");
+    for (int i = 0; i < records; i++)
+    {
+      buffer.append("<record id='r").append(i).append("'>");
+      buffer.append("<name>customer-").append(i % 97).append("</name>");
+      buffer.append("<region>eastern</region>");
+      buffer.append("<amount>").append(i % 1000).append(".5</amount>");
+      buffer.append("</record>");
+    }
+    buffer.append("</records>");
+    return buffer.toString();
+  }
+
+  /**
+   * A trace listener which ignores the events.
+   */
+  static class IdleTraceListener implements TraceListener
+  {
+    public void trace(TracerEvent ev)
+    {
+    }
+
+    public void selected(SelectionEvent ev)
+    {
+    }
+
+    public void generated(GenerateEvent ev)
+    {
+    }
+  }
+
+  /**
+   * Discards what is written to it.
+   */
+  static class NullOutputStream extends OutputStream
+  {
+    public void write(int b)
+    {
+    }
+
+    public void write(byte[] b, int off, int len)
+    {
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.*;
+import org.w3c.dom.*;
+
+/**
+ * JAXP 1.3 XPath API benchmark.
+ *
+ * Times many small evaluations against the same DOM, which is how the
+ * XPath API is most often used: by expression string, by compiled
+ * expression, from the document and from an element deep inside it, and
+ * after changing the document between evaluations.
+ *
+ * Takes 2 optional arguments:
+ * (1) the number of records in the generated document (default 1000)
+ * (2) the number of evaluations timed for each case (default 100000)
+ *
+ * Example:
+ * 	java XPathBenchmark 1000 100000
+ */
+public class XPathBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int records = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int count = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+
+        Document doc = generate(records);
+        Element record = (Element) doc.getDocumentElement()
+            .getElementsByTagName("record").item(records / 2);
+
+        XPathFactory factory = XPathFactory.newInstance(
+            XPathFactory.DEFAULT_OBJECT_MODEL_URI,
+            "org.apache.xpath.jaxp.XPathFactoryImpl", null);
+        XPath xpath = factory.newXPath();
+        XPathExpression compiled = xpath.compile("amount * 2");
+
+        for (int pass = 0; pass < 2; pass++)
+        {
+            // The first pass is a warm-up.
+            boolean print = (pass == 1);
+            int n = print ? count : count / 10;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                xpath.evaluate("/records/record[1]/@id", doc);
+            report(print, "String, from the document:   ", start, n);
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                xpath.evaluate("amount * 2", record);
+            report(print, "String, from an element:     ", start, n);
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                compiled.evaluate(record, XPathConstants.NUMBER);
+            report(print, "Compiled, from an element:   ", start, n);
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                xpath.evaluate("count(/records/record)", doc,
+                               XPathConstants.NUMBER);
+            report(print, "String, whole document:      ", start, n);
+
+            // Each change to the document means that what was kept of it
+            // must be thrown away.
+            Element amount = (Element) record.getElementsByTagName("amount")
+                .item(0);
+            start = System.nanoTime();
+            for (int i = 0; i < n / 100; i++)
+            {
+                amount.getFirstChild().setNodeValue(Integer.toString(i));
+                double value = ((Double) compiled.evaluate(
+                    record, XPathConstants.NUMBER)).doubleValue();
+                if (value != i * 2)
+                    throw new IllegalStateException(value + " != " + (i * 2));
+            }
+            report(print, "After changing the document: ", start, n / 100);
+        }
+    }
+
+    static void report(boolean print, String name, long start, int n)
+    {
+        if (print)
+            System.out.println(name + ((System.nanoTime() - start) / n)
+                               + "ns per evaluation");
+    }
+
+    /**
+     * Generate a document of records.
+     */
+    static Document generate(int records) throws Exception
+    {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().newDocument();
+        Element root = doc.createElement("records");
+        doc.appendChild(root);
+        for (int i = 0; i < records; i++)
+        {
+            Element record = doc.createElement("record");
+            record.setAttribute("id", "r" + i);
+            Element customer = doc.createElement("customer");
+            customer.appendChild(doc.createTextNode("Customer " + (i % 17)));
+            record.appendChild(customer);
+            Element amount = doc.createElement("amount");
+            amount.appendChild(doc.createTextNode(Integer.toString(i % 1000)));
+            record.appendChild(amount);
+            root.appendChild(record);
+        }
+        return doc;
+    }
+}
@@ -38,6 +38,7 @@ import org.apache.xalan.templates.ElemForEach;
 import org.apache.xalan.templates.ElemTemplateElement;
 import org.apache.xalan.templates.Stylesheet;
 import org.apache.xalan.templates.StylesheetRoot;
+import org.apache.xml.dtm.ref.SharedDTMCache;
 import org.apache.xml.utils.BoolStack;
 import org.apache.xml.utils.NamespaceSupport2;
 import org.apache.xml.utils.NodeConsumer;
@@ -84,6 +85,21 @@ public class StylesheetHandler extends DefaultHandler
    * The flag for the setting of the source_location feature;
    */
   private boolean m_source_location = false;
+
+  /**
+   * The flag for the setting of the off_heap_storage feature;
+   */
+  private boolean m_offHeapStorage = false;
+
+  /**
+   * The flag for the setting of the streaming feature;
+   */
+  private boolean m_streaming = false;
+
+  /**
+   * The setting of the source document cache attribute.
+   */
+  private SharedDTMCache m_sourceDocumentCache = null;
   
   /**
    * Create a StylesheetHandler object, creating a root stylesheet
@@ -112,6 +128,12 @@ public class StylesheetHandler extends DefaultHandler
             TransformerFactoryImpl.FEATURE_INCREMENTAL)).booleanValue();
     m_source_location = ((Boolean) processor.getAttribute(
             TransformerFactoryImpl.FEATURE_SOURCE_LOCATION)).booleanValue();
+    m_offHeapStorage = ((Boolean) processor.getAttribute(
+            TransformerFactoryImpl.FEATURE_OFF_HEAP_STORAGE)).booleanValue();
+    m_streaming = ((Boolean) processor.getAttribute(
+            TransformerFactoryImpl.FEATURE_STREAMING)).booleanValue();
+    m_sourceDocumentCache = (SharedDTMCache) processor.getAttribute(
+            TransformerFactoryImpl.ATTRIBUTE_SOURCE_DOCUMENT_CACHE);
     // m_schema = new XSLTSchema();
     init(processor);
     
@@ -1195,6 +1217,9 @@ public class StylesheetHandler extends DefaultHandler
         m_stylesheetRoot.setOptimizer(m_optimize);
         m_stylesheetRoot.setIncremental(m_incremental);
         m_stylesheetRoot.setSource_location(m_source_location);  		
+        m_stylesheetRoot.setOffHeapStorage(m_offHeapStorage);
+        m_stylesheetRoot.setStreaming(m_streaming);
+        m_stylesheetRoot.setSourceDocumentCache(m_sourceDocumentCache);
     }
     return m_stylesheetRoot;
   }
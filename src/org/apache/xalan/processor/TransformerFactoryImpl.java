@@ -46,9 +46,11 @@ import org.apache.xalan.transformer.TrAXFilter;
 import org.apache.xalan.transformer.TransformerIdentityImpl;
 import org.apache.xalan.transformer.TransformerImpl;
 import org.apache.xalan.transformer.XalanProperties;
+import org.apache.xml.dtm.ref.SharedDTMCache;
 import org.apache.xml.utils.StopParseException;
 import org.apache.xml.utils.StylesheetPIHandler;
 import org.apache.xml.utils.SystemIDResolver;
+import org.apache.xml.utils.TemplatesCache;
 import org.apache.xml.utils.TreeWalker;
 import org.w3c.dom.Node;
 import org.xml.sax.InputSource;
@@ -96,6 +98,34 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
   public static final String FEATURE_SOURCE_LOCATION =
                              XalanProperties.SOURCE_LOCATION;
 
+  /** Static string to be used for off_heap_storage feature */
+  public static final String FEATURE_OFF_HEAP_STORAGE =
+                             XalanProperties.OFF_HEAP_STORAGE;
+
+  /** Static string to be used for streaming feature */
+  public static final String FEATURE_STREAMING =
+                             XalanProperties.STREAMING;
+
+  /** Static string to be used for the shared source document cache */
+  public static final String ATTRIBUTE_SOURCE_DOCUMENT_CACHE =
+                             XalanProperties.SOURCE_DOCUMENT_CACHE;
+
+  /** Static string to be used for the size of the templates cache */
+  public static final String ATTRIBUTE_TEMPLATES_CACHE_SIZE =
+                             XalanProperties.TEMPLATES_CACHE_SIZE;
+
+  /** Static string to be used for the templates cache's hit count */
+  public static final String ATTRIBUTE_TEMPLATES_CACHE_HITS =
+                             XalanProperties.TEMPLATES_CACHE_HITS;
+
+  /** Static string to be used for the templates cache's miss count */
+  public static final String ATTRIBUTE_TEMPLATES_CACHE_MISSES =
+                             XalanProperties.TEMPLATES_CACHE_MISSES;
+
+  /** Static string to be used for the templates cache's eviction count */
+  public static final String ATTRIBUTE_TEMPLATES_CACHE_EVICTIONS =
+                             XalanProperties.TEMPLATES_CACHE_EVICTIONS;
+
   public javax.xml.transform.Templates processFromNode(Node node)
           throws TransformerConfigurationException
   {
@@ -405,6 +435,7 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
   	// secure processing?
   	if (name.equals(XMLConstants.FEATURE_SECURE_PROCESSING)) {
   	    m_isSecureProcessing = value;			
+  	    clearTemplatesCache();
   	}
   	// This implementation does not support the setting of a feature other than
   	// the secure processing feature.
@@ -491,6 +522,50 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
    * default this attribute is set to false. 
    */
   private boolean m_incremental = false;
+
+  /**
+   * Flag set by FEATURE_OFF_HEAP_STORAGE.
+   * This feature specifies whether the node tables of source documents are
+   * kept outside the Java heap, so that very large documents do not burden
+   * the garbage collector. By default this attribute is set to false.
+   */
+  private boolean m_offHeapStorage = false;
+
+  /**
+   * Flag set by FEATURE_STREAMING.
+   * This feature specifies whether stylesheets which only move forward
+   * through the source document are run in streaming mode, in which the
+   * parts of the document already processed are discarded. Other
+   * stylesheets are run normally. By default this attribute is set to false.
+   */
+  private boolean m_streaming = false;
+
+  /**
+   * Set by ATTRIBUTE_SOURCE_DOCUMENT_CACHE.
+   * Documents loaded by the document() function are taken from this cache,
+   * and so shared between transformations, if it is not null.
+   */
+  private SharedDTMCache m_sourceDocumentCache = null;
+
+  /**
+   * Set by ATTRIBUTE_TEMPLATES_CACHE_SIZE.
+   * newTemplates() returns the compiled stylesheets in this cache, keyed
+   * by the content of the stylesheets and their imports, if it is not
+   * null. The cache is cleared when the configuration of the factory
+   * changes.
+   */
+  private volatile TemplatesCache m_templatesCache = null;
+
+  /** Compiles the stylesheets missing from the templates cache. */
+  private final TemplatesCache.Compiler m_templatesCompiler =
+    new TemplatesCache.Compiler()
+    {
+      public Templates compile(Source source, String key)
+        throws TransformerConfigurationException
+      {
+        return compileTemplates(source);
+      }
+    };
   
   /**
    * Allows the user to set specific attributes on the underlying
@@ -565,11 +640,109 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
         throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_BAD_VALUE, new Object[]{name, value})); //name + " bad value " + value);
       }
     }
+
+    else if (name.equals(FEATURE_OFF_HEAP_STORAGE))
+    {
+      if(value instanceof Boolean)
+      {
+        // Accept a Boolean object..
+        m_offHeapStorage = ((Boolean)value).booleanValue();
+      }
+      else if(value instanceof String)
+      {
+        // .. or a String object
+        m_offHeapStorage = (new Boolean((String)value)).booleanValue();
+      }
+      else
+      {
+        // Give a more meaningful error message
+        throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_BAD_VALUE, new Object[]{name, value})); //name + " bad value " + value);
+      }
+    }
+
+    else if (name.equals(FEATURE_STREAMING))
+    {
+      if(value instanceof Boolean)
+      {
+        // Accept a Boolean object..
+        m_streaming = ((Boolean)value).booleanValue();
+      }
+      else if(value instanceof String)
+      {
+        // .. or a String object
+        m_streaming = (new Boolean((String)value)).booleanValue();
+      }
+      else
+      {
+        // Give a more meaningful error message
+        throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_BAD_VALUE, new Object[]{name, value})); //name + " bad value " + value);
+      }
+    }
     
+    else if (name.equals(ATTRIBUTE_TEMPLATES_CACHE_SIZE))
+    {
+      int size;
+      try
+      {
+        if (value instanceof Integer)
+          size = ((Integer)value).intValue();
+        else if (value instanceof String)
+          size = Integer.parseInt((String)value);
+        else
+          size = -1;
+      }
+      catch (NumberFormatException nfe)
+      {
+        size = -1;
+      }
+
+      if (size < 0)
+      {
+        // Give a more meaningful error message
+        throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_BAD_VALUE, new Object[]{name, value})); //name + " bad value " + value);
+      }
+      else if (size == 0)
+        m_templatesCache = null;
+      else if (null == m_templatesCache)
+        m_templatesCache = new TemplatesCache(size);
+      else
+        m_templatesCache.setMaxEntries(size);
+
+      // The size of the cache does not change what is compiled
+      return;
+    }
+
+    else if (name.equals(ATTRIBUTE_SOURCE_DOCUMENT_CACHE))
+    {
+      if (null == value || value instanceof SharedDTMCache)
+      {
+        m_sourceDocumentCache = (SharedDTMCache)value;
+      }
+      else
+      {
+        // Give a more meaningful error message
+        throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_BAD_VALUE, new Object[]{name, value})); //name + " bad value " + value);
+      }
+    }
+
     else
     {
       throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_NOT_SUPPORTED, new Object[]{name})); //name + "not supported");
     }
+
+    // The cached stylesheets were compiled with the old setting
+    clearTemplatesCache();
+  }
+
+  /**
+   * Throw away the compiled stylesheets in the templates cache, if there
+   * is one.
+   */
+  private void clearTemplatesCache()
+  {
+    TemplatesCache cache = m_templatesCache;
+    if (null != cache)
+      cache.clear();
   }
 
   /**
@@ -596,6 +769,38 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
     {
       return m_source_location ? Boolean.TRUE : Boolean.FALSE;
     }
+    else if (name.equals(FEATURE_OFF_HEAP_STORAGE))
+    {
+      return m_offHeapStorage ? Boolean.TRUE : Boolean.FALSE;
+    }
+    else if (name.equals(FEATURE_STREAMING))
+    {
+      return m_streaming ? Boolean.TRUE : Boolean.FALSE;
+    }
+    else if (name.equals(ATTRIBUTE_SOURCE_DOCUMENT_CACHE))
+    {
+      return m_sourceDocumentCache;
+    }
+    else if (name.equals(ATTRIBUTE_TEMPLATES_CACHE_SIZE))
+    {
+      TemplatesCache cache = m_templatesCache;
+      return new Integer((null == cache) ? 0 : cache.getMaxEntries());
+    }
+    else if (name.equals(ATTRIBUTE_TEMPLATES_CACHE_HITS))
+    {
+      TemplatesCache cache = m_templatesCache;
+      return new Long((null == cache) ? 0 : cache.getHitCount());
+    }
+    else if (name.equals(ATTRIBUTE_TEMPLATES_CACHE_MISSES))
+    {
+      TemplatesCache cache = m_templatesCache;
+      return new Long((null == cache) ? 0 : cache.getMissCount());
+    }
+    else if (name.equals(ATTRIBUTE_TEMPLATES_CACHE_EVICTIONS))
+    {
+      TemplatesCache cache = m_templatesCache;
+      return new Long((null == cache) ? 0 : cache.getEvictionCount());
+    }
     else
       throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_ATTRIB_VALUE_NOT_RECOGNIZED, new Object[]{name})); //name + " attribute not recognized");
   }
@@ -825,6 +1030,11 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
    * a Templates object allows the TransformerFactory to do detailed
    * performance optimization of transformation instructions, without
    * penalizing runtime transformation.
+   * <p>
+   * If the templates cache is turned on with ATTRIBUTE_TEMPLATES_CACHE_SIZE,
+   * a stylesheet whose text, and the text of whose imports, has been
+   * compiled before is not compiled again, and the same Templates object is
+   * returned.</p>
    *
    * @param source An object that holds a URL, input stream, etc.
    * @return A Templates object capable of being used for transformation purposes.
@@ -835,6 +1045,26 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
   public Templates newTemplates(Source source)
           throws TransformerConfigurationException
   {
+    TemplatesCache cache = m_templatesCache;
+    if (null != cache)
+      return cache.getTemplates(source, m_uriResolver, m_templatesCompiler);
+
+    return compileTemplates(source);
+  }
+
+  /**
+   * Process the source into a Templates object, without looking in the
+   * templates cache.
+   *
+   * @param source An object that holds a URL, input stream, etc.
+   * @return A Templates object capable of being used for transformation purposes.
+   *
+   * @throws TransformerConfigurationException May throw this during the parse when it
+   *            is constructing the Templates object and fails.
+   */
+  Templates compileTemplates(Source source)
+          throws TransformerConfigurationException
+  {
 
     String baseID = source.getSystemId();
 
@@ -981,6 +1211,7 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
   public void setURIResolver(URIResolver resolver)
   {
     m_uriResolver = resolver;
+    clearTemplatesCache();
   }
 
   /**
@@ -1370,6 +1370,7 @@ public class XSLTErrorResources extends ListResourceBundle
   { "optionTS", "   [-TS (Trace each selection event.)]"},
   {  "optionTTC", "   [-TTC (Trace the template children as they are being processed.)]"},
   { "optionTCLASS", "   [-TCLASS (TraceListener class for trace extensions.)]"},
+  { "optionPROFILE", "   [-PROFILE filename (Profile the templates and select expressions, writing collapsed stacks for a flame graph to the file and a summary to the standard error.)]"},
   { "optionVALIDATE", "   [-VALIDATE (Set whether validation occurs.  Validation is off by default.)]"},
   { "optionEDUMP", "   [-EDUMP {optional filename} (Do stackdump on error.)]"},
   {  "optionXML", "   [-XML (Use XML formatter and add XML header.)]"},
@@ -70,16 +70,33 @@ public class ElemApplyImport extends ElemTemplateElement
           TransformerImpl transformer)
             throws TransformerException
   {
+    if (transformer.getDebug())
+    {
+      transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
 
+  /**
+   * Execute the xsl:apply-imports transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
     if (transformer.currentTemplateRuleIsNull())
     {
       transformer.getMsgMgr().error(this,
         XSLTErrorResources.ER_NO_APPLY_IMPORT_IN_FOR_EACH);  //"xsl:apply-imports not allowed in a xsl:for-each");
     }
 
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEvent(this);
-
     int sourceNode = transformer.getXPathContext().getCurrentNode();
     if (DTM.NULL != sourceNode)
     {
@@ -92,8 +109,6 @@ public class ElemApplyImport extends ElemTemplateElement
       transformer.getMsgMgr().error(this,
         XSLTErrorResources.ER_NULL_SOURCENODE_APPLYIMPORTS);  //"sourceNode is null in xsl:apply-imports!");
     }
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEndEvent(this);
   }
 
   /**
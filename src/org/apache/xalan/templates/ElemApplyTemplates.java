@@ -148,6 +148,35 @@ public class ElemApplyTemplates extends ElemCallTemplate
    * @throws TransformerException
    */
   public void execute(TransformerImpl transformer) throws TransformerException
+  {
+    applyTemplates(transformer, transformer.getDebug());
+  }
+
+  /**
+   * Apply the context node to the matching templates, without firing
+   * trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer)
+          throws TransformerException
+  {
+    applyTemplates(transformer, false);
+  }
+
+  /**
+   * Apply the context node to the matching templates, firing trace
+   * events only if traced is true.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   * @param traced true to take the path which fires trace events.
+   *
+   * @throws TransformerException
+   */
+  private void applyTemplates(TransformerImpl transformer, boolean traced)
+          throws TransformerException
   {
 
     transformer.pushCurrentTemplateRuleIsNull(false);
@@ -172,14 +201,14 @@ public class ElemApplyTemplates extends ElemCallTemplate
           transformer.pushMode(m_mode);
         }
       }
-      if (transformer.getDebug())
+      if (traced)
         transformer.getTraceManager().fireTraceEvent(this);
 
-      transformSelectedNodes(transformer);
+      transformSelectedNodes(transformer, traced);
     }
     finally
     {
-      if (transformer.getDebug())
+      if (traced)
         transformer.getTraceManager().fireTraceEndEvent(this);
 
       if (pushMode)
@@ -201,6 +230,22 @@ public class ElemApplyTemplates extends ElemCallTemplate
   public void transformSelectedNodes(TransformerImpl transformer)
             throws TransformerException
   {
+    transformSelectedNodes(transformer, transformer.getDebug());
+  }
+
+  /**
+   * Perform a query if needed, and call transformNode for each child,
+   * firing trace events only if traced is true.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   * @param traced true to take the path which fires trace events.
+   *
+   * @throws TransformerException Thrown in a variety of circumstances.
+   */
+  private void transformSelectedNodes(TransformerImpl transformer,
+                                      boolean traced)
+            throws TransformerException
+  {
 
     final XPathContext xctxt = transformer.getXPathContext();
     final int sourceNode = xctxt.getCurrentNode();
@@ -228,7 +273,7 @@ public class ElemApplyTemplates extends ElemCallTemplate
       if (null != keys)
         sourceNodes = sortNodes(xctxt, keys, sourceNodes);
             
-      if (transformer.getDebug())
+      if (traced)
       {
         transformer.getTraceManager().fireSelectedEvent(sourceNode, this,
                 "select", new XPath(m_selectExpression),
@@ -256,10 +301,10 @@ public class ElemApplyTemplates extends ElemCallTemplate
         for (int i = 0; i < nParams; i++) 
         {
           ElemWithParam ewp = m_paramElems[i];
-          if (transformer.getDebug())
+          if (traced)
             transformer.getTraceManager().fireTraceEvent(ewp);
           XObject obj = ewp.getValue(transformer, sourceNode);
-          if (transformer.getDebug())
+          if (traced)
             transformer.getTraceManager().fireTraceEndEvent(ewp);
           
           vars.setLocalVariable(i, obj, argsFrame);
@@ -281,6 +326,7 @@ public class ElemApplyTemplates extends ElemCallTemplate
       {
         currentNodes.setTop(child);
         currentExpressionNodes.setTop(child);
+        transformer.pruneSourceBefore(child);
 
         if(xctxt.getDTM(child) != dtm)
         {
@@ -378,30 +424,48 @@ public class ElemApplyTemplates extends ElemCallTemplate
         else
         	currentFrameBottom = 0;
 
-        // Fire a trace event for the template.
-        if (transformer.getDebug())
+        if (traced)
+        {
+          // Fire a trace event for the template.
           transformer.getTraceManager().fireTraceEvent(template);
 
-        // And execute the child templates.
-        // Loop through the children of the template, calling execute on 
-        // each of them.
-        for (ElemTemplateElement t = template.m_firstChild; 
-             t != null; t = t.m_nextSibling)
-        {
-          xctxt.setSAXLocator(t);
-          try
+          // And execute the child templates.
+          // Loop through the children of the template, calling execute on 
+          // each of them.
+          for (ElemTemplateElement t = template.m_firstChild; 
+               t != null; t = t.m_nextSibling)
           {
-          	transformer.pushElemTemplateElement(t);
-          	t.execute(transformer);
+            xctxt.setSAXLocator(t);
+            try
+            {
+              transformer.pushElemTemplateElement(t);
+              t.execute(transformer);
+            }
+            finally
+            {
+              transformer.popElemTemplateElement();
+            }
           }
-          finally
+
+          transformer.getTraceManager().fireTraceEndEvent(template); 
+        }
+        else
+        {
+          for (ElemTemplateElement t = template.m_firstChild; 
+               t != null; t = t.m_nextSibling)
           {
-          	transformer.popElemTemplateElement();
+            xctxt.setSAXLocator(t);
+            try
+            {
+              transformer.pushElemTemplateElement(t);
+              t.executeUntraced(transformer);
+            }
+            finally
+            {
+              transformer.popElemTemplateElement();
+            }
           }
         }
-        
-        if (transformer.getDebug())
-	      transformer.getTraceManager().fireTraceEndEvent(template); 
 	    
         if(template.m_frameSize > 0)
         {
@@ -434,7 +498,7 @@ public class ElemApplyTemplates extends ElemCallTemplate
     }
     finally
     {
-      if (transformer.getDebug())
+      if (traced)
         transformer.getTraceManager().fireSelectedEndEvent(sourceNode, this,
                 "select", new XPath(m_selectExpression),
                 new org.apache.xpath.objects.XNodeSet(sourceNodes));
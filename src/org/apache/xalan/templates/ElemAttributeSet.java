@@ -103,10 +103,27 @@ public class ElemAttributeSet extends ElemUse
           TransformerImpl transformer)
             throws TransformerException
   {
-
     if (transformer.getDebug())
-	  transformer.getTraceManager().fireTraceEvent(this);
+    {
+      transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
 
+  /**
+   * Execute the xsl:attribute-set transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
     if (transformer.isRecursiveAttrSet(this))
     {
       throw new TransformerException(
@@ -128,10 +145,6 @@ public class ElemAttributeSet extends ElemUse
     }
 
     transformer.popElemAttributeSet();
-   
-    if (transformer.getDebug())
-	  transformer.getTraceManager().fireTraceEndEvent(this);
-
   }
 
   /**
@@ -194,7 +194,42 @@ public class ElemCallTemplate extends ElemForEach
   {
 
     if (transformer.getDebug())
+    {
       transformer.getTraceManager().fireTraceEvent(this);
+      callTemplate(transformer, true);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      callTemplate(transformer, false);
+  }
+
+  /**
+   * Invoke a named template without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
+    callTemplate(transformer, false);
+  }
+
+  /**
+   * Invoke a named template, firing trace events for its parameters and
+   * its body only if traced is true.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   * @param traced true to take the path which fires trace events.
+   *
+   * @throws TransformerException
+   */
+  private void callTemplate(
+          TransformerImpl transformer, boolean traced)
+            throws TransformerException
+  {
 
     if (null != m_template)
     {
@@ -221,10 +256,10 @@ public class ElemCallTemplate extends ElemForEach
             ElemWithParam ewp = m_paramElems[i];
             if(ewp.m_index >= 0)
             {
-              if (transformer.getDebug())
+              if (traced)
                 transformer.getTraceManager().fireTraceEvent(ewp);
               XObject obj = ewp.getValue(transformer, currentNode);
-              if (transformer.getDebug())
+              if (traced)
                 transformer.getTraceManager().fireTraceEndEvent(ewp);
               
               // Note here that the index for ElemWithParam must have been 
@@ -245,7 +280,10 @@ public class ElemCallTemplate extends ElemForEach
 
         // template.executeChildTemplates(transformer, sourceNode, mode, true);
         transformer.pushElemTemplateElement(m_template);
-        m_template.execute(transformer);
+        if (traced)
+          m_template.execute(transformer);
+        else
+          m_template.executeUntraced(transformer);
       }
       finally
       {
@@ -268,9 +306,6 @@ public class ElemCallTemplate extends ElemForEach
       transformer.getMsgMgr().error(this, XSLTErrorResources.ER_TEMPLATE_NOT_FOUND,
                                     new Object[]{ m_templateName });  //"Could not find template named: '"+templateName+"'");
     }
-    
-    if (transformer.getDebug())
-	  transformer.getTraceManager().fireTraceEndEvent(this); 
 
   }
   
@@ -78,8 +78,13 @@ public class ElemChoose extends ElemTemplateElement
   public void execute(TransformerImpl transformer) throws TransformerException
   {
 
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEvent(this);
+    if (!transformer.getDebug())
+    {
+      executeUntraced(transformer);
+      return;
+    }
+
+    transformer.getTraceManager().fireTraceEvent(this);
 
     boolean found = false;
 
@@ -103,27 +108,72 @@ public class ElemChoose extends ElemTemplateElement
         // if(when.getTest().getPatternString().equals("COLLECTION/icuser/ictimezone/LITERAL='GMT +13:00 Pacific/Tongatapu'"))
         // 	System.err.println("Found COLLECTION/icuser/ictimezone/LITERAL");
 
-        if (transformer.getDebug())
-        {
-          XObject test = when.getTest().execute(xctxt, sourceNode, when);
+        XObject test = when.getTest().execute(xctxt, sourceNode, when);
 
-          if (transformer.getDebug())
-            transformer.getTraceManager().fireSelectedEvent(sourceNode, when,
-                    "test", when.getTest(), test);
+        transformer.getTraceManager().fireSelectedEvent(sourceNode, when,
+                "test", when.getTest(), test);
 
-          if (test.bool())
-          {
-            transformer.getTraceManager().fireTraceEvent(when);
+        if (test.bool())
+        {
+          transformer.getTraceManager().fireTraceEvent(when);
             
-            transformer.executeChildTemplates(when, true);
+          transformer.executeChildTemplates(when, true);
 
-	        transformer.getTraceManager().fireTraceEndEvent(when); 
+          transformer.getTraceManager().fireTraceEndEvent(when); 
 	                  
-            return;
-          }
-
+          return;
         }
-        else if (when.getTest().bool(xctxt, sourceNode, when))
+      }
+      else if (Constants.ELEMNAME_OTHERWISE == type)
+      {
+        found = true;
+
+        transformer.getTraceManager().fireTraceEvent(childElem);
+
+        // xsl:otherwise                
+        transformer.executeChildTemplates(childElem, true);
+
+        transformer.getTraceManager().fireTraceEndEvent(childElem); 
+        return;
+      }
+    }
+
+    if (!found)
+      transformer.getMsgMgr().error(
+        this, XSLTErrorResources.ER_CHOOSE_REQUIRES_WHEN);
+        
+    transformer.getTraceManager().fireTraceEndEvent(this);         
+  }
+
+  /**
+   * Execute the xsl:choose transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer)
+          throws TransformerException
+  {
+
+    boolean found = false;
+
+    for (ElemTemplateElement childElem = getFirstChildElem();
+            childElem != null; childElem = childElem.getNextSiblingElem())
+    {
+      int type = childElem.getXSLToken();
+
+      if (Constants.ELEMNAME_WHEN == type)
+      {
+        found = true;
+
+        ElemWhen when = (ElemWhen) childElem;
+
+        // must be xsl:when
+        XPathContext xctxt = transformer.getXPathContext();
+        int sourceNode = xctxt.getCurrentNode();
+
+        if (when.getTest().bool(xctxt, sourceNode, when))
         {
           transformer.executeChildTemplates(when, true);
 
@@ -134,14 +184,9 @@ public class ElemChoose extends ElemTemplateElement
       {
         found = true;
 
-        if (transformer.getDebug())
-          transformer.getTraceManager().fireTraceEvent(childElem);
-
         // xsl:otherwise                
         transformer.executeChildTemplates(childElem, true);
 
-        if (transformer.getDebug())
-	      transformer.getTraceManager().fireTraceEndEvent(childElem); 
         return;
       }
     }
@@ -149,9 +194,6 @@ public class ElemChoose extends ElemTemplateElement
     if (!found)
       transformer.getMsgMgr().error(
         this, XSLTErrorResources.ER_CHOOSE_REQUIRES_WHEN);
-        
-    if (transformer.getDebug())
-	  transformer.getTraceManager().fireTraceEndEvent(this);         
   }
 
   /**
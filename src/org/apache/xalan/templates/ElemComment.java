@@ -72,7 +72,32 @@ public class ElemComment extends ElemTemplateElement
             throws TransformerException
   {
     if (transformer.getDebug())
+    {
       transformer.getTraceManager().fireTraceEvent(this);
+      try
+      {
+        executeUntraced(transformer);
+      }
+      finally
+      {
+        transformer.getTraceManager().fireTraceEndEvent(this);
+      }
+    }
+    else
+      executeUntraced(transformer);
+  }
+
+  /**
+   * Execute the xsl:comment transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
     try
     {
       // Note the content model is:
@@ -91,11 +116,6 @@ public class ElemComment extends ElemTemplateElement
     {
       throw new TransformerException(se);
     }
-    finally
-    {
-      if (transformer.getDebug())
-        transformer.getTraceManager().fireTraceEndEvent(this);
-    }
   }
 
   /**
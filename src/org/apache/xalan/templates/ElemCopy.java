@@ -88,6 +88,27 @@ public class ElemCopy extends ElemUse
   public void execute(
           TransformerImpl transformer)
             throws TransformerException
+  {
+    if (transformer.getDebug())
+    {
+      transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
+
+  /**
+   * Execute the xsl:copy transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
   {
                 XPathContext xctxt = transformer.getXPathContext();
       
@@ -102,9 +123,6 @@ public class ElemCopy extends ElemUse
       {
         SerializationHandler rthandler = transformer.getSerializationHandler();
 
-        if (transformer.getDebug())
-          transformer.getTraceManager().fireTraceEvent(this);
-            
         // TODO: Process the use-attribute-sets stuff
         ClonerToResultTree.cloneToResultTree(sourceNode, nodeType, dtm, 
                                              rthandler, false);
@@ -120,19 +138,11 @@ public class ElemCopy extends ElemUse
           transformer.getResultTreeHandler().endElement(ns, localName,
                                                         dtm.getNodeName(sourceNode));
         }
-        if (transformer.getDebug())
-		  transformer.getTraceManager().fireTraceEndEvent(this);         
       }
       else
       {
-        if (transformer.getDebug())
-          transformer.getTraceManager().fireTraceEvent(this);
-
         super.execute(transformer);
         transformer.executeChildTemplates(this, true);
-
-        if (transformer.getDebug())
-          transformer.getTraceManager().fireTraceEndEvent(this);
       }
     }
     catch(org.xml.sax.SAXException se)
@@ -125,18 +125,61 @@ public class ElemCopyOf extends ElemTemplateElement
             throws TransformerException
   {
     if (transformer.getDebug())
-    	transformer.getTraceManager().fireTraceEvent(this);
-
-    try
     {
-      XPathContext xctxt = transformer.getXPathContext();
-      int sourceNode = xctxt.getCurrentNode();
-      XObject value = m_selectExpression.execute(xctxt, sourceNode, this);
+      transformer.getTraceManager().fireTraceEvent(this);
+
+      try
+      {
+        XPathContext xctxt = transformer.getXPathContext();
+        int sourceNode = xctxt.getCurrentNode();
+        XObject value = m_selectExpression.execute(xctxt, sourceNode, this);
 
-      if (transformer.getDebug())
         transformer.getTraceManager().fireSelectedEvent(sourceNode, this,
                                                         "select", m_selectExpression, value);
 
+        copyValue(transformer, value);
+      }
+      finally
+      {
+        transformer.getTraceManager().fireTraceEndEvent(this);
+      }
+    }
+    else
+      executeUntraced(transformer);
+  }
+
+  /**
+   * Execute the xsl:copy-of transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
+    XPathContext xctxt = transformer.getXPathContext();
+    int sourceNode = xctxt.getCurrentNode();
+
+    copyValue(transformer,
+              m_selectExpression.execute(xctxt, sourceNode, this));
+  }
+
+  /**
+   * Copy the value of the select expression to the result tree.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   * @param value The value of the select expression.
+   *
+   * @throws TransformerException
+   */
+  private void copyValue(TransformerImpl transformer, XObject value)
+            throws TransformerException
+  {
+    try
+    {
+      XPathContext xctxt = transformer.getXPathContext();
       SerializationHandler handler = transformer.getSerializationHandler();
 
       if (null != value)
@@ -211,11 +254,6 @@ public class ElemCopyOf extends ElemTemplateElement
     {
       throw new TransformerException(se);
     }
-    finally
-    {
-      if (transformer.getDebug())
-        transformer.getTraceManager().fireTraceEndEvent(this);
-    }
 
   }
 
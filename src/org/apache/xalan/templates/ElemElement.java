@@ -201,15 +201,31 @@ public class ElemElement extends ElemUse
           TransformerImpl transformer)
             throws TransformerException
   {
+    if (transformer.getDebug())
+    {
+      transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
 
-       if (transformer.getDebug())
-         transformer.getTraceManager().fireTraceEvent(this);
-
+  /**
+   * Execute the xsl:element transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
  	SerializationHandler rhandler = transformer.getSerializationHandler();
     XPathContext xctxt = transformer.getXPathContext();
     int sourceNode = xctxt.getCurrentNode();
-    
-    
+
     String nodeName = m_name_avt == null ? null : m_name_avt.evaluate(xctxt, sourceNode, this);
 
     String prefix = null;
@@ -288,9 +304,6 @@ public class ElemElement extends ElemUse
     }
 
     constructNode(nodeName, prefix, nodeNamespace, transformer);
-
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEndEvent(this);
   }
   
   /**
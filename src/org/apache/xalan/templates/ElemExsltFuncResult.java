@@ -51,12 +51,28 @@ public class ElemExsltFuncResult extends ElemVariable
    * 
    */
   public void execute(TransformerImpl transformer) throws TransformerException
+  {
+    if (transformer.getDebug())
+    {
+      transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
+
+  /**
+   * Execute the func:result transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer) throws TransformerException
   {    
     XPathContext context = transformer.getXPathContext();
 
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEvent(this);
-    
     // Verify that result has not already been set by another result
     // element. Recursion is allowed: intermediate results are cleared 
     // in the owner ElemExsltFunction execute().
@@ -70,9 +86,6 @@ public class ElemExsltFuncResult extends ElemVariable
     XObject var = getValue(transformer, sourceNode);
     transformer.popCurrentFuncResult();
     transformer.pushCurrentFuncResult(var);
-
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEndEvent(this);    
   }
 
   /**
@@ -197,6 +197,26 @@ public class ElemExtensionCall extends ElemLiteralResult
    */
   public void execute(TransformerImpl transformer)
             throws TransformerException
+  {
+    if (transformer.getDebug())
+    {
+      transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
+
+  /**
+   * Execute the extension element transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer)
+            throws TransformerException
   {
     if (transformer.getStylesheet().isSecureProcessing())
       throw new TransformerException(
@@ -204,8 +224,6 @@ public class ElemExtensionCall extends ElemLiteralResult
           XSLTErrorResources.ER_EXTENSION_ELEMENT_NOT_ALLOWED_IN_SECURE_PROCESSING,
           new Object[] {getRawName()}));
           
-    if (transformer.getDebug())
-		transformer.getTraceManager().fireTraceEvent(this);
     try
     {
       transformer.getResultTreeHandler().flushPending();
@@ -267,8 +285,6 @@ public class ElemExtensionCall extends ElemLiteralResult
     catch(SAXException se) {
       throw new TransformerException(se);
     }
-    if (transformer.getDebug())
-		transformer.getTraceManager().fireTraceEndEvent(this);
   }
 
   /**
@@ -256,18 +256,45 @@ public class ElemForEach extends ElemTemplateElement implements ExpressionOwner
   public void execute(TransformerImpl transformer) throws TransformerException
   {
 
+    if (!transformer.getDebug())
+    {
+      executeUntraced(transformer);
+      return;
+    }
+
     transformer.pushCurrentTemplateRuleIsNull(true);    
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEvent(this);//trigger for-each element event
+    transformer.getTraceManager().fireTraceEvent(this);//trigger for-each element event
 
     try
     {
-      transformSelectedNodes(transformer);
+      transformSelectedNodes(transformer, true);
+    }
+    finally
+    {
+      transformer.getTraceManager().fireTraceEndEvent(this); 
+      transformer.popCurrentTemplateRuleIsNull();
+    }
+  }
+
+  /**
+   * Execute the xsl:for-each transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer)
+          throws TransformerException
+  {
+
+    transformer.pushCurrentTemplateRuleIsNull(true);    
+
+    try
+    {
+      transformSelectedNodes(transformer, false);
     }
     finally
     {
-      if (transformer.getDebug())
-	    transformer.getTraceManager().fireTraceEndEvent(this); 
       transformer.popCurrentTemplateRuleIsNull();
     }
   }
@@ -329,6 +356,22 @@ public class ElemForEach extends ElemTemplateElement implements ExpressionOwner
   public void transformSelectedNodes(TransformerImpl transformer)
           throws TransformerException
   {
+    transformSelectedNodes(transformer, transformer.getDebug());
+  }
+
+  /**
+   * Perform a query if needed, and call transformNode for each child,
+   * firing trace events only if traced is true.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   * @param traced true to take the path which fires trace events.
+   *
+   * @throws TransformerException Thrown in a variety of circumstances.
+   */
+  private void transformSelectedNodes(TransformerImpl transformer,
+                                      boolean traced)
+          throws TransformerException
+  {
 
     final XPathContext xctxt = transformer.getXPathContext();
     final int sourceNode = xctxt.getCurrentNode();
@@ -346,7 +389,7 @@ public class ElemForEach extends ElemTemplateElement implements ExpressionOwner
       if (null != keys)
         sourceNodes = sortNodes(xctxt, keys, sourceNodes);
 
-    if (transformer.getDebug())
+    if (traced)
     {
 
         // The original code, which is broken for bug#16889,
@@ -398,6 +441,7 @@ public class ElemForEach extends ElemTemplateElement implements ExpressionOwner
       {
         currentNodes.setTop(child);
         currentExpressionNodes.setTop(child);
+        transformer.pruneSourceBefore(child);
 
         if ((child & DTMManager.IDENT_DTM_DEFAULT) != docID)
         {
@@ -408,30 +452,37 @@ public class ElemForEach extends ElemTemplateElement implements ExpressionOwner
         //final int exNodeType = dtm.getExpandedTypeID(child);
         final int nodeType = dtm.getNodeType(child); 
 
-        // Fire a trace event for the template.
-        if (transformer.getDebug())
-        {
-           transformer.getTraceManager().fireTraceEvent(this);
-        }
-
-        // And execute the child templates.
-        // Loop through the children of the template, calling execute on 
-        // each of them.
-        for (ElemTemplateElement t = this.m_firstChild; t != null;
-             t = t.m_nextSibling)
+        if (traced)
         {
-          xctxt.setSAXLocator(t);
-          transformer.setCurrentElement(t);
-          t.execute(transformer);
-        }
-        
-        if (transformer.getDebug())
-        {
-         // We need to make sure an old current element is not 
+          // Fire a trace event for the template.
+          transformer.getTraceManager().fireTraceEvent(this);
+
+          // And execute the child templates.
+          // Loop through the children of the template, calling execute on 
+          // each of them.
+          for (ElemTemplateElement t = this.m_firstChild; t != null;
+               t = t.m_nextSibling)
+          {
+            xctxt.setSAXLocator(t);
+            transformer.setCurrentElement(t);
+            t.execute(transformer);
+          }
+
+          // We need to make sure an old current element is not 
           // on the stack.  See TransformerImpl#getElementCallstack.
           transformer.setCurrentElement(null);
           transformer.getTraceManager().fireTraceEndEvent(this);
         }
+        else
+        {
+          for (ElemTemplateElement t = this.m_firstChild; t != null;
+               t = t.m_nextSibling)
+          {
+            xctxt.setSAXLocator(t);
+            transformer.setCurrentElement(t);
+            t.executeUntraced(transformer);
+          }
+        }
 
 
 	 	// KLUGE: Implement <?xalan:doc_cache_off?> 
@@ -459,7 +510,7 @@ public class ElemForEach extends ElemTemplateElement implements ExpressionOwner
     }
     finally
     {
-      if (transformer.getDebug())
+      if (traced)
         transformer.getTraceManager().fireSelectedEndEvent(sourceNode, this,
                 "select", new XPath(m_selectExpression),
                 new org.apache.xpath.objects.XNodeSet(sourceNodes));
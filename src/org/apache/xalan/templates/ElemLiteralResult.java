@@ -1300,17 +1300,47 @@ public class ElemLiteralResult extends ElemUse
     public void execute(TransformerImpl transformer)
         throws TransformerException
     {
-        SerializationHandler rhandler = transformer.getSerializationHandler();
-
-        try
+        if (transformer.getDebug())
         {
-            if (transformer.getDebug()) {
+            try
+            {
                 // flush any buffered pending processing before
                 // the trace event.
-                rhandler.flushPending();
-                transformer.getTraceManager().fireTraceEvent(this);
+                transformer.getSerializationHandler().flushPending();
+            }
+            catch (SAXException se)
+            {
+                throw new TransformerException(se);
+            }
+            transformer.getTraceManager().fireTraceEvent(this);
+
+            try
+            {
+                executeUntraced(transformer);
+            }
+            finally
+            {
+                transformer.getTraceManager().fireTraceEndEvent(this);
             }
+        }
+        else
+            executeUntraced(transformer);
+    }
 
+  /**
+   * Execute the literal result element without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+    public void executeUntraced(TransformerImpl transformer)
+        throws TransformerException
+    {
+        SerializationHandler rhandler = transformer.getSerializationHandler();
+
+        try
+        {
             // JJK Bugzilla 3464, test namespace85 -- make sure LRE's
             // namespace is asserted even if default, since xsl:element
             // may have changed the context.
@@ -1392,12 +1422,6 @@ public class ElemLiteralResult extends ElemUse
              * there was an exception in the middle.
              * Otherwise an exception in the middle could cause a system to hang.
              */
-            if (transformer.getDebug()) {
-                // flush any buffered pending processing before
-                // the trace event.
-                //rhandler.flushPending();
-                transformer.getTraceManager().fireTraceEndEvent(this);
-            }
             rhandler.endElement(getNamespace(), getLocalName(), getRawName());
         }
         catch (SAXException se)
@@ -113,18 +113,32 @@ public class ElemMessage extends ElemTemplateElement
           TransformerImpl transformer)
             throws TransformerException
   {
-
     if (transformer.getDebug())
+    {
       transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
 
+  /**
+   * Execute the xsl:message transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
     String data = transformer.transformToString(this);
 
     transformer.getMsgMgr().message(this, data, m_terminate);
     
     if(m_terminate)
       transformer.getErrorListener().fatalError(new TransformerException(XSLMessages.createMessage(XSLTErrorResources.ER_STYLESHEET_DIRECTED_TERMINATION, null))); //"Stylesheet directed termination"));
-    
-    if (transformer.getDebug())
-	  transformer.getTraceManager().fireTraceEndEvent(this); 
   }
 }
@@ -556,10 +556,33 @@ public class ElemNumber extends ElemTemplateElement
           TransformerImpl transformer)
             throws TransformerException
   {
-
-     if (transformer.getDebug())
+    if (transformer.getDebug())
+    {
       transformer.getTraceManager().fireTraceEvent(this);
+      try
+      {
+        executeUntraced(transformer);
+      }
+      finally
+      {
+        transformer.getTraceManager().fireTraceEndEvent(this);
+      }
+    }
+    else
+      executeUntraced(transformer);
+  }
 
+  /**
+   * Execute the xsl:number transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
     int sourceNode = transformer.getXPathContext().getCurrentNode();
     String countString = getCountString(transformer, sourceNode);
 
@@ -572,11 +595,6 @@ public class ElemNumber extends ElemTemplateElement
     {
       throw new TransformerException(se);
     }
-    finally
-    {
-      if (transformer.getDebug())
-	    transformer.getTraceManager().fireTraceEndEvent(this); 
-    }
   }
 
   /**
@@ -125,10 +125,27 @@ public class ElemPI extends ElemTemplateElement
           TransformerImpl transformer)
             throws TransformerException
   {
-
     if (transformer.getDebug())
+    {
       transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
 
+  /**
+   * Execute the xsl:processing-instruction transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
     XPathContext xctxt = transformer.getXPathContext();
     int sourceNode = xctxt.getCurrentNode();
     
@@ -173,9 +190,6 @@ public class ElemPI extends ElemTemplateElement
     {
       throw new TransformerException(se);
     }
-    
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEndEvent(this);
   }
 
   /**
@@ -109,8 +109,24 @@ public class ElemParam extends ElemVariable
   public void execute(TransformerImpl transformer) throws TransformerException
   {
     if (transformer.getDebug())
+    {
       transformer.getTraceManager().fireTraceEvent(this);
-      
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
+
+  /**
+   * Execute the xsl:param transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer) throws TransformerException
+  {
     VariableStack vars = transformer.getXPathContext().getVarStack();
     
     if(!vars.isLocalSet(m_index))
@@ -122,9 +138,6 @@ public class ElemParam extends ElemVariable
       // transformer.getXPathContext().getVarStack().pushVariable(m_qname, var);
       transformer.getXPathContext().getVarStack().setLocalVariable(m_index, var);
     }
-    
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEndEvent(this);
   }
   
 }
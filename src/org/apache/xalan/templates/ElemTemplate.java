@@ -378,6 +378,27 @@ public class ElemTemplate extends ElemTemplateElement
   public void execute(
           TransformerImpl transformer)
             throws TransformerException
+  {
+    if (transformer.getDebug())
+    {
+      transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
+
+  /**
+   * Execute the xsl:template transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
   {
     XPathContext xctxt = transformer.getXPathContext();
     
@@ -385,9 +406,6 @@ public class ElemTemplate extends ElemTemplateElement
     
     xctxt.pushRTFContext();
 
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEvent(this);
-
       // %REVIEW% commenting out of the code below.
 //    if (null != sourceNode)
 //    {
@@ -402,9 +420,6 @@ public class ElemTemplate extends ElemTemplateElement
 //      //"sourceNode is null in handleApplyTemplatesInstruction!");
 //    }
 
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEndEvent(this);
-
     xctxt.popRTFContext();  
     }
 
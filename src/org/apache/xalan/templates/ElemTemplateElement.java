@@ -136,6 +136,25 @@ public class ElemTemplateElement extends UnImplNode
           TransformerImpl transformer)
             throws TransformerException{}
 
+  /**
+   * Execute the element's primary function without firing trace events.
+   * The transformer calls this instead of execute() while no trace
+   * listeners are registered, so that elements which fire events can
+   * leave the checks for them out of this path.  By default it is
+   * execute(); a subclass which overrides execute() of a class that
+   * overrides this must override this too.
+   *
+   * @param transformer The XSLT TransformerFactory.
+   *
+   * @throws TransformerException if any checked exception occurs.
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
+    execute(transformer);
+  }
+
   /**
    * Get the owning "composed" stylesheet.  This looks up the
    * inheritance chain until it calls getStylesheetComposed
@@ -201,14 +201,52 @@ public class ElemTextLiteral extends ElemTemplateElement
           TransformerImpl transformer)
             throws TransformerException
   {
-    try
+    if (transformer.getDebug())
     {
-      SerializationHandler rth = transformer.getResultTreeHandler();
-      if (transformer.getDebug()) {
+      try
+      {
         // flush any pending cached processing before the trace event.
-        rth.flushPending();
+        transformer.getResultTreeHandler().flushPending();
         transformer.getTraceManager().fireTraceEvent(this);
+
+        executeUntraced(transformer);
+      }
+      catch(SAXException se)
+      {
+        throw new TransformerException(se);
       }
+      finally
+      {
+        try
+        {
+            // flush any pending cached processing before sending the trace event
+            transformer.getResultTreeHandler().flushPending();
+            transformer.getTraceManager().fireTraceEndEvent(this);
+        }
+        catch (SAXException se)
+        {
+            throw new TransformerException(se);
+        } 
+      }
+    }
+    else
+      executeUntraced(transformer);
+  }
+
+  /**
+   * Execute the xsl:text transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(
+          TransformerImpl transformer)
+            throws TransformerException
+  {
+    try
+    {
+      SerializationHandler rth = transformer.getResultTreeHandler();
 
       if (m_disableOutputEscaping)
       {
@@ -226,20 +264,5 @@ public class ElemTextLiteral extends ElemTemplateElement
     {
       throw new TransformerException(se);
     }
-    finally
-    {
-      if (transformer.getDebug()) {
-        try
-        {
-            // flush any pending cached processing before sending the trace event
-            transformer.getResultTreeHandler().flushPending();
-            transformer.getTraceManager().fireTraceEndEvent(this);
-        }
-        catch (SAXException se)
-        {
-            throw new TransformerException(se);
-        } 
-      }
-    }
   }
 }
@@ -105,11 +105,26 @@ public class ElemUnknown extends ElemLiteralResult
   public void execute(TransformerImpl transformer)
             throws TransformerException
   {
-
-
     if (transformer.getDebug())
-		transformer.getTraceManager().fireTraceEvent(this);
+    {
+      transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
 
+  /**
+   * Execute the unknown element transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer)
+            throws TransformerException
+  {
 	try {
 
 		if (hasFallbackChildren()) {
@@ -121,8 +136,6 @@ public class ElemUnknown extends ElemLiteralResult
 	} catch (TransformerException e) {
 		transformer.getErrorListener().fatalError(e);
 	}
-    if (transformer.getDebug())
-		transformer.getTraceManager().fireTraceEndEvent(this);
   }
 
 }
@@ -212,16 +212,81 @@ public class ElemValueOf extends ElemTemplateElement
   public void execute(TransformerImpl transformer) throws TransformerException
   {
 
+    if (!transformer.getDebug())
+    {
+      executeUntraced(transformer);
+      return;
+    }
+
     XPathContext xctxt = transformer.getXPathContext();
     SerializationHandler rth = transformer.getResultTreeHandler();
 
-    if (transformer.getDebug())
-      transformer.getTraceManager().fireTraceEvent(this);
+    transformer.getTraceManager().fireTraceEvent(this);
+
+    try
+    {
+      xctxt.pushNamespaceContext(this);
+
+      int current = xctxt.getCurrentNode();
+
+      xctxt.pushCurrentNodeAndExpression(current, current);
+
+      if (m_disableOutputEscaping)
+        rth.processingInstruction(
+          javax.xml.transform.Result.PI_DISABLE_OUTPUT_ESCAPING, "");
+
+      try
+      {
+        Expression expr = m_selectExpression.getExpression();
+        XObject obj = expr.execute(xctxt);
+
+        transformer.getTraceManager().fireSelectedEvent(current, this,
+                "select", m_selectExpression, obj);
+        obj.dispatchCharactersEvents(rth);
+      }
+      finally
+      {
+        if (m_disableOutputEscaping)
+          rth.processingInstruction(
+            javax.xml.transform.Result.PI_ENABLE_OUTPUT_ESCAPING, "");
+
+        xctxt.popNamespaceContext();
+        xctxt.popCurrentNodeAndExpression();
+      }
+    }
+    catch (SAXException se)
+    {
+      throw new TransformerException(se);
+    }
+    catch (RuntimeException re) {
+    	TransformerException te = new TransformerException(re);
+    	te.setLocator(this);
+    	throw te;
+    }
+    finally
+    {
+      transformer.getTraceManager().fireTraceEndEvent(this); 
+    }
+  }
+
+  /**
+   * Execute the string expression and copy the text to the
+   * result tree, without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer) throws TransformerException
+  {
+
+    XPathContext xctxt = transformer.getXPathContext();
+    SerializationHandler rth = transformer.getResultTreeHandler();
 
     try
     {
       // Optimize for "."
-      if (false && m_isDot && !transformer.getDebug())
+      if (false && m_isDot)
       {
         int child = xctxt.getCurrentNode();
         DTM dtm = xctxt.getDTM(child);
@@ -261,18 +326,7 @@ public class ElemValueOf extends ElemTemplateElement
         {
           Expression expr = m_selectExpression.getExpression();
 
-          if (transformer.getDebug())
-          {
-            XObject obj = expr.execute(xctxt);
-
-            transformer.getTraceManager().fireSelectedEvent(current, this,
-                    "select", m_selectExpression, obj);
-            obj.dispatchCharactersEvents(rth);
-          }
-          else
-          {
-            expr.executeCharsToContentHandler(xctxt, rth);
-          }
+          expr.executeCharsToContentHandler(xctxt, rth);
         }
         finally
         {
@@ -294,11 +348,6 @@ public class ElemValueOf extends ElemTemplateElement
     	te.setLocator(this);
     	throw te;
     }
-    finally
-    {
-      if (transformer.getDebug())
-	    transformer.getTraceManager().fireTraceEndEvent(this); 
-    }
   }
 
   /**
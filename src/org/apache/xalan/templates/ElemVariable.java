@@ -239,19 +239,31 @@ public class ElemVariable extends ElemTemplateElement
    */
   public void execute(TransformerImpl transformer) throws TransformerException
   {
-
     if (transformer.getDebug())
+    {
       transformer.getTraceManager().fireTraceEvent(this);
+      executeUntraced(transformer);
+      transformer.getTraceManager().fireTraceEndEvent(this);
+    }
+    else
+      executeUntraced(transformer);
+  }
 
+  /**
+   * Execute the xsl:variable transformation without firing trace events.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer) throws TransformerException
+  {
     int sourceNode = transformer.getXPathContext().getCurrentNode();
   
     XObject var = getValue(transformer, sourceNode);
 
     // transformer.getXPathContext().getVarStack().pushVariable(m_qname, var);
     transformer.getXPathContext().getVarStack().setLocalVariable(m_index, var);
-    
-    if (transformer.getDebug())
-	  transformer.getTraceManager().fireTraceEndEvent(this);         
   }
 
   /**
@@ -64,5 +64,18 @@ public class ElemVariablePsuedo extends ElemVariable
     transformer.getXPathContext().getVarStack().setLocalVariable(m_index, m_lazyVar);
   }
 
+  /**
+   * Execute a variable declaration; this fires no trace events either.
+   *
+   * @param transformer non-null reference to the the current transform-time state.
+   *
+   * @throws TransformerException
+   */
+  public void executeUntraced(TransformerImpl transformer)
+          throws TransformerException
+  {
+    execute(transformer);
+  }
+
 }
 
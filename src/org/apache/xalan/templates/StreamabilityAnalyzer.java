@@ -0,0 +1,790 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xalan.templates;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.apache.xml.dtm.Axis;
+import org.apache.xpath.Expression;
+import org.apache.xpath.ExpressionOwner;
+import org.apache.xpath.XPath;
+import org.apache.xpath.axes.AxesWalker;
+import org.apache.xpath.axes.FilterExprIterator;
+import org.apache.xpath.axes.FilterExprIteratorSimple;
+import org.apache.xpath.axes.FilterExprWalker;
+import org.apache.xpath.axes.LocPathIterator;
+import org.apache.xpath.axes.SelfIteratorNoPredicate;
+import org.apache.xpath.axes.UnionPathIterator;
+import org.apache.xpath.axes.WalkingIterator;
+import org.apache.xpath.functions.FuncBoolean;
+import org.apache.xpath.functions.FuncContains;
+import org.apache.xpath.functions.FuncCurrent;
+import org.apache.xpath.functions.FuncExtFunction;
+import org.apache.xpath.functions.FuncFalse;
+import org.apache.xpath.functions.FuncId;
+import org.apache.xpath.functions.FuncLang;
+import org.apache.xpath.functions.FuncLast;
+import org.apache.xpath.functions.FuncNormalizeSpace;
+import org.apache.xpath.functions.FuncNot;
+import org.apache.xpath.functions.FuncNumber;
+import org.apache.xpath.functions.FuncPosition;
+import org.apache.xpath.functions.FuncStartsWith;
+import org.apache.xpath.functions.FuncString;
+import org.apache.xpath.functions.FuncStringLength;
+import org.apache.xpath.functions.FuncTrue;
+import org.apache.xpath.functions.Function;
+import org.apache.xpath.functions.FunctionOneArg;
+import org.apache.xpath.patterns.FunctionPattern;
+import org.apache.xpath.patterns.NodeTest;
+import org.apache.xpath.patterns.StepPattern;
+import org.apache.xpath.patterns.UnionPattern;
+
+/**
+ * Decides whether a composed stylesheet can be run in streaming mode, in
+ * which the source document is built incrementally and the nodes preceding
+ * the node being processed, other than its ancestors, are discarded.
+ * <p>
+ * A stylesheet is streamable if, whatever node it is processing, it never
+ * goes back to a node which has been discarded. The rules applied here are
+ * deliberately simple, and reject many stylesheets which would in fact be
+ * safe:</p>
+ * <ul>
+ * <li>xsl:key, xsl:number, xsl:sort, extension elements and functions,
+ * key(), id() and last() are not allowed.</li>
+ * <li>Reverse axes, and paths from the root, are not allowed; only child,
+ * descendant, self, attribute, namespace, following and following-sibling
+ * steps may be used.</li>
+ * <li>xsl:apply-templates and xsl:for-each may only select children,
+ * attributes or namespace nodes of the current node, or the current node
+ * itself, or nodes of another document. Selecting children "consumes" the
+ * current node: after that, the template may no longer select or read
+ * below it, and may not read its string value.</li>
+ * <li>Variables and parameters may not hold node-sets from the source
+ * document, and global variables may not use the source document at
+ * all.</li>
+ * <li>Template match patterns may not have positional predicates, and the
+ * predicates of their ancestor steps may only look at attributes.</li>
+ * </ul>
+ */
+public class StreamabilityAnalyzer extends XSLTVisitor
+{
+  /** Named template summary flag: the template reads below the current node. */
+  private static final int READS = 1;
+
+  /** Named template summary flag: the template consumes the current node. */
+  private static final int CONSUMES = 2;
+
+  /** Named template summary marking a template being analyzed. */
+  private static final Integer IN_PROGRESS = new Integer(-1);
+
+  /** The reason the stylesheet is not streamable, or null. */
+  private String m_reason = null;
+
+  /** True if the children of the current node may have been processed. */
+  private boolean m_consumed = false;
+
+  /** True if the current node's subtree has been read in this scope. */
+  private boolean m_reads = false;
+
+  /** True while analyzing the content of a global variable or parameter. */
+  private boolean m_global = false;
+
+  /** The nesting depth of predicates being visited. */
+  private int m_predDepth = 0;
+
+  /**
+   * The select expression of the xsl:apply-templates or xsl:for-each being
+   * analyzed, whose steps are checked by checkSelection().
+   */
+  private Expression m_selection = null;
+
+  /** Summaries of named templates, keyed by ElemTemplate. */
+  private Hashtable m_summaries = new Hashtable();
+
+  /**
+   * Analyze a composed stylesheet.
+   *
+   * @param root The stylesheet, which must have been composed.
+   *
+   * @return true if the stylesheet can be run in streaming mode.
+   */
+  public boolean isStreamable(StylesheetRoot root)
+  {
+    m_reason = null;
+    root.callVisitors(this);
+    return null == m_reason;
+  }
+
+  /**
+   * Get the reason the last stylesheet analyzed is not streamable.
+   *
+   * @return a short description of the first construct found which prevents
+   * streaming, or null if the stylesheet is streamable.
+   */
+  public String getReason()
+  {
+    return m_reason;
+  }
+
+  /**
+   * Record that the stylesheet is not streamable.
+   *
+   * @param reason The reason, which is kept if it is the first one.
+   */
+  private void reject(String reason)
+  {
+    if (null == m_reason)
+      m_reason = reason;
+  }
+
+  /**
+   * Record a read of the current node's subtree, which must not have been
+   * consumed.
+   *
+   * @param what What is being read, for the reason.
+   */
+  private void readContext(String what)
+  {
+    if (m_global)
+      reject(what + " in a global variable");
+    else if (m_consumed)
+      reject(what + " after the children of the current node were processed");
+    m_reads = true;
+  }
+
+  /**
+   * Visit a top level instruction: templates and attribute sets are
+   * analyzed here, each in a scope of its own.
+   *
+   * @param elem The xsl instruction element object.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitTopLevelInstruction(ElemTemplateElement elem)
+  {
+    switch (elem.getXSLToken())
+    {
+    case Constants.ELEMNAME_TEMPLATE :
+      ElemTemplate template = (ElemTemplate) elem;
+      if (null != template.getMatch())
+        checkPattern(template.getMatch().getExpression());
+      analyzeBody(template, false);
+      return false;
+    case Constants.ELEMNAME_DEFINEATTRIBUTESET :
+      // Attribute sets may be used after the current node was consumed.
+      analyzeBody(elem, true);
+      return false;
+    case Constants.ELEMNAME_KEY :
+      reject("xsl:key");
+      return false;
+    default :
+      return true;
+    }
+  }
+
+  /**
+   * Visit a global variable or parameter, which may be evaluated at any
+   * time, and so must not use the source document.
+   *
+   * @param elem The xsl:variable or xsl:param element.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitTopLevelVariableOrParamDecl(ElemTemplateElement elem)
+  {
+    ElemVariable var = (ElemVariable) elem;
+    checkVariableSelect(var.getSelect());
+
+    boolean global = m_global;
+    m_global = true;
+    var.callChildVisitors(this);
+    m_global = global;
+    return false;
+  }
+
+  /**
+   * Visit a local variable or parameter.
+   *
+   * @param elem The xsl:variable or xsl:param element.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitVariableOrParamDecl(ElemVariable elem)
+  {
+    checkVariableSelect(elem.getSelect());
+    return true;
+  }
+
+  /**
+   * Visit an instruction.
+   *
+   * @param elem The xsl instruction element object.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitInstruction(ElemTemplateElement elem)
+  {
+    switch (elem.getXSLToken())
+    {
+    case Constants.ELEMNAME_APPLY_TEMPLATES :
+    {
+      ElemApplyTemplates apply = (ElemApplyTemplates) elem;
+      boolean consumes = checkSelection(apply.getSelect());
+      // The with-params are evaluated before the selected nodes are
+      // processed.
+      apply.callChildVisitors(this, false);
+      if (consumes)
+        m_consumed = true;
+      return false;
+    }
+    case Constants.ELEMNAME_FOREACH :
+    {
+      ElemForEach forEach = (ElemForEach) elem;
+      boolean consumes = checkSelection(forEach.getSelect());
+      analyzeBody(forEach, false);
+      if (consumes)
+        m_consumed = true;
+      return false;
+    }
+    case Constants.ELEMNAME_CALLTEMPLATE :
+    {
+      ElemCallTemplate call = (ElemCallTemplate) elem;
+      call.callChildVisitors(this, true);
+      ElemTemplate template =
+        call.getStylesheetRoot().getTemplateComposed(call.getName());
+      if (null != template)
+      {
+        int summary = getSummary(template);
+        if ((summary & READS) != 0)
+          readContext("xsl:call-template " + call.getName());
+        if ((summary & CONSUMES) != 0)
+        {
+          if (m_global)
+            reject("xsl:call-template " + call.getName()
+                   + " in a global variable");
+          m_consumed = true;
+        }
+      }
+      return false;
+    }
+    case Constants.ELEMNAME_APPLY_IMPORTS :
+      readContext("xsl:apply-imports");
+      m_consumed = true;
+      return false;
+    case Constants.ELEMNAME_WITHPARAM :
+      checkVariableSelect(((ElemWithParam) elem).getSelect());
+      return true;
+    case Constants.ELEMNAME_NUMBER :
+      reject("xsl:number");
+      return false;
+    case Constants.ELEMNAME_SORT :
+      reject("xsl:sort");
+      return false;
+    case Constants.ELEMNAME_PI :
+    {
+      // The name of xsl:processing-instruction is not visited otherwise.
+      AVT name = ((ElemPI) elem).getName();
+      if (null != name)
+        name.callVisitors(this);
+      return true;
+    }
+    default :
+      return true;
+    }
+  }
+
+  /**
+   * Visit an extension element, which can not be analyzed.
+   *
+   * @param elem The extension object.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitExtensionElement(ElemExtensionCall elem)
+  {
+    reject("extension element " + elem.getNodeName());
+    return false;
+  }
+
+  /**
+   * Visit a LocationPath, checking whether it reads the subtree of the
+   * current node.
+   *
+   * @param owner The owner of the expression, to which the expression can
+   *              be reset if rewriting takes place.
+   * @param path The LocationPath object.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitLocationPath(ExpressionOwner owner, LocPathIterator path)
+  {
+    if (0 == m_predDepth && !isSelection(path))
+    {
+      if (m_global && !isForeign(path))
+        reject("a path in a global variable");
+
+      switch (getFirstAxis(path))
+      {
+      case Axis.CHILD :
+      case Axis.DESCENDANT :
+      case Axis.DESCENDANTORSELF :
+      case Axis.SELF :
+        readContext("a path below the current node");
+        break;
+      default :
+        break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Visit a step within a location path, checking its axis.
+   *
+   * @param owner The owner of the expression, to which the expression can
+   *              be reset if rewriting takes place.
+   * @param step The Step object.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitStep(ExpressionOwner owner, NodeTest step)
+  {
+    switch (getAxis(step))
+    {
+    case Axis.CHILD :
+    case Axis.DESCENDANT :
+    case Axis.DESCENDANTORSELF :
+    case Axis.SELF :
+    case Axis.ATTRIBUTE :
+    case Axis.NAMESPACE :
+    case Axis.NAMESPACEDECLS :
+    case Axis.FOLLOWING :
+    case Axis.FOLLOWINGSIBLING :
+    case Axis.FILTEREDLIST :
+      break;
+    default :
+      reject("a reverse axis, or a path from the root");
+      break;
+    }
+    return true;
+  }
+
+  /**
+   * Visit a predicate, keeping track of the predicate depth: paths in
+   * predicates are relative to the node being tested, not the current node.
+   *
+   * @param owner The owner of the expression, to which the expression can
+   *              be reset if rewriting takes place.
+   * @param pred The predicate object.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitPredicate(ExpressionOwner owner, Expression pred)
+  {
+    m_predDepth++;
+    pred.callVisitors(owner, this);
+    m_predDepth--;
+    return false;
+  }
+
+  /**
+   * Visit a function.
+   *
+   * @param owner The owner of the expression, to which the expression can
+   *              be reset if rewriting takes place.
+   * @param func The function reference object.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitFunction(ExpressionOwner owner, Function func)
+  {
+    if (func instanceof FuncExtFunction)
+      reject("extension function " + ((FuncExtFunction) func).getFunctionName());
+    else if (func instanceof FuncKey)
+      reject("key()");
+    else if (func instanceof FuncId)
+      reject("id()");
+    else if (func instanceof FuncLast)
+      reject("last()");
+    else if (func instanceof FuncCurrent)
+    {
+      if (m_predDepth > 0)
+        reject("current() in a predicate");
+      else
+        readContext("current()");
+    }
+    else if (0 == m_predDepth
+             && ((func instanceof FuncString)
+                 || (func instanceof FuncNormalizeSpace)
+                 || (func instanceof FuncStringLength)
+                 || (func instanceof FuncNumber))
+             && null == ((FunctionOneArg) func).getArg0())
+      readContext("the string value of the current node");
+    return true;
+  }
+
+  /**
+   * Visit a match pattern found in an expression; patterns of templates
+   * are checked by checkPattern() instead.
+   *
+   * @param owner The owner of the expression, to which the expression can
+   *              be reset if rewriting takes place.
+   * @param pattern The match pattern object.
+   * @return true if the sub expressions should be traversed.
+   */
+  public boolean visitMatchPattern(ExpressionOwner owner, StepPattern pattern)
+  {
+    reject("a match pattern in an expression");
+    return false;
+  }
+
+  /**
+   * Analyze the children of an element in a scope of their own, whose
+   * current node has not been read or consumed yet.
+   *
+   * @param elem The element whose children are analyzed.
+   * @param consumed true if the current node is to be taken as consumed.
+   *
+   * @return the summary of the scope: READS and CONSUMES flags.
+   */
+  private int analyzeBody(ElemTemplateElement elem, boolean consumed)
+  {
+    boolean savedConsumed = m_consumed;
+    boolean savedReads = m_reads;
+    boolean savedGlobal = m_global;
+    int savedPredDepth = m_predDepth;
+    Expression savedSelection = m_selection;
+
+    m_consumed = consumed;
+    m_reads = false;
+    m_global = false;
+    m_predDepth = 0;
+    m_selection = null;
+
+    for (ElemTemplateElement child = elem.getFirstChildElem();
+         child != null; child = child.getNextSiblingElem())
+    {
+      if (Constants.ELEMNAME_SORT != child.getXSLToken())
+        child.callVisitors(this);
+    }
+
+    int summary = (m_reads ? READS : 0) | (m_consumed ? CONSUMES : 0);
+
+    m_consumed = savedConsumed;
+    m_reads = savedReads;
+    m_global = savedGlobal;
+    m_predDepth = savedPredDepth;
+    m_selection = savedSelection;
+    return summary;
+  }
+
+  /**
+   * Get the summary of a named template, analyzing it if needed. A template
+   * called recursively is taken to consume the current node.
+   *
+   * @param template The template.
+   *
+   * @return READS and CONSUMES flags.
+   */
+  private int getSummary(ElemTemplate template)
+  {
+    Integer summary = (Integer) m_summaries.get(template);
+    if (IN_PROGRESS == summary)
+      return CONSUMES;
+    if (null == summary)
+    {
+      m_summaries.put(template, IN_PROGRESS);
+      summary = new Integer(analyzeBody(template, false));
+      m_summaries.put(template, summary);
+    }
+    return summary.intValue();
+  }
+
+  /**
+   * Check the select expression of xsl:apply-templates or xsl:for-each.
+   *
+   * @param select The select expression.
+   *
+   * @return true if the selection consumes the current node.
+   */
+  private boolean checkSelection(Expression select)
+  {
+    if (null == select)
+      return false;
+
+    boolean consumes = false;
+    if (!isForeign(select))
+    {
+      LocPathIterator[] paths = getPaths(select);
+      if (null == paths)
+        reject("a selection which is not a location path");
+      else
+      {
+        for (int i = 0; i < paths.length; i++)
+        {
+          switch (getFirstAxis(paths[i]))
+          {
+          case Axis.CHILD :
+          case Axis.SELF :
+            consumes = true;
+            break;
+          case Axis.ATTRIBUTE :
+          case Axis.NAMESPACE :
+          case Axis.NAMESPACEDECLS :
+            break;
+          default :
+            reject("a selection of nodes other than children or attributes");
+            break;
+          }
+        }
+      }
+      if (consumes)
+        readContext("a second selection of children");
+    }
+
+    Expression savedSelection = m_selection;
+    m_selection = select;
+    select.callVisitors(null, this);
+    m_selection = savedSelection;
+    return consumes;
+  }
+
+  /**
+   * Check the select expression of a variable or parameter, which must not
+   * be a node-set from the source document.
+   *
+   * @param select The select expression, or null.
+   */
+  private void checkVariableSelect(XPath select)
+  {
+    if (null == select)
+      return;
+
+    Expression expr = select.getExpression();
+    if ((expr instanceof LocPathIterator && !isForeign(expr))
+        || (expr instanceof FuncCurrent))
+      reject("a variable holding nodes of the source document");
+  }
+
+  /**
+   * Check a template match pattern.
+   *
+   * @param pattern The pattern expression.
+   */
+  private void checkPattern(Expression pattern)
+  {
+    if (pattern instanceof UnionPattern)
+    {
+      StepPattern[] patterns = ((UnionPattern) pattern).getPatterns();
+      for (int i = 0; i < patterns.length; i++)
+        checkPattern(patterns[i]);
+      return;
+    }
+    if (!(pattern instanceof StepPattern))
+      return;
+
+    boolean savedConsumed = m_consumed;
+    boolean savedReads = m_reads;
+
+    // The predicates of the target step may read below it; those of the
+    // ancestor steps may only look at attributes.
+    boolean target = true;
+    for (StepPattern step = (StepPattern) pattern; null != step;
+         step = step.getRelativePathPattern())
+    {
+      if (step instanceof FunctionPattern)
+        reject("a key() or id() pattern");
+
+      m_consumed = !target;
+      for (int i = 0; i < step.getPredicateCount(); i++)
+      {
+        Expression pred = step.getPredicate(i);
+        if (isPositional(pred))
+          reject("a positional predicate in a match pattern");
+        pred.callVisitors(null, this);
+        if (new PositionChecker().uses(pred))
+          reject("position() in a match pattern");
+      }
+      target = false;
+    }
+
+    m_consumed = savedConsumed;
+    m_reads = savedReads;
+  }
+
+  /**
+   * Tell if a predicate is, or may be, a number, which tests the position
+   * of the node among its siblings.
+   *
+   * @param pred The predicate expression.
+   * @return true if the predicate may be positional.
+   */
+  private static boolean isPositional(Expression pred)
+  {
+    if (pred instanceof Function)
+      return !((pred instanceof FuncNot) || (pred instanceof FuncBoolean)
+               || (pred instanceof FuncContains)
+               || (pred instanceof FuncStartsWith)
+               || (pred instanceof FuncLang) || (pred instanceof FuncTrue)
+               || (pred instanceof FuncFalse));
+
+    return (pred instanceof org.apache.xpath.operations.Variable)
+           || (pred instanceof org.apache.xpath.objects.XNumber)
+           || (pred instanceof org.apache.xpath.operations.Div)
+           || (pred instanceof org.apache.xpath.operations.Plus)
+           || (pred instanceof org.apache.xpath.operations.Minus)
+           || (pred instanceof org.apache.xpath.operations.Mod)
+           || (pred instanceof org.apache.xpath.operations.Quo)
+           || (pred instanceof org.apache.xpath.operations.Mult)
+           || (pred instanceof org.apache.xpath.operations.Neg)
+           || (pred instanceof org.apache.xpath.operations.Number);
+  }
+
+  /**
+   * Tell if a path is the selection being checked, or part of it.
+   *
+   * @param path The path.
+   * @return true if the path's steps are checked by checkSelection().
+   */
+  private boolean isSelection(LocPathIterator path)
+  {
+    if (null == m_selection)
+      return false;
+
+    LocPathIterator[] paths = getPaths(m_selection);
+    if (null != paths)
+    {
+      for (int i = 0; i < paths.length; i++)
+      {
+        if (paths[i] == path)
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the location paths making up an expression.
+   *
+   * @param expr The expression.
+   * @return the paths, or null if the expression is not a location path or
+   * a union of location paths.
+   */
+  private static LocPathIterator[] getPaths(Expression expr)
+  {
+    if (expr instanceof UnionPathIterator)
+    {
+      PathCollector collector = new PathCollector();
+      expr.callVisitors(null, collector);
+      LocPathIterator[] paths = new LocPathIterator[collector.m_paths.size()];
+      collector.m_paths.copyInto(paths);
+      return paths;
+    }
+    if (expr instanceof LocPathIterator)
+      return new LocPathIterator[] { (LocPathIterator) expr };
+    return null;
+  }
+
+  /**
+   * Tell if an expression only selects nodes of documents loaded by the
+   * document() function, which are never discarded.
+   *
+   * @param expr The expression.
+   * @return true if the expression is rooted in a call to document().
+   */
+  private static boolean isForeign(Expression expr)
+  {
+    if (expr instanceof FuncDocument)
+      return true;
+    if (expr instanceof FilterExprIteratorSimple)
+      return isForeign(((FilterExprIteratorSimple) expr).getInnerExpression());
+    if (expr instanceof FilterExprIterator)
+      return isForeign(((FilterExprIterator) expr).getInnerExpression());
+    if (expr instanceof WalkingIterator)
+    {
+      AxesWalker walker = ((WalkingIterator) expr).getFirstWalker();
+      return walker instanceof FilterExprWalker
+             && isForeign(((FilterExprWalker) walker).getInnerExpression());
+    }
+    return false;
+  }
+
+  /**
+   * Get the axis of the first step of a location path.
+   *
+   * @param path The path.
+   * @return the axis, or -1 if it is not known.
+   */
+  private static int getFirstAxis(LocPathIterator path)
+  {
+    if (path instanceof WalkingIterator)
+      return getAxis(((WalkingIterator) path).getFirstWalker());
+    return getAxis(path);
+  }
+
+  /**
+   * Get the axis of a step, without evaluating filter expressions.
+   *
+   * @param step The step.
+   * @return the axis, or -1 if it is not known.
+   */
+  private static int getAxis(NodeTest step)
+  {
+    if ((step instanceof FilterExprWalker)
+        || (step instanceof FilterExprIteratorSimple)
+        || (step instanceof FilterExprIterator))
+      return Axis.FILTEREDLIST;
+    if (step instanceof SelfIteratorNoPredicate)
+      return Axis.SELF;
+    if (step instanceof AxesWalker)
+      return ((AxesWalker) step).getAxis();
+    if (step instanceof LocPathIterator)
+      return ((LocPathIterator) step).getAxis();
+    return -1;
+  }
+
+  /**
+   * Collects the location paths of a union.
+   */
+  private static class PathCollector extends org.apache.xpath.XPathVisitor
+  {
+    Vector m_paths = new Vector();
+
+    public boolean visitLocationPath(ExpressionOwner owner, LocPathIterator path)
+    {
+      m_paths.addElement(path);
+      return false;
+    }
+  }
+
+  /**
+   * Finds uses of position() in an expression.
+   */
+  private static class PositionChecker extends org.apache.xpath.XPathVisitor
+  {
+    private boolean m_usesPosition = false;
+
+    boolean uses(Expression expr)
+    {
+      expr.callVisitors(null, this);
+      return m_usesPosition;
+    }
+
+    public boolean visitFunction(ExpressionOwner owner, Function func)
+    {
+      if (func instanceof FuncPosition)
+        m_usesPosition = true;
+      return true;
+    }
+  }
+}
@@ -41,6 +41,7 @@ import org.apache.xalan.res.XSLTErrorResources;
 import org.apache.xalan.transformer.TransformerImpl;
 import org.apache.xml.dtm.DTM;
 import org.apache.xml.dtm.ref.ExpandedNameTable;
+import org.apache.xml.dtm.ref.SharedDTMCache;
 import org.apache.xml.utils.IntStack;
 import org.apache.xml.utils.QName;
 import org.apache.xpath.XPath;
@@ -70,6 +71,27 @@ public class StylesheetRoot extends StylesheetComposed
      */  
     private boolean m_source_location = false;
 
+    /**
+     * The flag for the setting of the off_heap_storage feature;
+     */
+    private boolean m_offHeapStorage = false;
+
+    /**
+     * The flag for the setting of the streaming feature;
+     */
+    private boolean m_streaming = false;
+
+    /**
+     * True if the streaming or incremental feature is set, and the
+     * stylesheet was found to be streamable when it was composed.
+     */
+    private boolean m_streamable = false;
+
+    /**
+     * The cache of documents shared between transformations, if any.
+     */
+    private transient SharedDTMCache m_sourceDocumentCache = null;
+
     /**
      * State of the secure processing feature.
      */
@@ -345,6 +367,12 @@ public class StylesheetRoot extends StylesheetComposed
     if (m_extNsMgr != null)
       m_extNsMgr.registerUnregisteredNamespaces();
 
+    // If streaming was asked for, find out whether it can be done; if not,
+    // the stylesheet silently runs in the usual way. Incremental builds
+    // also release the nodes left behind when the stylesheet allows it.
+    m_streamable = (m_streaming || m_incremental)
+                   && new StreamabilityAnalyzer().isStreamable(this);
+
     clearComposeState();
   }
 
@@ -1402,4 +1430,59 @@ public class StylesheetRoot extends StylesheetComposed
         m_source_location = b;
     }
 
+    /**
+     * @return off-heap storage flag
+     */
+    public boolean getOffHeapStorage() {
+        return m_offHeapStorage;
+    }
+
+    /**
+     * @param b Off-heap storage flag
+     */
+    public void setOffHeapStorage(boolean b) {
+        m_offHeapStorage = b;
+    }
+
+    /**
+     * @return streaming flag
+     */
+    public boolean getStreaming() {
+        return m_streaming;
+    }
+
+    /**
+     * @param b Streaming flag
+     */
+    public void setStreaming(boolean b) {
+        m_streaming = b;
+    }
+
+    /**
+     * Tell if the stylesheet can be run in streaming mode. This is only
+     * known once the stylesheet has been composed with the streaming or
+     * incremental flag set.
+     *
+     * @return true if the stylesheet only moves forward through the source
+     * document, as decided by {@link StreamabilityAnalyzer}.
+     */
+    public boolean isStreamable() {
+        return m_streamable;
+    }
+
+    /**
+     * @return the cache of documents shared between transformations, or null
+     */
+    public SharedDTMCache getSourceDocumentCache() {
+        return m_sourceDocumentCache;
+    }
+
+    /**
+     * @param cache the cache of documents shared between transformations,
+     * or null
+     */
+    public void setSourceDocumentCache(SharedDTMCache cache) {
+        m_sourceDocumentCache = cache;
+    }
+
 }
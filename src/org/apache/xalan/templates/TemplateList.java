@@ -22,12 +22,17 @@ package org.apache.xalan.templates;
 
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.transform.TransformerException;
 
 import org.apache.xalan.res.XSLTErrorResources;
 import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.ref.DTMDefaultBase;
+import org.apache.xml.dtm.ref.ExpandedNameTable;
 import org.apache.xml.utils.QName;
 import org.apache.xpath.Expression;
 import org.apache.xpath.XPath;
@@ -168,11 +173,18 @@ public class TemplateList implements java.io.Serializable
 
   /**
    * After all templates have been added, this function
-   * should be called.
+   * should be called.  Any match index built from the templates
+   * before is thrown away.
    */
   public void compose(StylesheetRoot sroot)
   {
 
+    synchronized (this)
+    {
+      m_matchIndex = null;
+      m_matchIndexes = null;
+    }
+
     if (DEBUG)
     {
       System.out.println("Before wildcard insert...");
@@ -474,7 +486,8 @@ public class TemplateList implements java.io.Serializable
    * matches in the given XSL document, according
    * to the rules specified in the xsl draft.  This variation of getTemplate 
    * assumes the current node and current expression node have already been 
-   * pushed. 
+   * pushed.  Unless an import level is given, the templates are looked up
+   * in the match index of the node's expanded name table.
    *
    * @param xctxt
    * @param targetNode
@@ -499,6 +512,73 @@ public class TemplateList implements java.io.Serializable
             throws TransformerException
   {
     
+    if ((maxImportLevel == -1) && (expTypeID >= 0)
+        && (dtm instanceof DTMDefaultBase))
+    {
+      return getTemplateIndexed(xctxt, targetNode, expTypeID, mode,
+                                quietConflictWarnings, dtm);
+    }
+
+    TemplateSubPatternAssociation head =
+      getHeadFast(targetNode, expTypeID, dtm);
+
+    if(null == head)
+    {
+      head = m_wildCardPatterns;
+      if(null == head)
+        return null;
+    }                                              
+
+    // XSLT functions, such as xsl:key, need to be able to get to 
+    // current ElemTemplateElement via a cast to the prefix resolver.
+    // Setting this fixes bug idkey03.
+    xctxt.pushNamespaceContextNull();
+    try
+    {
+      do
+      {
+        if ( (maxImportLevel > -1) && (head.getImportLevel() > maxImportLevel) )
+        {
+          continue;
+        }
+        ElemTemplate template = head.getTemplate();        
+        xctxt.setNamespaceContext(template);
+        
+        if ((head.m_stepPattern.execute(xctxt, targetNode, dtm, expTypeID) != NodeTest.SCORE_NONE)
+                && head.matchMode(mode))
+        {
+          if (quietConflictWarnings)
+            checkConflicts(head, xctxt, targetNode, mode);
+
+          return template;
+        }
+      }
+      while (null != (head = head.getNext()));
+    }
+    finally
+    {
+      xctxt.popNamespaceContext();
+    }
+
+    return null;
+  }  // end findTemplate
+
+  /**
+   * Get the head of the list of associations to check for a node, as
+   * {@link #getHead(XPathContext, int, DTM)} does, but without falling back
+   * to the wild card patterns.
+   *
+   * @param targetNode The target node that will be checked for a match.
+   * @param expTypeID The expanded type ID of the target node.
+   * @param dtm The dtm owner for the target node.
+   *
+   * @return The head of the list, or null if there is no list for the
+   * node's name or type.
+   */
+  private TemplateSubPatternAssociation getHeadFast(int targetNode,
+                                                    int expTypeID, DTM dtm)
+  {
+
     TemplateSubPatternAssociation head;
 
     switch (dtm.getNodeType(targetNode))
@@ -534,12 +614,67 @@ public class TemplateList implements java.io.Serializable
         dtm.getNodeName(targetNode)); // %REVIEW% I think this is right
     }
 
-    if(null == head)
+
+    return head;
+  }
+
+  /**
+   * Find the template that matches a node, through the match index of the
+   * node's expanded name table.  The index holds, for each expanded type
+   * and mode, the associations whose node test can match a node of that
+   * type, in the order of their list; an association whose pattern is just
+   * a node test matches without being executed, and ends its list.
+   *
+   * @param xctxt
+   * @param targetNode
+   * @param expTypeID The expanded type ID of the target node.
+   * @param mode A string indicating the display mode.
+   * @param quietConflictWarnings
+   * @param dtm The DTM of the target node, which must be a DTMDefaultBase.
+   * @return Rule that best matches targetElem.
+   *
+   * @throws TransformerException
+   */
+  private ElemTemplate getTemplateIndexed(XPathContext xctxt,
+                                          int targetNode,
+                                          int expTypeID,
+                                          QName mode,
+                                          boolean quietConflictWarnings,
+                                          DTM dtm)
+            throws TransformerException
+  {
+
+    ExpandedNameTable names = ((DTMDefaultBase) dtm).getExpandedNameTable();
+    MatchIndex index = m_matchIndex;
+
+    if (null == index || index.m_names != names)
     {
-      head = m_wildCardPatterns;
-      if(null == head)
-        return null;
-    }                                              
+      index = getMatchIndex(names);
+      m_matchIndex = index;
+    }
+
+    ModeIndex modeIndex = index.getModeIndex(mode);
+    TemplateSubPatternAssociation[] candidates = modeIndex.get(expTypeID);
+
+    if (null == candidates)
+    {
+      candidates = getCandidates(xctxt, targetNode, expTypeID, mode, dtm);
+      modeIndex.put(expTypeID, candidates);
+    }
+
+    int n = candidates.length;
+
+    if (0 == n)
+      return null;
+
+    // The usual case: a template matching on the node name alone
+    if (candidates[0].m_nodeTestOnly)
+    {
+      if (quietConflictWarnings)
+        checkConflicts(candidates[0], xctxt, targetNode, mode);
+
+      return candidates[0].getTemplate();
+    }
 
     // XSLT functions, such as xsl:key, need to be able to get to 
     // current ElemTemplateElement via a cast to the prefix resolver.
@@ -547,25 +682,25 @@ public class TemplateList implements java.io.Serializable
     xctxt.pushNamespaceContextNull();
     try
     {
-      do
+      for (int i = 0; i < n; i++)
       {
-        if ( (maxImportLevel > -1) && (head.getImportLevel() > maxImportLevel) )
-        {
-          continue;
-        }
-        ElemTemplate template = head.getTemplate();        
-        xctxt.setNamespaceContext(template);
-        
-        if ((head.m_stepPattern.execute(xctxt, targetNode, dtm, expTypeID) != NodeTest.SCORE_NONE)
-                && head.matchMode(mode))
+        TemplateSubPatternAssociation assoc = candidates[i];
+        ElemTemplate template = assoc.getTemplate();
+
+        if (!assoc.m_nodeTestOnly)
         {
-          if (quietConflictWarnings)
-            checkConflicts(head, xctxt, targetNode, mode);
+          xctxt.setNamespaceContext(template);
 
-          return template;
+          if (assoc.m_stepPattern.execute(xctxt, targetNode, dtm, expTypeID)
+              == NodeTest.SCORE_NONE)
+            continue;
         }
+
+        if (quietConflictWarnings)
+          checkConflicts(assoc, xctxt, targetNode, mode);
+
+        return template;
       }
-      while (null != (head = head.getNext()));
     }
     finally
     {
@@ -573,7 +708,82 @@ public class TemplateList implements java.io.Serializable
     }
 
     return null;
-  }  // end findTemplate
+  }
+
+  /**
+   * Get the match index for an expanded name table, creating it if need be.
+   *
+   * @param names The expanded name table of a DTM.
+   *
+   * @return The match index for the table.
+   */
+  private synchronized MatchIndex getMatchIndex(ExpandedNameTable names)
+  {
+
+    if (null == m_matchIndexes)
+      m_matchIndexes = new WeakHashMap();
+
+    MatchIndex index = (MatchIndex) m_matchIndexes.get(names);
+
+    if (null == index)
+    {
+      index = new MatchIndex(names);
+      m_matchIndexes.put(names, index);
+    }
+
+    return index;
+  }
+
+  /**
+   * Collect the associations which can match nodes of an expanded type in
+   * a mode: those of the node's list whose mode matches and whose node test
+   * accepts the node, up to and including the first which is just a node
+   * test.
+   *
+   * @param xctxt
+   * @param targetNode A node of the expanded type.
+   * @param expTypeID The expanded type ID.
+   * @param mode The mode.
+   * @param dtm The DTM of the node.
+   *
+   * @return The associations, in the order of the list.
+   *
+   * @throws TransformerException
+   */
+  private TemplateSubPatternAssociation[] getCandidates(XPathContext xctxt,
+                                                        int targetNode,
+                                                        int expTypeID,
+                                                        QName mode, DTM dtm)
+            throws TransformerException
+  {
+
+    TemplateSubPatternAssociation head =
+      getHeadFast(targetNode, expTypeID, dtm);
+
+    if (null == head)
+      head = m_wildCardPatterns;
+
+    Vector candidates = new Vector();
+
+    for (; null != head; head = head.getNext())
+    {
+      if (head.matchMode(mode)
+          && head.m_stepPattern.matchesNodeTest(xctxt, targetNode, dtm,
+                                                expTypeID))
+      {
+        candidates.addElement(head);
+
+        if (head.m_nodeTestOnly)
+          break;
+      }
+    }
+
+    TemplateSubPatternAssociation[] result =
+      new TemplateSubPatternAssociation[candidates.size()];
+    candidates.copyInto(result);
+
+    return result;
+  }
 
   /**
    * Given a target element, find the template that best
@@ -792,6 +1002,132 @@ public class TemplateList implements java.io.Serializable
    *  @serial          */
   private TemplateSubPatternAssociation m_commentPatterns = null;
 
+  /** The match index used last, which is usually the one for the next
+   *  node too.          */
+  private transient volatile MatchIndex m_matchIndex = null;
+
+  /** Map from ExpandedNameTable to the MatchIndex built for it.          */
+  private transient Map m_matchIndexes = null;
+
+  /**
+   * The template candidates for the nodes of the DTMs which share an
+   * expanded name table, by mode and expanded type.
+   */
+  private static final class MatchIndex
+  {
+
+    /** The expanded name table whose ids index this.          */
+    final ExpandedNameTable m_names;
+
+    /** The index for the default mode.          */
+    private final ModeIndex m_defaultMode = new ModeIndex();
+
+    /** Map from mode QName to ModeIndex.          */
+    private final ConcurrentHashMap m_modes = new ConcurrentHashMap();
+
+    MatchIndex(ExpandedNameTable names)
+    {
+      m_names = names;
+    }
+
+    /**
+     * Get the index for a mode.
+     *
+     * @param mode The mode, or null for the default mode.
+     *
+     * @return The index for the mode.
+     */
+    ModeIndex getModeIndex(QName mode)
+    {
+
+      if (null == mode)
+        return m_defaultMode;
+
+      ModeIndex index = (ModeIndex) m_modes.get(mode);
+
+      if (null == index)
+      {
+        index = new ModeIndex();
+        ModeIndex existing = (ModeIndex) m_modes.putIfAbsent(mode, index);
+        if (null != existing)
+          index = existing;
+      }
+
+      return index;
+    }
+  }
+
+  /**
+   * The template candidates of one mode, by expanded type.  Lookups take
+   * no lock; a lookup which misses a candidate list being stored by another
+   * thread just builds the list again.
+   */
+  private static final class ModeIndex
+  {
+
+    /** Candidate lists by expanded type id; null where not built yet.  */
+    private volatile Candidates[] m_byType = new Candidates[64];
+
+    /**
+     * Get the candidates for an expanded type.
+     *
+     * @param expTypeID The expanded type id.
+     *
+     * @return The candidates, or null if they have not been collected.
+     */
+    TemplateSubPatternAssociation[] get(int expTypeID)
+    {
+
+      Candidates[] byType = m_byType;
+
+      if (expTypeID >= byType.length)
+        return null;
+
+      Candidates candidates = byType[expTypeID];
+
+      return (null == candidates) ? null : candidates.m_list;
+    }
+
+    /**
+     * Store the candidates for an expanded type.
+     *
+     * @param expTypeID The expanded type id.
+     * @param list The candidates.
+     */
+    synchronized void put(int expTypeID,
+                          TemplateSubPatternAssociation[] list)
+    {
+
+      Candidates[] byType = m_byType;
+
+      if (expTypeID >= byType.length)
+      {
+        Candidates[] grown =
+          new Candidates[Math.max(expTypeID + 1, byType.length * 2)];
+        System.arraycopy(byType, 0, grown, 0, byType.length);
+        byType = grown;
+      }
+
+      byType[expTypeID] = new Candidates(list);
+      m_byType = byType;
+    }
+  }
+
+  /**
+   * A list of candidates, wrapped so that its final field publishes the
+   * array safely to other threads.
+   */
+  private static final class Candidates
+  {
+
+    final TemplateSubPatternAssociation[] m_list;
+
+    Candidates(TemplateSubPatternAssociation[] list)
+    {
+      m_list = list;
+    }
+  }
+
   /**
    * Get table of named Templates.
    * These are keyed on template names, and holding values
@@ -55,6 +55,10 @@ class TemplateSubPatternAssociation implements Serializable, Cloneable
   /** Target string for this match pattern           */
   private String m_targetString;
 
+  /** True if the pattern is nothing but a node test, so that it matches
+   *  every node of the types the node test accepts.           */
+  boolean m_nodeTestOnly;
+
   /**
    * Construct a match pattern from a pattern and template.
    * @param template The node that contains the template for this pattern.
@@ -69,6 +73,7 @@ class TemplateSubPatternAssociation implements Serializable, Cloneable
     m_stepPattern = pattern;
     m_targetString = m_stepPattern.getTargetString();
     m_wild = m_targetString.equals("*");
+    m_nodeTestOnly = m_stepPattern.isNodeTestOnly();
   }
 
   /**
@@ -0,0 +1,639 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xalan.trace;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.xalan.templates.ElemTemplate;
+import org.apache.xalan.templates.ElemTemplateElement;
+import org.apache.xml.serializer.SerializerTrace;
+
+/**
+ * Implementation of the TraceListener interface that profiles a
+ * transformation. It attributes the time spent, the number of calls and
+ * the number of bytes written to the output to each template, and the
+ * time spent and the number of evaluations to each select expression.
+ * <p>
+ * The times are kept for each chain of template calls, so they can be
+ * written out as collapsed stacks, one line for each chain, for a flame
+ * graph tool to draw:
+ * <pre>
+ *   match=/ (doc.xsl:3);match=record (doc.xsl:9) 1250
+ *   match=/ (doc.xsl:3);match=record (doc.xsl:9);select=name (doc.xsl:11) 310
+ * </pre>
+ * Each line gives the microseconds spent in the last template or select
+ * expression of the chain itself, not in the ones it called. The summary
+ * lists the templates by the time spent in them, and the select
+ * expressions by the time spent evaluating them.
+ * <p>
+ * The time of a select expression is the time from the start of its
+ * element, or from the end of its last child, to the selection event,
+ * which the transformer fires once the expression has been evaluated.
+ * The bytes written by the serializer are reported to the listeners in
+ * chunks of up to a kilobyte, and each chunk is counted against the
+ * template running when it is reported. The times include the cost of
+ * firing the trace events, so templates with many small instructions
+ * look a little more expensive than they are.
+ * <p>
+ * A listener profiles one transformation at a time.
+ *
+ * @see org.apache.xalan.trace.TraceManager
+ * @xsl.usage advanced
+ */
+public class ProfileTraceListener implements TraceListenerEx2
+{
+
+  /** The calls of templates, as a tree rooted at the transformation. */
+  private CallNode m_root = new CallNode(null, null);
+
+  /** The node of the template running now. */
+  private CallNode m_currentCall = m_root;
+
+  /** The totals of each template, by ElemTemplate. */
+  private IdentityHashMap m_templates = new IdentityHashMap();
+
+  /** The totals of each select expression, by element. */
+  private IdentityHashMap m_exprs = new IdentityHashMap();
+
+  /** The elements being executed, innermost last. */
+  private ElemTemplateElement[] m_frameNodes = new ElemTemplateElement[64];
+
+  /** When each element started. */
+  private long[] m_frameStarts = new long[64];
+
+  /** When each element last started or ended a piece of work. */
+  private long[] m_frameMarks = new long[64];
+
+  /**
+   * The time spent in the templates and select expressions called by
+   * each template element, which is not its own.
+   */
+  private long[] m_frameChildTimes = new long[64];
+
+  /**
+   * For each element, the frame of the template it is in, or -1 if it is
+   * not in one.
+   */
+  private int[] m_frameTemplates = new int[64];
+
+  /** The number of elements being executed. */
+  private int m_depth = 0;
+
+  /** The frame of the template running now, or -1 if there is none. */
+  private int m_templateFrame = -1;
+
+  /**
+   * Construct a profiling trace listener.
+   */
+  public ProfileTraceListener()
+  {
+  }
+
+  /**
+   * Method that is called when a node in the stylesheet starts to be
+   * executed.
+   *
+   * @param ev the trace event.
+   */
+  public void trace(TracerEvent ev)
+  {
+    final long now = System.nanoTime();
+    final ElemTemplateElement node = ev.m_styleNode;
+
+    if (m_depth == m_frameNodes.length)
+      growFrames();
+
+    final int frame = m_depth++;
+    m_frameNodes[frame] = node;
+    m_frameStarts[frame] = now;
+    m_frameMarks[frame] = now;
+    m_frameChildTimes[frame] = 0;
+    m_frameTemplates[frame] = m_templateFrame;
+
+    if (node instanceof ElemTemplate)
+    {
+      TemplateStats stats = getTemplateStats((ElemTemplate) node);
+      stats.m_calls++;
+      stats.m_active++;
+      m_currentCall = m_currentCall.getChild(node, stats);
+      m_templateFrame = frame;
+    }
+  }
+
+  /**
+   * Method that is called when a node in the stylesheet has been
+   * executed.
+   *
+   * @param ev the trace event.
+   */
+  public void traceEnd(TracerEvent ev)
+  {
+    final long now = System.nanoTime();
+    final ElemTemplateElement node = ev.m_styleNode;
+
+    // Find the element; anything above it did not report its end
+    int frame = m_depth - 1;
+    while (frame >= 0 && m_frameNodes[frame] != node)
+      frame--;
+    if (frame < 0)
+      return;
+
+    while (m_depth > frame)
+      popFrame(now);
+
+    if (m_depth > 0)
+      m_frameMarks[m_depth - 1] = now;
+  }
+
+  /**
+   * End the innermost element being executed.
+   *
+   * @param now the time it ended.
+   */
+  private void popFrame(long now)
+  {
+    final int frame = --m_depth;
+    m_frameNodes[frame] = null;
+
+    if (frame != m_templateFrame)
+      return;
+
+    final long elapsed = now - m_frameStarts[frame];
+    final CallNode call = m_currentCall;
+    final TemplateStats stats = call.m_template;
+    final long self = elapsed - m_frameChildTimes[frame];
+
+    call.m_selfTime += self;
+    stats.m_selfTime += self;
+    // A template calling itself is only counted once in its total
+    if (--stats.m_active == 0)
+      stats.m_totalTime += elapsed;
+
+    m_templateFrame = m_frameTemplates[frame];
+    if (m_templateFrame >= 0)
+      m_frameChildTimes[m_templateFrame] += elapsed;
+    m_currentCall = call.m_parent;
+  }
+
+  /**
+   * Make room for more elements being executed.
+   */
+  private void growFrames()
+  {
+    final int size = m_frameNodes.length * 2;
+
+    ElemTemplateElement[] nodes = new ElemTemplateElement[size];
+    System.arraycopy(m_frameNodes, 0, nodes, 0, m_depth);
+    m_frameNodes = nodes;
+    m_frameStarts = grow(m_frameStarts, size);
+    m_frameMarks = grow(m_frameMarks, size);
+    m_frameChildTimes = grow(m_frameChildTimes, size);
+
+    int[] templates = new int[size];
+    System.arraycopy(m_frameTemplates, 0, templates, 0, m_depth);
+    m_frameTemplates = templates;
+  }
+
+  /**
+   * Copy an array into a larger one.
+   */
+  private long[] grow(long[] array, int size)
+  {
+    long[] grown = new long[size];
+    System.arraycopy(array, 0, grown, 0, m_depth);
+    return grown;
+  }
+
+  /**
+   * Method that is called just after a select attribute has been
+   * evaluated.
+   *
+   * @param ev the selection event.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  public void selected(SelectionEvent ev)
+    throws javax.xml.transform.TransformerException
+  {
+    final long now = System.nanoTime();
+    long elapsed = 0;
+
+    if (m_depth > 0)
+    {
+      final int frame = m_depth - 1;
+      elapsed = now - m_frameMarks[frame];
+      m_frameMarks[frame] = now;
+    }
+
+    ExprStats stats = getExprStats(ev);
+    stats.m_count++;
+    stats.m_time += elapsed;
+
+    // The evaluation is a child of the template, as far as its time goes
+    m_currentCall.getChild(stats, null).m_selfTime += elapsed;
+    if (m_templateFrame >= 0)
+      m_frameChildTimes[m_templateFrame] += elapsed;
+  }
+
+  /**
+   * Method that is called after an xsl:apply-templates or xsl:for-each
+   * selection has been processed.
+   *
+   * @param ev the selection event.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  public void selectEnd(EndSelectionEvent ev)
+    throws javax.xml.transform.TransformerException
+  {
+  }
+
+  /**
+   * Method that is called just after the formatter listener is called.
+   * The bytes written to the output are counted against the template
+   * running now.
+   *
+   * @param ev the generate event.
+   */
+  public void generated(GenerateEvent ev)
+  {
+    if (ev.m_eventtype == SerializerTrace.EVENTTYPE_OUTPUT_CHARACTERS)
+    {
+      final TemplateStats stats = m_currentCall.m_template;
+      if (stats != null)
+        stats.m_outputBytes += ev.m_length;
+    }
+  }
+
+  /**
+   * Write the time spent in each chain of template calls and select
+   * expressions as collapsed stacks, one line for each chain, which
+   * flame graph tools can read. Each line is the labels of the templates
+   * and the select expression, outermost first, separated by semicolons,
+   * followed by a space and the microseconds spent in the last of them.
+   *
+   * @param w the writer to write the stacks to.
+   *
+   * @throws IOException if the writer fails.
+   */
+  public void writeCollapsedStacks(Writer w) throws IOException
+  {
+    writeCollapsedStacks(w, m_root, new StringBuffer());
+    w.flush();
+  }
+
+  /**
+   * Write the stacks of a call and the calls it made.
+   *
+   * @param w the writer to write the stacks to.
+   * @param call the call.
+   * @param path the labels of the call, outermost first.
+   */
+  private void writeCollapsedStacks(Writer w, CallNode call, StringBuffer path)
+    throws IOException
+  {
+    final int length = path.length();
+    if (call != m_root)
+    {
+      if (length > 0)
+        path.append(';');
+      path.append(call.getLabel());
+
+      long micros = call.m_selfTime / 1000;
+      if (micros > 0)
+      {
+        w.write(path.toString());
+        w.write(' ');
+        w.write(Long.toString(micros));
+        w.write('\n');
+      }
+    }
+
+    for (CallNode child = call.m_firstChild; child != null;
+         child = child.m_nextSibling)
+      writeCollapsedStacks(w, child, path);
+
+    path.setLength(length);
+  }
+
+  /**
+   * Print a summary of the profile: the templates, by the time spent in
+   * them, with the number of times they were called and the bytes they
+   * wrote, followed by the select expressions, by the time spent
+   * evaluating them.
+   *
+   * @param pw the writer to print the summary to.
+   * @param limit the most templates and expressions to list, or 0 to list
+   * all of them.
+   */
+  public void printSummary(PrintWriter pw, int limit)
+  {
+    List templates = new ArrayList(m_templates.values());
+    Collections.sort(templates, new Comparator()
+    {
+      public int compare(Object o1, Object o2)
+      {
+        return compareTimes(((TemplateStats) o2).m_selfTime,
+                            ((TemplateStats) o1).m_selfTime);
+      }
+    });
+
+    pw.println("Templates by self time:");
+    pw.println(pad("self ms", 10) + pad("total ms", 10) + pad("calls", 10)
+               + pad("bytes", 12) + "  template");
+    int count = 0;
+    for (Iterator i = templates.iterator(); i.hasNext(); )
+    {
+      if (limit > 0 && count++ == limit)
+        break;
+      TemplateStats stats = (TemplateStats) i.next();
+      pw.println(pad(millis(stats.m_selfTime), 10)
+                 + pad(millis(stats.m_totalTime), 10)
+                 + pad(Long.toString(stats.m_calls), 10)
+                 + pad(Long.toString(stats.m_outputBytes), 12)
+                 + "  " + stats.m_label);
+    }
+
+    List exprs = new ArrayList();
+    for (Iterator i = m_exprs.values().iterator(); i.hasNext(); )
+    {
+      for (ExprStats stats = (ExprStats) i.next(); stats != null;
+           stats = stats.m_next)
+        exprs.add(stats);
+    }
+    Collections.sort(exprs, new Comparator()
+    {
+      public int compare(Object o1, Object o2)
+      {
+        return compareTimes(((ExprStats) o2).m_time,
+                            ((ExprStats) o1).m_time);
+      }
+    });
+
+    pw.println();
+    pw.println("Select expressions by time:");
+    pw.println(pad("ms", 10) + pad("count", 10) + "  expression");
+    count = 0;
+    for (Iterator i = exprs.iterator(); i.hasNext(); )
+    {
+      if (limit > 0 && count++ == limit)
+        break;
+      ExprStats stats = (ExprStats) i.next();
+      pw.println(pad(millis(stats.m_time), 10)
+                 + pad(Long.toString(stats.m_count), 10)
+                 + "  " + stats.m_label);
+    }
+    pw.flush();
+  }
+
+  /**
+   * Throw away the profile gathered so far.
+   */
+  public void reset()
+  {
+    m_root = new CallNode(null, null);
+    m_currentCall = m_root;
+    m_templates.clear();
+    m_exprs.clear();
+    for (int i = 0; i < m_depth; i++)
+      m_frameNodes[i] = null;
+    m_depth = 0;
+    m_templateFrame = -1;
+  }
+
+  /**
+   * Get the totals of a template, creating them on its first call.
+   */
+  private TemplateStats getTemplateStats(ElemTemplate template)
+  {
+    TemplateStats stats = (TemplateStats) m_templates.get(template);
+    if (stats == null)
+    {
+      stats = new TemplateStats(getLabel(template));
+      m_templates.put(template, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Get the totals of a select expression, creating them on its first
+   * evaluation. An element may have more than one, such as the select
+   * and the test of an extension element, so they are told apart by the
+   * name of their attribute.
+   */
+  private ExprStats getExprStats(SelectionEvent ev)
+  {
+    final ElemTemplateElement node = ev.m_styleNode;
+    final ExprStats first = (ExprStats) m_exprs.get(node);
+
+    for (ExprStats stats = first; stats != null; stats = stats.m_next)
+    {
+      if (stats.m_attributeName.equals(ev.m_attributeName))
+        return stats;
+    }
+
+    // Expressions rewritten when the stylesheet was composed lose their
+    // text, so those are known by their element
+    String expr = (ev.m_xpath != null) ? ev.m_xpath.getPatternString() : null;
+    String label = (expr != null) ? ev.m_attributeName + "=" + expr
+                                  : ev.m_attributeName + " of "
+                                    + node.getNodeName();
+    ExprStats stats = new ExprStats(ev.m_attributeName,
+                                    sanitize(label)
+                                    + " (" + getLocation(node) + ")");
+    stats.m_next = first;
+    m_exprs.put(node, stats);
+    return stats;
+  }
+
+  /**
+   * Get the label of a template: its name, or its match pattern and
+   * mode, and where it is in the stylesheet.
+   */
+  private static String getLabel(ElemTemplate template)
+  {
+    StringBuffer label = new StringBuffer();
+    if (template.getName() != null)
+      label.append("name=").append(template.getName());
+    else if (template.getMatch() != null)
+      label.append("match=").append(template.getMatch().getPatternString());
+    else
+      label.append(template.getNodeName());
+
+    if (template.getMode() != null)
+      label.append(" mode=").append(template.getMode());
+
+    return sanitize(label.toString()) + " (" + getLocation(template) + ")";
+  }
+
+  /**
+   * Get the file name and line of an element of the stylesheet.
+   */
+  private static String getLocation(ElemTemplateElement node)
+  {
+    String file = node.getSystemId();
+    if (file == null)
+      file = "built-in";
+    else
+      file = file.substring(file.lastIndexOf('/') + 1);
+    return sanitize(file) + ":" + node.getLineNumber();
+  }
+
+  /**
+   * Replace the characters which would break a line of collapsed stacks.
+   */
+  private static String sanitize(String s)
+  {
+    return s.replace(';', ',').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  /**
+   * Compare two times for sorting.
+   */
+  private static int compareTimes(long t1, long t2)
+  {
+    return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+  }
+
+  /**
+   * Format nanoseconds as milliseconds, to one decimal place.
+   */
+  private static String millis(long nanos)
+  {
+    long tenths = nanos / 100000;
+    return (tenths / 10) + "." + (tenths % 10);
+  }
+
+  /**
+   * Pad a column of the summary on the left.
+   */
+  private static String pad(String s, int width)
+  {
+    StringBuffer buffer = new StringBuffer(width);
+    for (int i = s.length(); i < width; i++)
+      buffer.append(' ');
+    return buffer.append(s).toString();
+  }
+
+  /**
+   * The totals of a template over all its calls.
+   */
+  private static final class TemplateStats
+  {
+    final String m_label;
+    long m_selfTime;
+    long m_totalTime;
+    long m_calls;
+    long m_outputBytes;
+
+    /** The number of calls of the template which have not ended. */
+    int m_active;
+
+    TemplateStats(String label)
+    {
+      m_label = label;
+    }
+  }
+
+  /**
+   * The totals of a select expression over all its evaluations.
+   */
+  private static final class ExprStats
+  {
+    final String m_attributeName;
+    final String m_label;
+    long m_time;
+    long m_count;
+
+    /** The next expression of the same element. */
+    ExprStats m_next;
+
+    ExprStats(String attributeName, String label)
+    {
+      m_attributeName = attributeName;
+      m_label = label;
+    }
+  }
+
+  /**
+   * A template, or a select expression, in a chain of template calls, with
+   * the time spent in it, and the calls it made.
+   */
+  private static final class CallNode
+  {
+    final CallNode m_parent;
+
+    /** The ElemTemplate or ExprStats called. */
+    final Object m_key;
+
+    /** The totals of the template, or null for an expression. */
+    final TemplateStats m_template;
+
+    CallNode m_firstChild;
+    CallNode m_nextSibling;
+    long m_selfTime;
+
+    CallNode(CallNode parent, Object key, TemplateStats template)
+    {
+      m_parent = parent;
+      m_key = key;
+      m_template = template;
+    }
+
+    CallNode(Object key, TemplateStats template)
+    {
+      this(null, key, template);
+    }
+
+    /**
+     * Get the node of a call made from this one, creating it on the
+     * first call.
+     */
+    CallNode getChild(Object key, TemplateStats template)
+    {
+      CallNode child = m_firstChild;
+      while (child != null && child.m_key != key)
+        child = child.m_nextSibling;
+
+      if (child == null)
+      {
+        child = new CallNode(this, key, template);
+        child.m_nextSibling = m_firstChild;
+        m_firstChild = child;
+      }
+      return child;
+    }
+
+    String getLabel()
+    {
+      return (m_template != null) ? m_template.m_label
+                                  : ((ExprStats) m_key).m_label;
+    }
+  }
+}
@@ -0,0 +1,479 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xalan.transformer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.xalan.templates.KeyDeclaration;
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMIterator;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.DTMManagerDefault;
+import org.apache.xml.dtm.ref.SharedDTMCache;
+import org.apache.xml.utils.NodeVector;
+import org.apache.xml.utils.PrefixResolver;
+import org.apache.xml.utils.QName;
+import org.apache.xml.utils.XMLString;
+import org.apache.xpath.ExpressionOwner;
+import org.apache.xpath.XPath;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.XPathVisitor;
+import org.apache.xpath.functions.FuncDoclocation;
+import org.apache.xpath.functions.FuncExtElementAvailable;
+import org.apache.xpath.functions.FuncExtFunction;
+import org.apache.xpath.functions.FuncExtFunctionAvailable;
+import org.apache.xpath.functions.FuncSystemProperty;
+import org.apache.xpath.functions.Function;
+import org.apache.xpath.objects.XNodeSet;
+import org.apache.xpath.objects.XObject;
+import org.apache.xpath.operations.Variable;
+
+/**
+ * The nodes of one document which have each value of one key, from which
+ * the results of the key() function are made.
+ * <p>
+ * The nodes are held as arrays of node handles, in document order and
+ * without duplicates, rather than as node-sets, so an index holds no
+ * iteration state and may be read by any number of transformations at
+ * once. The index of a key over a document from the shared source-document
+ * cache is attached to the document, and built only once for all the
+ * transformations by the same stylesheet.</p>
+ */
+final class KeyIndex
+{
+  /** Map from a value of the key, as a String, to the int[] of its nodes. */
+  private final HashMap m_refs;
+
+  /**
+   * Create an index.
+   *
+   * @param refs Map from String value to int[] of nodes.
+   */
+  private KeyIndex(HashMap refs)
+  {
+    m_refs = refs;
+  }
+
+  /**
+   * Get the nodes which have a value of the key.
+   *
+   * @param ref The value of the key.
+   *
+   * @return the node handles in document order, or null if no node has
+   * that value. The array must not be modified.
+   */
+  int[] getNodes(XMLString ref)
+  {
+    return (int[]) m_refs.get(ref.toString());
+  }
+
+  /**
+   * Get the declarations of one key.
+   *
+   * @param name The name of the key.
+   * @param keyDeclarations All the stylesheet's xsl:key declarations.
+   *
+   * @return the KeyDeclarations named name.
+   */
+  static Vector getDeclarations(QName name, Vector keyDeclarations)
+  {
+    int nDeclarations = keyDeclarations.size();
+    Vector keyDecls = new Vector(nDeclarations);
+
+    for (int i = 0; i < nDeclarations; i++)
+    {
+      KeyDeclaration kd = (KeyDeclaration) keyDeclarations.elementAt(i);
+
+      if (kd.getName().equals(name))
+        keyDecls.addElement(kd);
+    }
+
+    return keyDecls;
+  }
+
+  /**
+   * Build the index of a key by evaluating its use expressions on the
+   * nodes matched by the key.
+   *
+   * @param keyNodes The nodes matched by the key, reset to the start.
+   * @param keyDecls The declarations of the key.
+   * @param nsResolver The namespace context for the use expressions.
+   * @param xctxt The XPath runtime state which keyNodes was rooted with.
+   *
+   * @return the new index.
+   *
+   * @throws TransformerException if a use expression fails.
+   */
+  static KeyIndex build(XNodeSet keyNodes, Vector keyDecls,
+                        PrefixResolver nsResolver, XPathContext xctxt)
+          throws TransformerException
+  {
+    // Collect each value's nodes in a NodeVector, then trim them to arrays
+    HashMap refs = new HashMap();
+    int nKeyDecls = keyDecls.size();
+    int currentNode;
+
+    while (DTM.NULL != (currentNode = keyNodes.nextNode()))
+    {
+      for (int keyDeclIdx = 0; keyDeclIdx < nKeyDecls; keyDeclIdx++)
+      {
+        KeyDeclaration keyDeclaration =
+          (KeyDeclaration) keyDecls.elementAt(keyDeclIdx);
+        XObject xuse =
+          keyDeclaration.getUse().execute(xctxt, currentNode, nsResolver);
+
+        if (xuse.getType() != XObject.CLASS_NODESET)
+        {
+          addRef(refs, xuse.xstr(), currentNode);
+        }
+        else
+        {
+          DTMIterator i = ((XNodeSet) xuse).iterRaw();
+          int currentNodeInUseClause;
+
+          while (DTM.NULL != (currentNodeInUseClause = i.nextNode()))
+          {
+            DTM dtm = xctxt.getDTM(currentNodeInUseClause);
+            addRef(refs, dtm.getStringValue(currentNodeInUseClause),
+                   currentNode);
+          }
+        }
+      }
+    }
+
+    Iterator it = refs.entrySet().iterator();
+    while (it.hasNext())
+    {
+      Map.Entry entry = (Map.Entry) it.next();
+      NodeVector nodes = (NodeVector) entry.getValue();
+      int n = nodes.size();
+      int[] array = new int[n];
+      for (int i = 0; i < n; i++)
+        array[i] = nodes.elementAt(i);
+      entry.setValue(array);
+    }
+
+    return new KeyIndex(refs);
+  }
+
+  /**
+   * Record that a node has a value of the key.
+   *
+   * @param refs Map from String value to NodeVector of nodes.
+   * @param ref The value.
+   * @param node The node.
+   */
+  private static void addRef(HashMap refs, XMLString ref, int node)
+  {
+    String key = ref.toString();
+    NodeVector nodes = (NodeVector) refs.get(key);
+    if (null == nodes)
+    {
+      nodes = new NodeVector(4);
+      refs.put(key, nodes);
+    }
+
+    // Nodes arrive in document order, so a duplicate can only be the last
+    // node added for the same value.
+    if (nodes.size() == 0 || nodes.peepTail() != node)
+      nodes.addElement(node);
+  }
+
+  /**
+   * Get the index of a key over a document from the shared source-document
+   * cache, building it if no transformation by the same stylesheet has yet.
+   * The first request for a key over a document also schedules the indexes
+   * of the stylesheet's other keys over it, which are built in parallel if
+   * there are processors to spare, and otherwise when they are first used.
+   * <p>
+   * Shared indexes are built with an XPath context of their own, so only
+   * keys whose match and use expressions depend on nothing but the
+   * document can be shared; XSLT forbids variable references there
+   * anyway.</p>
+   *
+   * @param cache The shared source-document cache.
+   * @param doc The document node.
+   * @param name The name of the key.
+   * @param keyDeclarations All the stylesheet's xsl:key declarations.
+   * @param xctxt The XPath runtime state of the requesting transformation.
+   *
+   * @return the shared index, or null if the document is not from the
+   * cache or the key can not be shared, in which case the caller should
+   * build a private index.
+   */
+  static KeyIndex getShared(SharedDTMCache cache, int doc, QName name,
+                            Vector keyDeclarations, XPathContext xctxt)
+  {
+    DTM dtm = xctxt.getDTM(doc);
+    if (dtm.getDocument() != doc)
+      return null;
+
+    Object key = new SharedKey(keyDeclarations, name);
+    FutureTask task = (FutureTask) cache.getAttachment(dtm, key);
+
+    if (null == task)
+    {
+      if (!isShareable(getDeclarations(name, keyDeclarations)))
+        return null;
+
+      task = (FutureTask) cache.attach(dtm, key,
+                                       newTask(cache, dtm, name, keyDeclarations));
+      if (null == task)
+        return null;
+
+      scheduleOthers(cache, dtm, name, keyDeclarations);
+    }
+
+    // Build it here unless another thread already has, or is doing so
+    task.run();
+
+    try
+    {
+      return (KeyIndex) task.get();
+    }
+    catch (ExecutionException ee)
+    {
+      // Let the caller build its own, and report the error if there is one
+      return null;
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Attach tasks to build the indexes of a stylesheet's other keys over a
+   * cached document, and start them if the common pool has more than one
+   * thread.
+   *
+   * @param cache The shared source-document cache.
+   * @param dtm The cached document.
+   * @param name The name of the key already attached.
+   * @param keyDeclarations All the stylesheet's xsl:key declarations.
+   */
+  private static void scheduleOthers(SharedDTMCache cache, DTM dtm,
+                                     QName name, Vector keyDeclarations)
+  {
+    boolean parallel = ForkJoinPool.getCommonPoolParallelism() > 1;
+    HashMap names = new HashMap();
+    int nDeclarations = keyDeclarations.size();
+
+    for (int i = 0; i < nDeclarations; i++)
+    {
+      QName other = ((KeyDeclaration) keyDeclarations.elementAt(i)).getName();
+      if (other.equals(name) || names.containsKey(other))
+        continue;
+      names.put(other, other);
+
+      if (!isShareable(getDeclarations(other, keyDeclarations)))
+        continue;
+
+      FutureTask task = newTask(cache, dtm, other, keyDeclarations);
+      if (task == cache.attach(dtm, new SharedKey(keyDeclarations, other),
+                               task) && parallel)
+        ForkJoinPool.commonPool().execute(task);
+    }
+  }
+
+  /**
+   * Create a task which builds the index of a key over a cached document,
+   * using an XPath context of its own, so that it may run on any thread.
+   * The task holds a reference to the document while it runs, as it may
+   * run after the transformation which scheduled it has finished.
+   *
+   * @param cache The shared source-document cache.
+   * @param dtm The cached document.
+   * @param name The name of the key.
+   * @param keyDeclarations All the stylesheet's xsl:key declarations.
+   *
+   * @return a task whose result is the KeyIndex, or null if the document
+   * has left the cache or could not be bound into a new DTMManager.
+   */
+  private static FutureTask newTask(final SharedDTMCache cache,
+                                    final DTM dtm, final QName name,
+                                    final Vector keyDeclarations)
+  {
+    return new FutureTask(new Callable()
+    {
+      public Object call() throws TransformerException
+      {
+        if (!cache.acquire(dtm))
+          return null;
+        try
+        {
+          return buildIndex();
+        }
+        finally
+        {
+          cache.release(dtm);
+        }
+      }
+
+      private Object buildIndex() throws TransformerException
+      {
+        XPathContext xctxt = new XPathContext(false);
+        DTMManager mgr = xctxt.getDTMManager();
+        if (!(mgr instanceof DTMManagerDefault)
+            || !((DTMManagerDefault) mgr).addSharedDTM(dtm))
+          return null;
+
+        // Evaluate in the namespace context of the xsl:key itself, which is
+        // the same for every transformation.
+        Vector keyDecls = getDeclarations(name, keyDeclarations);
+        PrefixResolver nsResolver = (KeyDeclaration) keyDecls.elementAt(0);
+
+        XNodeSet keyNodes =
+          new XNodeSet(new KeyIterator(name, keyDeclarations));
+        keyNodes.allowDetachToRelease(false);
+        xctxt.pushNamespaceContext(nsResolver);
+        try
+        {
+          keyNodes.setRoot(dtm.getDocument(), xctxt);
+        }
+        finally
+        {
+          xctxt.popNamespaceContext();
+        }
+
+        return KeyIndex.build(keyNodes, keyDecls, nsResolver, xctxt);
+      }
+    });
+  }
+
+  /**
+   * Tell whether the nodes a key's declarations match, and their values,
+   * depend only on the document: that is, whether they refer to no
+   * variables, and call no functions which need the transformation or the
+   * namespace context of the caller.
+   *
+   * @param keyDecls The declarations of one key.
+   *
+   * @return true if an index of the key may be shared.
+   */
+  private static boolean isShareable(Vector keyDecls)
+  {
+    int nKeyDecls = keyDecls.size();
+    if (nKeyDecls == 0)
+      return false;
+
+    for (int i = 0; i < nKeyDecls; i++)
+    {
+      KeyDeclaration kd = (KeyDeclaration) keyDecls.elementAt(i);
+      if (!isShareable(kd.getMatch()) || !isShareable(kd.getUse()))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Tell whether an expression of a key declaration depends only on the
+   * document.
+   *
+   * @param path The expression.
+   *
+   * @return true if it may be evaluated for a shared index.
+   */
+  private static boolean isShareable(XPath path)
+  {
+    if (null == path)
+      return false;
+
+    ShareableVisitor visitor = new ShareableVisitor();
+    path.callVisitors(path, visitor);
+    return visitor.m_shareable;
+  }
+
+  /**
+   * Looks for the parts of an expression which depend on more than the
+   * document it is evaluated over.
+   */
+  private static class ShareableVisitor extends XPathVisitor
+  {
+    /** False once something was found which can not be shared. */
+    boolean m_shareable = true;
+
+    public boolean visitVariableRef(ExpressionOwner owner, Variable var)
+    {
+      m_shareable = false;
+      return false;
+    }
+
+    public boolean visitFunction(ExpressionOwner owner, Function func)
+    {
+      // The XSLT functions (key(), document(), current() and the rest) live
+      // in the templates package and need the transformation.
+      if (!func.getClass().getName().startsWith("org.apache.xpath.functions.")
+          || func instanceof FuncExtFunction
+          || func instanceof FuncExtFunctionAvailable
+          || func instanceof FuncExtElementAvailable
+          || func instanceof FuncSystemProperty
+          || func instanceof FuncDoclocation)
+        m_shareable = false;
+      return m_shareable;
+    }
+  }
+
+  /**
+   * The key of a shared index among the attachments of a cached document:
+   * the stylesheet's key declarations, compared by identity, and the name
+   * of the key.
+   */
+  private static final class SharedKey
+  {
+    /** All the stylesheet's xsl:key declarations. */
+    private final Vector m_keyDeclarations;
+
+    /** The name of the key. */
+    private final QName m_name;
+
+    SharedKey(Vector keyDeclarations, QName name)
+    {
+      m_keyDeclarations = keyDeclarations;
+      m_name = name;
+    }
+
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof SharedKey))
+        return false;
+      SharedKey other = (SharedKey) obj;
+      return m_keyDeclarations == other.m_keyDeclarations
+             && m_name.equals(other.m_name);
+    }
+
+    public int hashCode()
+    {
+      return System.identityHashCode(m_keyDeclarations) ^ m_name.hashCode();
+    }
+  }
+}
@@ -25,16 +25,13 @@ import java.util.Vector;
 
 import javax.xml.transform.TransformerException;
 
-import org.apache.xalan.templates.KeyDeclaration;
-import org.apache.xml.dtm.DTM;
-import org.apache.xml.dtm.DTMIterator;
+import org.apache.xml.dtm.ref.SharedDTMCache;
 import org.apache.xml.utils.PrefixResolver;
 import org.apache.xml.utils.QName;
 import org.apache.xml.utils.WrappedRuntimeException;
 import org.apache.xml.utils.XMLString;
 import org.apache.xpath.XPathContext;
 import org.apache.xpath.objects.XNodeSet;
-import org.apache.xpath.objects.XObject;
 
 /**
  * Table of element keys, keyed by document node.  An instance of this
@@ -55,10 +52,17 @@ public class KeyTable
    */
   private Vector m_keyDeclarations;
 
+  /**
+   * The nodes which have each value of this key, built when the first
+   * value is looked up.
+   */
+  private KeyIndex m_index = null;
+
   /**
    * Hold a cache of key() function result for each ref.
    * Key is XMLString, the ref value
    * Value is XNodeSet, the key() function result for the given ref value.
+   * Entries are made from m_index as the values are looked up.
    */
   private Hashtable m_refsTable = null;
 
@@ -116,6 +120,16 @@ public class KeyTable
 
   {
     XNodeSet refNodes = (XNodeSet) getRefsTable().get(ref);
+    if (refNodes == null)
+    {
+      int[] nodes = getIndex().getNodes(ref);
+      if (nodes != null)
+      {
+        refNodes = newNodeSet(nodes);
+        m_refsTable.put(ref, refNodes);
+      }
+    }
+
     // clone wiht reset the node set
    try
     {
@@ -158,22 +172,7 @@ public class KeyTable
    * @return key declarations for the key associated to this KeyTable
    */
   private Vector getKeyDeclarations() {
-    int nDeclarations = m_keyDeclarations.size();
-    Vector keyDecls = new Vector(nDeclarations);
-
-    // Walk through each of the declarations made with xsl:key
-    for (int i = 0; i < nDeclarations; i++)
-    {
-      KeyDeclaration kd = (KeyDeclaration) m_keyDeclarations.elementAt(i);
-
-      // Add the declaration if the name on this key declaration
-      // matches the name on the iterator for this walker.
-      if (kd.getName().equals(getKeyTableName())) {
-        keyDecls.add(kd);
-      }
-    }
-
-    return keyDecls;
+    return KeyIndex.getDeclarations(getKeyTableName(), m_keyDeclarations);
   }
 
   /**
@@ -185,76 +184,66 @@ public class KeyTable
     if (m_refsTable == null) {
       // initial capacity set to a prime number to improve hash performance
       m_refsTable = new Hashtable(89);
+    }
+    return m_refsTable;
+  }
 
+  /**
+   * Get the index of this key over the document, which is shared with
+   * other transformations if the document comes from the shared
+   * source-document cache, and is otherwise built the first time it is
+   * needed.
+   *
+   * @return the index.
+   */
+  private KeyIndex getIndex()
+  {
+    if (m_index == null)
+    {
       KeyIterator ki = (KeyIterator) (m_keyNodes).getContainedIter();
       XPathContext xctxt = ki.getXPathContext();
 
-      Vector keyDecls = getKeyDeclarations();
-      int nKeyDecls = keyDecls.size();
+      SharedDTMCache cache = xctxt.getSourceTreeManager().getDocumentCache();
+      if (cache != null)
+      {
+        m_index = KeyIndex.getShared(cache, m_docKey, getKeyTableName(),
+                                     m_keyDeclarations, xctxt);
+      }
 
-      int currentNode;
-      m_keyNodes.reset();
-      while (DTM.NULL != (currentNode = m_keyNodes.nextNode()))
+      if (m_index == null)
       {
         try
         {
-          for (int keyDeclIdx = 0; keyDeclIdx < nKeyDecls; keyDeclIdx++) {
-            KeyDeclaration keyDeclaration =
-                (KeyDeclaration) keyDecls.elementAt(keyDeclIdx);
-            XObject xuse =
-                keyDeclaration.getUse().execute(xctxt,
-                                                currentNode,
-                                                ki.getPrefixResolver());
-
-            if (xuse.getType() != xuse.CLASS_NODESET) {
-              XMLString exprResult = xuse.xstr();
-              addValueInRefsTable(xctxt, exprResult, currentNode);
-            } else {
-              DTMIterator i = ((XNodeSet)xuse).iterRaw();
-              int currentNodeInUseClause;
-
-              while (DTM.NULL != (currentNodeInUseClause = i.nextNode())) {
-                DTM dtm = xctxt.getDTM(currentNodeInUseClause);
-                XMLString exprResult =
-                    dtm.getStringValue(currentNodeInUseClause);
-                addValueInRefsTable(xctxt, exprResult, currentNode);
-              }
-            }
-          }
-        } catch (TransformerException te) {
+          m_keyNodes.reset();
+          m_index = KeyIndex.build(m_keyNodes, getKeyDeclarations(),
+                                   ki.getPrefixResolver(), xctxt);
+        }
+        catch (TransformerException te)
+        {
           throw new WrappedRuntimeException(te);
         }
       }
     }
-    return m_refsTable;
+    return m_index;
   }
 
   /**
-   * Add an association between a ref and a node in the m_refsTable.
-   * Requires that m_refsTable != null
-   * @param xctxt XPath context
-   * @param ref the value of the use clause of the current key for the given node
-   * @param node the node to reference
+   * Make the result of the key() function for one value.
+   *
+   * @param nodes The nodes with that value, in document order.
+   *
+   * @return a node-set of the nodes, to be cloned for each call.
    */
-  private void addValueInRefsTable(XPathContext xctxt, XMLString ref, int node) {
-    
-    XNodeSet nodes = (XNodeSet) m_refsTable.get(ref);
-    if (nodes == null)
-    {
-      nodes = new XNodeSet(node, xctxt.getDTMManager());
-      nodes.nextNode();
-      m_refsTable.put(ref, nodes);
-    }
-    else
+  private XNodeSet newNodeSet(int[] nodes)
+  {
+    XPathContext xctxt = getKeyIterator().getXPathContext();
+    XNodeSet refNodes = new XNodeSet(nodes[0], xctxt.getDTMManager());
+    refNodes.nextNode();
+    for (int i = 1; i < nodes.length; i++)
     {
-      // Nodes are passed to this method in document order.  Since we need to
-      // suppress duplicates, we only need to check against the last entry
-      // in each nodeset.  We use nodes.nextNode after each entry so we can
-      // easily compare node against the current node.
-      if (nodes.getCurrentNode() != node) {
-          nodes.mutableNodeset().addNode(node);
-          nodes.nextNode();
-      }    
+      refNodes.mutableNodeset().addNode(nodes[i]);
+      refNodes.nextNode();
     }
+    return refNodes;
   }
 }
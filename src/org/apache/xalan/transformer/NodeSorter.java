@@ -20,34 +20,65 @@
  */
 package org.apache.xalan.transformer;
 
-import java.text.CollationKey;
+import java.text.Collator;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.xml.transform.TransformerException;
 
-import org.apache.xml.dtm.DTM;
 import org.apache.xml.dtm.DTMIterator;
 import org.apache.xpath.XPathContext;
-import org.apache.xpath.objects.XNodeSet;
 import org.apache.xpath.objects.XObject;
 
 /**
  * This class can sort vectors of DOM nodes according to a select pattern.
+ * <p>
+ * The value of every sort key is computed once for each node, before
+ * sorting, and kept in primitive arrays: a double for numeric keys, and
+ * the bytes of the collation key for text keys. The nodes are then sorted
+ * by a merge sort of their positions, which compares those arrays only;
+ * the sort is stable, nodes with equal keys keeping the order they were
+ * given in. Large node lists are sorted, and their text keys collated, in
+ * parallel in the common fork-join pool, since neither step needs the
+ * XPath context.</p>
  * @xsl.usage internal
  */
 public class NodeSorter
 {
 
+  /** Number of nodes from which keys are collated and sorted in parallel. */
+  static final int PARALLEL_THRESHOLD = 1 << 13;
+
+  /** Runs of up to this many nodes are sorted by insertion. */
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
   /** Current XPath context           */
   XPathContext m_execContext;
 
   /** Vector of NodeSortKeys          */
   Vector m_keys;  // vector of NodeSortKeys
 
-//  /**
-//   * TODO: Adjust this for locale.
-//   */
-//  NumberFormat m_formatter = NumberFormat.getNumberInstance();
+  /** The NodeSortKeys, as an array. */
+  private NodeSortKey[] m_sortKeys;
+
+  /**
+   * Values of the numeric keys, indexed by key then by node position; null
+   * for text keys.
+   */
+  private double[][] m_numberValues;
+
+  /**
+   * Collation keys of the text keys, as byte arrays, indexed by key then by
+   * node position; null for numeric keys.
+   */
+  private byte[][][] m_textValues;
+
+  /**
+   * Lower case values of the text keys with upper case first, indexed by
+   * key then by node position; null for other keys.
+   */
+  private String[][] m_lowerCaseValues;
 
   /**
    * Construct a NodeSorter, passing in the XSL TransformerFactory
@@ -76,482 +107,368 @@ public class NodeSorter
 
     m_keys = keys;
 
-    // QuickSort2(v, 0, v.size() - 1 );
     int n = v.getLength();
-
-    // %OPT% Change mergesort to just take a DTMIterator?
-    // We would also have to adapt DTMIterator to have the function 
-    // of NodeCompareElem.
-    
-    // Create a vector of node compare elements
-    // based on the input vector of nodes
-    Vector nodes = new Vector();
+    int[] nodes = new int[n];
 
     for (int i = 0; i < n; i++)
     {
-      NodeCompareElem elem = new NodeCompareElem(v.item(i));
-
-      nodes.addElement(elem);
+      nodes[i] = v.item(i);
     }
 
-    Vector scratchVector = new Vector();
+    extractKeys(v, nodes);
+
+    // Sort the positions of the nodes, so that the key arrays need not
+    // be moved around.
+    int[] order = new int[n];
+
+    for (int i = 0; i < n; i++)
+    {
+      order[i] = i;
+    }
 
-    mergesort(nodes, scratchVector, 0, n - 1, support);
+    if (n >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1)
+      ForkJoinPool.commonPool().invoke(new SortTask(order, new int[n], 0, n));
+    else
+      mergesort(order, new int[n], 0, n);
 
     // return sorted vector of nodes
     for (int i = 0; i < n; i++)
     {
-      v.setItem(((NodeCompareElem) nodes.elementAt(i)).m_node, i);
+      v.setItem(nodes[order[i]], i);
     }
     v.setCurrentPos(0);
 
-    // old code...
-    //NodeVector scratchVector = new NodeVector(n);
-    //mergesort(v, scratchVector, 0, n - 1, support);
+    m_numberValues = null;
+    m_textValues = null;
+    m_lowerCaseValues = null;
   }
 
   /**
-   * Return the results of a compare of two nodes.
-   * TODO: Optimize compare -- cache the getStringExpr results, key by m_selectPat + hash of node.
-   *
-   * @param n1 First node to use in compare
-   * @param n2 Second node to use in compare
-   * @param kIndex Index of NodeSortKey to use for sort
-   * @param support XPath context to use
+   * Compute the value of every sort key for every node. The keys of each
+   * node are evaluated with the context node list positioned on that node,
+   * as keys which use position() or last() expect.
    *
-   * @return The results of the compare of the two nodes.
+   * @param v The node list being sorted, which is the context node list.
+   * @param nodes The nodes to be sorted.
    *
    * @throws TransformerException
    */
-  int compare(
-          NodeCompareElem n1, NodeCompareElem n2, int kIndex, XPathContext support)
-            throws TransformerException
+  private void extractKeys(DTMIterator v, int[] nodes)
+          throws TransformerException
   {
 
-    int result = 0;
-    NodeSortKey k = (NodeSortKey) m_keys.elementAt(kIndex);
+    int n = nodes.length;
+    int keyCount = m_keys.size();
 
-    if (k.m_treatAsNumbers)
-    {
-      double n1Num, n2Num;
-
-      if (kIndex == 0)
-      {
-        n1Num = ((Double) n1.m_key1Value).doubleValue();
-        n2Num = ((Double) n2.m_key1Value).doubleValue();
-      }
-      else if (kIndex == 1)
-      {
-        n1Num = ((Double) n1.m_key2Value).doubleValue();
-        n2Num = ((Double) n2.m_key2Value).doubleValue();
-      }
+    m_sortKeys = new NodeSortKey[keyCount];
+    m_numberValues = new double[keyCount][];
+    m_textValues = new byte[keyCount][][];
+    m_lowerCaseValues = new String[keyCount][];
 
-      /* Leave this in case we decide to use an array later
-      if (kIndex < maxkey)
-      {
-      double n1Num = (double)n1.m_keyValue[kIndex];
-      double n2Num = (double)n2.m_keyValue[kIndex];
-      }*/
-      else
-      {
+    // The XPath context can only be used here, but the strings of text
+    // keys can be collated in parallel afterwards.
+    String[][] strings = new String[keyCount][];
 
-        // Get values dynamically
-        XObject r1 = k.m_selectPat.execute(m_execContext, n1.m_node,
-                                           k.m_namespaceContext);
-        XObject r2 = k.m_selectPat.execute(m_execContext, n2.m_node,
-                                           k.m_namespaceContext);
-        n1Num = r1.num();
-
-        // Can't use NaN for compare. They are never equal. Use zero instead.
-        // That way we can keep elements in document order. 
-        //n1Num = Double.isNaN(d) ? 0.0 : d;
-        n2Num = r2.num();
-        //n2Num = Double.isNaN(d) ? 0.0 : d;
-      }
+    for (int kIndex = 0; kIndex < keyCount; kIndex++)
+    {
+      NodeSortKey k = (NodeSortKey) m_keys.elementAt(kIndex);
+      m_sortKeys[kIndex] = k;
 
-      if ((n1Num == n2Num) && ((kIndex + 1) < m_keys.size()))
-      {
-        result = compare(n1, n2, kIndex + 1, support);
-      }
+      if (k.m_treatAsNumbers)
+        m_numberValues[kIndex] = new double[n];
       else
-      {
-        double diff;
-        if (Double.isNaN(n1Num))
-        {
-          if (Double.isNaN(n2Num))
-            diff = 0.0;
-          else
-            diff = -1;
-        }
-        else if (Double.isNaN(n2Num))
-           diff = 1;
-        else
-          diff = n1Num - n2Num;
+        strings[kIndex] = new String[n];
+    }
 
-        // process order parameter 
-        result = (int) ((diff < 0.0)
-                        ? (k.m_descending ? 1 : -1)
-                        : (diff > 0.0) ? (k.m_descending ? -1 : 1) : 0);
-      }
-    }  // end treat as numbers 
-    else
+    for (int i = 0; i < n; i++)
     {
-      CollationKey n1String, n2String;
+      v.setCurrentPos(i);
+      v.nextNode();
 
-      if (kIndex == 0)
+      for (int kIndex = 0; kIndex < keyCount; kIndex++)
       {
-        n1String = (CollationKey) n1.m_key1Value;
-        n2String = (CollationKey) n2.m_key1Value;
-      }
-      else if (kIndex == 1)
-      {
-        n1String = (CollationKey) n1.m_key2Value;
-        n2String = (CollationKey) n2.m_key2Value;
+        NodeSortKey k = m_sortKeys[kIndex];
+        XObject r = k.m_selectPat.execute(m_execContext, nodes[i],
+                                          k.m_namespaceContext);
+
+        if (k.m_treatAsNumbers)
+          m_numberValues[kIndex][i] = r.num();
+        else
+          strings[kIndex][i] = r.str();
       }
+    }
 
-      /* Leave this in case we decide to use an array later
-      if (kIndex < maxkey)
-      {
-        String n1String = (String)n1.m_keyValue[kIndex];
-        String n2String = (String)n2.m_keyValue[kIndex];
-      }*/
-      else
-      {
+    // The list is now past its end, from where setCurrentPos() cannot
+    // take it back.
+    v.reset();
 
-        // Get values dynamically
-        XObject r1 = k.m_selectPat.execute(m_execContext, n1.m_node,
-                                           k.m_namespaceContext);
-        XObject r2 = k.m_selectPat.execute(m_execContext, n2.m_node,
-                                           k.m_namespaceContext);
+    for (int kIndex = 0; kIndex < keyCount; kIndex++)
+    {
+      NodeSortKey k = m_sortKeys[kIndex];
 
-        n1String = k.m_col.getCollationKey(r1.str());
-        n2String = k.m_col.getCollationKey(r2.str());
-      }
+      if (k.m_treatAsNumbers)
+        continue;
 
-      // Use collation keys for faster compare, but note that whitespaces 
-      // etc... are treated differently from if we were comparing Strings.
-      result = n1String.compareTo(n2String);
+      byte[][] values = new byte[n][];
+
+      if (n >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1)
+        ForkJoinPool.commonPool().invoke(
+          new CollateTask(k.m_col, strings[kIndex], values, 0, n));
+      else
+        collate(k.m_col, strings[kIndex], values, 0, n);
+      m_textValues[kIndex] = values;
 
-      //Process caseOrder parameter
       if (k.m_caseOrderUpper)
       {
-        String tempN1 = n1String.getSourceString().toLowerCase();
-        String tempN2 = n2String.getSourceString().toLowerCase();
+        String[] lowerCase = strings[kIndex];
 
-        if (tempN1.equals(tempN2))
+        for (int i = 0; i < n; i++)
         {
-
-          //java defaults to upper case is greater.
-          result = result == 0 ? 0 : -result;
+          lowerCase[i] = lowerCase[i].toLowerCase();
         }
-      }
-
-      //Process order parameter
-      if (k.m_descending)
-      {
-        result = -result;
-      }
-    }  //end else
-
-    if (0 == result)
-    {
-      if ((kIndex + 1) < m_keys.size())
-      {
-        result = compare(n1, n2, kIndex + 1, support);
+        m_lowerCaseValues[kIndex] = lowerCase;
       }
     }
+  }
 
-    if (0 == result)
+  /**
+   * Compute collation keys for a range of strings.
+   *
+   * @param col The collator, which is used by this thread only.
+   * @param strings The strings.
+   * @param values Array to put the collation keys into.
+   * @param lo First index of the range.
+   * @param hi Index following the range.
+   */
+  static void collate(Collator col, String[] strings, byte[][] values,
+                      int lo, int hi)
+  {
+    for (int i = lo; i < hi; i++)
     {
-
-      // I shouldn't have to do this except that there seems to 
-      // be a glitch in the mergesort
-      // if(r1.getType() == r1.CLASS_NODESET)
-      // {
-      DTM dtm = support.getDTM(n1.m_node); // %OPT%
-      result = dtm.isNodeAfter(n1.m_node, n2.m_node) ? -1 : 1;
-
-      // }
+      values[i] = col.getCollationKey(strings[i]).toByteArray();
     }
-
-    return result;
   }
 
   /**
-   * This implements a standard Mergesort, as described in
-   * Robert Sedgewick's Algorithms book.  This is a better
-   * sort for our purpose than the Quicksort because it
-   * maintains the original document order of the input if
-   * the order isn't changed by the sort.
+   * Return the results of a compare of two nodes, given by their
+   * positions in the list being sorted.
    *
-   * @param a First vector of nodes to compare
-   * @param b Second vector of  nodes to compare 
-   * @param l Left boundary of  partition
-   * @param r Right boundary of  partition
-   * @param support XPath context to use
+   * @param n1 Position of the first node to use in compare
+   * @param n2 Position of the second node to use in compare
    *
-   * @throws TransformerException
+   * @return The results of the compare of the two nodes: never 0 for two
+   * different nodes, since nodes with equal keys are kept in the order
+   * they were given in.
    */
-  void mergesort(Vector a, Vector b, int l, int r, XPathContext support)
-          throws TransformerException
+  int compare(int n1, int n2)
   {
 
-    if ((r - l) > 0)
+    for (int kIndex = 0; kIndex < m_sortKeys.length; kIndex++)
     {
-      int m = (r + l) / 2;
-
-      mergesort(a, b, l, m, support);
-      mergesort(a, b, m + 1, r, support);
-
-      int i, j, k;
-
-      for (i = m; i >= l; i--)
-      {
-
-        // b[i] = a[i];
-        // Use insert if we need to increment vector size.
-        if (i >= b.size())
-          b.insertElementAt(a.elementAt(i), i);
-        else
-          b.setElementAt(a.elementAt(i), i);
-      }
-
-      i = l;
+      NodeSortKey k = m_sortKeys[kIndex];
+      int result;
 
-      for (j = (m + 1); j <= r; j++)
+      if (k.m_treatAsNumbers)
       {
+        double n1Num = m_numberValues[kIndex][n1];
+        double n2Num = m_numberValues[kIndex][n2];
 
-        // b[r+m+1-j] = a[j];
-        if (r + m + 1 - j >= b.size())
-          b.insertElementAt(a.elementAt(j), r + m + 1 - j);
+        // NaN sorts before any number.
+        if (Double.isNaN(n1Num))
+          result = Double.isNaN(n2Num) ? 0 : -1;
+        else if (Double.isNaN(n2Num))
+          result = 1;
         else
-          b.setElementAt(a.elementAt(j), r + m + 1 - j);
+          result = (n1Num < n2Num) ? -1 : (n1Num > n2Num) ? 1 : 0;
       }
-
-      j = r;
-
-      int compVal;
-
-      for (k = l; k <= r; k++)
+      else
       {
-
-        // if(b[i] < b[j])
-        if (i == j)
-          compVal = -1;
-        else
-          compVal = compare((NodeCompareElem) b.elementAt(i),
-                            (NodeCompareElem) b.elementAt(j), 0, support);
-
-        if (compVal < 0)
+        // Use collation keys for faster compare, but note that whitespaces 
+        // etc... are treated differently from if we were comparing Strings.
+        result = compareBytes(m_textValues[kIndex][n1],
+                              m_textValues[kIndex][n2]);
+
+        //Process caseOrder parameter
+        if (k.m_caseOrderUpper && 0 != result
+            && m_lowerCaseValues[kIndex][n1].equals(m_lowerCaseValues[kIndex][n2]))
         {
-
-          // a[k]=b[i];
-          a.setElementAt(b.elementAt(i), k);
-
-          i++;
+          //java defaults to upper case is greater.
+          result = -result;
         }
-        else if (compVal > 0)
-        {
-
-          // a[k]=b[j]; 
-          a.setElementAt(b.elementAt(j), k);
+      }
 
-          j--;
-        }
+      if (0 != result)
+      {
+        //Process order parameter
+        return k.m_descending ? -result : result;
       }
     }
+
+    return n1 - n2;
   }
 
   /**
-   * This is a generic version of C.A.R Hoare's Quick Sort
-   * algorithm.  This will handle arrays that are already
-   * sorted, and arrays with duplicate keys.<BR>
+   * Compare two collation keys, as returned by CollationKey.toByteArray().
    *
-   * If you think of a one dimensional array as going from
-   * the lowest index on the left to the highest index on the right
-   * then the parameters to this function are lowest index or
-   * left and highest index or right.  The first time you call
-   * this function it will be with the parameters 0, a.length - 1.
-   *
-   * @param v       a vector of integers 
-   * @param lo0     left boundary of array partition
-   * @param hi0     right boundary of array partition
+   * @param b1 The first key.
+   * @param b2 The second key.
    *
+   * @return negative, zero or positive as b1 is less than, equal to or
+   * greater than b2.
    */
+  static int compareBytes(byte[] b1, byte[] b2)
+  {
+    int len = Math.min(b1.length, b2.length);
 
-  /*  private void QuickSort2(Vector v, int lo0, int hi0, XPathContext support)
-      throws javax.xml.transform.TransformerException,
-             java.net.MalformedURLException,
-             java.io.FileNotFoundException,
-             java.io.IOException
+    for (int i = 0; i < len; i++)
     {
-      int lo = lo0;
-      int hi = hi0;
+      if (b1[i] != b2[i])
+        return (b1[i] & 0xFF) - (b2[i] & 0xFF);
+    }
+    return b1.length - b2.length;
+  }
+
+  /**
+   * Sort a range of node positions by merging. A merge sort is used rather
+   * than Quicksort because it maintains the original order of the input
+   * where the keys do not change it.
+   *
+   * @param a The positions to sort.
+   * @param b Scratch array, at least as large as a.
+   * @param lo First index of the range.
+   * @param hi Index following the range.
+   */
+  void mergesort(int[] a, int[] b, int lo, int hi)
+  {
 
-      if ( hi0 > lo0)
+    if (hi - lo <= INSERTION_SORT_THRESHOLD)
+    {
+      for (int i = lo + 1; i < hi; i++)
       {
-        // Arbitrarily establishing partition element as the midpoint of
-        // the array.
-        Node midNode = (Node)v.elementAt( ( lo0 + hi0 ) / 2 );
+        int x = a[i];
+        int j = i - 1;
 
-        // loop through the array until indices cross
-        while( lo <= hi )
+        for (; j >= lo && compare(a[j], x) > 0; j--)
         {
-          // find the first element that is greater than or equal to
-          // the partition element starting from the left Index.
-          while( (lo < hi0) && (compare((Node)v.elementAt(lo), midNode, 0, support) < 0) )
-          {
-            ++lo;
-          } // end while
-
-          // find an element that is smaller than or equal to
-          // the partition element starting from the right Index.
-          while( (hi > lo0) && (compare((Node)v.elementAt(hi), midNode, 0, support) > 0) )
-          {
-            --hi;
-          }
-
-          // if the indexes have not crossed, swap
-          if( lo <= hi )
-          {
-            swap(v, lo, hi);
-            ++lo;
-            --hi;
-          }
+          a[j + 1] = a[j];
         }
+        a[j + 1] = x;
+      }
+      return;
+    }
 
-        // If the right index has not reached the left side of array
-        // must now sort the left partition.
-        if( lo0 < hi )
-        {
-          QuickSort2( v, lo0, hi, support );
-        }
+    int m = (lo + hi) >>> 1;
 
-        // If the left index has not reached the right side of array
-        // must now sort the right partition.
-        if( lo < hi0 )
-        {
-          QuickSort2( v, lo, hi0, support );
-        }
-      }
-    } // end QuickSort2  */
-
-//  /**
-//   * Simple function to swap two elements in
-//   * a vector.
-//   * 
-//   * @param v Vector of nodes to swap
-//   * @param i Index of first node to swap
-//   * @param i Index of second node to swap
-//   */
-//  private void swap(Vector v, int i, int j)
-//  {
-//
-//    int node = (Node) v.elementAt(i);
-//
-//    v.setElementAt(v.elementAt(j), i);
-//    v.setElementAt(node, j);
-//  }
+    mergesort(a, b, lo, m);
+    mergesort(a, b, m, hi);
+    merge(a, b, lo, m, hi);
+  }
 
   /**
-   * This class holds the value(s) from executing the given
-   * node against the sort key(s). 
-   * @xsl.usage internal
+   * Merge two adjacent sorted ranges of node positions.
+   *
+   * @param a The positions.
+   * @param b Scratch array, at least as large as a.
+   * @param lo First index of the first range.
+   * @param m First index of the second range.
+   * @param hi Index following the second range.
    */
-  class NodeCompareElem
+  void merge(int[] a, int[] b, int lo, int m, int hi)
   {
 
-    /** Current node          */
-    int m_node;
-
-    /** This maxkey value was chosen arbitrarily. We are assuming that the    
-    // maxkey + 1 keys will only hit fairly rarely and therefore, we
-    // will get the node values for those keys dynamically.
-    */
-    int maxkey = 2;
-
-    // Keep this in case we decide to use an array. Right now
-    // using two variables is cheaper.
-    //Object[] m_KeyValue = new Object[2];
-
-    /** Value from first sort key           */
-    Object m_key1Value;
-
-    /** Value from second sort key            */
-    Object m_key2Value;
-
-    /**
-     * Constructor NodeCompareElem
-     *
-     *
-     * @param node Current node
-     *
-     * @throws javax.xml.transform.TransformerException
-     */
-    NodeCompareElem(int node) throws javax.xml.transform.TransformerException
+    // Already in order?
+    if (compare(a[m - 1], a[m]) < 0)
+      return;
+
+    System.arraycopy(a, lo, b, lo, m - lo);
+
+    int i = lo, j = m, k = lo;
+
+    while (i < m && j < hi)
     {
-      m_node = node;
+      a[k++] = (compare(b[i], a[j]) < 0) ? b[i++] : a[j++];
+    }
+    while (i < m)
+    {
+      a[k++] = b[i++];
+    }
+  }
 
-      if (!m_keys.isEmpty())
-      {
-        NodeSortKey k1 = (NodeSortKey) m_keys.elementAt(0);
-        XObject r = k1.m_selectPat.execute(m_execContext, node,
-                                           k1.m_namespaceContext);
+  /**
+   * Sorts a range of node positions, splitting it into two halves sorted
+   * in parallel while it is large enough.
+   */
+  class SortTask extends RecursiveAction
+  {
+    static final long serialVersionUID = 5148284520542287337L;
 
-        double d;
+    private final int[] m_a;
+    private final int[] m_b;
+    private final int m_lo;
+    private final int m_hi;
 
-        if (k1.m_treatAsNumbers)
-        {
-          d = r.num();
+    SortTask(int[] a, int[] b, int lo, int hi)
+    {
+      m_a = a;
+      m_b = b;
+      m_lo = lo;
+      m_hi = hi;
+    }
 
-          // Can't use NaN for compare. They are never equal. Use zero instead.  
-          m_key1Value = new Double(d);
-        }
-        else
-        {
-          m_key1Value = k1.m_col.getCollationKey(r.str());
-        }
+    protected void compute()
+    {
+      if (m_hi - m_lo <= PARALLEL_THRESHOLD)
+      {
+        mergesort(m_a, m_b, m_lo, m_hi);
+        return;
+      }
 
-        if (r.getType() == XObject.CLASS_NODESET)
-        {
-          // %REVIEW%
-          DTMIterator ni = ((XNodeSet)r).iterRaw();
-          int current = ni.getCurrentNode();
-          if(DTM.NULL == current)
-            current = ni.nextNode();
+      int m = (m_lo + m_hi) >>> 1;
 
-          // if (ni instanceof ContextNodeList) // %REVIEW%
-          // tryNextKey = (DTM.NULL != current);
+      invokeAll(new SortTask(m_a, m_b, m_lo, m),
+                new SortTask(m_a, m_b, m, m_hi));
+      merge(m_a, m_b, m_lo, m, m_hi);
+    }
+  }
 
-          // else abdicate... should never happen, but... -sb
-        }
+  /**
+   * Computes the collation keys of a range of strings, splitting it into
+   * two halves computed in parallel while it is large enough. Each task
+   * collating strings uses its own copy of the collator, which is not safe
+   * for use by several threads.
+   */
+  static class CollateTask extends RecursiveAction
+  {
+    static final long serialVersionUID = -2905462233862470418L;
 
-        if (m_keys.size() > 1)
-        {
-          NodeSortKey k2 = (NodeSortKey) m_keys.elementAt(1);
+    private final Collator m_col;
+    private final String[] m_strings;
+    private final byte[][] m_values;
+    private final int m_lo;
+    private final int m_hi;
 
-          XObject r2 = k2.m_selectPat.execute(m_execContext, node,
-                                              k2.m_namespaceContext);
+    CollateTask(Collator col, String[] strings, byte[][] values,
+                int lo, int hi)
+    {
+      m_col = col;
+      m_strings = strings;
+      m_values = values;
+      m_lo = lo;
+      m_hi = hi;
+    }
 
-          if (k2.m_treatAsNumbers) {
-            d = r2.num();
-            m_key2Value = new Double(d);
-          } else {
-            m_key2Value = k2.m_col.getCollationKey(r2.str());
-          }
-        }
+    protected void compute()
+    {
+      if (m_hi - m_lo <= PARALLEL_THRESHOLD)
+      {
+        collate((Collator) m_col.clone(), m_strings, m_values, m_lo, m_hi);
+        return;
+      }
 
-        /* Leave this in case we decide to use an array later
-        while (kIndex <= m_keys.size() && kIndex < maxkey)
-        {
-          NodeSortKey k = (NodeSortKey)m_keys.elementAt(kIndex);
-          XObject r = k.m_selectPat.execute(m_execContext, node, k.m_namespaceContext);
-          if(k.m_treatAsNumbers)
-            m_KeyValue[kIndex] = r.num();
-          else
-            m_KeyValue[kIndex] = r.str();
-        } */
-      }  // end if not empty    
+      int m = (m_lo + m_hi) >>> 1;
+
+      invokeAll(new CollateTask(m_col, m_strings, m_values, m_lo, m),
+                new CollateTask(m_col, m_strings, m_values, m, m_hi));
     }
-  }  // end NodeCompareElem class
+  }
 }
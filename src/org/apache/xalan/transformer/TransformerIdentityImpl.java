@@ -49,8 +49,10 @@ import javax.xml.transform.stream.StreamResult;
 import org.apache.xalan.res.XSLMessages;
 import org.apache.xalan.res.XSLTErrorResources;
 import org.apache.xalan.templates.OutputProperties;
+import org.apache.xml.serializer.ChannelResult;
 import org.apache.xml.serializer.Serializer;
 import org.apache.xml.serializer.SerializerFactory;
+import org.apache.xml.serializer.SerializationHandler;
 import org.apache.xml.serializer.Method;
 import org.apache.xml.utils.DOMBuilder;
 import org.apache.xml.utils.XMLReaderManager;
@@ -267,7 +269,11 @@ public class TransformerIdentityImpl extends Transformer
 
         m_serializer = serializer;
 
-        if (null != sresult.getWriter())
+        if (sresult instanceof ChannelResult
+            && serializer instanceof SerializationHandler)
+          ((SerializationHandler) serializer).setOutputChannel(
+            ((ChannelResult) sresult).getChannel());
+        else if (null != sresult.getWriter())
           serializer.setWriter(sresult.getWriter());
         else if (null != sresult.getOutputStream())
           serializer.setOutputStream(sresult.getOutputStream());
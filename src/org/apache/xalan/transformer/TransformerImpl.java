@@ -49,6 +49,7 @@ import javax.xml.transform.stream.StreamSource;
 import org.apache.xalan.extensions.ExtensionsTable;
 import org.apache.xalan.res.XSLMessages;
 import org.apache.xalan.res.XSLTErrorResources;
+import org.apache.xml.serializer.ChannelResult;
 import org.apache.xml.serializer.Method;
 import org.apache.xml.serializer.Serializer;
 import org.apache.xml.serializer.SerializerFactory;
@@ -72,6 +73,7 @@ import org.apache.xml.dtm.DTM;
 import org.apache.xml.dtm.DTMIterator;
 import org.apache.xml.dtm.DTMManager;
 import org.apache.xml.dtm.DTMWSFilter;
+import org.apache.xml.dtm.ref.sax2dtm.SAX2DTM;
 import org.apache.xml.serializer.ToSAXHandler;
 import org.apache.xml.serializer.ToTextStream;
 import org.apache.xml.serializer.ToXMLSAXHandler;
@@ -303,6 +305,17 @@ public class TransformerImpl extends Transformer
    */    
   private boolean m_incremental = false;
 
+  /**
+   * True if the stylesheet was composed with the streaming or incremental
+   * feature set, and found to be streamable.
+   */
+  private boolean m_streaming = false;
+
+  /**
+   * The source document being transformed in streaming mode, or null.
+   */
+  private SAX2DTM m_streamSource = null;
+
   /**
    * The flag for the setting of the source_location feature;
    * This flag should have the same value as the FEATURE_SOURCE_LOCATION feature
@@ -312,8 +325,10 @@ public class TransformerImpl extends Transformer
   private boolean m_source_location = false;
     
   /**
-   * This is a compile-time flag to turn off calling
-   * of trace listeners. Set this to false for optimization purposes.
+   * True while trace listeners are registered with the TraceManager, which
+   * sets and clears it. While it is false, the templates take the path
+   * which fires no trace events; the loops over the selected nodes read it
+   * once, so that the JIT can compile them without the checks.
    */
   private boolean m_debug = false;
 
@@ -392,6 +407,8 @@ public class TransformerImpl extends Transformer
   {
     m_optimizer = stylesheet.getOptimizer();
     m_incremental = stylesheet.getIncremental();
+    m_streaming = (stylesheet.getStreaming() || m_incremental)
+                  && stylesheet.isStreamable();
     m_source_location = stylesheet.getSource_location();  	
     setStylesheet(stylesheet);
     XPathContext xPath = new XPathContext(this);
@@ -399,9 +416,16 @@ public class TransformerImpl extends Transformer
     xPath.getDTMManager().setIncremental(m_incremental);
     xPath.setSource_location(m_source_location);
     xPath.getDTMManager().setSource_location(m_source_location);
+    xPath.getDTMManager().setOffHeapStorage(stylesheet.getOffHeapStorage());
     
     if (stylesheet.isSecureProcessing())
       xPath.setSecureProcessing(true);
+
+    // Documents are only shared if this stylesheet can not change how
+    // they are built, i.e. it has no xsl:strip-space rules.
+    if (!stylesheet.shouldCheckWhitespace())
+      xPath.getSourceTreeManager().setDocumentCache(
+        stylesheet.getSourceDocumentCache());
     
     setXPathContext(xPath);
     getXPathContext().setNamespaceContext(stylesheet);
@@ -698,7 +722,29 @@ public class TransformerImpl extends Transformer
           fatalError(e);
         }           
       }
-      DTM dtm = mgr.getDTM(source, false, this, true, true);
+      DTM dtm;
+      if (m_streaming && !m_debug && !hasTraceListeners())
+      {
+        // Build the document as it is transformed, and let the nodes
+        // already processed be discarded.
+        boolean incremental = mgr.getIncremental();
+        boolean prunable = mgr.getPrunable();
+        mgr.setIncremental(true);
+        mgr.setPrunable(true);
+        try
+        {
+          dtm = mgr.getDTM(source, false, this, true, true);
+        }
+        finally
+        {
+          mgr.setIncremental(incremental);
+          mgr.setPrunable(prunable);
+        }
+        if (dtm instanceof SAX2DTM && ((SAX2DTM) dtm).isPrunable())
+          m_streamSource = (SAX2DTM) dtm;
+      }
+      else
+        dtm = mgr.getDTM(source, false, this, true, true);
       dtm.setDocumentBaseURI(base);
       
       boolean hardDelete = true;  // %REVIEW% I have to think about this. -sb
@@ -712,6 +758,7 @@ public class TransformerImpl extends Transformer
       }
       finally
       {
+        m_streamSource = null;
         if (shouldRelease)
           mgr.release(dtm, hardDelete);
       }
@@ -1173,7 +1220,9 @@ public class TransformerImpl extends Transformer
           SerializationHandler serializer =
             (SerializationHandler) SerializerFactory.getSerializer(format.getProperties());
 
-          if (null != sresult.getWriter())
+          if (sresult instanceof ChannelResult)
+            serializer.setOutputChannel(((ChannelResult) sresult).getChannel());
+          else if (null != sresult.getWriter())
             serializer.setWriter(sresult.getWriter());
           else if (null != sresult.getOutputStream())
             serializer.setOutputStream(sresult.getOutputStream());
@@ -2389,17 +2438,34 @@ public class TransformerImpl extends Transformer
 
     try
     {
-      // Loop through the children of the template, calling execute on 
-      // each of them.
-      for (; t != null; t = t.getNextSiblingElem())
+      // Loop through the children of the template, calling execute on
+      // each of them.  Without trace listeners, take the path which
+      // leaves out the trace events.
+      if (m_debug)
       {
-        if (!shouldAddAttrs
-                && t.getXSLToken() == Constants.ELEMNAME_ATTRIBUTE)
-          continue;
+        for (; t != null; t = t.getNextSiblingElem())
+        {
+          if (!shouldAddAttrs
+                  && t.getXSLToken() == Constants.ELEMNAME_ATTRIBUTE)
+            continue;
 
-        xctxt.setSAXLocator(t);
-        m_currentTemplateElements.setElementAt(t,currentTemplateElementsTop);
-        t.execute(this);
+          xctxt.setSAXLocator(t);
+          m_currentTemplateElements.setElementAt(t,currentTemplateElementsTop);
+          t.execute(this);
+        }
+      }
+      else
+      {
+        for (; t != null; t = t.getNextSiblingElem())
+        {
+          if (!shouldAddAttrs
+                  && t.getXSLToken() == Constants.ELEMNAME_ATTRIBUTE)
+            continue;
+
+          xctxt.setSAXLocator(t);
+          m_currentTemplateElements.setElementAt(t,currentTemplateElementsTop);
+          t.executeUntraced(this);
+        }
       }
     }
     catch(RuntimeException re)
@@ -3669,6 +3735,26 @@ public class TransformerImpl extends Transformer
         return m_incremental;
     }
 
+    /**
+     * @return true if the stylesheet is run in streaming mode
+     */
+    public boolean getStreaming() {
+        return m_streaming;
+    }
+
+    /**
+     * Tell the source document, if it is being streamed, that the nodes
+     * preceding the given node in document order, other than its ancestors
+     * and their attributes, will not be visited again.
+     *
+     * @param node The node about to be processed.
+     */
+    public void pruneSourceBefore(int node)
+    {
+      if (null != m_streamSource)
+        m_streamSource.pruneBefore(node);
+    }
+
     /**
      * @return Optimization flag
      */
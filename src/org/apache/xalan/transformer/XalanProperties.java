@@ -32,4 +32,58 @@ public class XalanProperties
 {
   public final static String SOURCE_LOCATION
     = "http://xml.apache.org/xalan/properties/source-location";
+
+  /**
+   * TransformerFactory attribute whose value is an
+   * org.apache.xml.dtm.ref.SharedDTMCache, used to share documents
+   * loaded by the document() function between transformations.
+   */
+  public final static String SOURCE_DOCUMENT_CACHE
+    = "http://xml.apache.org/xalan/properties/source-document-cache";
+
+  /**
+   * Feature which, when true, keeps the node tables of large source
+   * documents outside the Java heap.
+   */
+  public final static String OFF_HEAP_STORAGE
+    = "http://xml.apache.org/xalan/properties/off-heap-storage";
+
+  /**
+   * Feature which, when true, runs stylesheets which only move forward
+   * through the source document in streaming mode, discarding the parts of
+   * the document which have been processed.
+   */
+  public final static String STREAMING
+    = "http://xml.apache.org/xalan/features/streaming";
+
+  /**
+   * TransformerFactory attribute whose value is the maximum number of
+   * compiled stylesheets the factory caches, as an Integer or a String.
+   * 0, the default, turns the cache off.
+   */
+  public final static String TEMPLATES_CACHE_SIZE
+    = "http://xml.apache.org/xalan/properties/templates-cache-size";
+
+  /**
+   * Read-only TransformerFactory attribute whose value is the number of
+   * stylesheets served from the factory's templates cache, as a Long.
+   */
+  public final static String TEMPLATES_CACHE_HITS
+    = "http://xml.apache.org/xalan/properties/templates-cache-hits";
+
+  /**
+   * Read-only TransformerFactory attribute whose value is the number of
+   * stylesheets the factory compiled because they were not in its
+   * templates cache, as a Long.
+   */
+  public final static String TEMPLATES_CACHE_MISSES
+    = "http://xml.apache.org/xalan/properties/templates-cache-misses";
+
+  /**
+   * Read-only TransformerFactory attribute whose value is the number of
+   * compiled stylesheets evicted from the factory's templates cache, as a
+   * Long.
+   */
+  public final static String TEMPLATES_CACHE_EVICTIONS
+    = "http://xml.apache.org/xalan/properties/templates-cache-evictions";
 }
@@ -54,6 +54,7 @@ import org.apache.xalan.Version;
 import org.apache.xalan.res.XSLMessages;
 import org.apache.xalan.res.XSLTErrorResources;
 import org.apache.xalan.trace.PrintTraceListener;
+import org.apache.xalan.trace.ProfileTraceListener;
 import org.apache.xalan.trace.TraceManager;
 import org.apache.xalan.transformer.XalanProperties;
 import org.apache.xalan.xslt.util.XslTransformErrorLocatorHelper;
@@ -117,6 +118,7 @@ public class Process
     System.out.println(resbundle.getString("optionTS"));  //"   [-TS (Trace each selection event.)]");
     System.out.println(resbundle.getString("optionTTC"));  //"   [-TTC (Trace the template children as they are being processed.)]");
     System.out.println(resbundle.getString("optionTCLASS"));  //"   [-TCLASS (TraceListener class for trace extensions.)]");
+    System.out.println(resbundle.getString("optionPROFILE")); //"   [-PROFILE filename (Profile the templates and select expressions.)]"
     System.out.println(resbundle.getString("optionLINENUMBERS")); //"   [-L use line numbers]"
     System.out.println(resbundle.getString("optionINCREMENTAL"));
     System.out.println(resbundle.getString("optionNOOPTIMIMIZE"));
@@ -222,6 +224,8 @@ public class Process
       String xslFileName = null;
       String treedumpFileName = null;
       PrintTraceListener tracer = null;
+      ProfileTraceListener profiler = null;
+      String profileFileName = null;
       String outputType = null;
       String media = null;
       Vector params = new Vector();
@@ -293,6 +297,28 @@ public class Process
 
           // tfactory.setTraceTemplateChildren(true);
         }
+        else if ("-PROFILE".equalsIgnoreCase(argv[i]))
+        {
+          if (!useXSLTC)
+          {
+            if (i + 1 < argv.length && argv[i + 1].charAt(0) != '-')
+            {
+              profileFileName = argv[++i];
+              profiler = new ProfileTraceListener();
+            }
+            else
+              System.err.println(
+                XSLMessages.createMessage(
+                  XSLTErrorResources.ER_MISSING_ARG_FOR_OPTION,
+                  new Object[]{ "-PROFILE" }));  //"Missing argument for);
+          }
+          else
+          {
+            if (i + 1 < argv.length && argv[i + 1].charAt(0) != '-')
+              i++;
+            printInvalidXSLTCOption("-PROFILE");
+          }
+        }
         else if ("-INDENT".equalsIgnoreCase(argv[i]))
         {
           int indentAmount;
@@ -824,6 +850,9 @@ public class Process
             if (null != tracer)
               tm.addTraceListener(tracer);
 
+            if (null != profiler)
+              tm.addTraceListener(profiler);
+
             impl.setQuietConflictWarnings(quietConflictWarnings);
 
 			// This is currently controlled via TransformerFactoryImpl.
@@ -1086,6 +1115,23 @@ public class Process
         long stop = System.currentTimeMillis();
         long millisecondsDuration = stop - start;
 
+        if (null != profiler)
+        {
+          java.io.Writer profileWriter =
+            new java.io.OutputStreamWriter(
+              new FileOutputStream(profileFileName), "UTF-8");
+          try
+          {
+            profiler.writeCollapsedStacks(profileWriter);
+          }
+          finally
+          {
+            profileWriter.close();
+          }
+          diagnosticsWriter.println();
+          profiler.printSummary(diagnosticsWriter, 20);
+        }
+
         if (doDiag)
         {
         	Object[] msgArgs = new Object[]{ inFileName, xslFileName, new Long(millisecondsDuration) };
@@ -27,18 +27,24 @@ import java.util.Iterator;
 import java.util.Vector;
 
 import org.apache.bcel.generic.Instruction;
+import org.apache.bcel.generic.ALOAD;
 import org.apache.bcel.generic.BranchHandle;
 import org.apache.bcel.generic.ConstantPoolGen;
 import org.apache.bcel.generic.DUP;
+import org.apache.bcel.generic.GETSTATIC;
 import org.apache.bcel.generic.GOTO_W;
 import org.apache.bcel.generic.IFLT;
+import org.apache.bcel.generic.IF_ICMPGE;
 import org.apache.bcel.generic.ILOAD;
 import org.apache.bcel.generic.INVOKEINTERFACE;
+import org.apache.bcel.generic.INVOKESTATIC;
 import org.apache.bcel.generic.INVOKEVIRTUAL;
 import org.apache.bcel.generic.ISTORE;
 import org.apache.bcel.generic.InstructionHandle;
 import org.apache.bcel.generic.InstructionList;
 import org.apache.bcel.generic.LocalVariableGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.PUSH;
 import org.apache.bcel.generic.SWITCH;
 import org.apache.bcel.generic.TargetLostException;
 import org.apache.bcel.util.InstructionFinder;
@@ -62,6 +68,25 @@ import org.apache.xml.dtm.DTM;
  */
 final class Mode implements Constants {
 
+    /**
+     * The number of types, built-in and named, from which the dispatch on
+     * the type of the current node goes through a table of the distinct
+     * targets rather than a switch with a case for every type.
+     */
+    private static final int DISPATCH_TABLE_THRESHOLD = 256;
+
+    /**
+     * The largest dispatch table, which must fit in one of the translet's
+     * char arrays of character data.
+     */
+    private static final int MAX_DISPATCH_TABLE_SIZE = 21845;
+
+    /**
+     * The number of template calls made by each of the methods which
+     * applyTemplates() hands them to - small enough for the JIT to compile.
+     */
+    private static final int CALLS_PER_DISPATCH_METHOD = 256;
+
     /**
      * The name of this mode as defined in the stylesheet.
      */
@@ -143,6 +168,12 @@ final class Mode implements Constants {
      */
     private Hashtable _templateILs = new Hashtable();
 
+    /**
+     * A mapping between the code calling a template compiled into a
+     * method of its own and the name of that method.
+     */
+    private Hashtable _templateCalls = new Hashtable();
+
     /**
      * A reference to the pattern matching the root node.
      */
@@ -573,6 +604,7 @@ for (int i = 0; i < _templates.size(); i++) {
 		til.append(new GOTO_W(next));
 		_templateILs.put(template, til);
 		_templateIHs.put(template, til.getStart());
+		addTemplateCall(template, til);
 	    }
 	    else {
 		// empty template
@@ -581,12 +613,32 @@ for (int i = 0; i < _templates.size(); i++) {
 	}
     }
 	
+    /**
+     * Records that the code compiled for a template only calls the method
+     * the template has been compiled into - which is what templates compile
+     * to unless they are inlined - so that the call can also be made from
+     * outside applyTemplates().
+     */
+    private void addTemplateCall(Template template, InstructionList til) {
+	if (template.isNamed() && _namedTemplates.containsKey(template)) {
+	    _templateCalls.put(til.getStart(),
+			       Util.escape(template.getName().toString()));
+	}
+    }
+
     private void appendTemplateCode(InstructionList body) {
 	final Enumeration templates = _neededTemplates.keys();
 	while (templates.hasMoreElements()) {
 	    final Object iList =
 		_templateILs.get(templates.nextElement());
 	    if (iList != null) {
+		// Skip calls which are only made from the dispatch methods
+		final InstructionHandle start =
+		    ((InstructionList)iList).getStart();
+		if (_templateCalls.containsKey(start) &&
+		    !start.hasTargeters()) {
+		    continue;
+		}
 		body.append((InstructionList)iList);
 	    }
 	}
@@ -605,6 +657,226 @@ for (int i = 0; i < _templates.size(); i++) {
 	}
     }
 
+    /**
+     * Appends the dispatch on the expanded type of the current node, which
+     * is on the stack, to the targets of the types.
+     * <p>
+     * A switch needs a case for every type, and every case calling a
+     * template adds the call to applyTemplates(), which for a large
+     * vocabulary makes it too large for the JIT to compile, or for a
+     * method. Above DISPATCH_TABLE_THRESHOLD types the dispatch is therefore
+     * done in two levels: a table, stored with the translet's character
+     * data, maps each type to the number of its target; numbers of targets
+     * in applyTemplates() are then switched on, while the calls to templates
+     * compiled into methods of their own are handed to dispatch methods,
+     * each making up to CALLS_PER_DISPATCH_METHOD of them.</p>
+     */
+    private void appendTypeDispatch(ClassGenerator classGen,
+				    MethodGenerator methodGen,
+				    InstructionList body, int[] types,
+				    InstructionHandle[] targets,
+				    InstructionHandle defaultTarget) {
+	final int n = types.length;
+	if (n < DISPATCH_TABLE_THRESHOLD || n > MAX_DISPATCH_TABLE_SIZE) {
+	    body.append(new SWITCH(types, targets, defaultTarget));
+	    return;
+	}
+
+	// Number the distinct targets, the template calls last; types[i] is
+	// always i
+	final Hashtable jumpNumbers = new Hashtable();
+	final Hashtable callNumbers = new Hashtable();
+	final Vector jumpTargets = new Vector();
+	final Vector callTargets = new Vector();
+	for (int i = 0; i < n; i++) {
+	    final InstructionHandle target = targets[i];
+	    if (_templateCalls.containsKey(target)) {
+		if (!callNumbers.containsKey(target)) {
+		    callNumbers.put(target, new Integer(callTargets.size()));
+		    callTargets.addElement(target);
+		}
+	    }
+	    else if (!jumpNumbers.containsKey(target)) {
+		jumpNumbers.put(target, new Integer(jumpTargets.size()));
+		jumpTargets.addElement(target);
+	    }
+	}
+
+	final int jumpCount = jumpTargets.size();
+	final int callCount = callTargets.size();
+	final StringBuffer table = new StringBuffer(n);
+	for (int i = 0; i < n; i++) {
+	    final Integer jump = (Integer)jumpNumbers.get(targets[i]);
+	    if (jump != null) {
+		table.append((char)jump.intValue());
+	    }
+	    else {
+		final Integer call = (Integer)callNumbers.get(targets[i]);
+		table.append((char)(jumpCount + call.intValue()));
+	    }
+	}
+
+	final XSLTC xsltc = classGen.getParser().getXSLTC();
+	final ConstantPoolGen cpg = classGen.getConstantPool();
+	final int offset = xsltc.addCharacterData(table.toString());
+	final int tableRef =
+	    cpg.addFieldref(xsltc.getClassName(),
+			    STATIC_CHAR_DATA_FIELD +
+				(xsltc.getCharacterDataCount() - 1),
+			    STATIC_CHAR_DATA_FIELD_SIG);
+
+	// Types outside the table go to the default, as with a switch
+	final InstructionList ilOutside = new InstructionList();
+	ilOutside.append(POP);
+	ilOutside.append(new GOTO_W(defaultTarget));
+
+	body.append(DUP);
+	body.append(new IFLT(ilOutside.getStart()));
+	body.append(DUP);
+	body.append(new PUSH(cpg, n));
+	body.append(new IF_ICMPGE(ilOutside.getStart()));
+	if (offset > 0) {
+	    body.append(new PUSH(cpg, offset));
+	    body.append(IADD);
+	}
+	body.append(new GETSTATIC(tableRef));
+	body.append(SWAP);
+	body.append(CALOAD);
+
+	BranchHandle toCalls = null;
+	if (callCount > 0) {
+	    body.append(DUP);
+	    body.append(new PUSH(cpg, jumpCount));
+	    toCalls = body.append(new IF_ICMPGE(null));
+	}
+
+	final int[] jumps = new int[jumpCount];
+	final InstructionHandle[] jumpHandles = new InstructionHandle[jumpCount];
+	for (int i = 0; i < jumpCount; i++) {
+	    jumps[i] = i;
+	    jumpHandles[i] = (InstructionHandle)jumpTargets.elementAt(i);
+	}
+	body.append(new SWITCH(jumps, jumpHandles, defaultTarget));
+
+	if (callCount > 0) {
+	    final String dispatchSig = "(I"
+		+ new ObjectType(getClassName()).getSignature()
+		+ DOM_INTF_SIG
+		+ NODE_ITERATOR_SIG
+		+ TRANSLET_OUTPUT_SIG
+		+ "I)V";
+
+	    // Choose the dispatch method from the number of the call
+	    toCalls.setTarget(body.append(DUP));
+	    body.append(new PUSH(cpg, jumpCount));
+	    body.append(ISUB);
+	    body.append(new PUSH(cpg, CALLS_PER_DISPATCH_METHOD));
+	    body.append(IDIV);
+
+	    final int methodCount = (callCount + CALLS_PER_DISPATCH_METHOD - 1)
+		/ CALLS_PER_DISPATCH_METHOD;
+	    final int[] methods = new int[methodCount];
+	    final InstructionHandle[] methodHandles =
+		new InstructionHandle[methodCount];
+	    final InstructionList ilCalls = new InstructionList();
+	    for (int m = 0; m < methodCount; m++) {
+		final int first = m * CALLS_PER_DISPATCH_METHOD;
+		final int last = Math.min(callCount,
+					  first + CALLS_PER_DISPATCH_METHOD);
+		final String methodName = methodGen.getName() + "$dispatch" + m;
+		compileDispatchMethod(classGen, methodName, dispatchSig,
+				      callTargets, first, last, jumpCount);
+
+		// The number of the call is still on the stack
+		methods[m] = m;
+		methodHandles[m] = ilCalls.append(classGen.loadTranslet());
+		ilCalls.append(methodGen.loadDOM());
+		ilCalls.append(methodGen.loadIterator());
+		ilCalls.append(methodGen.loadHandler());
+		ilCalls.append(new ILOAD(_currentIndex));
+		ilCalls.append(new INVOKESTATIC(cpg.addMethodref(getClassName(),
+								 methodName,
+								 dispatchSig)));
+		ilCalls.append(new GOTO_W(defaultTarget));
+	    }
+	    body.append(new SWITCH(methods, methodHandles,
+				   ilOutside.getStart()));
+	    body.append(ilCalls);
+	}
+	body.append(ilOutside);
+    }
+
+    /**
+     * Compiles a dispatch method, which makes the template calls numbered
+     * from first to last. It is passed the number of the call, the translet
+     * and the arguments of the template methods.
+     */
+    private void compileDispatchMethod(ClassGenerator classGen,
+				       String methodName, String signature,
+				       Vector callTargets, int first, int last,
+				       int jumpCount) {
+	final ConstantPoolGen cpg = classGen.getConstantPool();
+	final InstructionList il = new InstructionList();
+
+	final org.apache.bcel.generic.Type[] argTypes =
+	    new org.apache.bcel.generic.Type[6];
+	argTypes[0] = org.apache.bcel.generic.Type.INT;
+	argTypes[1] = new ObjectType(getClassName());
+	argTypes[2] = Util.getJCRefType(DOM_INTF_SIG);
+	argTypes[3] = Util.getJCRefType(NODE_ITERATOR_SIG);
+	argTypes[4] = Util.getJCRefType(TRANSLET_OUTPUT_SIG);
+	argTypes[5] = org.apache.bcel.generic.Type.INT;
+
+	final String[] argNames = new String[6];
+	argNames[0] = "call";
+	argNames[1] = "translet";
+	argNames[2] = DOCUMENT_PNAME;
+	argNames[3] = ITERATOR_PNAME;
+	argNames[4] = TRANSLET_OUTPUT_PNAME;
+	argNames[5] = NODE_PNAME;
+
+	final MethodGenerator dispatchGen =
+	    new MethodGenerator(ACC_PRIVATE | ACC_STATIC | ACC_FINAL,
+				org.apache.bcel.generic.Type.VOID,
+				argTypes, argNames, methodName,
+				getClassName(), il, cpg);
+
+	final String templateSig = "("
+	    + DOM_INTF_SIG
+	    + NODE_ITERATOR_SIG
+	    + TRANSLET_OUTPUT_SIG
+	    + "I)V";
+
+	final int count = last - first;
+	final int[] calls = new int[count];
+	final InstructionHandle[] callHandles = new InstructionHandle[count];
+	final InstructionList ilCalls = new InstructionList();
+	for (int i = 0; i < count; i++) {
+	    final String templateMethod = (String)
+		_templateCalls.get(callTargets.elementAt(first + i));
+	    calls[i] = jumpCount + first + i;
+	    callHandles[i] = ilCalls.append(new ALOAD(1));
+	    ilCalls.append(new ALOAD(2));
+	    ilCalls.append(new ALOAD(3));
+	    ilCalls.append(new ALOAD(4));
+	    ilCalls.append(new ILOAD(5));
+	    ilCalls.append(new INVOKEVIRTUAL(cpg.addMethodref(getClassName(),
+							      templateMethod,
+							      templateSig)));
+	    ilCalls.append(RETURN);
+	}
+
+	final InstructionList ilReturn = new InstructionList();
+	ilReturn.append(RETURN);
+
+	il.append(new ILOAD(0));
+	il.append(new SWITCH(calls, callHandles, ilReturn.getStart()));
+	il.append(ilCalls);
+	il.append(ilReturn);
+
+	classGen.addMethod(dispatchGen);
+    }
+
     public static void compileGetChildren(ClassGenerator classGen,
 					  MethodGenerator methodGen,
 					  int node) {
@@ -1015,7 +1287,7 @@ for (int i = 0; i < _templates.size(); i++) {
 	body.append(new INVOKEINTERFACE(getType, 2));
 
 	// Append switch() statement - main dispatch loop in applyTemplates()
-	InstructionHandle disp = body.append(new SWITCH(types, targets, ihLoop));
+	appendTypeDispatch(classGen, methodGen, body, types, targets, ihLoop);
 
 	// Append all the "case:" statements
 	appendTestSequences(body);
@@ -1065,6 +1337,7 @@ for (int i = 0; i < _templates.size(); i++) {
 		    til.append(new GOTO_W(next));
 		    _templateILs.put(template, til);
 		    _templateIHs.put(template, til.getStart());
+		    addTemplateCall(template, til);
 		}
 		else {
 		    // empty template
@@ -1085,6 +1358,7 @@ for (int i = 0; i < _templates.size(); i++) {
 	_neededTemplates = new Hashtable();
 	_templateIHs = new Hashtable();
 	_templateILs = new Hashtable();
+	_templateCalls = new Hashtable();
 	_patternGroups = new Vector[32];
 	_rootPattern = null;
 
@@ -1365,7 +1639,7 @@ for (int i = 0; i < _templates.size(); i++) {
 	body.append(new INVOKEINTERFACE(getType, 2));
 
 	// Append switch() statement - main dispatch loop in applyTemplates()
-	InstructionHandle disp = body.append(new SWITCH(types,targets,ihLoop));
+	appendTypeDispatch(classGen, methodGen, body, types, targets, ihLoop);
 
 	// Append all the "case:" statements
 	appendTestSequences(body);
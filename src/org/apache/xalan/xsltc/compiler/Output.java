@@ -37,6 +37,7 @@ import org.apache.xalan.xsltc.compiler.util.ErrorMsg;
 import org.apache.xalan.xsltc.compiler.util.MethodGenerator;
 import org.apache.xalan.xsltc.compiler.util.Util;
 import org.apache.xml.serializer.Encodings;
+import org.apache.xml.serializer.OutputPropertiesFactory;
 import org.apache.xml.utils.XML11Char;
 
 /**
@@ -70,6 +71,18 @@ final class Output extends TopLevelElement {
     private final static String XML_VERSION = "1.0";
     private final static String HTML_VERSION = "4.0";
 
+    // The xalan: extension attributes of xsl:output which choose compressed
+    // output, and the output properties they set. The translet has no
+    // fields for them; TransformerImpl reads the output properties.
+    private final static String[] COMPRESSION_ATTRIBUTES = {
+        "compression", "compression-level", "compression-block-size"
+    };
+    private final static String[] COMPRESSION_PROPERTIES = {
+        OutputPropertiesFactory.S_KEY_COMPRESSION,
+        OutputPropertiesFactory.S_KEY_COMPRESSION_LEVEL,
+        OutputPropertiesFactory.S_KEY_COMPRESSION_BLOCK_SIZE
+    };
+
     /**
      * Displays the contents of this element (for debugging)
      */
@@ -129,6 +142,10 @@ final class Output extends TopLevelElement {
         String prefix = lookupPrefix("http://xml.apache.org/xalan");
         if (prefix != null) {
             transferAttribute(previous, prefix + ':' + "indent-amount");
+            for (int i = 0; i < COMPRESSION_ATTRIBUTES.length; i++) {
+                transferAttribute(previous,
+                                  prefix + ':' + COMPRESSION_ATTRIBUTES[i]);
+            }
         }
         prefix = lookupPrefix("http://xml.apache.org/xslt");
         if (prefix != null) {
@@ -280,6 +297,16 @@ final class Output extends TopLevelElement {
         if (!_indentamount.equals(EMPTYSTRING)) {
             outputProperties.setProperty("indent_amount", _indentamount);
         }
+
+        // compression, compression-level and compression-block-size:
+        // extension attributes of xsl:output
+        for (int i = 0; i < COMPRESSION_ATTRIBUTES.length; i++) {
+            attrib = getAttribute(lookupPrefix("http://xml.apache.org/xalan"),
+                                  COMPRESSION_ATTRIBUTES[i]);
+            if (!attrib.equals(EMPTYSTRING)) {
+                outputProperties.setProperty(COMPRESSION_PROPERTIES[i], attrib);
+            }
+        }
         
 	// Get the MIME type for the output file
 	_mediaType = getAttribute("media-type");
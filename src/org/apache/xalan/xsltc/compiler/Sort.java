@@ -28,16 +28,23 @@ import org.apache.bcel.classfile.Field;
 import org.apache.bcel.generic.ALOAD;
 import org.apache.bcel.generic.ANEWARRAY;
 import org.apache.bcel.generic.ASTORE;
+import org.apache.bcel.generic.BranchHandle;
 import org.apache.bcel.generic.CHECKCAST;
 import org.apache.bcel.generic.ConstantPoolGen;
 import org.apache.bcel.generic.GETFIELD;
+import org.apache.bcel.generic.GOTO;
+import org.apache.bcel.generic.IF_ICMPLT;
+import org.apache.bcel.generic.IINC;
 import org.apache.bcel.generic.ILOAD;
 import org.apache.bcel.generic.INVOKEINTERFACE;
 import org.apache.bcel.generic.INVOKESPECIAL;
+import org.apache.bcel.generic.INVOKEVIRTUAL;
+import org.apache.bcel.generic.ISTORE;
 import org.apache.bcel.generic.InstructionHandle;
 import org.apache.bcel.generic.InstructionList;
 import org.apache.bcel.generic.LocalVariableGen;
 import org.apache.bcel.generic.NEW;
+import org.apache.bcel.generic.NEWARRAY;
 import org.apache.bcel.generic.NOP;
 import org.apache.bcel.generic.PUSH;
 import org.apache.bcel.generic.PUTFIELD;
@@ -636,8 +643,11 @@ final class Sort extends Instruction implements Closure {
 					   cpg, className);
 	MethodGenerator extract = compileExtract(sortObjects, sortRecord,
 					         cpg, className);
+	MethodGenerator extractValues =
+	    compileExtractValues(sortObjects, sortRecord, cpg, className);
 	sortRecord.addMethod(init);
 	sortRecord.addMethod(extract);
+	sortRecord.addMethod(extractValues);
 
 	xsltc.dumpClass(sortRecord.getJavaClass());
 	return className;
@@ -674,7 +684,8 @@ final class Sort extends Instruction implements Closure {
 
 
     /**
-     * Compiles a method that overloads NodeSortRecord.extractValueFromDOM()
+     * Compiles a method that overloads NodeSortRecord.extractValueFromDOM(),
+     * by calling extractValuesFromDOM() for the one node.
      */
     private static MethodGenerator compileExtract(Vector sortObjects,
 					 NodeSortRecordGenerator sortRecord,
@@ -683,23 +694,106 @@ final class Sort extends Instruction implements Closure {
 	final InstructionList il = new InstructionList();
 	
 	// String NodeSortRecord.extractValueFromDOM(dom,node,level);
+	final MethodGenerator extractMethod =
+	    new MethodGenerator(ACC_PUBLIC | ACC_FINAL,
+				org.apache.bcel.generic.Type.STRING, 
+				new org.apache.bcel.generic.Type[] {
+		                    Util.getJCRefType(DOM_INTF_SIG),
+				    org.apache.bcel.generic.Type.INT,
+				    org.apache.bcel.generic.Type.INT,
+				    Util.getJCRefType(TRANSLET_SIG),
+				    org.apache.bcel.generic.Type.INT
+				},
+				new String[] { "dom",
+					       "current",
+					       "level",
+					       "translet",
+					       "last"
+				},
+				"extractValueFromDOM", className, il, cpg);
+
+	final LocalVariableGen values =
+	    extractMethod.addLocalVariable("values",
+				Util.getJCRefType("[" + STRING_SIG),
+				null, null);
+
+	// extractValuesFromDOM(dom, current, level, translet, last,
+	//                      new int[] { current }, values = new String[1])
+	il.append(ALOAD_0);
+	il.append(ALOAD_1);
+	il.append(ILOAD_2);
+	il.append(new ILOAD(3));
+	il.append(new ALOAD(4));
+	il.append(new ILOAD(5));
+	il.append(new PUSH(cpg, 1));
+	il.append(new NEWARRAY(org.apache.bcel.generic.Type.INT));
+	il.append(DUP);
+	il.append(new PUSH(cpg, 0));
+	il.append(ILOAD_2);
+	il.append(IASTORE);
+	il.append(new PUSH(cpg, 1));
+	il.append(new ANEWARRAY(cpg.addClass(STRING)));
+	il.append(DUP);
+	values.setStart(il.append(new ASTORE(values.getIndex())));
+	il.append(new INVOKEVIRTUAL(cpg.addMethodref(className,
+	    "extractValuesFromDOM",
+	    "(" + DOM_INTF_SIG + "II" + TRANSLET_SIG + "I[I["
+		+ STRING_SIG + ")V")));
+	values.setEnd(il.append(new ALOAD(values.getIndex())));
+	il.append(new PUSH(cpg, 0));
+	il.append(AALOAD);
+	il.append(ARETURN);
+
+	return extractMethod;
+    }
+
+    /**
+     * Compiles a method that overloads NodeSortRecord.extractValuesFromDOM():
+     * a loop for each level, which stores the value of the select
+     * expression for each node straight into the array of values.
+     */
+    private static MethodGenerator compileExtractValues(Vector sortObjects,
+					 NodeSortRecordGenerator sortRecord,
+					 ConstantPoolGen cpg,
+					 String className) {
+	final InstructionList il = new InstructionList();
+	
+	// void NodeSortRecord.extractValuesFromDOM(dom,node,level,translet,
+	//                                           last,nodes,values);
+	// the first parameters are those of extractValueFromDOM(), where the
+	// CompareGenerator expects them
 	final CompareGenerator extractMethod =
 	    new CompareGenerator(ACC_PUBLIC | ACC_FINAL,
-				 org.apache.bcel.generic.Type.STRING, 
+				 org.apache.bcel.generic.Type.VOID, 
 				 new org.apache.bcel.generic.Type[] {
 		                     Util.getJCRefType(DOM_INTF_SIG),
 				     org.apache.bcel.generic.Type.INT,
 				     org.apache.bcel.generic.Type.INT,
 				     Util.getJCRefType(TRANSLET_SIG),
-				     org.apache.bcel.generic.Type.INT
+				     org.apache.bcel.generic.Type.INT,
+				     Util.getJCRefType("[I"),
+				     Util.getJCRefType("[" + STRING_SIG)
 				 },
 				 new String[] { "dom",
 						"current",
 						"level",
 						"translet",
-						"last"
+						"last",
+						"nodes",
+						"values"
 				 },
-				 "extractValueFromDOM", className, il, cpg);
+				 "extractValuesFromDOM", className, il, cpg);
+
+	final int nodes = extractMethod.getLocalIndex("nodes");
+	final int values = extractMethod.getLocalIndex("values");
+	final LocalVariableGen index =
+	    extractMethod.addLocalVariable("index",
+				org.apache.bcel.generic.Type.INT,
+				null, null);
+	final LocalVariableGen value =
+	    extractMethod.addLocalVariable("value",
+				Util.getJCRefType(STRING_SIG),
+				null, null);
 
 	// Values needed for the switch statement
 	final int levels = sortObjects.size();
@@ -715,22 +809,50 @@ final class Sort extends Instruction implements Closure {
 	    tblswitch = il.append(new NOP());
 	}
 
-	// Append all the cases for the switch statment
+	// Append a loop over the nodes for each case of the switch statement
 	for (int level = 0; level < levels; level++) {
 	    match[level] = level;
 	    final Sort sort = (Sort)sortObjects.elementAt(level);
-	    target[level] = il.append(NOP);
+	    target[level] = il.append(new PUSH(cpg, 0));
+	    final InstructionHandle start =
+		il.append(new ISTORE(index.getIndex()));
+	    if (level == 0) {
+		index.setStart(start);
+	    }
+	    final BranchHandle gotoTest = il.append(new GOTO(null));
+
+	    // current = nodes[index]
+	    final InstructionHandle loop = il.append(new ALOAD(nodes));
+	    il.append(new ILOAD(index.getIndex()));
+	    il.append(IALOAD);
+	    il.append(extractMethod.storeCurrentNode());
+
+	    // values[index] = <select>
 	    sort.translateSelect(sortRecord, extractMethod);
-	    il.append(ARETURN);
+	    final InstructionHandle store =
+		il.append(new ASTORE(value.getIndex()));
+	    if (level == 0) {
+		value.setStart(store);
+	    }
+	    il.append(new ALOAD(values));
+	    il.append(new ILOAD(index.getIndex()));
+	    value.setEnd(il.append(new ALOAD(value.getIndex())));
+	    il.append(AASTORE);
+	    il.append(new IINC(index.getIndex(), 1));
+
+	    // while (index < values.length)
+	    gotoTest.setTarget(il.append(new ILOAD(index.getIndex())));
+	    il.append(new ALOAD(values));
+	    il.append(ARRAYLENGTH);
+	    index.setEnd(il.append(new IF_ICMPLT(loop)));
+	    il.append(RETURN);
 	}
 	
 	// Compile def. target for switch statement if key has multiple levels
 	if (levels > 1) {
 	    // Append the default target - it will _NEVER_ be reached
-	    InstructionHandle defaultTarget =
-		il.append(new PUSH(cpg, EMPTYSTRING));
+	    InstructionHandle defaultTarget = il.append(RETURN);
 	    il.insert(tblswitch,new TABLESWITCH(match, target, defaultTarget));
-	    il.append(ARETURN);
 	}
 
 	return extractMethod;
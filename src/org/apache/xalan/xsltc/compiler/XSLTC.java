@@ -35,6 +35,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
@@ -134,6 +136,13 @@ public final class XSLTC {
      */
     private boolean _isSecureProcessing = false;
 
+    /**
+     * Set to true for the compilers of a set of stylesheets compiled in
+     * parallel by compile(Vector), which translate without taking the
+     * class lock that serializes all other compilations.
+     */
+    private boolean _parallelTranslate = false;
+
     /**
      * XSLTC compiler constructor
      */
@@ -366,10 +375,15 @@ public final class XSLTC {
 		_stylesheet.setMultiDocument(_multiDocument);
 		_stylesheet.setHasIdCall(_hasIdCall);
 
-		// Class synchronization is needed for BCEL
-		synchronized (getClass()) {
+		if (_parallelTranslate) {
 		    _stylesheet.translate();
 		}
+		else {
+		    // Class synchronization is needed for BCEL
+		    synchronized (getClass()) {
+			_stylesheet.translate();
+		    }
+		}
 	    }
 	}
 	catch (Exception e) {
@@ -387,7 +401,11 @@ public final class XSLTC {
     }
 
     /**
-     * Compiles a set of stylesheets pointed to by a Vector of URLs
+     * Compiles a set of stylesheets pointed to by a Vector of URLs. The
+     * stylesheets are compiled in parallel on the common fork-join pool,
+     * each by a compiler of its own with the options of this one, and the
+     * translets, errors and warnings are then collected here in the order
+     * of the stylesheets.
      * @param stylesheets A Vector containing URLs pointing to the stylesheets
      * @return 'true' if the compilation was successful
      */
@@ -407,7 +425,9 @@ public final class XSLTC {
 	    else
 		return false;
 	}
-	else {
+
+	// An external XMLReader can only parse one stylesheet at a time
+	if (_reader != null) {
 	    // Traverse all elements in the vector and compile
 	    final Enumeration urls = stylesheets.elements();
 	    while (urls.hasMoreElements()) {
@@ -417,8 +437,70 @@ public final class XSLTC {
 		    if (!compile((URL)url)) return false;
 		}
 	    }
+	    return true;
+	}
+
+	final XSLTC[] compilers = new XSLTC[count];
+	final ForkJoinTask[] tasks = new ForkJoinTask[count];
+	for (int i = 0; i < count; i++) {
+	    final Object url = stylesheets.elementAt(i);
+	    if (url instanceof URL) {
+		final XSLTC compiler = compilers[i] = newCompiler();
+		tasks[i] = ForkJoinPool.commonPool().submit(new Runnable() {
+		    public void run() {
+			compiler.compile((URL)url);
+		    }
+		});
+	    }
+	}
+
+	reset();
+	for (int i = 0; i < count; i++) {
+	    if (tasks[i] != null) {
+		tasks[i].join();
+		collect(compilers[i]);
+	    }
+	}
+	return !_parser.errorsFound();
+    }
+
+    /**
+     * Create a compiler with the options of this one, for one of a set of
+     * stylesheets compiled in parallel.
+     */
+    private XSLTC newCompiler() {
+	final XSLTC compiler = new XSLTC();
+	compiler.init();
+	compiler._debug = _debug;
+	compiler._jarFileName = _jarFileName;
+	compiler._packageName = _packageName;
+	compiler._destDir = _destDir;
+	compiler._outputType = _outputType;
+	compiler._templateInlining = _templateInlining;
+	compiler._isSecureProcessing = _isSecureProcessing;
+	compiler._loader = _loader;
+	compiler._parallelTranslate = true;
+	return compiler;
+    }
+
+    /**
+     * Take over the translet classes, errors and warnings of a compiler
+     * created by newCompiler().
+     */
+    private void collect(XSLTC compiler) {
+	_classes.addAll(compiler._classes);
+	_bcelClasses.addAll(compiler._bcelClasses);
+	_className = compiler._className;
+
+	final Vector errors = compiler.getErrors();
+	for (int i = 0; i < errors.size(); i++) {
+	    _parser.reportError(Constants.ERROR, (ErrorMsg)errors.elementAt(i));
+	}
+	final Vector warnings = compiler.getWarnings();
+	for (int i = 0; i < warnings.size(); i++) {
+	    _parser.reportError(Constants.WARNING,
+				(ErrorMsg)warnings.elementAt(i));
 	}
-	return true;
     }
 
     /**
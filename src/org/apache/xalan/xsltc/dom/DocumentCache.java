@@ -21,232 +21,95 @@
 
 package org.apache.xalan.xsltc.dom;
 
-import java.io.File;
 import java.io.PrintWriter;
-import java.net.URL;
-import java.net.URLConnection;
-import java.net.URLDecoder;
 import java.util.Date;
-import java.util.Hashtable;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
 
 import org.apache.xalan.xsltc.DOM;
 import org.apache.xalan.xsltc.DOMCache;
 import org.apache.xalan.xsltc.DOMEnhancedForDTM;
 import org.apache.xalan.xsltc.Translet;
 import org.apache.xalan.xsltc.runtime.AbstractTranslet;
-import org.apache.xalan.xsltc.runtime.BasisLibrary;
-import org.apache.xalan.xsltc.runtime.Constants;
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.ref.SharedDTMCache;
 import org.apache.xml.utils.SystemIDResolver;
 
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
 /**
+ * A DOMCache which keeps documents in a {@link SharedDTMCache}. Lookups do
+ * not take a global lock, a document requested by several threads at once
+ * is only built once, and the cache is bounded by the estimated size of its
+ * documents as well as by their number. Unless a SharedDTMCache is given
+ * explicitly, documents are evicted by cost: those which took longest to
+ * build, per byte held, and which are used most often are kept longest.
+ *
  * @author Morten Jorgensen
  */
 public final class DocumentCache implements DOMCache {
 
-    private int       _size;
-    private Hashtable _references;
-    private String[]  _URIs;
-    private int       _count;
-    private int       _current;
-    private SAXParser _parser;
-    private XMLReader _reader;
-    private XSLTCDTMManager _dtmManager;
-
-    private static final int REFRESH_INTERVAL = 1000;
-
-    /*
-     * Inner class containing a DOMImpl object and DTD handler
-     */
-    public final class CachedDocument {
-	
-	// Statistics data
-	private long _firstReferenced;
-	private long _lastReferenced;
-	private long _accessCount;
-	private long _lastModified;
-	private long _lastChecked;
-	private long _buildTime;
-
-	// DOM and DTD handler references
-	private DOMEnhancedForDTM _dom = null;
-	
-	/**
-	 * Constructor - load document and initialise statistics
-	 */
-	public CachedDocument(String uri) {
-	    // Initialise statistics variables
-	    final long stamp = System.currentTimeMillis();
-	    _firstReferenced = stamp;
-	    _lastReferenced  = stamp;
-	    _accessCount     = 0;
-	    loadDocument(uri);
-
-	    _buildTime = System.currentTimeMillis() - stamp;
-	}
-
-	/**
-	 * Loads the document and updates build-time (latency) statistics
-	 */
-	public void loadDocument(String uri) {
-
-	    try {
-		final long stamp = System.currentTimeMillis();
-                _dom = (DOMEnhancedForDTM)_dtmManager.getDTM(
-                                 new SAXSource(_reader, new InputSource(uri)),
-                                 false, null, true, false);
-		_dom.setDocumentURI(uri);
-
-		// The build time can be used for statistics for a better
-		// priority algorithm (currently round robin).
-		final long thisTime = System.currentTimeMillis() - stamp;
-		if (_buildTime > 0)
-		    _buildTime = (_buildTime + thisTime) >>> 1;
-		else
-		    _buildTime = thisTime;
-	    }
-	    catch (Exception e) {
-		_dom = null;
-	    }
-	}
-
-	public DOM getDocument()       { return(_dom); }
-
-	public long getFirstReferenced()   { return(_firstReferenced); }
-
-	public long getLastReferenced()    { return(_lastReferenced); }
-
-	public long getAccessCount()       { return(_accessCount); }
-
-	public void incAccessCount()       { _accessCount++; }
-
-	public long getLastModified()      { return(_lastModified); }
-
-	public void setLastModified(long t){ _lastModified = t; }
-
-	public long getLatency()           { return(_buildTime); }
-
-	public long getLastChecked()       { return(_lastChecked); }
-	
-	public void setLastChecked(long t) { _lastChecked = t; }
-
-	public long getEstimatedSize() {
-	    if (_dom != null)
-		return(_dom.getSize() << 5); // ???
-	    else
-		return(0);
-	}
-
-    }
+    private final SharedDTMCache _sharedCache;
 
     /**
      * DocumentCache constructor
      */
     public DocumentCache(int size) throws SAXException {
-        this(size, null);
-        try {
-            _dtmManager = (XSLTCDTMManager)XSLTCDTMManager.getDTMManagerClass()
-                                                          .newInstance();
-        } catch (Exception e) {
-            throw new SAXException(e);
-        }
+        this(size, newDTMManager());
     }
 
     /**
      * DocumentCache constructor
      */
     public DocumentCache(int size, XSLTCDTMManager dtmManager) throws SAXException {
-	_dtmManager = dtmManager;
-	_count = 0;
-	_current = 0;
-	_size  = size;
-	_references = new Hashtable(_size+2);
-	_URIs = new String[_size];
-
-	try {
-	    // Create a SAX parser and get the XMLReader object it uses
-	    final SAXParserFactory factory = SAXParserFactory.newInstance();
-	    try {
-		factory.setFeature(Constants.NAMESPACE_FEATURE,true);
-	    }
-	    catch (Exception e) {
-		factory.setNamespaceAware(true);
-	    }
-	    _parser = factory.newSAXParser();
-	    _reader = _parser.getXMLReader();
-	}
-	catch (ParserConfigurationException e) {
-	    BasisLibrary.runTimeError(BasisLibrary.NAMESPACES_SUPPORT_ERR);
-	}
+	this(size, SharedDTMCache.DEFAULT_MAX_BYTES, dtmManager);
     }
 
     /**
-     * Returns the time-stamp for a document's last update
+     * DocumentCache constructor. The cache holds at most <code>size</code>
+     * documents, whose estimated size does not exceed <code>maxBytes</code>.
      */
-    private final long getLastModified(String uri) {
-	try {
-	    URL url = new URL(uri);
-	    URLConnection connection = url.openConnection();
-	    long timestamp = connection.getLastModified();
-	    // Check for a "file:" URI (courtesy of Brian Ewins)
-	    if (timestamp == 0){ // get 0 for local URI
-	        if ("file".equals(url.getProtocol())){
-	            File localfile = new File(URLDecoder.decode(url.getFile()));
-	            timestamp = localfile.lastModified();
-	        }
-	    }
-	    return(timestamp);
-	}
-	// Brutal handling of all exceptions
-	catch (Exception e) {
-	    return(System.currentTimeMillis());
+    public DocumentCache(int size, long maxBytes, XSLTCDTMManager dtmManager)
+	throws SAXException {
+	if (dtmManager == null) {
+	    dtmManager = newDTMManager();
 	}
+	_sharedCache = new SharedDTMCache(dtmManager, size, maxBytes);
+	_sharedCache.setEvictionPolicy(SharedDTMCache.EVICT_COST_AWARE);
     }
 
     /**
-     *
+     * DocumentCache constructor. Documents are kept in a SharedDTMCache,
+     * which may also be used by other DocumentCaches (and so by other
+     * translets) at the same time. Its DTMManager must be an
+     * XSLTCDTMManager.
      */
-    private CachedDocument lookupDocument(String uri) {
-	return((CachedDocument)_references.get(uri));
+    public DocumentCache(SharedDTMCache sharedCache) {
+	if (!(sharedCache.getDTMManager() instanceof XSLTCDTMManager)) {
+	    throw new IllegalArgumentException(
+		sharedCache.getDTMManager().getClass().getName());
+	}
+	_sharedCache = sharedCache;
     }
 
     /**
-     *
+     * Creates a DTM manager for a cache which was not given one
      */
-    private synchronized void insertDocument(String uri, CachedDocument doc) {
-	if (_count < _size) {
-	    // Insert out URI in circular buffer
-	    _URIs[_count++] = uri;
-	    _current = 0;
-	}
-	else {
-	    // Remove oldest URI from reference Hashtable
-	    _references.remove(_URIs[_current]);
-	    // Insert our URI in circular buffer
-	    _URIs[_current] = uri;
-	    if (++_current >= _size) _current = 0;
-	}
-	_references.put(uri, doc);
+    private static XSLTCDTMManager newDTMManager() throws SAXException {
+        try {
+            return (XSLTCDTMManager)XSLTCDTMManager.getDTMManagerClass()
+                                                   .newInstance();
+        } catch (Exception e) {
+            throw new SAXException(e);
+        }
     }
 
     /**
-     *
+     * Returns the SharedDTMCache holding the documents.
      */
-    private synchronized void replaceDocument(String uri, CachedDocument doc) {
-	CachedDocument old = (CachedDocument)_references.get(uri);
-	if (doc == null)
-	    insertDocument(uri, doc);
-	else
-	    _references.put(uri, doc);
+    public SharedDTMCache getSharedCache() {
+	return _sharedCache;
     }
 
     /**
@@ -254,60 +117,41 @@ public final class DocumentCache implements DOMCache {
      * downloading it and putting it in the cache.
      */
     public DOM retrieveDocument(String baseURI, String href, Translet trs) {
-	CachedDocument doc;
-
-    String uri = href;
-    if (baseURI != null && baseURI.length() != 0) {
-        try {
-            uri = SystemIDResolver.getAbsoluteURI(uri, baseURI);
-        } catch (TransformerException te) {
-            // ignore    
-        }
-    }
-    
-	// Try to get the document from the cache first
-	if ((doc = lookupDocument(uri)) == null) {
-	    doc = new CachedDocument(uri);
-	    if (doc == null) return null; // better error handling needed!!!
-	    doc.setLastModified(getLastModified(uri));
-	    insertDocument(uri, doc);
-	}
-	// If the document is in the cache we must check if it is still valid
-	else {
-	    long now = System.currentTimeMillis();
-	    long chk = doc.getLastChecked();
-	    doc.setLastChecked(now);
-	    // Has the modification time for this file been checked lately?
-	    if (now > (chk + REFRESH_INTERVAL)) {
-		doc.setLastChecked(now);
-		long last = getLastModified(uri);
-		// Reload document if it has been modified since last download
-		if (last > doc.getLastModified()) {
-		    doc = new CachedDocument(uri);
-		    if (doc == null) return null;
-		    doc.setLastModified(getLastModified(uri));
-		    replaceDocument(uri, doc);
-		}
+	String uri = href;
+	if (baseURI != null && baseURI.length() != 0) {
+	    try {
+		uri = SystemIDResolver.getAbsoluteURI(uri, baseURI);
+	    } catch (TransformerException te) {
+		// ignore
 	    }
-	    
 	}
+	return retrieveSharedDocument(uri, trs);
+    }
 
-	// Get the references to the actual DOM and DTD handler
-	final DOM dom = doc.getDocument();
-
-	// The dom reference may be null if the URL pointed to a
-	// non-existing document
-	if (dom == null) return null;
-
-	doc.incAccessCount(); // For statistics
+    /**
+     * Returns a document from the SharedDTMCache, loading it if needed.
+     * The translet holds a reference to the document until the end of its
+     * transformation, so the document is not released under it if it is
+     * evicted meanwhile.
+     */
+    private DOM retrieveSharedDocument(String uri, Translet trs) {
+	final DTM dtm;
+	try {
+	    dtm = _sharedCache.acquireDTM(new StreamSource(uri));
+	}
+	catch (Exception e) {
+	    // A non-existing document is reported as null, as above
+	    return null;
+	}
+	((AbstractTranslet)trs).addSharedDocument(_sharedCache, dtm);
 
-	final AbstractTranslet translet = (AbstractTranslet)trs;
+	final DOM dom = (DOM)dtm;
+	((DOMEnhancedForDTM)dom).setDocumentURI(uri);
 
 	// Give the translet an early opportunity to extract any
         // information from the DOM object that it would like.
-	translet.prepassDocument(dom);
-
-	return(doc.getDocument());
+	((AbstractTranslet)trs).prepassDocument(dom);
+	return dom;
     }
 
     /**
@@ -321,11 +165,13 @@ public final class DocumentCache implements DOMCache {
 		    "<td><center><b>Last accessed</b></center></td>"+
 		    "<td><center><b>Last modified</b></center></td></tr>");
 
-	for (int i=0; i<_count; i++) {
-	    CachedDocument doc = (CachedDocument)_references.get(_URIs[i]);
-	    out.print("<tr><td><a href=\""+_URIs[i]+"\">"+
-		      "<font size=-1>"+_URIs[i]+"</font></a></td>");
-	    out.print("<td><center>"+doc.getLatency()+"ms</center></td>");
+	final SharedDTMCache.Entry[] entries = _sharedCache.getEntries();
+	for (int i=0; i<entries.length; i++) {
+	    final SharedDTMCache.Entry doc = entries[i];
+	    final String uri = doc.getURI();
+	    out.print("<tr><td><a href=\""+uri+"\">"+
+		      "<font size=-1>"+uri+"</font></a></td>");
+	    out.print("<td><center>"+doc.getBuildTime()+"ms</center></td>");
 	    out.print("<td><center>"+doc.getAccessCount()+"</center></td>");
 	    out.print("<td><center>"+(new Date(doc.getLastReferenced()))+
 		      "</center></td>");
@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+
+package org.apache.xalan.xsltc.dom;
+
+import java.text.Collator;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.xml.utils.StringComparable;
+
+/**
+ * The sort keys of a set of nodes, held in one array per level of
+ * <code>xsl:sort</code> rather than in a <code>NodeSortRecord</code> per
+ * node: a double for each node on numeric levels, and the bytes of its
+ * collation key on text levels. All the keys are extracted before sorting,
+ * so the sort itself neither allocates nor collates; it is a merge sort of
+ * the positions of the nodes, run in parallel in the common fork-join pool
+ * for large sets, as is the computation of their collation keys.
+ */
+final class NodeSortKeys {
+    /**
+     * Number of nodes from which keys are collated and sorted in parallel.
+     */
+    final static int PARALLEL_THRESHOLD = 1 << 13;
+
+    /**
+     * Runs of up to this many nodes are sorted by insertion.
+     */
+    private final static int INSERTION_SORT_THRESHOLD = 16;
+
+    private final int[] _nodes;
+    private final int _count;
+    private final int[] _sortOrders;
+    private final int[] _types;
+    private final Locale[] _locales;
+    private final Collator[] _collators;
+    private final String[] _caseOrders;
+
+    /**
+     * The keys of the numeric levels, indexed by level then by position.
+     */
+    private final double[][] _numbers;
+
+    /**
+     * The collation keys of the text levels, as byte arrays, indexed by
+     * level then by position. On levels with a case order, the keys are
+     * computed at secondary strength at most, so that they compare equal
+     * for strings which only differ in case.
+     */
+    private final byte[][][] _collationKeys;
+
+    /**
+     * The string values of the text levels with a case order, to be
+     * compared when their collation keys are equal.
+     */
+    private final String[][] _strings;
+
+    /**
+     * Extract the keys of the first <code>count</code> nodes.
+     *
+     * @param record A sort record whose settings and closure variables are
+     *               used for all the nodes
+     */
+    NodeSortKeys(NodeSortRecord record, int[] nodes, int count) {
+        final SortSettings settings = record._settings;
+        final int levels = settings.getSortOrders().length;
+
+        _nodes = nodes;
+        _count = count;
+        _sortOrders = settings.getSortOrders();
+        _types = settings.getTypes();
+        _locales = settings.getLocales();
+        _collators = record.getCollator();
+        _caseOrders = settings.getCaseOrders();
+        _numbers = new double[levels][];
+        _collationKeys = new byte[levels][][];
+        _strings = new String[levels][];
+
+        for (int level = 0; level < levels; level++) {
+            final String[] values = record.extractValues(nodes, count, level);
+
+            if (_types[level] == NodeSortRecord.COMPARE_NUMERIC) {
+                final double[] numbers = new double[count];
+                for (int i = 0; i < count; i++) {
+                    numbers[i] = NodeSortRecord.numericValue(values[i]);
+                }
+                _numbers[level] = numbers;
+                continue;
+            }
+
+            final Collator collator = (Collator) _collators[level].clone();
+            final String caseOrder = _caseOrders[level];
+            if (caseOrder != null && caseOrder.length() > 0) {
+                if (collator.getStrength() > Collator.SECONDARY) {
+                    collator.setStrength(Collator.SECONDARY);
+                }
+                _strings[level] = values;
+            }
+
+            final byte[][] keys = new byte[count][];
+            if (count >= PARALLEL_THRESHOLD
+                && ForkJoinPool.getCommonPoolParallelism() > 1) {
+                ForkJoinPool.commonPool().invoke(
+                    new CollateTask(collator, values, keys, 0, count));
+            }
+            else {
+                collate(collator, values, keys, 0, count);
+            }
+            _collationKeys[level] = keys;
+        }
+    }
+
+    /**
+     * Sort the nodes.
+     *
+     * @return A new array of the nodes in sorted order
+     */
+    int[] sort() {
+        final int[] order = new int[_count];
+        for (int i = 0; i < _count; i++) {
+            order[i] = i;
+        }
+
+        if (_count >= PARALLEL_THRESHOLD
+            && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            ForkJoinPool.commonPool().invoke(
+                new SortTask(order, new int[_count], 0, _count));
+        }
+        else {
+            mergesort(order, new int[_count], 0, _count);
+        }
+
+        final int[] sorted = new int[_count];
+        for (int i = 0; i < _count; i++) {
+            sorted[i] = _nodes[order[i]];
+        }
+        return sorted;
+    }
+
+    /**
+     * Compute the collation keys of a range of strings.
+     */
+    static void collate(Collator collator, String[] values, byte[][] keys,
+                        int lo, int hi) {
+        for (int i = lo; i < hi; i++) {
+            keys[i] = collator.getCollationKey(values[i]).toByteArray();
+        }
+    }
+
+    /**
+     * Compare the nodes at two positions. The first level is checked first,
+     * and the next levels only if the keys of the previous ones are equal;
+     * nodes whose keys are all equal are kept in document order.
+     */
+    int compare(int i, int j) {
+        final int levels = _sortOrders.length;
+
+        for (int level = 0; level < levels; level++) {
+            int cmp;
+
+            if (_types[level] == NodeSortRecord.COMPARE_NUMERIC) {
+                cmp = Double.compare(_numbers[level][i], _numbers[level][j]);
+            }
+            else {
+                cmp = compareBytes(_collationKeys[level][i],
+                                   _collationKeys[level][j]);
+                if (cmp == 0 && _strings[level] != null) {
+                    cmp = compareCase(level, _strings[level][i],
+                                      _strings[level][j]);
+                }
+            }
+
+            // Return inverse compare value if inverse sort order
+            if (cmp != 0) {
+                return _sortOrders[level] == NodeSortRecord.COMPARE_DESCENDING
+                    ? 0 - cmp : cmp;
+            }
+        }
+        return _nodes[i] - _nodes[j];
+    }
+
+    /**
+     * Compare two strings whose collation keys are equal on a level with a
+     * case order. <code>StringComparable</code> changes the strength of the
+     * collator it is given while comparing, so this is synchronized on it
+     * for the parallel sort.
+     */
+    private int compareCase(int level, String s1, String s2) {
+        if (s1.equals(s2)) {
+            return 0;
+        }
+
+        final Collator collator = _collators[level];
+        synchronized (collator) {
+            return new StringComparable(s1, _locales[level], collator,
+                                        _caseOrders[level])
+                .compareTo(new StringComparable(s2, _locales[level], collator,
+                                                _caseOrders[level]));
+        }
+    }
+
+    /**
+     * Compare two collation keys, as returned by
+     * <code>CollationKey.toByteArray()</code>.
+     */
+    static int compareBytes(byte[] b1, byte[] b2) {
+        final int length = Math.min(b1.length, b2.length);
+        for (int i = 0; i < length; i++) {
+            if (b1[i] != b2[i]) {
+                return (b1[i] & 0xFF) - (b2[i] & 0xFF);
+            }
+        }
+        return b1.length - b2.length;
+    }
+
+    /**
+     * Sort a range of positions.
+     *
+     * @param a The positions
+     * @param b Scratch array, at least as large as <code>a</code>
+     */
+    void mergesort(int[] a, int[] b, int lo, int hi) {
+        if (hi - lo <= INSERTION_SORT_THRESHOLD) {
+            for (int i = lo + 1; i < hi; i++) {
+                final int x = a[i];
+                int j = i - 1;
+                for (; j >= lo && compare(a[j], x) > 0; j--) {
+                    a[j + 1] = a[j];
+                }
+                a[j + 1] = x;
+            }
+            return;
+        }
+
+        final int m = (lo + hi) >>> 1;
+        mergesort(a, b, lo, m);
+        mergesort(a, b, m, hi);
+        merge(a, b, lo, m, hi);
+    }
+
+    /**
+     * Merge the sorted ranges of positions <code>[lo, m)</code> and
+     * <code>[m, hi)</code>.
+     */
+    void merge(int[] a, int[] b, int lo, int m, int hi) {
+        // Already in order?
+        if (compare(a[m - 1], a[m]) < 0) {
+            return;
+        }
+
+        System.arraycopy(a, lo, b, lo, m - lo);
+        int i = lo, j = m, k = lo;
+        while (i < m && j < hi) {
+            a[k++] = (compare(b[i], a[j]) < 0) ? b[i++] : a[j++];
+        }
+        while (i < m) {
+            a[k++] = b[i++];
+        }
+    }
+
+    /**
+     * Sorts a range of positions, splitting it into two halves sorted in
+     * parallel while it is large enough.
+     */
+    private final class SortTask extends RecursiveAction {
+        static final long serialVersionUID = -3587519337271437264L;
+
+        private final int[] _a;
+        private final int[] _b;
+        private final int _lo;
+        private final int _hi;
+
+        SortTask(int[] a, int[] b, int lo, int hi) {
+            _a = a;
+            _b = b;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        protected void compute() {
+            if (_hi - _lo <= PARALLEL_THRESHOLD) {
+                mergesort(_a, _b, _lo, _hi);
+                return;
+            }
+
+            final int m = (_lo + _hi) >>> 1;
+            invokeAll(new SortTask(_a, _b, _lo, m),
+                      new SortTask(_a, _b, m, _hi));
+            merge(_a, _b, _lo, m, _hi);
+        }
+    }
+
+    /**
+     * Computes the collation keys of a range of strings, splitting it into
+     * two halves computed in parallel while it is large enough. Collators
+     * are not safe for use by several threads, so each task collating
+     * strings uses its own copy.
+     */
+    private static final class CollateTask extends RecursiveAction {
+        static final long serialVersionUID = 6712284360128396542L;
+
+        private final Collator _collator;
+        private final String[] _values;
+        private final byte[][] _keys;
+        private final int _lo;
+        private final int _hi;
+
+        CollateTask(Collator collator, String[] values, byte[][] keys,
+                    int lo, int hi) {
+            _collator = collator;
+            _values = values;
+            _keys = keys;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        protected void compute() {
+            if (_hi - _lo <= PARALLEL_THRESHOLD) {
+                collate((Collator) _collator.clone(), _values, _keys,
+                        _lo, _hi);
+                return;
+            }
+
+            final int m = (_lo + _hi) >>> 1;
+            invokeAll(new CollateTask(_collator, _values, _keys, _lo, m),
+                      new CollateTask(_collator, _values, _keys, m, _hi));
+        }
+    }
+}
@@ -176,14 +176,7 @@ public abstract class NodeSortRecord {
 	    // Get value from DOM if accessed for the first time
 	    final String str = extractValueFromDOM(_dom, _node, level,
 						   translet, _last);
-	    Double num;
-	    try {
-		num = new Double(str);
-	    }
-	    // Treat number as NaN if it cannot be parsed as a double
-	    catch (NumberFormatException e) {
-		num = new Double(Double.NEGATIVE_INFINITY);
-	    }
+	    final Double num = new Double(numericValue(str));
 	    _values[_scanned++] = num;
 	    return(num);
 	}
@@ -240,4 +233,50 @@ public abstract class NodeSortRecord {
 					       AbstractTranslet translet,
 					       int last);
 
+    /**
+     * Extract the sort values for a level of this key, for a number of
+     * nodes at once. The generated subclasses override this with a loop
+     * around the select expression of the level; this implementation, for
+     * those compiled before it, calls extractValueFromDOM() for each node.
+     * The current parameter is only there to keep the parameters of the
+     * two methods in the same places, and is ignored.
+     *
+     * @param nodes The nodes to extract the values of
+     * @param values Array to put the values into; one value is extracted
+     *               for each of its elements
+     */
+    public void extractValuesFromDOM(DOM dom, int current, int level,
+                                     AbstractTranslet translet, int last,
+                                     int[] nodes, String[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = extractValueFromDOM(dom, nodes[i], level, translet,
+                                            last);
+        }
+    }
+
+    /**
+     * Extract the sort values for a level of this key, for the first
+     * <code>count</code> of the given nodes.
+     */
+    final String[] extractValues(int[] nodes, int count, int level) {
+        final String[] values = new String[count];
+        extractValuesFromDOM(_dom, nodes[0], level, _settings.getTranslet(),
+                             _last, nodes, values);
+        return values;
+    }
+
+    /**
+     * Convert the string value of a numeric key to the value it is sorted
+     * by: a string which cannot be parsed as a double sorts before any
+     * number.
+     */
+    static double numericValue(String str) {
+        try {
+            return Double.parseDouble(str);
+        }
+        catch (NumberFormatException e) {
+            return Double.NEGATIVE_INFINITY;
+        }
+    }
+
 }
@@ -36,7 +36,7 @@ public final class SortingIterator extends DTMAxisIteratorBase {
     private DTMAxisIterator _source;
     private NodeSortRecordFactory _factory;
 
-    private NodeSortRecord[] _data;
+    private int[] _nodes;	// the sorted nodes
     private int _free = 0;
     private int _current;	// index in _nodes of the next node to try
 
@@ -47,21 +47,26 @@ public final class SortingIterator extends DTMAxisIteratorBase {
     }
 
     public int next() {
-	return _current < _free ? _data[_current++].getNode() : END;
+	return _current < _free ? _nodes[_current++] : END;
     }
 	
     public DTMAxisIterator setStartNode(int node) {
 	try {
 	    _source.setStartNode(_startNode = node);
-	    _data = new NodeSortRecord[INIT_DATA_SIZE];
+	    _nodes = new int[INIT_DATA_SIZE];
 	    _free = 0;
 
 	    // gather all nodes from the source iterator
 	    while ((node = _source.next()) != END) {
-		addRecord(_factory.makeNodeSortRecord(node,_free));
+		addNode(node);
+	    }
+	    // now extract their keys and sort them; a single record serves
+	    // to extract the keys of all the nodes
+	    if (_free > 1) {
+		final NodeSortRecord record =
+		    _factory.makeNodeSortRecord(_nodes[0], _free);
+		_nodes = new NodeSortKeys(record, _nodes, _free).sort();
 	    }
-	    // now sort the records
-	    quicksort(0, _free - 1);
 
 	    _current = 0;
 	    return this;
@@ -91,15 +96,15 @@ public final class SortingIterator extends DTMAxisIteratorBase {
     
     /**
      * Clone a <code>SortingIterator</code> by cloning its source
-     * iterator and then sharing the factory and the array of
-     * <code>NodeSortRecords</code>.
+     * iterator and then sharing the factory and the array of sorted
+     * nodes.
      */
     public DTMAxisIterator cloneIterator() {
 	try {
 	    final SortingIterator clone = (SortingIterator) super.clone();
 	    clone._source = _source.cloneIterator();  
 	    clone._factory = _factory;		// shared between clones
-	    clone._data = _data;		// shared between clones
+	    clone._nodes = _nodes;		// shared between clones
 	    clone._free = _free;
 	    clone._current = _current;
 	    clone.setRestartable(false);
@@ -112,38 +117,12 @@ public final class SortingIterator extends DTMAxisIteratorBase {
 	}
     }
 
-    private void addRecord(NodeSortRecord record) {
-	if (_free == _data.length) {
-	    NodeSortRecord[] newArray = new NodeSortRecord[_data.length * 2];
-	    System.arraycopy(_data, 0, newArray, 0, _free);
-	    _data = newArray;
-	}
-	_data[_free++] = record;
-    }
-
-    private void quicksort(int p, int r) {
-	while (p < r) {
-	    final int q = partition(p, r);
-	    quicksort(p, q);
-	    p = q + 1;
-	}
-    }
-    
-    private int partition(int p, int r) {
-	final NodeSortRecord x = _data[(p + r) >>> 1];
-	int i = p - 1;
-	int j = r + 1;
-	while (true) {
-	    while (x.compareTo(_data[--j]) < 0);
-	    while (x.compareTo(_data[++i]) > 0);
-	    if (i < j) {
-		final NodeSortRecord t = _data[i];
-		_data[i] = _data[j];
-		_data[j] = t;
-	    }
-	    else {
-		return(j);
-	    }
+    private void addNode(int node) {
+	if (_free == _nodes.length) {
+	    int[] newArray = new int[_nodes.length * 2];
+	    System.arraycopy(_nodes, 0, newArray, 0, _free);
+	    _nodes = newArray;
 	}
+	_nodes[_free++] = node;
     }
 }
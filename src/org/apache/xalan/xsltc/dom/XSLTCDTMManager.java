@@ -273,6 +273,31 @@ public class XSLTCDTMManager extends DTMManagerDefault
         }
 
         int dtmPos = getFirstFreeDTMID();
+        boolean built = false;
+        try {
+            DTM dtm = buildDTM(source, unique, whiteSpaceFilter, incremental,
+                               doIndexing, hasUserReader, size,
+                               buildIdIndex, newNameTable, dtmPos);
+            built = true;
+            return dtm;
+        }
+        finally {
+            // Don't leak the IDs of a DTM which could not be built.
+            if (!built) {
+                releaseFailedDTM(dtmPos);
+            }
+        }
+    }
+
+    /**
+     * Build the DTM for getDTM(), under the DTM ID it has reserved.
+     */
+    private DTM buildDTM(Source source, boolean unique,
+                         DTMWSFilter whiteSpaceFilter, boolean incremental,
+                         boolean doIndexing, boolean hasUserReader, int size,
+                         boolean buildIdIndex, boolean newNameTable,
+                         int dtmPos)
+    {
         int documentID = dtmPos << IDENT_DTM_NODE_BITS;
 
         if ((null != source) && source instanceof DOMSource)
@@ -45,6 +45,7 @@ import org.apache.xalan.xsltc.dom.DOMAdapter;
 import org.apache.xalan.xsltc.dom.KeyIndex;
 import org.apache.xalan.xsltc.runtime.output.TransletOutputHandlerFactory;
 import org.apache.xml.dtm.DTMAxisIterator;
+import org.apache.xml.dtm.ref.SharedDTMCache;
 import org.apache.xml.serializer.SerializationHandler;
 
 /**
@@ -534,6 +535,41 @@ public abstract class AbstractTranslet implements Translet {
 	return(_domCache);
     }
 
+    // Documents from SharedDTMCaches which this translet holds references
+    // to, and the caches they came from
+    private Vector _sharedDocuments = null;
+    private Vector _sharedDocumentCaches = null;
+
+    /**
+     * Records that a reference has been taken to a document in a
+     * SharedDTMCache. It is given back when the current transformation
+     * ends, so that the document stays usable until then even if it is
+     * evicted from the cache.
+     */
+    public void addSharedDocument(SharedDTMCache cache, DTM document) {
+	if (_sharedDocuments == null) {
+	    _sharedDocuments = new Vector();
+	    _sharedDocumentCaches = new Vector();
+	}
+	_sharedDocuments.addElement(document);
+	_sharedDocumentCaches.addElement(cache);
+    }
+
+    /**
+     * Gives back the references taken to documents in SharedDTMCaches.
+     */
+    private void releaseSharedDocuments() {
+	if (_sharedDocuments != null) {
+	    final int n = _sharedDocuments.size();
+	    for (int i = 0; i < n; i++) {
+		((SharedDTMCache) _sharedDocumentCaches.elementAt(i))
+		    .release((DTM) _sharedDocuments.elementAt(i));
+	    }
+	    _sharedDocuments = null;
+	    _sharedDocumentCaches = null;
+	}
+    }
+
     /************************************************************************
      * Multiple output document extension.
      * See compiler/TransletOutput for actual implementation.
@@ -605,6 +641,7 @@ public abstract class AbstractTranslet implements Translet {
             transform(document, document.getIterator(), handler);
         } finally {
             _keyIndexes = null;
+            releaseSharedDocuments();
         }
     }
 	
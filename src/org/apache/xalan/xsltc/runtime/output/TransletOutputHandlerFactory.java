@@ -24,6 +24,7 @@ package org.apache.xalan.xsltc.runtime.output;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -53,6 +54,7 @@ public class TransletOutputHandlerFactory {
     private int    _outputType     = STREAM;
     private OutputStream _ostream  = System.out;
     private Writer _writer         = null;
+    private WritableByteChannel _channel = null;
     private Node           _node   = null;
     private Node   _nextSibling    = null;
     private int _indentNumber      = -1;
@@ -85,6 +87,10 @@ public class TransletOutputHandlerFactory {
 	_writer = writer;
     }
 
+    public void setOutputChannel(WritableByteChannel channel) {
+	_channel = channel;
+    }
+
     public void setHandler(ContentHandler handler) {
         _handler = handler;
     }
@@ -152,6 +158,10 @@ public class TransletOutputHandlerFactory {
                 {
                     result.setWriter(_writer);
                 }
+                else if (_channel != null)
+                {
+                    result.setOutputChannel(_channel);
+                }
                 else
                 {
                     result.setOutputStream(_ostream);
@@ -30,11 +30,16 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -64,6 +69,7 @@ import org.apache.xalan.xsltc.compiler.util.ErrorMsg;
 import org.apache.xalan.xsltc.dom.XSLTCDTMManager;
 import org.apache.xml.utils.StopParseException;
 import org.apache.xml.utils.StylesheetPIHandler;
+import org.apache.xml.utils.TemplatesCache;
 import org.xml.sax.InputSource;
 import org.xml.sax.XMLFilter;
 import org.xml.sax.XMLReader;
@@ -89,6 +95,12 @@ public class TransformerFactoryImpl
     public final static String DEBUG = "debug";
     public final static String ENABLE_INLINING = "enable-inlining";
     public final static String INDENT_NUMBER = "indent-number";
+    public final static String OFF_HEAP_STORAGE = "off-heap-storage";
+    public final static String TEMPLATES_CACHE_SIZE = "templates-cache-size";
+    public final static String TEMPLATES_CACHE_HITS = "templates-cache-hits";
+    public final static String TEMPLATES_CACHE_MISSES = "templates-cache-misses";
+    public final static String TEMPLATES_CACHE_EVICTIONS = "templates-cache-evictions";
+    public final static String TRANSLET_CACHE_DIRECTORY = "translet-cache-directory";
         
     /**
      * This error listener is used only for this factory and is not passed to
@@ -189,6 +201,37 @@ public class TransformerFactoryImpl
      */
     private int _indentNumber = -1;
 
+    /**
+     * Set to <code>true</code> when the node tables of source documents
+     * should be kept outside the Java heap.
+     */
+    private boolean _offHeapStorage = false;
+
+    /**
+     * The compiled stylesheets, keyed by the content of the stylesheets and
+     * their imports, or null if the templates cache is off. The cache is
+     * cleared when the configuration of the factory changes.
+     */
+    private volatile TemplatesCache _templatesCache = null;
+
+    /**
+     * Compiles the stylesheets missing from the templates cache.
+     */
+    private final TemplatesCache.Compiler _templatesCompiler =
+	new TemplatesCache.Compiler() {
+	    public Templates compile(Source source, String key)
+		throws TransformerConfigurationException
+	    {
+		return compileTemplates(source, key);
+	    }
+	};
+
+    /**
+     * The directory in which compiled translets are kept across JVMs, or
+     * null if there is none.
+     */
+    private volatile TransletCache _transletCache = null;
+
     /**
      * The provider of the XSLTC DTM Manager service.  This is fixed for any
      * instance of this class.  In order to change service providers, a new
@@ -266,6 +309,30 @@ public class TransformerFactoryImpl
 	    else
 	      return Boolean.FALSE;
 	}
+	else if (name.equals(OFF_HEAP_STORAGE)) {
+	    return _offHeapStorage ? Boolean.TRUE : Boolean.FALSE;
+	}
+	else if (name.equals(TEMPLATES_CACHE_SIZE)) {
+	    final TemplatesCache cache = _templatesCache;
+	    return new Integer(cache == null ? 0 : cache.getMaxEntries());
+	}
+	else if (name.equals(TEMPLATES_CACHE_HITS)) {
+	    final TemplatesCache cache = _templatesCache;
+	    return new Long(cache == null ? 0 : cache.getHitCount());
+	}
+	else if (name.equals(TEMPLATES_CACHE_MISSES)) {
+	    final TemplatesCache cache = _templatesCache;
+	    return new Long(cache == null ? 0 : cache.getMissCount());
+	}
+	else if (name.equals(TEMPLATES_CACHE_EVICTIONS)) {
+	    final TemplatesCache cache = _templatesCache;
+	    return new Long(cache == null ? 0 : cache.getEvictionCount());
+	}
+	else if (name.equals(TRANSLET_CACHE_DIRECTORY)) {
+	    final TransletCache transletCache = _transletCache;
+	    return transletCache == null ? null
+		: transletCache.getDirectory().getPath();
+	}
 
 	// Throw an exception for all other attributes
 	ErrorMsg err = new ErrorMsg(ErrorMsg.JAXP_INVALID_ATTR_ERR, name);
@@ -283,6 +350,65 @@ public class TransformerFactoryImpl
     public void setAttribute(String name, Object value) 
 	throws IllegalArgumentException 
     { 
+	if (name.equals(TEMPLATES_CACHE_SIZE)) {
+	    int size = -1;
+	    if (value instanceof Integer) {
+		size = ((Integer) value).intValue();
+	    }
+	    else if (value instanceof String) {
+		try {
+		    size = Integer.parseInt((String) value);
+		}
+		catch (NumberFormatException e) {
+		    // Falls through
+		}
+	    }
+
+	    if (size == 0) {
+		_templatesCache = null;
+		return;
+	    }
+	    else if (size > 0) {
+		if (_templatesCache == null)
+		    _templatesCache = new TemplatesCache(size);
+		else
+		    _templatesCache.setMaxEntries(size);
+		return;
+	    }
+	    final ErrorMsg err 
+		= new ErrorMsg(ErrorMsg.JAXP_INVALID_ATTR_ERR, name);
+	    throw new IllegalArgumentException(err.toString());
+	}
+
+	// The translets are stored under a key which includes the compiler
+	// options, so the directory can be shared by differing factories
+	if (name.equals(TRANSLET_CACHE_DIRECTORY)) {
+	    if (value == null) {
+		_transletCache = null;
+		return;
+	    }
+	    File directory = null;
+	    if (value instanceof File) {
+		directory = (File) value;
+	    }
+	    else if (value instanceof String) {
+		directory = new File((String) value);
+	    }
+	    if (directory != null) {
+		final TransletCache transletCache = new TransletCache(directory);
+		if (transletCache.isUsable()) {
+		    _transletCache = transletCache;
+		    return;
+		}
+	    }
+	    final ErrorMsg err 
+		= new ErrorMsg(ErrorMsg.JAXP_INVALID_ATTR_ERR, name);
+	    throw new IllegalArgumentException(err.toString());
+	}
+
+	// The cached stylesheets were compiled with the old settings
+	clearTemplatesCache();
+
 	// Set the default translet name (ie. class name), which will be used
 	// for translets that cannot be given a name from their system-id.
 	if (name.equals(TRANSLET_NAME) && value instanceof String) {
@@ -351,6 +477,16 @@ public class TransformerFactoryImpl
 		return;
 	    }
 	}
+	else if (name.equals(OFF_HEAP_STORAGE)) {
+	    if (value instanceof Boolean) {
+		_offHeapStorage = ((Boolean) value).booleanValue();
+		return;
+	    }
+	    else if (value instanceof String) {
+		_offHeapStorage = ((String) value).equalsIgnoreCase("true");
+		return;
+	    }
+	}
 	else if (name.equals(INDENT_NUMBER)) {
 	    if (value instanceof String) {
 		try {
@@ -405,6 +541,7 @@ public class TransformerFactoryImpl
 	// secure processing?
 	else if (name.equals(XMLConstants.FEATURE_SECURE_PROCESSING)) {
 	    _isSecureProcessing = value;		
+	    clearTemplatesCache();
 	    // all done processing feature
 	    return;
 	}
@@ -482,6 +619,7 @@ public class TransformerFactoryImpl
      */    
     public void setURIResolver(URIResolver resolver) {
 	_uriResolver = resolver;
+	clearTemplatesCache();
     }
 
     /**
@@ -669,7 +807,14 @@ public class TransformerFactoryImpl
     /**
      * javax.xml.transform.sax.TransformerFactory implementation.
      * Process the Source into a Templates object, which is a a compiled
-     * representation of the source.
+     * representation of the source. If the templates cache is turned on
+     * with the templates-cache-size attribute, a stylesheet whose text, and
+     * the text of whose imports, has been compiled before is not compiled
+     * again, and the same Templates object is returned. If a directory is
+     * given with the translet-cache-directory attribute, the translets
+     * compiled from stylesheets are also written there, and a stylesheet
+     * whose translet is found there is loaded rather than compiled, even by
+     * another JVM.
      *
      * @param source The input stylesheet - DOMSource not supported!!!
      * @return A Templates object that can be used to create Transformers.
@@ -677,6 +822,110 @@ public class TransformerFactoryImpl
      */
     public Templates newTemplates(Source source)
 	throws TransformerConfigurationException 
+    {
+	if (isTemplatesCacheable(source)) {
+	    final TemplatesCache cache = _templatesCache;
+	    if (cache != null) {
+		final Templates templates =
+		    cache.getTemplates(source, _uriResolver, _templatesCompiler);
+
+		// Reset the per-session attributes, as compiling would have
+		resetTransientAttributes();
+		return templates;
+	    }
+	    else if (_transletCache != null) {
+		final TemplatesCache.Stylesheet stylesheet =
+		    TemplatesCache.read(source, _uriResolver);
+		return compileTemplates(stylesheet.getSource(),
+					stylesheet.getKey());
+	    }
+	}
+	return compileTemplates(source, null);
+    }
+
+    /**
+     * Process a number of stylesheets into Templates objects in parallel,
+     * on the common fork-join pool. Each stylesheet is processed as by
+     * newTemplates(Source), except that the per-session attributes
+     * (translet-name, destination-directory, package-name and jar-name),
+     * which are meant for a single translet, are reset rather than used.
+     * The error listener and URI resolver of this factory may be called
+     * from several threads at once.
+     *
+     * @param sources A Collection of the input stylesheets, as Source objects
+     * @return A List holding a java.util.concurrent.Future for each
+     *         stylesheet, in the order of the sources. The result of the
+     *         Future is the Templates object; if the stylesheet could not
+     *         be compiled, its ExecutionException holds the
+     *         TransformerConfigurationException.
+     */
+    public List newTemplates(Collection sources) {
+	resetTransientAttributes();
+
+	final List futures = new ArrayList(sources.size());
+	final Iterator i = sources.iterator();
+	while (i.hasNext()) {
+	    final Source source = (Source) i.next();
+	    final FutureTask task = new FutureTask(new Callable() {
+		public Object call() throws TransformerConfigurationException {
+		    return newTemplates(source);
+		}
+	    });
+	    ForkJoinPool.commonPool().execute(task);
+	    futures.add(task);
+	}
+	return futures;
+    }
+
+    /**
+     * Tell whether the Templates object for a stylesheet may be taken from
+     * the templates cache or the translet cache directory. Only stylesheets compiled into memory are cached;
+     * those loaded from translet classes or written out as translet
+     * classes are not, and nor are stylesheets found by
+     * getAssociatedStylesheet(), whose parameters are kept for the Source.
+     *
+     * @param source The input stylesheet
+     * @return true if the templates cache may be used.
+     */
+    private boolean isTemplatesCacheable(Source source) {
+	return !_useClasspath && !_autoTranslet && !_generateTranslet
+	    && _destinationDirectory == null && _packageName == null
+	    && _jarFileName == null
+	    && (_piParams == null || _piParams.get(source) == null);
+    }
+
+    /**
+     * Throw away the compiled stylesheets in the templates cache, if there
+     * is one.
+     */
+    private void clearTemplatesCache() {
+	final TemplatesCache cache = _templatesCache;
+	if (cache != null) cache.clear();
+    }
+
+    /**
+     * Get the compiler options which change the translet compiled from a
+     * stylesheet, for the key of the translet in the translet cache
+     * directory.
+     */
+    private String getCompilerOptions() {
+	return "debug=" + _debug + " inlining=" + _enableInlining
+	    + " secure=" + _isSecureProcessing;
+    }
+
+    /**
+     * Process the Source into a Templates object, without looking in the
+     * templates cache. The translet cache directory, if there is one, is
+     * used for stylesheets with a key.
+     *
+     * @param source The input stylesheet
+     * @param key The key of the stylesheet in the templates cache, or null
+     *        if it can not be cached
+     * @return A Templates object that can be used to create Transformers.
+     * @throws TransformerConfigurationException
+     */
+    private Templates compileTemplates(Source source, String key)
+	throws TransformerConfigurationException 
     {
 	// If the _useClasspath attribute is true, try to load the translet from
 	// the CLASSPATH and create a template object using the loaded
@@ -738,6 +987,21 @@ public class TransformerFactoryImpl
 	    }
 	}
 	
+	// Load the translet from the translet cache directory if it was
+	// compiled before, by this JVM or another
+	final TransletCache transletCache = _transletCache;
+	String transletKey = null;
+	if (key != null && transletCache != null) {
+	    transletKey = TransletCache.getKey(key, getCompilerOptions());
+	    final TransletCache.Entry entry =
+		(transletKey == null) ? null : transletCache.load(transletKey);
+	    if (entry != null) {
+		resetTransientAttributes();
+		return new TemplatesImpl(entry._bytecodes, entry._transletName,
+		    entry._outputProperties, _indentNumber, this);
+	    }
+	}
+
 	// Create and initialize a stylesheet compiler
 	final XSLTC xsltc = new XSLTC();
 	if (_debug) xsltc.setDebug(true);
@@ -850,6 +1114,11 @@ public class TransformerFactoryImpl
         throw exc;
     }
 
+	if (transletKey != null) {
+	    transletCache.store(transletKey, transletName, bytecodes,
+				xsltc.getOutputProperties());
+	}
+
 	return new TemplatesImpl(bytecodes, transletName, 
 	    xsltc.getOutputProperties(), _indentNumber, this);
     }
@@ -1410,4 +1679,12 @@ public class TransformerFactoryImpl
     protected Class getDTMManagerClass() {
         return m_DTMManagerClass;
     }
+
+    /**
+     * Returns true if the node tables of source documents should be kept
+     * outside the Java heap.
+     */
+    protected boolean useOffHeapStorage() {
+        return _offHeapStorage;
+    }
 }
\ No newline at end of file
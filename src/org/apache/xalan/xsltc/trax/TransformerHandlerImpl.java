@@ -191,6 +191,8 @@ public class TransformerHandlerImpl implements TransformerHandler, DeclHandler {
                     (XSLTCDTMManager)_transformer.getTransformerFactory()
                                                  .getDTMManagerClass()
                                                  .newInstance();
+                dtmManager.setOffHeapStorage(
+                    _transformer.getTransformerFactory().useOffHeapStorage());
             } catch (Exception e) {
                 throw new SAXException(e);
             }
@@ -249,6 +251,14 @@ public class TransformerHandlerImpl implements TransformerHandler, DeclHandler {
 	    // Set this DOM as the transformer's DOM
 	    _transformer.setDOM(_dom);
 	}
+	if (_isIdentity) {
+	    try {
+		_transformer.finishOutput();
+	    }
+	    catch (TransformerException e) {
+		throw new SAXException(e);
+	    }
+	}
 	if (_isIdentity && _result instanceof DOMResult) {
 	    ((DOMResult)_result).setNode(_transformer.getTransletOutputHandlerFactory().getNode());
         }
@@ -66,6 +66,8 @@ import org.apache.xalan.xsltc.runtime.AbstractTranslet;
 import org.apache.xalan.xsltc.runtime.Hashtable;
 import org.apache.xalan.xsltc.runtime.output.TransletOutputHandlerFactory;
 import org.apache.xml.dtm.DTMWSFilter;
+import org.apache.xml.serializer.ChannelResult;
+import org.apache.xml.serializer.CompressingOutputStream;
 import org.apache.xml.serializer.OutputPropertiesFactory;
 import org.apache.xml.serializer.SerializationHandler;
 import org.apache.xml.utils.SystemIDResolver;
@@ -155,6 +157,12 @@ public final class TransformerImpl extends Transformer
      */
     private OutputStream _ostream = null;
 
+    /**
+     * The stage which compresses the output, if the xalan:compression
+     * output property asks for one, or null.
+     */
+    private CompressingOutputStream _compressedOutput = null;
+
     /**
      * A reference to the XSLTCDTMManager which is used to build the DOM/DTM
      * for this transformer.
@@ -319,6 +327,7 @@ public final class TransformerImpl extends Transformer
 
 	_tohFactory = TransletOutputHandlerFactory.newInstance();
 	_tohFactory.setEncoding(_encoding);
+	_compressedOutput = null;
 	if (_method != null) {
 	    _tohFactory.setOutputMethod(_method);
 	}
@@ -367,6 +376,13 @@ public final class TransformerImpl extends Transformer
 
 		_tohFactory.setOutputType(TransletOutputHandlerFactory.STREAM);
 
+		// try to get a byte channel from a ChannelResult
+		if (target instanceof ChannelResult) {
+		    _tohFactory.setOutputChannel(
+			((ChannelResult) target).getChannel());
+		    return _tohFactory.getSerializationHandler();
+		}
+
 		// try to get a Writer from Result object
 		final Writer writer = target.getWriter();
 		if (writer != null) {
@@ -377,7 +393,7 @@ public final class TransformerImpl extends Transformer
 		// or try to get an OutputStream from Result object
 		final OutputStream ostream = target.getOutputStream();
 		if (ostream != null) {
-		    _tohFactory.setOutputStream(ostream);
+		    _tohFactory.setOutputStream(compressOutput(ostream));
 		    return _tohFactory.getSerializationHandler();
 		}
 
@@ -394,21 +410,22 @@ public final class TransformerImpl extends Transformer
 		URL url = null;
 		if (systemId.startsWith("file:")) {
                     url = new URL(systemId);
-		    _tohFactory.setOutputStream(
-		        _ostream = new FileOutputStream(url.getFile()));
+		    _tohFactory.setOutputStream(compressOutput(
+		        _ostream = new FileOutputStream(url.getFile())));
 		    return _tohFactory.getSerializationHandler();
                 }
                 else if (systemId.startsWith("http:")) {
                     url = new URL(systemId);
                     final URLConnection connection = url.openConnection();
-		    _tohFactory.setOutputStream(_ostream = connection.getOutputStream());
+		    _tohFactory.setOutputStream(
+		        compressOutput(_ostream = connection.getOutputStream()));
 		    return _tohFactory.getSerializationHandler();
                 }
                 else {
                     // system id is just a filename
                     url = new File(systemId).toURL();
-		    _tohFactory.setOutputStream(
-		        _ostream = new FileOutputStream(url.getFile()));
+		    _tohFactory.setOutputStream(compressOutput(
+		        _ostream = new FileOutputStream(url.getFile())));
 		    return _tohFactory.getSerializationHandler();
                 }
 	    }
@@ -427,6 +444,52 @@ public final class TransformerImpl extends Transformer
 	return null;
     }
 
+    /**
+     * Put a stage which compresses the output in front of an output stream,
+     * if the xalan:compression output property asks for one. XSLTC's output
+     * handlers only take the standard output properties, so the stage is
+     * set up here, and finished by finishOutput() at the end of the
+     * document. It is not used for Writers, SAX or DOM results.
+     */
+    private OutputStream compressOutput(OutputStream ostream) {
+	_compressedOutput = CompressingOutputStream.newInstance(ostream,
+	    _properties.getProperty(OutputPropertiesFactory.S_KEY_COMPRESSION),
+	    _properties.getProperty(
+		OutputPropertiesFactory.S_KEY_COMPRESSION_LEVEL),
+	    _properties.getProperty(
+		OutputPropertiesFactory.S_KEY_COMPRESSION_BLOCK_SIZE));
+	return (_compressedOutput != null) ? _compressedOutput : ostream;
+    }
+
+    /**
+     * Finish the output of a transformation whose output handler has seen
+     * the end of the document: write the end of compressed output, and
+     * close the output stream if it was created here.
+     */
+    void finishOutput() throws TransformerException {
+	try {
+	    if (_compressedOutput != null) {
+		_compressedOutput.finish();
+	    }
+	}
+	catch (IOException e) {
+	    throw new TransformerException(e);
+	}
+	finally {
+	    _compressedOutput = null;
+
+	    // If we create an output stream for the Result, we need to close
+	    // it after the transformation.
+	    if (_ostream != null) {
+		try {
+		    _ostream.close();
+		}
+		catch (IOException e) {}
+		_ostream = null;
+	    }
+	}
+    }
+
     /**
      * Set the internal DOM that will be used for the next transformation
      */
@@ -456,6 +519,8 @@ public final class TransformerImpl extends Transformer
                      _dtmManager =
                          (XSLTCDTMManager)_tfactory.getDTMManagerClass()
                                                    .newInstance();
+                     _dtmManager.setOffHeapStorage(
+                         _tfactory.useOffHeapStorage());
                  }
                  dom = (DOM)_dtmManager.getDTM(source, false, wsfilter, true,
                                               false, false, 0, hasIdCall);
@@ -640,14 +705,7 @@ public final class TransformerImpl extends Transformer
             _dtmManager = null;
         }
 
-	// If we create an output stream for the Result, we need to close it after the transformation.
-	if (_ostream != null) {
-	    try {
-	        _ostream.close();
-	    }
-	    catch (IOException e) {}
-	    _ostream = null;
-	}
+	finishOutput();
     }
 
     /**
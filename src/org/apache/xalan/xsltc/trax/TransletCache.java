@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+
+package org.apache.xalan.xsltc.trax;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Properties;
+
+/**
+ * A directory of compiled translets, shared by the factories, and the
+ * JVMs, pointed at it with the translet-cache-directory attribute.
+ * <p>
+ * Each file holds the bytecodes of one translet, its class name and the
+ * output properties of its stylesheet, and is named after a digest of the
+ * text of the stylesheet and its imports, the compiler options and the
+ * version of XSLTC. A stylesheet whose translet is in the directory is
+ * therefore loaded without being compiled, and a changed stylesheet, or one
+ * compiled by another version, gets a new file.</p>
+ * <p>
+ * Files are written to a temporary file in the same directory and then
+ * renamed, so that readers never see a partly written translet. Files which
+ * can not be read, or do not look like translets, are ignored and the
+ * stylesheet is compiled again. Nothing is ever removed from the
+ * directory.</p>
+ */
+final class TransletCache {
+
+    /**
+     * The first bytes of a translet file.
+     */
+    private static final int MAGIC = 0x58534c54;	// "XSLT"
+
+    /**
+     * The version of the file format, which is also part of the key.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The extension of translet files.
+     */
+    private static final String SUFFIX = ".translet";
+
+    /**
+     * The directory holding the translet files.
+     */
+    private final File _directory;
+
+    /**
+     * A translet read from the directory.
+     */
+    static final class Entry {
+	final String _transletName;
+	final byte[][] _bytecodes;
+	final Properties _outputProperties;
+
+	Entry(String transletName, byte[][] bytecodes,
+	      Properties outputProperties)
+	{
+	    _transletName = transletName;
+	    _bytecodes = bytecodes;
+	    _outputProperties = outputProperties;
+	}
+    }
+
+    /**
+     * Create a cache in a directory, which is created if it does not exist.
+     *
+     * @param directory The directory
+     */
+    TransletCache(File directory) {
+	_directory = directory;
+	_directory.mkdirs();
+    }
+
+    /**
+     * Tell whether the directory exists, so that translets can be stored.
+     */
+    boolean isUsable() {
+	return _directory.isDirectory();
+    }
+
+    /**
+     * Get the directory holding the translet files.
+     */
+    File getDirectory() {
+	return _directory;
+    }
+
+    /**
+     * Compute the key under which the translet of a stylesheet is stored.
+     *
+     * @param stylesheetKey The key of the stylesheet and its imports, from
+     *        the templates cache
+     * @param options The compiler options which change the translet
+     * @return the key of the translet, or null if it can not be computed
+     */
+    static String getKey(String stylesheetKey, String options) {
+	MessageDigest md;
+	try {
+	    md = MessageDigest.getInstance("SHA-256");
+	    md.update(stylesheetKey.getBytes("UTF-8"));
+	    md.update((byte) 0);
+	    md.update(options.getBytes("UTF-8"));
+	    md.update((byte) 0);
+	    md.update(org.apache.xml.serializer.Version.getVersion()
+		      .getBytes("UTF-8"));
+	    md.update((byte) FORMAT_VERSION);
+	}
+	catch (NoSuchAlgorithmException e) {
+	    return null;
+	}
+	catch (IOException e) {
+	    return null;
+	}
+
+	final byte[] hash = md.digest();
+	final StringBuffer key = new StringBuffer(hash.length * 2);
+	for (int i = 0; i < hash.length; i++) {
+	    key.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+	    key.append(Character.forDigit(hash[i] & 0xF, 16));
+	}
+	return key.toString();
+    }
+
+    /**
+     * Read the translet stored under a key.
+     *
+     * @param key The key of the translet
+     * @return the translet, or null if it is not in the directory or
+     *         can not be read
+     */
+    Entry load(String key) {
+	final File file = new File(_directory, key + SUFFIX);
+	if (!file.isFile()) return null;
+
+	DataInputStream in = null;
+	try {
+	    in = new DataInputStream(new BufferedInputStream(
+		new FileInputStream(file)));
+	    if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+		return null;
+	    }
+
+	    final String transletName = in.readUTF();
+
+	    Properties outputProperties = null;
+	    final int propertyCount = in.readInt();
+	    if (propertyCount >= 0) {
+		outputProperties = new Properties();
+		for (int i = 0; i < propertyCount; i++) {
+		    final String name = in.readUTF();
+		    outputProperties.setProperty(name, in.readUTF());
+		}
+	    }
+
+	    final int classCount = in.readInt();
+	    if (classCount <= 0) return null;
+	    final byte[][] bytecodes = new byte[classCount][];
+	    for (int i = 0; i < classCount; i++) {
+		final int length = in.readInt();
+		if (length < 0 || length > file.length()) return null;
+		bytecodes[i] = new byte[length];
+		in.readFully(bytecodes[i]);
+	    }
+
+	    // Anything left over means the file is not what we wrote
+	    if (in.read() != -1) return null;
+
+	    return new Entry(transletName, bytecodes, outputProperties);
+	}
+	catch (IOException e) {
+	    return null;
+	}
+	finally {
+	    if (in != null) {
+		try {
+		    in.close();
+		}
+		catch (IOException e) {
+		    // Ignore
+		}
+	    }
+	}
+    }
+
+    /**
+     * Write a translet under a key. A failure to write it is ignored, as
+     * the translet will simply be compiled again next time.
+     *
+     * @param key The key of the translet
+     * @param transletName The class name of the translet
+     * @param bytecodes The bytecodes of the translet classes
+     * @param outputProperties The output properties of the stylesheet
+     */
+    void store(String key, String transletName, byte[][] bytecodes,
+	       Properties outputProperties)
+    {
+	final File file = new File(_directory, key + SUFFIX);
+	File temp = null;
+	try {
+	    temp = File.createTempFile(key, ".tmp", _directory);
+
+	    final DataOutputStream out = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(temp)));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeUTF(transletName);
+
+		if (outputProperties == null) {
+		    out.writeInt(-1);
+		}
+		else {
+		    final Properties flat = new Properties();
+		    final Enumeration names = outputProperties.propertyNames();
+		    while (names.hasMoreElements()) {
+			final String name = (String) names.nextElement();
+			flat.setProperty(name,
+			    outputProperties.getProperty(name));
+		    }
+		    out.writeInt(flat.size());
+		    final Enumeration flatNames = flat.propertyNames();
+		    while (flatNames.hasMoreElements()) {
+			final String name = (String) flatNames.nextElement();
+			out.writeUTF(name);
+			out.writeUTF(flat.getProperty(name));
+		    }
+		}
+
+		out.writeInt(bytecodes.length);
+		for (int i = 0; i < bytecodes.length; i++) {
+		    out.writeInt(bytecodes[i].length);
+		    out.write(bytecodes[i]);
+		}
+	    }
+	    finally {
+		out.close();
+	    }
+
+	    // Another JVM may be writing the same translet; either copy will do
+	    try {
+		Files.move(temp.toPath(), file.toPath(),
+			   StandardCopyOption.ATOMIC_MOVE,
+			   StandardCopyOption.REPLACE_EXISTING);
+	    }
+	    catch (AtomicMoveNotSupportedException e) {
+		Files.move(temp.toPath(), file.toPath(),
+			   StandardCopyOption.REPLACE_EXISTING);
+	    }
+	    temp = null;
+	}
+	catch (IOException e) {
+	    // The directory is not writable, or is full
+	}
+	finally {
+	    if (temp != null) temp.delete();
+	}
+    }
+}
@@ -295,6 +295,20 @@ public abstract class DTMManager
    * document. 
    */
   public boolean m_source_location = false; 
+
+  /*
+   * Flag set by FEATURE_OFF_HEAP_STORAGE.
+   * This feature specifies whether the node tables of large source
+   * documents should be kept outside the Java heap.
+   */
+  public boolean m_offHeapStorage = false;
+
+  /*
+   * Flag set by a streaming transformation.
+   * Documents built incrementally while this flag is set may be pruned
+   * behind the node being processed.
+   */
+  public boolean m_prunable = false;
   
   /**
    * Get a flag indicating whether an incremental transform is desired 
@@ -343,6 +357,50 @@ public abstract class DTMManager
   public void setSource_location(boolean sourceLocation){
     m_source_location = sourceLocation;
   }
+
+  /**
+   * Get a flag indicating whether the node tables of source documents
+   * built by this manager should be kept outside the Java heap.
+   * @return off-heap storage boolean
+   */
+  public boolean getOffHeapStorage()
+  {
+    return m_offHeapStorage;
+  }
+
+  /**
+   * Set a flag indicating whether the node tables of source documents
+   * built by this manager should be kept outside the Java heap.
+   * This flag should have the same value as the FEATURE_OFF_HEAP_STORAGE
+   * feature which is set by the TransformerFactory.setAttribute() method.
+   * @param offHeapStorage boolean to use to set m_offHeapStorage
+   */
+  public void setOffHeapStorage(boolean offHeapStorage)
+  {
+    m_offHeapStorage = offHeapStorage;
+  }
+
+  /**
+   * Get a flag indicating whether source documents built incrementally by
+   * this manager may be pruned as they are processed.
+   * @return prunable boolean
+   */
+  public boolean getPrunable()
+  {
+    return m_prunable;
+  }
+
+  /**
+   * Set a flag indicating whether source documents built incrementally by
+   * this manager may be pruned as they are processed. Only a transformation
+   * which never goes back to nodes preceding the node it is processing,
+   * other than its ancestors, should set it.
+   * @param prunable boolean to use to set m_prunable
+   */
+  public void setPrunable(boolean prunable)
+  {
+    m_prunable = prunable;
+  }
   
 
   // -------------------- private methods --------------------
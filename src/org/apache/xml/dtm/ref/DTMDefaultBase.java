@@ -21,6 +21,7 @@
 package org.apache.xml.dtm.ref;
 
 import org.apache.xml.dtm.*;
+import org.apache.xml.utils.OffHeapIntVector;
 import org.apache.xml.utils.SuballocatedIntVector;
 import org.apache.xml.utils.BoolStack;
 
@@ -117,10 +118,29 @@ public abstract class DTMDefaultBase implements DTM
   protected DTMManagerDefault m_mgrDefault=null;
 
 
+  /**
+   * True if the per-node tables are kept outside the Java heap; see
+   * DTMManager.getOffHeapStorage().
+   */
+  protected boolean m_offHeapStorage;
+
   /** The document identity number(s). If we have overflowed the addressing
    * range of the first that was assigned to us, we may add others. */
   protected SuballocatedIntVector m_dtmIdent;
 
+  /** If the document identity numbers in m_dtmIdent are consecutive, and
+   * each one addresses the next 1&lt;&lt;IDENT_DTM_NODE_BITS node
+   * identities, a node handle is simply the node identity plus this value,
+   * and handles can be decoded without consulting any table. Otherwise
+   * (or for a DTM with no identity yet) this is NULL.
+   * 
+   * @see #updateIdentBase() */
+  protected int m_identBase = NULL;
+
+  /** The number of node handles addressable through m_identBase. Only
+   * meaningful when m_identBase is not NULL. */
+  protected int m_identRange = 0;
+
   /** The mask for the identity.
       %REVIEW% Should this really be set to the _DEFAULT? What if
       a particular DTM wanted to use another value? */
@@ -152,6 +172,21 @@ public abstract class DTMDefaultBase implements DTM
   /** true if indexing is turned on. */
   protected boolean m_indexing;
 
+  /**
+   * Create a vector for one of the per-node tables, on or off the heap
+   * according to m_offHeapStorage.
+   *
+   * @param blocksize The block size of the DTM.
+   * @param numblocks The initial number of blocks.
+   *
+   * @return a new, empty vector.
+   */
+  protected SuballocatedIntVector newIntVector(int blocksize, int numblocks)
+  {
+    return m_offHeapStorage ? new OffHeapIntVector(blocksize)
+                            : new SuballocatedIntVector(blocksize, numblocks);
+  }
+
   /**
    * Construct a DTMDefaultBase object using the default block size.
    *
@@ -207,16 +242,21 @@ public abstract class DTMDefaultBase implements DTM
       m_dtmIdent= new SuballocatedIntVector(32);
     }
     
-    m_exptype = new SuballocatedIntVector(blocksize, numblocks);
-    m_firstch = new SuballocatedIntVector(blocksize, numblocks);
-    m_nextsib = new SuballocatedIntVector(blocksize, numblocks);
-    m_parent  = new SuballocatedIntVector(blocksize, numblocks);
+    // Result tree fragments, which are built without a Source, always
+    // keep their node tables on the heap.
+    m_offHeapStorage = (null != mgr) && mgr.getOffHeapStorage()
+                       && (null != source) && (blocksize > 64);
+
+    m_exptype = newIntVector(blocksize, numblocks);
+    m_firstch = newIntVector(blocksize, numblocks);
+    m_nextsib = newIntVector(blocksize, numblocks);
+    m_parent  = newIntVector(blocksize, numblocks);
     
     // Only create the m_prevsib array if the usePrevsib flag is true.
     // Some DTM implementations (e.g. SAXImpl) do not need this array.
     // We can save the time to build it in those cases.
     if (usePrevsib)
-      m_prevsib = new SuballocatedIntVector(blocksize, numblocks);
+      m_prevsib = newIntVector(blocksize, numblocks);
 
     m_mgr = mgr;
     if(mgr instanceof DTMManagerDefault)
@@ -224,6 +264,7 @@ public abstract class DTMDefaultBase implements DTM
     
     m_documentBaseURI = (null != source) ? source.getSystemId() : null;
     m_dtmIdent.setElementAt(dtmIdentity,0);
+    updateIdentBase();
     m_wsfilter = whiteSpaceFilter;
     m_xstrf = xstringfactory;
     m_indexing = doIndexing;
@@ -906,6 +947,10 @@ public abstract class DTMDefaultBase implements DTM
     if(JJK_DEBUG && nodeIdentity>DTMManager.IDENT_NODE_DEFAULT)
       System.err.println("GONK! (only useful in limited situations)");
 
+    // Fast path: consecutive DTM IDs need no table lookup.
+    if(NULL!=m_identBase)
+      return nodeIdentity + m_identBase;
+
     return m_dtmIdent.elementAt(nodeIdentity >>> DTMManager.IDENT_DTM_NODE_BITS)
       + (nodeIdentity & DTMManager.IDENT_NODE_DEFAULT) ;											
   }
@@ -930,6 +975,16 @@ public abstract class DTMDefaultBase implements DTM
   {
     if(NULL==nodeHandle) return NULL;
 
+    // Fast path: with consecutive DTM IDs the identity is a fixed distance
+    // from the handle. The unsigned comparison also rejects handles below
+    // m_identBase, which belong to some other DTM.
+    if(NULL!=m_identBase)
+    {
+      int nodeIdentity=nodeHandle-m_identBase;
+      if((nodeIdentity^Integer.MIN_VALUE) < (m_identRange^Integer.MIN_VALUE))
+        return nodeIdentity;
+    }
+
     if(m_mgrDefault!=null)
     {
       // Optimization: use the DTMManagerDefault's fast DTMID-to-offsets
@@ -942,12 +997,14 @@ public abstract class DTMDefaultBase implements DTM
       // someone is apparently asking DTMs whether they contain nodes
       // which really don't belong to them. That's probably a bug
       // which should be fixed, but until it is:
-      if(m_mgrDefault.m_dtms[whichDTMindex]!=this)
-	return NULL;
-      else
+      if(m_mgrDefault.m_registry.getDTM(whichDTMindex)==this)
 	return
-	  m_mgrDefault.m_dtm_offsets[whichDTMindex]
+	  m_mgrDefault.m_registry.getOffset(whichDTMindex)
 	  | (nodeHandle & DTMManager.IDENT_NODE_DEFAULT);
+
+      // Otherwise fall through to our own table. A DTM shared between
+      // managers may already have been released by the manager which
+      // built it, while another is still using it.
     }
 	  
     int whichDTMid=m_dtmIdent.indexOf(nodeHandle & DTMManager.IDENT_DTM_DEFAULT);
@@ -1668,6 +1725,17 @@ public abstract class DTMDefaultBase implements DTM
     return null;
   }
 
+  /**
+   * Get the table which gives the expanded-name ids of this DTM.  DTMs
+   * which share a table give the same id to the same expanded name.
+   *
+   * @return the expanded name table.
+   */
+  public ExpandedNameTable getExpandedNameTable()
+  {
+    return m_expandedNameTable;
+  }
+
   /**
    * Given a node handle, return an ID that represents the node's expanded name.
    *
@@ -2346,6 +2414,50 @@ public abstract class DTMDefaultBase implements DTM
        m_mgrDefault=(DTMManagerDefault)mgr;     
    }      
 
+  /**
+   * Reserve a DTM ID for extended addressing of nodes beyond the range
+   * already covered by m_dtmIdent. The ID following the last one in use is
+   * preferred, so that the IDs stay consecutive and handles of large
+   * documents can still be decoded arithmetically; if another DTM owns it,
+   * the first free ID is used instead.
+   *
+   * @param mgrD The manager which will own the ID.
+   *
+   * @return the reserved DTM ID (not yet shifted into the high bits).
+   */
+  protected int reserveExtendedDTMID(DTMManagerDefault mgrD)
+  {
+    int size = m_dtmIdent.size();
+    if (size > 0)
+    {
+      int next = (m_dtmIdent.elementAt(size - 1)
+                  >>> DTMManager.IDENT_DTM_NODE_BITS) + 1;
+      if (mgrD.reserveDTMID(next))
+        return next;
+    }
+    return mgrD.getFirstFreeDTMID();
+  }
+
+  /**
+   * Recompute m_identBase and m_identRange from m_dtmIdent. This must be
+   * called whenever m_dtmIdent is changed.
+   */
+  protected void updateIdentBase()
+  {
+    int size = m_dtmIdent.size();
+    int base = (size > 0) ? m_dtmIdent.elementAt(0) : NULL;
+
+    for (int i = 1; i < size && NULL != base; i++)
+    {
+      if (m_dtmIdent.elementAt(i) != base + (i << DTMManager.IDENT_DTM_NODE_BITS))
+        base = NULL;
+    }
+
+    // Set the range first; a NULL base disables it anyway.
+    m_identRange = size << DTMManager.IDENT_DTM_NODE_BITS;
+    m_identBase = base;
+  }
+
 	 /** Query which DTMManager this DTM is currently being handled by.
 	  * 
 	  * %REVEW% Should this become part of the base DTM API?
@@ -20,6 +20,8 @@
  */
 package org.apache.xml.dtm.ref;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Source;
@@ -34,11 +36,14 @@ import org.apache.xml.dtm.DTMIterator;
 import org.apache.xml.dtm.DTMManager;
 import org.apache.xml.dtm.DTMWSFilter;
 import org.apache.xml.dtm.ref.dom2dtm.DOM2DTM;
+import org.apache.xml.dtm.ref.sax2dtm.DTMImage;
+import org.apache.xml.dtm.ref.sax2dtm.DTMImageSource;
 import org.apache.xml.dtm.ref.sax2dtm.SAX2DTM;
 import org.apache.xml.dtm.ref.sax2dtm.SAX2RTFDTM;
 import org.apache.xml.res.XMLErrorResources;
 import org.apache.xml.res.XMLMessages;
 import org.apache.xml.utils.PrefixResolver;
+import org.apache.xml.utils.SuballocatedIntVector;
 import org.apache.xml.utils.SystemIDResolver;
 import org.apache.xml.utils.XMLReaderManager;
 import org.apache.xml.utils.XMLStringFactory;
@@ -56,19 +61,16 @@ import org.xml.sax.helpers.DefaultHandler;
 /**
  * The default implementation for the DTMManager.
  *
- * %REVIEW% There is currently a reentrancy issue, since the finalizer
- * for XRTreeFrag (which runs in the GC thread) wants to call
- * DTMManager.release(), and may do so at the same time that the main
- * transformation thread is accessing the manager. Our current solution is
- * to make most of the manager's methods <code>synchronized</code>.
- * Early tests suggest that doing so is not causing a significant
- * performance hit in Xalan. However, it should be noted that there
- * is a possible alternative solution: rewrite release() so it merely
- * posts a request for release onto a threadsafe queue, and explicitly
- * process that queue on an infrequent basis during main-thread
- * activity (eg, when getDTM() is invoked). The downside of that solution
- * would be a greater delay before the DTM's storage is actually released
- * for reuse.
+ * The table of registered DTMs is a {@link DTMRegistry}, which may be
+ * read and updated from several threads without locking. This covers the
+ * reentrancy issue with the finalizer for XRTreeFrag (which runs in the GC
+ * thread and calls DTMManager.release() while the main transformation
+ * thread may be using the manager), and allows a manager to be shared
+ * between transformation threads without serializing node lookups.
+ *
+ * %REVIEW% Building a new DTM from a Source is still
+ * <code>synchronized</code>, because all the DTMs of a manager share a
+ * single ExpandedNameTable, which is not safe for concurrent updates.
  * */
 public class DTMManagerDefault extends DTMManager
 {
@@ -81,32 +83,38 @@ public class DTMManagerDefault extends DTMManager
   private static final boolean DEBUG = false;
 
   /**
-   * Map from DTM identifier numbers to DTM objects that this manager manages.
-   * One DTM may have several prefix numbers, if extended node indexing
-   * is in use; in that case, m_dtm_offsets[] will used to control which
-   * prefix maps to which section of the DTM.
-   * 
-   * This array grows as necessary; see addDTM().
-   * 
-   * This array grows as necessary; see addDTM(). Growth is uncommon... but
-   * access needs to be blindingly fast since it's used in node addressing.
-   */
-  protected DTM m_dtms[] = new DTM[256];
-	
-  /** Map from DTM identifier numbers to offsets. For small DTMs with a 
-   * single identifier, this will always be 0. In overflow addressing, where
-   * additional identifiers are allocated to access nodes beyond the range of
-   * a single Node Handle, this table is used to map the handle's node field
-   * into the actual node identifier.
-   * 
-   * This array grows as necessary; see addDTM().
+   * Map from DTM identifier numbers to the DTM objects that this manager
+   * manages, and to their addressing offsets. One DTM may have several
+   * prefix numbers, if extended node indexing is in use; in that case, the
+   * offset bound to each prefix controls which section of the DTM it maps.
+   * For small DTMs with a single identifier, the offset will always be 0.
    * 
-   * This array grows as necessary; see addDTM(). Growth is uncommon... but
-   * access needs to be blindingly fast since it's used in node addressing.
+   * Access needs to be blindingly fast since it's used in node addressing.
    * (And at the moment, that includes accessing it from DTMDefaultBase,
    * which is why this is not Protected or Private.)
    */
-  int m_dtm_offsets[] = new int[256];
+  final DTMRegistry m_registry = new DTMRegistry();
+
+  /**
+   * Map from DTM identifier numbers to DTM objects, as this manager kept
+   * them before it had a DTMRegistry. It is still kept up to date, for
+   * subclasses which read it, but the registry is what node addressing
+   * uses, and writing to this array has no effect.
+   *
+   * @deprecated Use {@link #getDTM(int)} with a node handle, or
+   * {@link #getDTMIdentity(DTM)}, instead.
+   */
+  protected DTM m_dtms[] = new DTM[256];
+
+  /** Lock held while binding and unbinding IDs, so that m_dtms follows
+   * the registry. Lookups do not take it. */
+  private final Object m_bindLock = new Object();
+
+  /**
+   * The number of documents which have been added to this manager, by
+   * addDTM() or addSharedDTM(). Releasing a DTM does not decrease it.
+   */
+  private final AtomicInteger m_addedDTMCount = new AtomicInteger();
 
   /**
    * The cache for XMLReader objects to be used if the user did not
@@ -119,6 +127,16 @@ public class DTMManagerDefault extends DTMManager
    */
   protected DefaultHandler m_defaultHandler = new DefaultHandler();
 
+  /**
+   * True if incremental builds of documents read by our own XMLReader pull
+   * their events from a StAX reader on the calling thread, rather than
+   * running the parser on a second thread through a CoroutineManager. This
+   * does not apply when our XMLReader is Xerces, whose own pull
+   * configuration is used, or when our XMLReader has been configured
+   * beyond what the StAX reader supports.
+   */
+  private boolean m_pullParsing = true;
+
   /**
    * Add a DTM to the DTM table. This convenience call adds it as the 
    * "base DTM ID", with offset 0. The other version of addDTM should 
@@ -127,7 +145,7 @@ public class DTMManagerDefault extends DTMManager
    * @param dtm Should be a valid reference to a DTM.
    * @param id Integer DTM ID to be bound to this DTM
    */
-  synchronized public void addDTM(DTM dtm, int id) {	addDTM(dtm,id,0); }
+  public void addDTM(DTM dtm, int id) {	addDTM(dtm,id,0); }
 
 	
   /**
@@ -140,7 +158,7 @@ public class DTMManagerDefault extends DTMManager
    * public DTM Handle. For the first DTM ID accessing each DTM, this is 0;
    * for overflow addressing it will be a multiple of 1<<IDENT_DTM_NODE_BITS.
    */
-  synchronized public void addDTM(DTM dtm, int id, int offset)
+  public void addDTM(DTM dtm, int id, int offset)
   {
 		if(id>=IDENT_MAX_DTMS)
 		{
@@ -148,50 +166,152 @@ public class DTMManagerDefault extends DTMManager
 	    throw new DTMException(XMLMessages.createXMLMessage(XMLErrorResources.ER_NO_DTMIDS_AVAIL, null)); //"No more DTM IDs are available!");			 
 		}
 		
-		// We used to just allocate the array size to IDENT_MAX_DTMS.
-		// But we expect to increase that to 16 bits, and I'm not willing
-		// to allocate that much space unless needed. We could use one of our
-		// handy-dandy Fast*Vectors, but this will do for now.
-		// %REVIEW%
-		int oldlen=m_dtms.length;
-		if(oldlen<=id)
-		{
-			// Various growth strategies are possible. I think we don't want 
-			// to over-allocate excessively, and I'm willing to reallocate
-			// more often to get that. See also Fast*Vector classes.
-			//
-			// %REVIEW% Should throw a more diagnostic error if we go over the max...
-			int newlen=Math.min((id+256),IDENT_MAX_DTMS);
-
-			DTM new_m_dtms[] = new DTM[newlen];
-			System.arraycopy(m_dtms,0,new_m_dtms,0,oldlen);
-			m_dtms=new_m_dtms;
-			int new_m_dtm_offsets[] = new int[newlen];
-			System.arraycopy(m_dtm_offsets,0,new_m_dtm_offsets,0,oldlen);
-			m_dtm_offsets=new_m_dtm_offsets;
-		}
-		
-    m_dtms[id] = dtm;
-		m_dtm_offsets[id]=offset;
+    bindDTM(id, dtm, offset);
+    if (0 == offset)
+      m_addedDTMCount.incrementAndGet();
     dtm.documentRegistration();
 		// The DTM should have been told who its manager was when we created it.
 		// Do we need to allow for adopting DTMs _not_ created by this manager?
   }
 
   /**
-   * Get the first free DTM ID available. %OPT% Linear search is inefficient!
+   * Bind a DTM to an ID in the registry and in m_dtms.
+   *
+   * @param id DTM ID to bind.
+   * @param dtm The DTM.
+   * @param offset The node identity offset for this ID.
    */
-  synchronized public int getFirstFreeDTMID()
+  private void bindDTM(int id, DTM dtm, int offset)
   {
-    int n = m_dtms.length;
-    for (int i = 1; i < n; i++)
+    synchronized (m_bindLock)
     {
-      if(null == m_dtms[i])
+      m_registry.bind(id, dtm, offset);
+
+      if (id >= m_dtms.length)
       {
-        return i;
+        DTM new_m_dtms[] = new DTM[Math.min(id + 256, IDENT_MAX_DTMS)];
+        System.arraycopy(m_dtms, 0, new_m_dtms, 0, m_dtms.length);
+        m_dtms = new_m_dtms;
       }
+      m_dtms[id] = dtm;
+    }
+  }
+
+  /**
+   * Remove any binding for an ID, in the registry and in m_dtms, and
+   * return the ID to the free pool.
+   *
+   * @param id DTM ID to release.
+   */
+  private void unbindDTM(int id)
+  {
+    synchronized (m_bindLock)
+    {
+      m_registry.unbind(id);
+
+      if (id > 0 && id < m_dtms.length)
+        m_dtms[id] = null;
     }
-		return n; // count on addDTM() to throw exception if out of range
+  }
+
+  /**
+   * Get the first free DTM ID available, and reserve it for the caller.
+   * The caller is expected to bind the ID with addDTM(); a reserved ID
+   * is not returned again until it has been released.
+   *
+   * @return the reserved DTM ID, or IDENT_MAX_DTMS if none is available
+   * (count on addDTM() to throw an exception in that case).
+   */
+  public int getFirstFreeDTMID()
+  {
+    return m_registry.claim();
+  }
+
+  /**
+   * Reserve a specific DTM ID for the caller, if it is free. As with
+   * getFirstFreeDTMID(), the caller is expected to bind the ID with
+   * addDTM().
+   *
+   * @param id The DTM ID wanted.
+   *
+   * @return true if the ID was reserved, false if it is already in use.
+   */
+  public boolean reserveDTMID(int id)
+  {
+    return m_registry.claim(id);
+  }
+
+  /**
+   * Make getFirstFreeDTMID() prefer IDs at or above the given one. This is
+   * intended for managers whose DTMs will be bound into other managers
+   * with addSharedDTM(), so that they seldom collide with the IDs those
+   * managers give their own documents.
+   *
+   * @param id The lowest preferred DTM ID.
+   */
+  public void setPreferredFirstDTMID(int id)
+  {
+    m_registry.setFloor(id);
+  }
+
+  /**
+   * Bind a DTM which is owned by another manager into this one, at the
+   * same DTM IDs, so that its existing node handles can be resolved through
+   * this manager too. The DTM is not migrated and is not modified; it must
+   * be complete and should be treated as read-only by both managers.
+   *
+   * @param dtm A DTM built by some other DTMManagerDefault.
+   *
+   * @return true if the DTM was bound, false if some of its IDs are
+   * already in use here (or it is not a DTMDefaultBase), in which case
+   * the caller will have to build its own copy of the document.
+   */
+  public boolean addSharedDTM(DTM dtm)
+  {
+    if (!(dtm instanceof DTMDefaultBase))
+      return false;
+
+    SuballocatedIntVector ids = ((DTMDefaultBase) dtm).getDTMIDs();
+    if (null == ids)
+      return false;
+
+    int n = ids.size();
+    for (int i = 0; i < n; i++)
+    {
+      int id = ids.elementAt(i) >>> IDENT_DTM_NODE_BITS;
+      if (m_registry.getDTM(id) == dtm)
+        continue;
+
+      if (!m_registry.claim(id))
+      {
+        // Give back what we took so far.
+        for (int j = 0; j < i; j++)
+          unbindDTM(ids.elementAt(j) >>> IDENT_DTM_NODE_BITS);
+        return false;
+      }
+    }
+
+    for (int i = 0; i < n; i++)
+    {
+      bindDTM(ids.elementAt(i) >>> IDENT_DTM_NODE_BITS, dtm,
+                      i << IDENT_DTM_NODE_BITS);
+    }
+    m_addedDTMCount.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Return the number of documents which have been added to this manager
+   * since it was created, whether it built them or they were bound with
+   * addSharedDTM(). Released documents are still counted. A caller which
+   * keeps a manager for one document can compare this before and after
+   * some work to tell whether other documents were brought in.
+   *
+   * @return the number of documents added.
+   */
+  public int getAddedDTMCount()
+  {
+    return m_addedDTMCount.get();
   }
 
   /**
@@ -244,8 +364,43 @@ public class DTMManagerDefault extends DTMManager
                          " source: "+source.getSystemId()
                          );
 
-    XMLStringFactory xstringFactory = m_xsf;
     int dtmPos = getFirstFreeDTMID();
+    boolean built = false;
+    try
+    {
+      DTM dtm = buildDTM(source, unique, whiteSpaceFilter, incremental,
+                         doIndexing, dtmPos);
+      built = true;
+      return dtm;
+    }
+    finally
+    {
+      // Don't leak the IDs of a DTM which could not be built.
+      if (!built)
+        releaseFailedDTM(dtmPos);
+    }
+  }
+
+  /**
+   * Build the DTM for getDTM(), under the DTM ID it has reserved.
+   *
+   * @param source the specification of the source object.
+   * @param unique true if the returned DTM must be unique.
+   * @param whiteSpaceFilter Enables filtering of whitespace nodes, and may
+   *                         be null.
+   * @param incremental true if the DTM should be built incrementally, if
+   *                    possible.
+   * @param doIndexing true if the caller considers it worth it to use
+   *                   indexing schemes.
+   * @param dtmPos The DTM ID reserved for the document.
+   *
+   * @return a non-null DTM reference.
+   */
+  private DTM buildDTM(Source source, boolean unique,
+                       DTMWSFilter whiteSpaceFilter,
+                       boolean incremental, boolean doIndexing, int dtmPos)
+  {
+    XMLStringFactory xstringFactory = m_xsf;
     int documentID = dtmPos << IDENT_DTM_NODE_BITS;
 
     if ((null != source) && source instanceof DOMSource)
@@ -262,6 +417,23 @@ public class DTMManagerDefault extends DTMManager
 
       return dtm;
     }
+    else if (source instanceof DTMImageSource)
+    {
+      SAX2DTM dtm;
+      try
+      {
+        dtm = DTMImage.load(this, (DTMImageSource) source, documentID,
+                            xstringFactory);
+      }
+      catch (java.io.IOException e)
+      {
+        throw new DTMException(e);
+      }
+
+      addDTM(dtm, dtmPos, 0);
+
+      return dtm;
+    }
     else
     {
       boolean isSAXSource = (null != source)
@@ -353,6 +525,16 @@ public class DTMManagerDefault extends DTMManager
               }
             }
 
+            if (coParser==null && m_pullParsing && null != xmlSource
+                && !(source instanceof SAXSource
+                     && null != ((SAXSource) source).getXMLReader())
+                && !isConfigured(reader)) {
+              // Pull the events from a StAX reader on this thread. A
+              // user-supplied or configured XMLReader has to be run as it
+              // is.
+              coParser = new IncrementalSAXSource_StAX();
+            }
+
             if (coParser==null ) {
               // Create a IncrementalSAXSource to run on the secondary thread.
               if (null == reader) {
@@ -387,6 +569,9 @@ public class DTMManagerDefault extends DTMManager
             // Have the DTM set itself up as IncrementalSAXSource's listener.
             dtm.setIncrementalSAXSource(coParser);
 
+            if (m_prunable && !(dtm instanceof SAX2RTFDTM))
+              dtm.enablePruning();
+
             if (null == xmlSource) {
 
               // Then the user will construct it themselves.
@@ -479,6 +664,131 @@ public class DTMManagerDefault extends DTMManager
     }
   }
 
+  /**
+   * Give back the DTM IDs taken by a document whose build failed: the one
+   * reserved for it by getDTM(), and any it claimed for extended
+   * addressing, whether or not it got as far as being added under the
+   * first.
+   *
+   * @param dtmPos The DTM ID reserved for the document.
+   */
+  protected void releaseFailedDTM(int dtmPos)
+  {
+    DTM dtm = m_registry.getDTM(dtmPos);
+    if (null == dtm)
+    {
+      // A DTM image can fail to load after claiming its extra IDs, which
+      // are bound to the DTM before its first ID is.
+      int documentID = dtmPos << IDENT_DTM_NODE_BITS;
+      int limit = m_registry.getScanLimit();
+      for (int i = 0; i < limit && null == dtm; i++)
+      {
+        DTM candidate = m_registry.getDTM(i);
+        if (candidate instanceof DTMDefaultBase)
+        {
+          SuballocatedIntVector ids =
+            ((DTMDefaultBase) candidate).getDTMIDs();
+          if (null != ids && ids.size() > 0
+              && ids.elementAt(0) == documentID)
+            dtm = candidate;
+        }
+      }
+    }
+
+    if (null != dtm)
+      release(dtm, true);
+    else
+      unbindDTM(dtmPos);
+  }
+
+  /**
+   * Tell if our XMLReader has been configured in a way the StAX reader
+   * used for pull parsing would not honor: a SAX driver or SAXParserFactory
+   * chosen through the system properties, an EntityResolver, validation,
+   * external general entities turned off, or a disallowed DOCTYPE. Such a
+   * reader is run on the secondary thread instead.
+   *
+   * @param reader The XMLReader that would otherwise parse the document,
+   * which may be null.
+   *
+   * @return true if the reader must be used as it is.
+   */
+  private static boolean isConfigured(XMLReader reader)
+  {
+    try
+    {
+      if (null != System.getProperty("org.xml.sax.driver")
+          || null != System.getProperty("javax.xml.parsers.SAXParserFactory"))
+        return true;
+    }
+    catch (SecurityException se)
+    {
+      return true;
+    }
+
+    if (null == reader)
+      return false;
+
+    return null != reader.getEntityResolver()
+           || hasFeature(reader, "http://xml.org/sax/features/validation",
+                         false)
+           || !hasFeature(reader,
+                          "http://xml.org/sax/features/external-general-entities",
+                          true)
+           || hasFeature(reader,
+                         "http://apache.org/xml/features/disallow-doctype-decl",
+                         false);
+  }
+
+  /**
+   * Get the value of a feature of an XMLReader.
+   *
+   * @param reader The XMLReader to ask.
+   * @param name The feature name.
+   * @param dflt The value to assume if the reader does not know the feature.
+   *
+   * @return the value of the feature.
+   */
+  private static boolean hasFeature(XMLReader reader, String name,
+                                    boolean dflt)
+  {
+    try
+    {
+      return reader.getFeature(name);
+    }
+    catch (SAXException se)
+    {
+      return dflt;
+    }
+  }
+
+  /**
+   * Tell if incremental builds pull their events from a StAX reader.
+   *
+   * @return true if documents read by our own XMLReader are built
+   * incrementally on the calling thread.
+   */
+  public boolean getPullParsing()
+  {
+    return m_pullParsing;
+  }
+
+  /**
+   * Set whether incremental builds of documents read by our own XMLReader
+   * pull their events from a StAX reader on the calling thread (the
+   * default), or run the parser on a second thread. This does not apply
+   * when our XMLReader is Xerces, whose own pull configuration is used,
+   * or when it has an EntityResolver, non-default features, or was chosen
+   * through the org.xml.sax.driver or javax.xml.parsers.SAXParserFactory
+   * system properties.
+   *
+   * @param pullParsing true to parse on the calling thread.
+   */
+  public void setPullParsing(boolean pullParsing)
+  {
+    m_pullParsing = pullParsing;
+  }
+
   /**
    * Given a W3C DOM node, try and return a DTM handle.
    * Note: calling this may be non-optimal, and there is no guarantee that
@@ -488,7 +798,7 @@ public class DTMManagerDefault extends DTMManager
    *
    * @return a valid DTM handle.
    */
-  synchronized public int getDTMHandleFromNode(org.w3c.dom.Node node)
+  public int getDTMHandleFromNode(org.w3c.dom.Node node)
   {
     if(null == node)
       throw new IllegalArgumentException(XMLMessages.createXMLMessage(XMLErrorResources.ER_NODE_NON_NULL, null)); //"node must be non-null for getDTMHandleFromNode!");
@@ -519,10 +829,10 @@ public class DTMManagerDefault extends DTMManager
 			// POSSIBLE SOLUTIONS: 
 			//   Generate a list of _unique_ DTM objects?
 			//   Have each DTM cache last DOM node search?
-			int max = m_dtms.length;
+			int max = m_registry.getScanLimit();
       for(int i = 0; i < max; i++)
         {
-          DTM thisDTM=m_dtms[i];
+          DTM thisDTM=m_registry.getDTM(i);
           if((null != thisDTM) && thisDTM instanceof DOM2DTM)
           {
             int handle=((DOM2DTM)thisDTM).getHandleOfNode(node);
@@ -640,20 +950,11 @@ public class DTMManagerDefault extends DTMManager
    *
    * @return a reference to the DTM object containing this node.
    */
-  synchronized public DTM getDTM(int nodeHandle)
+  public DTM getDTM(int nodeHandle)
   {
-    try
-    {
-      // Performance critical function.
-      return m_dtms[nodeHandle >>> IDENT_DTM_NODE_BITS];
-    }
-    catch(java.lang.ArrayIndexOutOfBoundsException e)
-    {
-      if(nodeHandle==DTM.NULL)
-				return null;		// Accept as a special case.
-      else
-				throw e;		// Programming error; want to know about it.
-    }    
+    // Performance critical function. DTM.NULL addresses a reserved ID,
+    // so it is accepted as a special case and yields null.
+    return m_registry.getDTM(nodeHandle >>> IDENT_DTM_NODE_BITS);
   }
 
   /**
@@ -666,7 +967,7 @@ public class DTMManagerDefault extends DTMManager
    * @return The DTM ID (as the high bits of a NodeHandle, not as our
    * internal index), or -1 if the DTM doesn't belong to this manager.
    */
-  synchronized public int getDTMIdentity(DTM dtm)
+  public int getDTMIdentity(DTM dtm)
   {
 	// Shortcut using DTMDefaultBase's extension hooks
 	// %REVIEW% Should the lookup be part of the basic DTM API?
@@ -675,17 +976,19 @@ public class DTMManagerDefault extends DTMManager
 		DTMDefaultBase dtmdb=(DTMDefaultBase)dtm;
 		if(dtmdb.getManager()==this)
 			return dtmdb.getDTMIDs().elementAt(0);
+		else if(dtmdb.getManager()!=null && isSharedDTM(dtmdb))
+			return dtmdb.getDTMIDs().elementAt(0);
 		else
 			return -1;
 	}
 				
-    int n = m_dtms.length;
+    int n = m_registry.getScanLimit();
 
     for (int i = 0; i < n; i++)
     {
-      DTM tdtm = m_dtms[i];
+      DTM tdtm = m_registry.getDTM(i);
 
-      if (tdtm == dtm && m_dtm_offsets[i]==0)
+      if (tdtm == dtm && m_registry.getOffset(i)==0)
         return i << IDENT_DTM_NODE_BITS;
     }
 
@@ -707,7 +1010,7 @@ public class DTMManagerDefault extends DTMManager
    * @return true if the DTM was released, false if shouldHardDelete was set
    * and we decided not to.
    */
-  synchronized public boolean release(DTM dtm, boolean shouldHardDelete)
+  public boolean release(DTM dtm, boolean shouldHardDelete)
   {
     if(DEBUG)
     {
@@ -720,6 +1023,20 @@ public class DTMManagerDefault extends DTMManager
 			 );
     }
 
+    // A DTM bound with addSharedDTM() still belongs to its own manager;
+    // just forget about it.
+    if (dtm instanceof DTMDefaultBase
+        && ((DTMDefaultBase) dtm).getManager() != this)
+    {
+      if (isSharedDTM((DTMDefaultBase) dtm))
+      {
+        SuballocatedIntVector ids = ((DTMDefaultBase) dtm).getDTMIDs();
+        for (int i = ids.size() - 1; i >= 0; --i)
+          unbindDTM(ids.elementAt(i) >>> IDENT_DTM_NODE_BITS);
+      }
+      return true;
+    }
+
     if (dtm instanceof SAX2DTM)
     {
       ((SAX2DTM) dtm).clearCoRoutine();
@@ -737,14 +1054,14 @@ public class DTMManagerDefault extends DTMManager
 		{
 			org.apache.xml.utils.SuballocatedIntVector ids=((DTMDefaultBase)dtm).getDTMIDs();
 			for(int i=ids.size()-1;i>=0;--i)
-				m_dtms[ids.elementAt(i)>>>DTMManager.IDENT_DTM_NODE_BITS]=null;
+				unbindDTM(ids.elementAt(i)>>>DTMManager.IDENT_DTM_NODE_BITS);
 		}
 		else
 		{
 			int i = getDTMIdentity(dtm);
 		    if (i >= 0)
 			{
-				m_dtms[i >>> DTMManager.IDENT_DTM_NODE_BITS] = null;
+				unbindDTM(i >>> DTMManager.IDENT_DTM_NODE_BITS);
 			}
 		}
 
@@ -752,6 +1069,21 @@ public class DTMManagerDefault extends DTMManager
     return true;
   }
 
+  /**
+   * Tell whether a DTM owned by another manager has been bound into this
+   * one with addSharedDTM().
+   *
+   * @param dtm The DTM.
+   *
+   * @return true if the DTM's first ID is bound to it here.
+   */
+  private boolean isSharedDTM(DTMDefaultBase dtm)
+  {
+    SuballocatedIntVector ids = dtm.getDTMIDs();
+    return null != ids && ids.size() > 0
+           && m_registry.getDTM(ids.elementAt(0) >>> IDENT_DTM_NODE_BITS) == dtm;
+  }
+
   /**
    * Method createDocumentFragment
    *
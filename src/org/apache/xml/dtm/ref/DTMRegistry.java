@@ -0,0 +1,310 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.dtm.ref;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+
+/**
+ * The table mapping DTM identifier numbers to the DTMs (and addressing
+ * offsets) registered with a {@link DTMManagerDefault}.
+ * <p>
+ * The table is safe for concurrent use without any global lock. Slots are
+ * held in fixed-size chunks which are allocated on first use and never
+ * copied, so a lookup by DTM ID is at most two volatile reads. Free IDs are
+ * tracked in a bitmap; claiming an ID is a compare-and-set on the single
+ * word of the bitmap which contains it, so threads registering documents
+ * only contend when they race for the same word.</p>
+ * <p>
+ * DTM ID 0 is never handed out, matching the historic behaviour of
+ * DTMManagerDefault.getFirstFreeDTMID(). Neither is the highest ID, since
+ * DTM.NULL shifted down would otherwise address it.</p>
+ */
+final class DTMRegistry
+{
+  /** log2 of the number of slots in each chunk. */
+  private static final int CHUNK_BITS = 8;
+
+  /** The number of slots in each chunk. */
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+  /** Mask used to find a slot within its chunk. */
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  /** The number of DTM IDs this table can address. */
+  private static final int MAX_IDS = DTMManager.IDENT_MAX_DTMS;
+
+  /**
+   * The chunks of slots, indexed by (id &gt;&gt;&gt; CHUNK_BITS). Entries
+   * are null until some ID in their range is registered.
+   */
+  private final AtomicReferenceArray m_chunks =
+    new AtomicReferenceArray(MAX_IDS >>> CHUNK_BITS);
+
+  /** One bit per DTM ID; a set bit means the ID is claimed or bound. */
+  private final AtomicLongArray m_inUse = new AtomicLongArray(MAX_IDS >>> 6);
+
+  /**
+   * The bitmap word at which the next search for a free ID starts. This is
+   * only a hint, so it is not updated atomically with the bitmap itself.
+   */
+  private volatile int m_searchHint = 0;
+
+  /**
+   * The bitmap word at which searches for a free ID normally start; see
+   * {@link #setFloor(int)}.
+   */
+  private volatile int m_floorWord = 0;
+
+  /**
+   * The highest chunk index which has been allocated, or -1 if none.
+   * Used to bound linear scans over the table.
+   */
+  private volatile int m_highChunk = -1;
+
+  /**
+   * Create an empty registry.
+   */
+  DTMRegistry()
+  {
+    // ID 0 and the ID aliased by DTM.NULL are reserved.
+    m_inUse.set(0, 1L);
+    m_inUse.set(m_inUse.length() - 1, 1L << 63);
+  }
+
+  /**
+   * Make claim() prefer IDs at or above the given one. Lower IDs are still
+   * handed out once all the higher ones are in use. This lets a manager
+   * whose DTMs are bound into other managers (see
+   * DTMManagerDefault.addSharedDTM()) keep clear of the IDs those managers
+   * assign to their own documents.
+   *
+   * @param id The lowest preferred ID, rounded down to a multiple of 64.
+   */
+  void setFloor(int id)
+  {
+    m_floorWord = Math.max(0, Math.min(id, MAX_IDS - 1)) >>> 6;
+    m_searchHint = m_floorWord;
+  }
+
+  /**
+   * Return the DTM bound to the given ID.
+   *
+   * @param id DTM ID (the high bits of a node handle, shifted down).
+   *
+   * @return the DTM, or null if the ID is out of range or unbound.
+   */
+  DTM getDTM(int id)
+  {
+    if (id < 0 || id >= MAX_IDS)
+      return null;
+
+    Chunk chunk = (Chunk) m_chunks.get(id >>> CHUNK_BITS);
+
+    return (null == chunk) ? null : (DTM) chunk.m_dtms.get(id & CHUNK_MASK);
+  }
+
+  /**
+   * Return the node identity offset bound to the given ID.
+   *
+   * @param id DTM ID (the high bits of a node handle, shifted down).
+   *
+   * @return the offset, or 0 if the ID is out of range or unbound.
+   */
+  int getOffset(int id)
+  {
+    if (id < 0 || id >= MAX_IDS)
+      return 0;
+
+    Chunk chunk = (Chunk) m_chunks.get(id >>> CHUNK_BITS);
+
+    return (null == chunk) ? 0 : chunk.m_offsets.get(id & CHUNK_MASK);
+  }
+
+  /**
+   * Claim the lowest free DTM ID. The ID stays reserved until it is
+   * released with {@link #unbind(int)}, even if nothing is ever bound to it.
+   *
+   * @return the claimed ID, or IDENT_MAX_DTMS if every ID is in use.
+   */
+  int claim()
+  {
+    int words = m_inUse.length();
+    int start = m_searchHint;
+
+    for (int n = 0; n < words; n++)
+    {
+      int w = start + n;
+      if (w >= words)
+        w -= words;
+
+      long bits = m_inUse.get(w);
+      while (bits != -1L)
+      {
+        long free = ~bits & (bits + 1);   // lowest clear bit
+        if (m_inUse.compareAndSet(w, bits, bits | free))
+        {
+          m_searchHint = w;
+          return (w << 6) + Long.numberOfTrailingZeros(free);
+        }
+        bits = m_inUse.get(w);
+      }
+    }
+
+    return MAX_IDS;
+  }
+
+  /**
+   * Claim a specific DTM ID, if it is free.
+   *
+   * @param id The DTM ID wanted.
+   *
+   * @return true if the ID was free and is now reserved for the caller.
+   */
+  boolean claim(int id)
+  {
+    if (id <= 0 || id >= MAX_IDS)
+      return false;
+
+    int w = id >>> 6;
+    long bit = 1L << (id & 63);
+    long bits;
+    do
+    {
+      bits = m_inUse.get(w);
+      if ((bits & bit) != 0)
+        return false;
+    }
+    while (!m_inUse.compareAndSet(w, bits, bits | bit));
+
+    return true;
+  }
+
+  /**
+   * Bind a DTM to an ID, claiming the ID if that has not already been done.
+   *
+   * @param id DTM ID to bind.
+   * @param dtm The DTM.
+   * @param offset The node identity offset for this ID.
+   */
+  void bind(int id, DTM dtm, int offset)
+  {
+    int w = id >>> 6;
+    long bit = 1L << (id & 63);
+    long bits;
+    do
+    {
+      bits = m_inUse.get(w);
+    }
+    while ((bits & bit) == 0 && !m_inUse.compareAndSet(w, bits, bits | bit));
+
+    Chunk chunk = getOrCreateChunk(id >>> CHUNK_BITS);
+
+    // Write the offset first; the volatile write of the DTM publishes it.
+    chunk.m_offsets.set(id & CHUNK_MASK, offset);
+    chunk.m_dtms.set(id & CHUNK_MASK, dtm);
+  }
+
+  /**
+   * Remove any binding for an ID, and return the ID to the free pool.
+   *
+   * @param id DTM ID to release.
+   */
+  void unbind(int id)
+  {
+    if (id <= 0 || id >= MAX_IDS)
+      return;
+
+    Chunk chunk = (Chunk) m_chunks.get(id >>> CHUNK_BITS);
+    if (null != chunk)
+    {
+      chunk.m_dtms.set(id & CHUNK_MASK, null);
+      chunk.m_offsets.set(id & CHUNK_MASK, 0);
+    }
+
+    int w = id >>> 6;
+    long bit = 1L << (id & 63);
+    long bits;
+    do
+    {
+      bits = m_inUse.get(w);
+    }
+    while ((bits & bit) != 0 && !m_inUse.compareAndSet(w, bits, bits & ~bit));
+
+    if (w < m_searchHint && w >= m_floorWord)
+      m_searchHint = w;
+  }
+
+  /**
+   * Return an upper bound on the IDs which may currently be bound, for use
+   * by callers which must scan the whole table.
+   *
+   * @return one more than the highest ID which may be bound.
+   */
+  int getScanLimit()
+  {
+    return (m_highChunk + 1) << CHUNK_BITS;
+  }
+
+  /**
+   * Return the chunk with the given index, allocating it if needed.
+   *
+   * @param index Chunk index.
+   *
+   * @return the non-null chunk.
+   */
+  private Chunk getOrCreateChunk(int index)
+  {
+    Chunk chunk = (Chunk) m_chunks.get(index);
+    if (null == chunk)
+    {
+      Chunk newChunk = new Chunk();
+      if (m_chunks.compareAndSet(index, null, newChunk))
+        chunk = newChunk;
+      else
+        chunk = (Chunk) m_chunks.get(index);
+
+      // Chunk allocation is rare, so a lock is acceptable here.
+      synchronized (this)
+      {
+        if (m_highChunk < index)
+          m_highChunk = index;
+      }
+    }
+    return chunk;
+  }
+
+  /**
+   * A fixed-size block of slots.
+   */
+  private static final class Chunk
+  {
+    /** The DTM bound to each slot, or null. */
+    final AtomicReferenceArray m_dtms = new AtomicReferenceArray(CHUNK_SIZE);
+
+    /** The node identity offset bound to each slot. */
+    final AtomicIntegerArray m_offsets = new AtomicIntegerArray(CHUNK_SIZE);
+  }
+}
@@ -86,6 +86,13 @@ public class DTMStringPool
       m_stringToInt.clear();
     }
 
+  /** @return the number of strings in the pool, which is one more than the
+   * highest index assigned. */
+  public int size()
+    {
+      return m_intToString.size();
+    }
+
   /** @return string whose value is uniquely identified by this integer index.
    * @throws java.lang.ArrayIndexOutOfBoundsException
    *  if index doesn't map to a string.
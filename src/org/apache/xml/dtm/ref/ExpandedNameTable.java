@@ -33,12 +33,18 @@ import org.apache.xml.dtm.DTM;
  * are combined in getExpandedTypeID() method to share the same hash calculation
  * code. We only need to implement the rehash() interface which is used to
  * expand the hash table.
+ *
+ * The table may be shared by DTMs which are read by several threads at
+ * once (see SharedDTMCache), so lookups of existing names take no lock,
+ * and only the creation of new entries is synchronized. The arrays are
+ * replaced, never modified in place, except to fill slots beyond the
+ * published size.
  */
 public class ExpandedNameTable
 {
 
   /** Array of extended types for this document   */
-  private ExtendedType[] m_extendedTypes;
+  private volatile ExtendedType[] m_extendedTypes;
 
   /** The initial size of the m_extendedTypes array */
   private static int m_initialSize = 128;
@@ -63,10 +69,6 @@ public class ExpandedNameTable
   public static final int NOTATION = ((int)DTM.NOTATION_NODE) ;
   public static final int NAMESPACE = ((int)DTM.NAMESPACE_NODE) ;
 
-  /** Workspace for lookup. NOT THREAD SAFE!
-   * */
-  ExtendedType hashET = new ExtendedType(-1, "", "");
-
   /** The array to store the default extended types. */
   private static ExtendedType[] m_defaultExtendedTypes;
 
@@ -99,7 +101,7 @@ public class ExpandedNameTable
    * The internal array to store the hash entries.
    * Each array member is a slot for a hash bucket.
    */
-  private HashEntry[] m_table;
+  private volatile HashEntry[] m_table;
 
   /**
    * Init default values
@@ -186,34 +188,71 @@ public class ExpandedNameTable
     // Calculate the hash code
     int hash = type + namespace.hashCode() + localName.hashCode();
     
-    // Redefine the hashET object to represent the new expanded name.
-    hashET.redefine(type, namespace, localName, hash);
-    
+    // Look up the expanded name in the hash table. Return the id if
+    // the expanded name is already in the hash table.
+    int id = lookup(m_table, namespace, localName, type, hash);
+    if (DTM.NULL != id || searchOnly)
+      return id;
+
+    return addExpandedTypeID(namespace, localName, type, hash);
+  }
+
+  /**
+   * Search a hash table for an expanded name.
+   *
+   * @param table The table to search.
+   * @param namespace The namespace, not null.
+   * @param localName The local name, not null.
+   * @param type The node type.
+   * @param hash The hash code of the expanded name.
+   *
+   * @return the expanded-name id, or DTM.NULL if it is not in the table.
+   */
+  private static int lookup(HashEntry[] table, String namespace,
+                            String localName, int type, int hash)
+  {
     // Calculate the index into the HashEntry table.
-    int index = hash % m_capacity;
+    int index = hash % table.length;
     if (index < 0)
       index = -index;
 
-    // Look up the expanded name in the hash table. Return the id if
-    // the expanded name is already in the hash table.
-    for (HashEntry e = m_table[index]; e != null; e = e.next)
+    for (HashEntry e = table[index]; e != null; e = e.next)
     {
-      if (e.hash == hash && e.key.equals(hashET))
+      ExtendedType key = e.key;
+      if (e.hash == hash && key.getNodeType() == type
+          && key.getLocalName().equals(localName)
+          && key.getNamespace().equals(namespace))
         return e.value;
     }
-    
-    if (searchOnly)
-    {
-      return DTM.NULL;
-    }
+    return DTM.NULL;
+  }
+
+  /**
+   * Add an expanded name to the table, unless another thread has just
+   * done so.
+   *
+   * @param namespace The namespace, not null.
+   * @param localName The local name, not null.
+   * @param type The node type.
+   * @param hash The hash code of the expanded name.
+   *
+   * @return the expanded-name id of the node.
+   */
+  private synchronized int addExpandedTypeID(String namespace,
+                                             String localName,
+                                             int type, int hash)
+  {
+    int id = lookup(m_table, namespace, localName, type, hash);
+    if (DTM.NULL != id)
+      return id;
 
     // Expand the internal HashEntry array if necessary.
-    if (m_nextType > m_threshold) {
+    if (m_nextType > m_threshold)
       rehash();
-      index = hash % m_capacity;
-      if (index < 0)
-        index = -index;
-    }
+
+    int index = hash % m_capacity;
+    if (index < 0)
+      index = -index;
     
     // Create a new ExtendedType object
     ExtendedType newET = new ExtendedType(type, namespace, localName, hash);
@@ -229,9 +268,12 @@ public class ExpandedNameTable
     m_extendedTypes[m_nextType] = newET;
     
     // Create a new hash entry for the new ExtendedType and put it into 
-    // the table.
-    HashEntry entry = new HashEntry(newET, m_nextType, hash, m_table[index]);
-    m_table[index] = entry;
+    // the table. Entries are only ever prepended, so a concurrent lookup
+    // walking the old chain is not disturbed.
+    HashEntry[] table = m_table;
+    HashEntry entry = new HashEntry(newET, m_nextType, hash, table[index]);
+    table[index] = entry;
+    m_table = table;  // volatile write publishes the new entry
 
     return m_nextType++;
   }
@@ -251,22 +293,22 @@ public class ExpandedNameTable
     m_capacity = newCapacity;
     m_threshold = (int)(newCapacity * m_loadFactor);
       
-    m_table = new HashEntry[newCapacity];
+    // Copy the entries rather than relinking them, so that lookups still
+    // walking the old table see consistent chains; publish when complete.
+    HashEntry[] newTable = new HashEntry[newCapacity];
     for (int i = oldCapacity-1; i >=0 ; i--)
     {
-      for (HashEntry old = oldTable[i]; old != null; )
+      for (HashEntry e = oldTable[i]; e != null; e = e.next)
       {
-        HashEntry e = old;
-        old = old.next;
-          
         int newIndex = e.hash % newCapacity;
         if (newIndex < 0)
           newIndex = -newIndex;
           
-        e.next = m_table[newIndex];
-        m_table[newIndex] = e;
+        newTable[newIndex] =
+          new HashEntry(e.key, e.value, e.hash, newTable[newIndex]);
       }
     }
+    m_table = newTable;
   }
 
   /**
@@ -0,0 +1,450 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+
+package org.apache.xml.dtm.ref;
+
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.EntityDeclaration;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xml.res.XMLErrorResources;
+import org.apache.xml.res.XMLMessages;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/** <p>IncrementalSAXSource_StAX drives a StAX XMLStreamReader directly on
+ * the calling thread, turning its events into SAX events a few at a time.
+ * Unlike IncrementalSAXSource_Filter, it needs no second thread and no
+ * CoroutineManager: each call to deliverMoreNodes() simply pulls events
+ * from the reader until at least one node has been produced.</p>
+ *
+ * <p>Character data is handed to the ContentHandler straight from the
+ * reader's buffer, without copying. Namespace declarations are reported
+ * through startPrefixMapping() only, as a SAX parser does with the
+ * namespace-prefixes feature off. Unparsed entities are reported to the
+ * DTDHandler if the StAX implementation exposes them, as the JDK's does.</p>
+ * */
+public class IncrementalSAXSource_StAX
+  implements IncrementalSAXSource, Locator
+{
+  /** The factory used by all instances, created on first use. */
+  private static XMLInputFactory m_factory = null;
+
+  private ContentHandler m_contentHandler = null;
+  private LexicalHandler m_lexicalHandler = null;
+  private DTDHandler m_dtdHandler = null;
+
+  /** The reader being pulled from, or null if not parsing. */
+  private XMLStreamReader m_reader = null;
+
+  /** The system ID of the document, for the Locator. */
+  private String m_systemId = null;
+
+  /** The public ID of the document, for the Locator. */
+  private String m_publicId = null;
+
+  /** The element nesting depth, to drop whitespace outside the root. */
+  private int m_depth = 0;
+
+  /** Reused to pass the attributes of each element. */
+  private final AttributesImpl m_attributes = new AttributesImpl();
+
+  /** Create a IncrementalSAXSource_StAX. The StAX implementation is the
+   * one found by XMLInputFactory.newInstance().
+   * */
+  public IncrementalSAXSource_StAX()
+  {
+  }
+
+  /** Get the factory shared by all instances, configured to report
+   * namespaces, replace entity references and not coalesce text.
+   *
+   * @return the factory
+   * */
+  private static synchronized XMLInputFactory getFactory()
+  {
+    if (null == m_factory)
+    {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+      factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
+                          Boolean.TRUE);
+      factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+      m_factory = factory;
+    }
+    return m_factory;
+  }
+
+  // ------------------------------------------------------------------
+  // SAX Output API
+  // ------------------------------------------------------------------
+
+  public void setContentHandler(ContentHandler handler)
+  {
+    m_contentHandler = handler;
+  }
+
+  public void setLexicalHandler(LexicalHandler handler)
+  {
+    m_lexicalHandler = handler;
+  }
+
+  public void setDTDHandler(DTDHandler handler)
+  {
+    m_dtdHandler = handler;
+  }
+
+  // ------------------------------------------------------------------
+  // Command Input API
+  // ------------------------------------------------------------------
+
+  /** startParse() opens the document, and reports its prolog and the start
+   * of the document element. Nothing more is parsed until
+   * deliverMoreNodes() is called.
+   *
+   * @param source The input to parse.
+   * @exception SAXException if the document can not be opened.
+   * */
+  public void startParse(InputSource source) throws SAXException
+  {
+    if (null != m_reader)
+      throw new SAXException(XMLMessages.createXMLMessage(XMLErrorResources.ER_STARTPARSE_WHILE_PARSING, null)); //"startParse may not be called while parsing.");
+
+    m_systemId = source.getSystemId();
+    m_publicId = source.getPublicId();
+    m_depth = 0;
+
+    StreamSource streamSource;
+    if (null != source.getCharacterStream())
+      streamSource = new StreamSource(source.getCharacterStream(), m_systemId);
+    else if (null != source.getByteStream())
+    {
+      if (null != source.getEncoding())
+      {
+        try
+        {
+          streamSource = new StreamSource(
+              new InputStreamReader(source.getByteStream(), source.getEncoding()),
+              m_systemId);
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+          throw new SAXException(uee);
+        }
+      }
+      else
+        streamSource = new StreamSource(source.getByteStream(), m_systemId);
+    }
+    else
+      streamSource = new StreamSource(m_systemId);
+    streamSource.setPublicId(m_publicId);
+
+    try
+    {
+      m_reader = getFactory().createXMLStreamReader(streamSource);
+    }
+    catch (XMLStreamException xse)
+    {
+      throw toSAXException(xse);
+    }
+    catch (RuntimeException re)
+    {
+      throw new SAXException(XMLMessages.createXMLMessage(XMLErrorResources.ER_COULD_NOT_INIT_PARSER, null), re); //"could not initialize parser with");
+    }
+
+    m_contentHandler.setDocumentLocator(this);
+    m_contentHandler.startDocument();
+
+    // Deliver the prolog, up to the start of the document element, so that
+    // the DTD's unparsed entities are known before the document is used.
+    try
+    {
+      int event = XMLStreamConstants.START_DOCUMENT;
+      while (XMLStreamConstants.START_ELEMENT != event && m_reader.hasNext())
+      {
+        event = m_reader.next();
+        deliverEvent(event);
+      }
+    }
+    catch (XMLStreamException xse)
+    {
+      close();
+      throw toSAXException(xse);
+    }
+  }
+
+  /** deliverMoreNodes() pulls events from the reader until at least one
+   * node has been delivered, or the document ends.
+   *
+   * @param parsemore If true, tells the reader to deliver another chunk of
+   * events. If false, closes the reader.
+   *
+   * @return Boolean.TRUE if more data may be available for further
+   * parsing, Boolean.FALSE if parsing ran to completion or was ended by
+   * deliverMoreNodes(false), or the exception which stopped parsing.
+   * */
+  public Object deliverMoreNodes(boolean parsemore)
+  {
+    if (null == m_reader)
+      return Boolean.FALSE;
+
+    if (!parsemore)
+    {
+      close();
+      return Boolean.FALSE;
+    }
+
+    try
+    {
+      while (m_reader.hasNext())
+      {
+        if (deliverEvent(m_reader.next()))
+          return Boolean.TRUE;
+      }
+      close();
+      return Boolean.FALSE;
+    }
+    catch (XMLStreamException xse)
+    {
+      close();
+      return toSAXException(xse);
+    }
+    catch (SAXException se)
+    {
+      close();
+      return se;
+    }
+    catch (RuntimeException re)
+    {
+      close();
+      return re;
+    }
+  }
+
+  /** Turn one StAX event into SAX events.
+   *
+   * @param event The event type, as returned by XMLStreamReader.next().
+   * @return true if a node was delivered, or the document ended.
+   * @exception SAXException thrown by a handler.
+   * @exception XMLStreamException if the reader fails.
+   * */
+  private boolean deliverEvent(int event)
+    throws SAXException, XMLStreamException
+  {
+    XMLStreamReader reader = m_reader;
+    switch (event)
+    {
+    case XMLStreamConstants.START_ELEMENT :
+    {
+      m_depth++;
+      int nsCount = reader.getNamespaceCount();
+      for (int i = 0; i < nsCount; i++)
+        m_contentHandler.startPrefixMapping(nonNull(reader.getNamespacePrefix(i)),
+                                            nonNull(reader.getNamespaceURI(i)));
+
+      AttributesImpl atts = m_attributes;
+      atts.clear();
+      int attCount = reader.getAttributeCount();
+      for (int i = 0; i < attCount; i++)
+      {
+        String localName = reader.getAttributeLocalName(i);
+        atts.addAttribute(nonNull(reader.getAttributeNamespace(i)), localName,
+                          qName(reader.getAttributePrefix(i), localName),
+                          reader.getAttributeType(i),
+                          reader.getAttributeValue(i));
+      }
+
+      String localName = reader.getLocalName();
+      m_contentHandler.startElement(nonNull(reader.getNamespaceURI()),
+                                    localName,
+                                    qName(reader.getPrefix(), localName), atts);
+      return true;
+    }
+    case XMLStreamConstants.END_ELEMENT :
+    {
+      m_depth--;
+      String localName = reader.getLocalName();
+      m_contentHandler.endElement(nonNull(reader.getNamespaceURI()), localName,
+                                  qName(reader.getPrefix(), localName));
+      int nsCount = reader.getNamespaceCount();
+      for (int i = 0; i < nsCount; i++)
+        m_contentHandler.endPrefixMapping(nonNull(reader.getNamespacePrefix(i)));
+      return true;
+    }
+    case XMLStreamConstants.CHARACTERS :
+    case XMLStreamConstants.SPACE :
+      if (m_depth > 0)
+        m_contentHandler.characters(reader.getTextCharacters(),
+                                    reader.getTextStart(),
+                                    reader.getTextLength());
+      return false;
+    case XMLStreamConstants.CDATA :
+      if (null != m_lexicalHandler)
+        m_lexicalHandler.startCDATA();
+      m_contentHandler.characters(reader.getTextCharacters(),
+                                  reader.getTextStart(),
+                                  reader.getTextLength());
+      if (null != m_lexicalHandler)
+        m_lexicalHandler.endCDATA();
+      return false;
+    case XMLStreamConstants.COMMENT :
+      if (null == m_lexicalHandler)
+        return false;
+      m_lexicalHandler.comment(reader.getTextCharacters(),
+                               reader.getTextStart(),
+                               reader.getTextLength());
+      return true;
+    case XMLStreamConstants.PROCESSING_INSTRUCTION :
+      m_contentHandler.processingInstruction(reader.getPITarget(),
+                                             nonNull(reader.getPIData()));
+      return true;
+    case XMLStreamConstants.DTD :
+      deliverUnparsedEntities();
+      return false;
+    case XMLStreamConstants.END_DOCUMENT :
+      m_contentHandler.endDocument();
+      close();
+      return true;
+    default :
+      return false;
+    }
+  }
+
+  /** Report the unparsed entities declared in the DTD, if the reader
+   * makes them available.
+   *
+   * @exception SAXException thrown by the DTDHandler.
+   * */
+  private void deliverUnparsedEntities() throws SAXException
+  {
+    if (null == m_dtdHandler)
+      return;
+
+    Object entities;
+    try
+    {
+      entities = m_reader.getProperty("javax.xml.stream.entities");
+    }
+    catch (IllegalArgumentException iae)
+    {
+      return;
+    }
+
+    if (entities instanceof List)
+    {
+      Iterator iter = ((List) entities).iterator();
+      while (iter.hasNext())
+      {
+        EntityDeclaration decl = (EntityDeclaration) iter.next();
+        if (null != decl.getNotationName())
+          m_dtdHandler.unparsedEntityDecl(decl.getName(), decl.getPublicId(),
+                                          decl.getSystemId(),
+                                          decl.getNotationName());
+      }
+    }
+  }
+
+  /** Close the reader, ignoring errors. */
+  private void close()
+  {
+    if (null != m_reader)
+    {
+      try
+      {
+        m_reader.close();
+      }
+      catch (XMLStreamException xse)
+      {
+      }
+      m_reader = null;
+    }
+  }
+
+  /** Turn a StAX exception into a SAX one, keeping its location.
+   *
+   * @param xse The exception thrown by the reader.
+   * @return a SAXParseException if the location is known.
+   * */
+  private SAXException toSAXException(XMLStreamException xse)
+  {
+    Location loc = xse.getLocation();
+    if (null == loc)
+      return new SAXException(xse.getMessage(), xse);
+
+    String systemId = loc.getSystemId();
+    return new SAXParseException(xse.getMessage(), loc.getPublicId(),
+                                 (null == systemId) ? m_systemId : systemId,
+                                 loc.getLineNumber(), loc.getColumnNumber(),
+                                 xse);
+  }
+
+  private static String nonNull(String s)
+  {
+    return (null == s) ? "" : s;
+  }
+
+  private static String qName(String prefix, String localName)
+  {
+    return (null == prefix || prefix.length() == 0)
+           ? localName : prefix + ":" + localName;
+  }
+
+  // ------------------------------------------------------------------
+  // Locator
+  // ------------------------------------------------------------------
+
+  public String getPublicId()
+  {
+    return m_publicId;
+  }
+
+  public String getSystemId()
+  {
+    return m_systemId;
+  }
+
+  public int getLineNumber()
+  {
+    return (null == m_reader) ? -1 : m_reader.getLocation().getLineNumber();
+  }
+
+  public int getColumnNumber()
+  {
+    return (null == m_reader) ? -1 : m_reader.getLocation().getColumnNumber();
+  }
+
+} // class IncrementalSAXSource_StAX
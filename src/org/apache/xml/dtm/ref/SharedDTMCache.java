@@ -0,0 +1,1147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.dtm.ref;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMException;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.sax2dtm.SAX2DTM;
+import org.apache.xml.utils.SystemIDResolver;
+import org.apache.xml.utils.XMLStringFactory;
+import org.apache.xpath.objects.XMLStringFactoryImpl;
+
+/**
+ * A cache of read-only source documents, keyed by absolute URI, which can
+ * be shared by any number of transformations running concurrently.
+ * <p>
+ * Documents are built once by a DTMManager owned by the cache. A
+ * transformation that wants one binds the cached DTM into its own manager
+ * with {@link DTMManagerDefault#addSharedDTM(DTM)}; the cache's manager
+ * prefers high DTM IDs, so this seldom collides with the IDs of the
+ * transformation's own documents. If it does collide, the caller simply
+ * builds a private copy as before.</p>
+ * <p>
+ * The cache is bounded both by number of documents and by an estimate of
+ * their size in bytes. By default it evicts the least recently used
+ * documents first; with {@link #EVICT_COST_AWARE} it instead keeps the
+ * documents which are most expensive to rebuild relative to their size.
+ * A cached document is revalidated against the last-modified time of its
+ * URI at most once per revalidation interval, and is reloaded
+ * unconditionally once it is older than the time-to-live, if one is set.
+ * Concurrent requests for a document which is not yet cached parse it only
+ * once. Lookups do not take any global lock.</p>
+ * <p>
+ * A transformation which uses a document takes a reference to it with
+ * {@link #acquireDTM(Source)} and gives it back with {@link #release(DTM)}.
+ * A document which is evicted, removed or reloaded while references to it
+ * are held leaves the cache (and its size accounting) at once, but it is
+ * only released from the cache's manager, and its DTM IDs reused, once the
+ * last reference is given back.</p>
+ * <p>
+ * Objects built over a cached document, such as the indexes of the
+ * key() function, may be attached to it with {@link #attach}, so that they
+ * too are shared, and dropped with the document.</p>
+ * <p>
+ * Only documents which do not depend on the requesting stylesheet may be
+ * cached; in particular, documents subject to xsl:strip-space rules must
+ * not be obtained through this class.</p>
+ */
+public class SharedDTMCache
+{
+  /** The default maximum number of cached documents. */
+  public static final int DEFAULT_MAX_DOCUMENTS = 64;
+
+  /** The default maximum estimated size of all cached documents. */
+  public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+  /** The default interval between last-modified checks, in milliseconds. */
+  public static final long DEFAULT_REVALIDATE_INTERVAL = 1000;
+
+  /**
+   * The DTM ID at and above which the cache's manager prefers to allocate,
+   * leaving the lower IDs to the managers of individual transformations.
+   */
+  public static final int SHARED_DTM_ID_FLOOR = 4096;
+
+  /** Eviction policy: evict the least recently used document. */
+  public static final int EVICT_LRU = 0;
+
+  /**
+   * Eviction policy: evict the document with the lowest value of
+   * (build time &#215; access count / size), aged so that documents which
+   * are no longer used eventually go (the "GreedyDual-Size-Frequency"
+   * scheme).
+   */
+  public static final int EVICT_COST_AWARE = 1;
+
+  /** The size charged for a DTM whose size can not be estimated. */
+  private static final long UNKNOWN_DTM_SIZE = 64 * 1024;
+
+  /** The manager which builds and owns all the cached DTMs. */
+  private final DTMManager m_manager;
+
+  /** Map from absolute URI to Entry. */
+  private final ConcurrentHashMap m_entries = new ConcurrentHashMap();
+
+  /**
+   * Map from DTM to the Entry holding it, for all loaded documents which
+   * have not yet been released from the cache's manager, including those
+   * which have left m_entries but are still referenced.
+   */
+  private final ConcurrentHashMap m_entriesByDTM = new ConcurrentHashMap();
+
+  /** The maximum number of cached documents. */
+  private volatile int m_maxDocuments;
+
+  /** The maximum estimated size of all cached documents, in bytes. */
+  private volatile long m_maxBytes;
+
+  /** Minimum milliseconds between last-modified checks; negative for never. */
+  private volatile long m_revalidateInterval = DEFAULT_REVALIDATE_INTERVAL;
+
+  /** Maximum age of a cached document in milliseconds; 0 for no limit. */
+  private volatile long m_timeToLive = 0;
+
+  /** One of EVICT_LRU or EVICT_COST_AWARE. */
+  private volatile int m_evictionPolicy = EVICT_LRU;
+
+  /**
+   * The aging term of the cost-aware policy: the priority of the last
+   * evicted entry. Only updated under m_evictionLock.
+   */
+  private volatile double m_inflation = 0;
+
+  /** The estimated size of all loaded entries. */
+  private final AtomicLong m_totalBytes = new AtomicLong();
+
+  /** Logical clock used to order entries by recency of use. */
+  private final AtomicLong m_clock = new AtomicLong();
+
+  /** Lock held while choosing and removing eviction victims. */
+  private final Object m_evictionLock = new Object();
+
+  // Statistics.
+  private final AtomicLong m_hits = new AtomicLong();
+  private final AtomicLong m_misses = new AtomicLong();
+  private final AtomicLong m_loads = new AtomicLong();
+  private final AtomicLong m_reloads = new AtomicLong();
+  private final AtomicLong m_evictions = new AtomicLong();
+  private final AtomicLong m_loadTime = new AtomicLong();
+
+  /**
+   * Create a cache with the default limits, whose documents are built by a
+   * new default DTMManager.
+   */
+  public SharedDTMCache()
+  {
+    this(DEFAULT_MAX_DOCUMENTS, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Create a cache whose documents are built by a new default DTMManager.
+   *
+   * @param maxDocuments The maximum number of cached documents.
+   * @param maxBytes The maximum estimated size of all cached documents.
+   */
+  public SharedDTMCache(int maxDocuments, long maxBytes)
+  {
+    this(DTMManager.newInstance(XMLStringFactoryImpl.getFactory()),
+         maxDocuments, maxBytes);
+  }
+
+  /**
+   * Create a cache whose documents are built by the given DTMManager. The
+   * manager should not be used for anything else.
+   *
+   * @param manager The manager which will own the cached DTMs.
+   * @param maxDocuments The maximum number of cached documents.
+   * @param maxBytes The maximum estimated size of all cached documents.
+   */
+  public SharedDTMCache(DTMManager manager, int maxDocuments, long maxBytes)
+  {
+    m_manager = manager;
+    m_maxDocuments = Math.max(1, maxDocuments);
+    m_maxBytes = maxBytes;
+
+    if (manager instanceof DTMManagerDefault)
+      ((DTMManagerDefault) manager).setPreferredFirstDTMID(SHARED_DTM_ID_FLOOR);
+  }
+
+  /**
+   * Return the manager which builds and owns the cached DTMs.
+   *
+   * @return the DTMManager.
+   */
+  public DTMManager getDTMManager()
+  {
+    return m_manager;
+  }
+
+  /**
+   * Set the maximum number of cached documents.
+   *
+   * @param max The new maximum, at least 1.
+   */
+  public void setMaxDocuments(int max)
+  {
+    m_maxDocuments = Math.max(1, max);
+    evict(null);
+  }
+
+  /**
+   * Get the maximum number of cached documents.
+   *
+   * @return the maximum.
+   */
+  public int getMaxDocuments()
+  {
+    return m_maxDocuments;
+  }
+
+  /**
+   * Set the maximum estimated size of all cached documents.
+   *
+   * @param max The new maximum, in bytes.
+   */
+  public void setMaxBytes(long max)
+  {
+    m_maxBytes = max;
+    evict(null);
+  }
+
+  /**
+   * Get the maximum estimated size of all cached documents.
+   *
+   * @return the maximum, in bytes.
+   */
+  public long getMaxBytes()
+  {
+    return m_maxBytes;
+  }
+
+  /**
+   * Set the minimum interval between checks of a cached document's
+   * last-modified time.
+   *
+   * @param millis The interval in milliseconds; 0 to check on every use,
+   * or a negative value to never check.
+   */
+  public void setRevalidateInterval(long millis)
+  {
+    m_revalidateInterval = millis;
+  }
+
+  /**
+   * Get the minimum interval between checks of a cached document's
+   * last-modified time.
+   *
+   * @return the interval in milliseconds.
+   */
+  public long getRevalidateInterval()
+  {
+    return m_revalidateInterval;
+  }
+
+  /**
+   * Set the time after which a cached document is reloaded regardless of
+   * its last-modified time.
+   *
+   * @param millis The time-to-live in milliseconds, or 0 for no limit.
+   */
+  public void setTimeToLive(long millis)
+  {
+    m_timeToLive = millis;
+  }
+
+  /**
+   * Get the time after which a cached document is reloaded.
+   *
+   * @return the time-to-live in milliseconds, or 0 for no limit.
+   */
+  public long getTimeToLive()
+  {
+    return m_timeToLive;
+  }
+
+  /**
+   * Set the eviction policy.
+   *
+   * @param policy EVICT_LRU or EVICT_COST_AWARE.
+   */
+  public void setEvictionPolicy(int policy)
+  {
+    if (policy != EVICT_LRU && policy != EVICT_COST_AWARE)
+      throw new IllegalArgumentException(String.valueOf(policy));
+    m_evictionPolicy = policy;
+  }
+
+  /**
+   * Get the eviction policy.
+   *
+   * @return EVICT_LRU or EVICT_COST_AWARE.
+   */
+  public int getEvictionPolicy()
+  {
+    return m_evictionPolicy;
+  }
+
+  /**
+   * Tell whether a Source can be served from this cache. Only sources
+   * identified by an absolute system ID, and not wrapping a DOM, can be.
+   *
+   * @param source The source.
+   *
+   * @return true if getDTM(source) may be used.
+   */
+  public static boolean isCacheable(Source source)
+  {
+    if (null == source || source instanceof DOMSource)
+      return false;
+
+    String systemId = source.getSystemId();
+    return null != systemId && SystemIDResolver.isAbsoluteURI(systemId);
+  }
+
+  /**
+   * Get the document with the given absolute URI, loading it if it is not
+   * cached or is out of date.
+   *
+   * @param uri The absolute URI of the document.
+   *
+   * @return the cached DTM, which must be treated as read-only.
+   *
+   * @throws DTMException if the document can not be loaded.
+   */
+  public DTM getDTM(String uri)
+  {
+    return getDTM(new StreamSource(uri));
+  }
+
+  /**
+   * Get the document identified by a Source, loading it if it is not cached
+   * or is out of date. The Source is only read if the document has to be
+   * loaded; later loads (after eviction or revalidation) use its system ID.
+   * <p>
+   * No reference to the document is taken, so it may be released as soon
+   * as it is evicted; a caller which goes on using it should call
+   * acquireDTM() instead.</p>
+   *
+   * @param source A source for which isCacheable() is true.
+   *
+   * @return the cached DTM, which must be treated as read-only.
+   *
+   * @throws DTMException if the document can not be loaded.
+   */
+  public DTM getDTM(Source source)
+  {
+    return getDTM(source, false);
+  }
+
+  /**
+   * Get the document identified by a Source, as getDTM() does, and take a
+   * reference to it, so that it stays usable even if it is evicted. Every
+   * call must be matched by a call of release().
+   *
+   * @param source A source for which isCacheable() is true.
+   *
+   * @return the cached DTM, which must be treated as read-only.
+   *
+   * @throws DTMException if the document can not be loaded.
+   */
+  public DTM acquireDTM(Source source)
+  {
+    return getDTM(source, true);
+  }
+
+  /**
+   * Take another reference to a document obtained from this cache.
+   *
+   * @param dtm A DTM returned by getDTM() or acquireDTM().
+   *
+   * @return true if a reference was taken, which must be given back with
+   * release(); false if the document has already left the cache, in which
+   * case it may no longer be used.
+   */
+  public boolean acquire(DTM dtm)
+  {
+    Entry entry = (Entry) m_entriesByDTM.get(dtm);
+    return null != entry && entry.acquire();
+  }
+
+  /**
+   * Give back a reference to a document taken with acquireDTM() or
+   * acquire(). If the document has left the cache, and this was the last
+   * reference, the document is released from the cache's manager.
+   *
+   * @param dtm The DTM.
+   */
+  public void release(DTM dtm)
+  {
+    Entry entry = (Entry) m_entriesByDTM.get(dtm);
+    if (null != entry && entry.release())
+      releaseDTM(entry);
+  }
+
+  /**
+   * Get the document identified by a Source, loading it if it is not cached
+   * or is out of date, and optionally take a reference to it.
+   *
+   * @param source A source for which isCacheable() is true.
+   * @param acquire true to take a reference to the document.
+   *
+   * @return the cached DTM.
+   *
+   * @throws DTMException if the document can not be loaded.
+   */
+  private DTM getDTM(Source source, boolean acquire)
+  {
+    String uri = source.getSystemId();
+
+    while (true)
+    {
+      Entry entry = (Entry) m_entries.get(uri);
+      boolean loader = false;
+
+      if (null == entry)
+      {
+        Entry newEntry = new Entry(uri);
+        entry = (Entry) m_entries.putIfAbsent(uri, newEntry);
+        if (null == entry)
+        {
+          entry = newEntry;
+          loader = true;
+        }
+      }
+
+      if (loader)
+      {
+        m_misses.incrementAndGet();
+        load(entry, source);
+        evict(entry);
+        if (acquire && !entry.acquire())
+        {
+          // Removed (by clear(), say) as soon as it was loaded.
+          source = new StreamSource(uri);
+          continue;
+        }
+        return entry.m_dtm;
+      }
+
+      DTM dtm = entry.await();
+      if (null == dtm)
+      {
+        // The load failed, or the entry was evicted while we waited.
+        // Start again; a failed load will be retried by this thread.
+        m_entries.remove(uri, entry);
+        continue;
+      }
+
+      if (isStale(entry))
+      {
+        if (m_entries.remove(uri, entry))
+        {
+          m_reloads.incrementAndGet();
+          discard(entry);
+        }
+        source = new StreamSource(uri);
+        continue;
+      }
+
+      if (acquire && !entry.acquire())
+      {
+        // Evicted since we found it.
+        source = new StreamSource(uri);
+        continue;
+      }
+
+      m_hits.incrementAndGet();
+      entry.touch();
+      return dtm;
+    }
+  }
+
+  /**
+   * Remove a document from the cache. Transformations holding a reference
+   * to it are not affected.
+   *
+   * @param uri The absolute URI of the document.
+   */
+  public void remove(String uri)
+  {
+    Entry entry = (Entry) m_entries.remove(uri);
+    if (null != entry)
+      discard(entry);
+  }
+
+  /**
+   * Remove all documents from the cache.
+   */
+  public void clear()
+  {
+    Iterator it = m_entries.values().iterator();
+    while (it.hasNext())
+    {
+      Entry entry = (Entry) it.next();
+      it.remove();
+      discard(entry);
+    }
+  }
+
+  /**
+   * Attach an object, such as an index built over the document, to a
+   * cached document, unless an object is already attached to it under the
+   * same key. Attachments go with the document when it is evicted, removed
+   * or reloaded; they must be safe to use from any thread.
+   *
+   * @param dtm A DTM returned by getDTM().
+   * @param key The key of the attachment, compared with equals().
+   * @param value The object to attach.
+   *
+   * @return the object now attached under the key, which is value unless
+   * another was attached first, or null if the DTM is not in the cache.
+   */
+  public Object attach(DTM dtm, Object key, Object value)
+  {
+    Entry entry = getEntry(dtm);
+    if (null == entry)
+      return null;
+
+    Object prior = entry.m_attachments.putIfAbsent(key, value);
+    return (null == prior) ? value : prior;
+  }
+
+  /**
+   * Get an object attached to a cached document with attach().
+   *
+   * @param dtm A DTM returned by getDTM().
+   * @param key The key of the attachment.
+   *
+   * @return the attached object, or null if there is none or the DTM is
+   * not in the cache.
+   */
+  public Object getAttachment(DTM dtm, Object key)
+  {
+    Entry entry = getEntry(dtm);
+    return (null == entry) ? null : entry.m_attachments.get(key);
+  }
+
+  /**
+   * Find the entry holding a DTM.
+   *
+   * @param dtm The DTM.
+   *
+   * @return the entry, or null if the DTM is not in the cache.
+   */
+  private Entry getEntry(DTM dtm)
+  {
+    Entry entry = (Entry) m_entriesByDTM.get(dtm);
+    return (null == entry || entry.m_discarded) ? null : entry;
+  }
+
+  /**
+   * Get a snapshot of the loaded entries, for reporting. The entries'
+   * statistics keep changing as the cache is used.
+   *
+   * @return an array of the entries which currently hold a document.
+   */
+  public Entry[] getEntries()
+  {
+    ArrayList list = new ArrayList(m_entries.size());
+    Iterator it = m_entries.values().iterator();
+    while (it.hasNext())
+    {
+      Entry entry = (Entry) it.next();
+      if (null != entry.m_dtm)
+        list.add(entry);
+    }
+    return (Entry[]) list.toArray(new Entry[list.size()]);
+  }
+
+  /**
+   * Get the number of cached (or loading) documents.
+   *
+   * @return the number of documents.
+   */
+  public int getDocumentCount()
+  {
+    return m_entries.size();
+  }
+
+  /**
+   * Get the estimated size of all cached documents.
+   *
+   * @return the size in bytes.
+   */
+  public long getTotalBytes()
+  {
+    return m_totalBytes.get();
+  }
+
+  /**
+   * Get the number of requests served from the cache.
+   *
+   * @return the hit count.
+   */
+  public long getHitCount()
+  {
+    return m_hits.get();
+  }
+
+  /**
+   * Get the number of requests which found no cached document.
+   *
+   * @return the miss count.
+   */
+  public long getMissCount()
+  {
+    return m_misses.get();
+  }
+
+  /**
+   * Get the number of documents loaded, including reloads.
+   *
+   * @return the load count.
+   */
+  public long getLoadCount()
+  {
+    return m_loads.get();
+  }
+
+  /**
+   * Get the number of cached documents discarded because they were out of
+   * date.
+   *
+   * @return the reload count.
+   */
+  public long getReloadCount()
+  {
+    return m_reloads.get();
+  }
+
+  /**
+   * Get the number of documents evicted to respect the size limits.
+   *
+   * @return the eviction count.
+   */
+  public long getEvictionCount()
+  {
+    return m_evictions.get();
+  }
+
+  /**
+   * Get the total time spent loading documents.
+   *
+   * @return the time in milliseconds.
+   */
+  public long getTotalLoadTime()
+  {
+    return m_loadTime.get();
+  }
+
+  /**
+   * Build the DTM for a source. The default implementation asks the
+   * cache's manager for a non-incremental, indexed DTM with no whitespace
+   * filtering, which is what the interpretive processor's document()
+   * function would build. Subclasses may override this to build other
+   * kinds of DTM.
+   *
+   * @param source The source of the document.
+   *
+   * @return the new DTM.
+   */
+  protected DTM loadDTM(Source source)
+  {
+    return m_manager.getDTM(source, false, null, false, true);
+  }
+
+  /**
+   * Estimate the memory used by a DTM, for the cache's size accounting.
+   *
+   * @param dtm The DTM.
+   *
+   * @return the estimated size in bytes.
+   */
+  protected long estimateSize(DTM dtm)
+  {
+    if (dtm instanceof SAX2DTM)
+      return ((SAX2DTM) dtm).getEstimatedSize();
+    return UNKNOWN_DTM_SIZE;
+  }
+
+  /**
+   * Return the last-modified time of a URI, or 0 if it can not be
+   * determined.
+   *
+   * @param uri The absolute URI.
+   *
+   * @return the time-stamp in milliseconds.
+   */
+  public static long getLastModified(String uri)
+  {
+    try
+    {
+      URL url = new URL(uri);
+      if ("file".equals(url.getProtocol()))
+        return new File(URLDecoder.decode(url.getFile(), "UTF-8")).lastModified();
+
+      URLConnection connection = url.openConnection();
+      return connection.getLastModified();
+    }
+    catch (Exception e)
+    {
+      return 0;
+    }
+  }
+
+  /**
+   * Load the document for an entry this thread has just inserted, and
+   * publish the result (or the failure) to any threads waiting for it.
+   *
+   * @param entry The new entry.
+   * @param source The source of the document.
+   */
+  private void load(Entry entry, Source source)
+  {
+    long start = System.currentTimeMillis();
+    DTM dtm = null;
+    long size = 0;
+    boolean loaded = false;
+    try
+    {
+      entry.m_lastModified = getLastModified(entry.m_uri);
+      dtm = loadDTM(source);
+      size = estimateSize(dtm);
+      loaded = true;
+    }
+    finally
+    {
+      // Whatever went wrong, even an Error, threads waiting for the entry
+      // must be woken, and later requests must not find it.
+      if (!loaded)
+      {
+        m_entries.remove(entry.m_uri, entry);
+        entry.fail();
+        if (null != dtm)
+          m_manager.release(dtm, true);
+      }
+    }
+
+    long now = System.currentTimeMillis();
+    m_loads.incrementAndGet();
+    m_loadTime.addAndGet(now - start);
+
+    entry.m_size = size;
+    entry.m_loaded = now;
+    entry.m_lastChecked = now;
+    entry.m_buildTime = now - start;
+    m_totalBytes.addAndGet(entry.m_size);
+    entry.touch();
+    m_entriesByDTM.put(dtm, entry);
+    entry.complete(dtm);
+
+    // The entry may have been removed (by clear(), say) while it was loading.
+    if (m_entries.get(entry.m_uri) != entry)
+      discard(entry);
+  }
+
+  /**
+   * Tell whether a cached document should be reloaded. Only one thread
+   * performs the last-modified check for an entry in each interval.
+   *
+   * @param entry A loaded entry.
+   *
+   * @return true if the document is out of date.
+   */
+  private boolean isStale(Entry entry)
+  {
+    long now = System.currentTimeMillis();
+
+    long ttl = m_timeToLive;
+    if (ttl > 0 && now - entry.m_loaded > ttl)
+      return true;
+
+    long interval = m_revalidateInterval;
+    if (interval < 0)
+      return false;
+
+    long checked = entry.m_lastChecked;
+    if (now - checked < interval)
+      return false;
+
+    synchronized (entry)
+    {
+      if (entry.m_lastChecked != checked)
+        return false;  // Somebody else is checking, or just has.
+      entry.m_lastChecked = now;
+    }
+
+    long lastModified = getLastModified(entry.m_uri);
+    return lastModified > entry.m_lastModified;
+  }
+
+  /**
+   * Evict entries until the cache is within its limits.
+   *
+   * @param keep An entry which must not be evicted, or null.
+   */
+  protected void evict(Entry keep)
+  {
+    synchronized (m_evictionLock)
+    {
+      while (m_entries.size() > m_maxDocuments
+             || m_totalBytes.get() > m_maxBytes)
+      {
+        Entry victim = selectVictim(keep);
+        if (null == victim)
+          return;
+
+        if (m_entries.remove(victim.m_uri, victim))
+        {
+          if (victim.m_priority > m_inflation)
+            m_inflation = victim.m_priority;
+          m_evictions.incrementAndGet();
+          discard(victim);
+        }
+      }
+    }
+  }
+
+  /**
+   * Choose the entry to evict next, according to the eviction policy:
+   * either the least recently used loaded entry, or the one with the lowest
+   * cost-aware priority (ties going to the least recently used).
+   *
+   * @param keep An entry which must not be chosen, or null.
+   *
+   * @return the victim, or null if there is no candidate.
+   */
+  protected Entry selectVictim(Entry keep)
+  {
+    boolean costAware = (m_evictionPolicy == EVICT_COST_AWARE);
+    Entry victim = null;
+    Iterator it = m_entries.values().iterator();
+    while (it.hasNext())
+    {
+      Entry entry = (Entry) it.next();
+      if (entry == keep || null == entry.m_dtm)
+        continue;
+      if (null == victim)
+        victim = entry;
+      else if (costAware && entry.m_priority != victim.m_priority)
+      {
+        if (entry.m_priority < victim.m_priority)
+          victim = entry;
+      }
+      else if (entry.m_lastAccess < victim.m_lastAccess)
+        victim = entry;
+    }
+    return victim;
+  }
+
+  /**
+   * Account for an entry which has been removed from the map, and release
+   * its DTM from the cache's manager, or leave that to the last holder of a
+   * reference to it if there are any. Until then, transformations which
+   * have bound the DTM into their own managers can go on using it.
+   *
+   * @param entry The removed entry.
+   */
+  private void discard(Entry entry)
+  {
+    boolean unused;
+    synchronized (entry)
+    {
+      if (null == entry.m_dtm || entry.m_discarded)
+        return;
+      entry.m_discarded = true;
+      unused = (0 == entry.m_references);
+    }
+    m_totalBytes.addAndGet(-entry.m_size);
+    entry.m_attachments.clear();
+    if (unused)
+      releaseDTM(entry);
+  }
+
+  /**
+   * Release the DTM of a discarded entry which is no longer referenced
+   * from the cache's manager. This happens exactly once for each entry.
+   *
+   * @param entry The entry.
+   */
+  private void releaseDTM(Entry entry)
+  {
+    m_entriesByDTM.remove(entry.m_dtm, entry);
+    m_manager.release(entry.m_dtm, true);
+  }
+
+  /**
+   * A cached document and its statistics.
+   */
+  public final class Entry
+  {
+    /** The absolute URI of the document. */
+    final String m_uri;
+
+    /** The DTM, or null while loading or if loading failed. */
+    volatile DTM m_dtm;
+
+    /** True once loading has finished, successfully or not. */
+    private boolean m_done;
+
+    /**
+     * True once the entry has left the cache; its DTM is released as soon
+     * as it is no longer referenced.
+     */
+    volatile boolean m_discarded;
+
+    /** The number of references taken to the DTM and not given back. */
+    private int m_references;
+
+    /** Estimated size of the DTM in bytes. */
+    long m_size;
+
+    /** The last-modified time of the URI when it was loaded. */
+    volatile long m_lastModified;
+
+    /** When the document was loaded. */
+    volatile long m_loaded;
+
+    /** When the last-modified time was last checked. */
+    volatile long m_lastChecked;
+
+    /** How long the document took to load, in milliseconds. */
+    volatile long m_buildTime;
+
+    /** The cache's logical clock at the last use of this entry. */
+    volatile long m_lastAccess;
+
+    /** The number of times this entry has been used. */
+    final AtomicLong m_accessCount = new AtomicLong();
+
+    /** The wall-clock time of the last use of this entry. */
+    volatile long m_lastReferenced;
+
+    /** The priority of this entry under EVICT_COST_AWARE. */
+    volatile double m_priority;
+
+    /** Map from key to the objects attached to the document. */
+    final ConcurrentHashMap m_attachments = new ConcurrentHashMap();
+
+    /**
+     * Create an entry for a document which is about to be loaded.
+     *
+     * @param uri The absolute URI of the document.
+     */
+    Entry(String uri)
+    {
+      m_uri = uri;
+    }
+
+    /**
+     * Get the absolute URI of the document.
+     *
+     * @return the URI.
+     */
+    public String getURI()
+    {
+      return m_uri;
+    }
+
+    /**
+     * Get the estimated size of the document.
+     *
+     * @return the size in bytes.
+     */
+    public long getSize()
+    {
+      return m_size;
+    }
+
+    /**
+     * Get the time the document took to load.
+     *
+     * @return the time in milliseconds.
+     */
+    public long getBuildTime()
+    {
+      return m_buildTime;
+    }
+
+    /**
+     * Get the number of times the document has been used.
+     *
+     * @return the access count.
+     */
+    public long getAccessCount()
+    {
+      return m_accessCount.get();
+    }
+
+    /**
+     * Get the last-modified time of the document's URI when it was loaded.
+     *
+     * @return the time-stamp in milliseconds, or 0 if unknown.
+     */
+    public long getLastModified()
+    {
+      return m_lastModified;
+    }
+
+    /**
+     * Get the time at which the document was last used.
+     *
+     * @return the time-stamp in milliseconds.
+     */
+    public long getLastReferenced()
+    {
+      return m_lastReferenced;
+    }
+
+    /**
+     * Get the priority of the document under EVICT_COST_AWARE; entries
+     * with lower priority are evicted first.
+     *
+     * @return the priority.
+     */
+    public double getPriority()
+    {
+      return m_priority;
+    }
+
+    /**
+     * Get the cache's logical clock at the last use of the document.
+     * Larger values are more recent.
+     *
+     * @return the logical time of last access.
+     */
+    public long getLastAccess()
+    {
+      return m_lastAccess;
+    }
+
+    /**
+     * Record a use of this entry.
+     */
+    void touch()
+    {
+      m_lastAccess = m_clock.incrementAndGet();
+      m_lastReferenced = System.currentTimeMillis();
+      long count = m_accessCount.incrementAndGet();
+
+      // Cost of a miss per kilobyte held, scaled by popularity, on top of
+      // the cache's current aging term.
+      double kilobytes = Math.max(1, m_size >> 10);
+      m_priority = m_inflation + (count * (m_buildTime + 1)) / kilobytes;
+    }
+
+    /**
+     * Publish the loaded DTM and wake any waiting threads.
+     *
+     * @param dtm The new DTM.
+     */
+    synchronized void complete(DTM dtm)
+    {
+      m_dtm = dtm;
+      m_done = true;
+      notifyAll();
+    }
+
+    /**
+     * Record that loading failed and wake any waiting threads.
+     */
+    synchronized void fail()
+    {
+      m_done = true;
+      notifyAll();
+    }
+
+    /**
+     * Take a reference to the DTM.
+     *
+     * @return true if a reference was taken, false if the entry has no DTM
+     * or has already left the cache.
+     */
+    synchronized boolean acquire()
+    {
+      if (null == m_dtm || m_discarded)
+        return false;
+      ++m_references;
+      return true;
+    }
+
+    /**
+     * Give back a reference to the DTM.
+     *
+     * @return true if the entry has left the cache and this was the last
+     * reference, so that the DTM should now be released.
+     */
+    synchronized boolean release()
+    {
+      if (0 == m_references)
+        return false;
+      return 0 == --m_references && m_discarded;
+    }
+
+    /**
+     * Wait until the document has been loaded by another thread.
+     *
+     * @return the DTM, or null if loading failed.
+     */
+    DTM await()
+    {
+      DTM dtm = m_dtm;
+      if (null != dtm)
+        return dtm;
+
+      synchronized (this)
+      {
+        boolean interrupted = false;
+        while (!m_done)
+        {
+          try
+          {
+            wait();
+          }
+          catch (InterruptedException ie)
+          {
+            interrupted = true;
+          }
+        }
+        if (interrupted)
+          Thread.currentThread().interrupt();
+        return m_discarded ? null : m_dtm;
+      }
+    }
+  }
+}
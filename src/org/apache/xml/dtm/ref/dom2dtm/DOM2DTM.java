@@ -103,6 +103,15 @@ public class DOM2DTM extends DTMDefaultBaseIterators
    * that sequence. */
   protected Vector m_nodes = new Vector();
 
+  /** The node last found by getHandleFromNode(), or null. Evaluations
+   * from the same context node often follow one another, when a DTM is
+   * kept for a DOM across them, and this saves searching for it each
+   * time. */
+  private Node m_lastLookupNode;
+
+  /** The handle of m_lastLookupNode. */
+  private int m_lastLookupHandle = DTM.NULL;
+
   /**
    * Construct a DOM2DTM object from a DOM node.
    *
@@ -194,9 +203,10 @@ public class DOM2DTM extends DTMDefaultBaseIterators
                                 
                                 // Handle as Extended Addressing
         DTMManagerDefault mgrD=(DTMManagerDefault)m_mgr;
-        int id=mgrD.getFirstFreeDTMID();
+        int id=reserveExtendedDTMID(mgrD);
         mgrD.addDTM(this,id,nodeIndex);
         m_dtmIdent.addElement(id<<DTMManager.IDENT_DTM_NODE_BITS);
+        updateIdentBase();
       }
       catch(ClassCastException e)
       {
@@ -665,6 +675,9 @@ public class DOM2DTM extends DTMDefaultBaseIterators
   {
     if (null != node)
     {
+      if (node == m_lastLookupNode)
+        return m_lastLookupHandle;
+
       int len = m_nodes.size();        
       boolean isMore;
       int i = 0;
@@ -673,7 +686,11 @@ public class DOM2DTM extends DTMDefaultBaseIterators
         for (; i < len; i++)
         {
           if (m_nodes.elementAt(i) == node)
-            return makeNodeHandle(i);
+          {
+            m_lastLookupHandle = makeNodeHandle(i);
+            m_lastLookupNode = node;
+            return m_lastLookupHandle;
+          }
         }
 
         isMore = nextNode();
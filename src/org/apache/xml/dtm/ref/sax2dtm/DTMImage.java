@@ -0,0 +1,397 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.dtm.ref.sax2dtm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.DTMDefaultBase;
+import org.apache.xml.utils.FastStringBuffer;
+import org.apache.xml.utils.OffHeapIntVector;
+import org.apache.xml.utils.SuballocatedIntVector;
+import org.apache.xml.utils.XMLStringFactory;
+
+/**
+ * Reads and writes DTM images: compact binary snapshots of a completely
+ * built {@link SAX2DTM} or {@link SAX2DTM2}, from which the document can be
+ * reopened without parsing it again.
+ * <p>
+ * An image holds the node tables, character data, value and name tables of
+ * the DTM as flat arrays. It is opened by mapping the file into memory with
+ * FileChannel.map(). The node tables are read in place from the mapped file
+ * beyond their first block, through {@link OffHeapIntVector}s, so the
+ * operating system's page cache holding them is shared by every process
+ * opening the same image. Character data and the name and value tables are
+ * copied onto the heap. This is the cost of a few memory copies, instead of
+ * the cost of parsing, building and interning the document.</p>
+ * <p>
+ * The format is private to this version of Xalan. An image starts with a
+ * magic number, written in the byte order of the machine which wrote it,
+ * and a version number; images with a different version are rejected.
+ * Images are limited to 2GB.</p>
+ *
+ * @see DTMImageSource
+ */
+public final class DTMImage
+{
+  /** The magic number at the start of every image: "XDMI". */
+  static final int MAGIC = 0x58444D49;
+
+  /** The image format version. */
+  static final int VERSION = 2;
+
+  /** Image flag: the DTM has a previous-sibling table. */
+  static final int FLAG_PREVSIB = 1;
+
+  /** Image flag: the DTM is a SAX2DTM2. */
+  static final int FLAG_SAX2DTM2 = 2;
+
+  /** Size of the write buffer, in bytes. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Number of ints copied at a time from a vector. */
+  private static final int INT_CHUNK = 16 * 1024;
+
+  /** Number of characters copied at a time to or from character data. */
+  private static final int CHAR_CHUNK = 16 * 1024;
+
+  private DTMImage()
+  {
+  }
+
+  /**
+   * Write an image of a DTM to a file.
+   *
+   * @param dtm The DTM, which must be a SAX2DTM or SAX2DTM2 whose document
+   *            has been completely built, and which is not prunable.
+   * @param file The file to write.
+   *
+   * @throws IOException if the file can not be written.
+   * @throws IllegalArgumentException if the DTM can not be written as an
+   *         image.
+   */
+  public static void write(DTM dtm, File file) throws IOException
+  {
+    if (!(dtm instanceof SAX2DTM) || dtm instanceof SAX2RTFDTM)
+      throw new IllegalArgumentException("Not a SAX2DTM: " + dtm);
+
+    SAX2DTM sdtm = (SAX2DTM) dtm;
+    if (!sdtm.m_endDocumentOccured)
+      throw new IllegalArgumentException(
+        "The document has not been completely built");
+    if (sdtm.isPrunable())
+      throw new IllegalArgumentException(
+        "The document may have been pruned");
+
+    FileOutputStream stream = new FileOutputStream(file);
+    try
+    {
+      Output out = new Output(stream.getChannel());
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      sdtm.writeImage(out);
+      out.flush();
+    }
+    finally
+    {
+      stream.close();
+    }
+  }
+
+  /**
+   * Open the DTM image named by a source.
+   *
+   * @param mgr The manager which will own the DTM.
+   * @param source The source naming the image file.
+   * @param dtmIdentity The DTM identity ID for the DTM.
+   * @param xstringfactory XMLString factory for creating character content.
+   *
+   * @return the complete DTM, a SAX2DTM2 if the image was written from one
+   *         and a SAX2DTM otherwise.
+   *
+   * @throws IOException if the image can not be read or is malformed.
+   */
+  public static SAX2DTM load(DTMManager mgr, DTMImageSource source,
+                              int dtmIdentity, XMLStringFactory xstringfactory)
+    throws IOException
+  {
+    File file = source.getFile();
+    FileInputStream stream = new FileInputStream(file);
+    try
+    {
+      FileChannel channel = stream.getChannel();
+      long length = channel.size();
+      if (length > Integer.MAX_VALUE)
+        throw new IOException("DTM image too large: " + file);
+
+      Input in = new Input(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+      if (in.readInt() != VERSION)
+        throw new IOException("Unsupported DTM image version: " + file);
+
+      // Every node has at least its expanded type in the image
+      int size = in.readInt();
+      if (size < 0 || size > (length >> 2))
+        throw new IOException("Malformed DTM image: " + file);
+      int flags = in.readInt();
+      boolean usePrevsib = (flags & FLAG_PREVSIB) != 0;
+      SAX2DTM dtm;
+      if ((flags & FLAG_SAX2DTM2) != 0)
+        dtm = new SAX2DTM2(mgr, source, dtmIdentity, null, xstringfactory,
+                           false, DTMDefaultBase.DEFAULT_BLOCKSIZE,
+                           usePrevsib, true, false);
+      else
+        dtm = new SAX2DTM(mgr, source, dtmIdentity, null, xstringfactory,
+                          false, DTMDefaultBase.DEFAULT_BLOCKSIZE,
+                          usePrevsib, false);
+      dtm.readImage(in, size);
+      return dtm;
+    }
+    catch (BufferUnderflowException e)
+    {
+      throw new IOException("Truncated DTM image: " + file);
+    }
+    catch (IndexOutOfBoundsException e)
+    {
+      throw new IOException("Malformed DTM image: " + file);
+    }
+    finally
+    {
+      stream.close();
+    }
+  }
+
+  /**
+   * Buffered writer of the primitive items of an image. Every item is a
+   * whole number of ints, so int arrays are always aligned in the file.
+   */
+  static final class Output
+  {
+    private final FileChannel m_channel;
+
+    private final ByteBuffer m_buffer =
+      ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+
+    Output(FileChannel channel)
+    {
+      m_channel = channel;
+    }
+
+    void writeInt(int value) throws IOException
+    {
+      if (m_buffer.remaining() < 4)
+        flush();
+      m_buffer.putInt(value);
+    }
+
+    /** Write the size of a vector, followed by its contents. */
+    void writeInts(SuballocatedIntVector vector) throws IOException
+    {
+      int size = vector.size();
+      writeInt(size);
+
+      int[] chunk = new int[Math.min(INT_CHUNK, size)];
+      for (int i = 0; i < size; i += INT_CHUNK)
+      {
+        int n = Math.min(INT_CHUNK, size - i);
+        vector.getElements(i, chunk, 0, n);
+        putInts(chunk, n);
+      }
+    }
+
+    /** Write a string which may be null. */
+    void writeString(String value) throws IOException
+    {
+      if (null == value)
+      {
+        writeInt(-1);
+        return;
+      }
+      int length = value.length();
+      writeInt(length);
+      putChars(value.toCharArray(), length);
+      if ((length & 1) != 0)
+        putChars(new char[1], 1);
+    }
+
+    /** Write the length of a buffer, followed by its characters. */
+    void writeChars(FastStringBuffer chars) throws IOException
+    {
+      int length = chars.size();
+      writeInt(length);
+      for (int i = 0; i < length; i += CHAR_CHUNK)
+      {
+        int n = Math.min(CHAR_CHUNK, length - i);
+        putChars(chars.getString(i, n).toCharArray(), n);
+      }
+      if ((length & 1) != 0)
+        putChars(new char[1], 1);
+    }
+
+    void flush() throws IOException
+    {
+      m_buffer.flip();
+      while (m_buffer.hasRemaining())
+        m_channel.write(m_buffer);
+      m_buffer.clear();
+    }
+
+    private void putInts(int[] values, int length) throws IOException
+    {
+      int offset = 0;
+      while (offset < length)
+      {
+        if (m_buffer.remaining() < 4)
+          flush();
+        int n = Math.min(length - offset, m_buffer.remaining() >> 2);
+        m_buffer.asIntBuffer().put(values, offset, n);
+        m_buffer.position(m_buffer.position() + (n << 2));
+        offset += n;
+      }
+    }
+
+    private void putChars(char[] values, int length) throws IOException
+    {
+      int offset = 0;
+      while (offset < length)
+      {
+        if (m_buffer.remaining() < 2)
+          flush();
+        int n = Math.min(length - offset, m_buffer.remaining() >> 1);
+        m_buffer.asCharBuffer().put(values, offset, n);
+        m_buffer.position(m_buffer.position() + (n << 1));
+        offset += n;
+      }
+    }
+  }
+
+  /**
+   * Reader of the primitive items of an image, over a mapped buffer.
+   */
+  static final class Input
+  {
+    private final ByteBuffer m_buffer;
+
+    /**
+     * Wrap a buffer, checking the magic number and taking the byte order
+     * from it.
+     */
+    Input(ByteBuffer buffer) throws IOException
+    {
+      m_buffer = buffer;
+      int magic = buffer.getInt(0);
+      if (magic != MAGIC)
+      {
+        if (magic != Integer.reverseBytes(MAGIC))
+          throw new IOException("Not a DTM image");
+        buffer.order((buffer.order() == ByteOrder.BIG_ENDIAN)
+                     ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+      }
+      buffer.position(4);
+    }
+
+    int readInt()
+    {
+      return m_buffer.getInt();
+    }
+
+    /**
+     * Check the length of the item which follows, which must not be negative
+     * and must fit in the rest of the image.
+     *
+     * @param length the length read
+     * @param unitShift log2 of the least number of bytes in each unit of the
+     *                  item
+     *
+     * @return the length
+     *
+     * @throws IndexOutOfBoundsException if the length is out of range, which
+     *         load() reports as a malformed image.
+     */
+    int checkLength(int length, int unitShift)
+    {
+      if (length < 0 || length > (m_buffer.remaining() >> unitShift))
+        throw new IndexOutOfBoundsException("Bad length " + length);
+      return length;
+    }
+
+    /** Append a vector written by Output.writeInts() to the given one. */
+    void readInts(SuballocatedIntVector vector)
+    {
+      int size = checkLength(readInt(), 2);
+      IntBuffer ints = m_buffer.asIntBuffer();
+      vector.addElements(ints, size);
+      m_buffer.position(m_buffer.position() + (size << 2));
+    }
+
+    /**
+     * Read a vector written by Output.writeInts() as a new vector, with the
+     * block size of the given one, which reads its contents in place from
+     * the mapped image beyond its first block.
+     */
+    SuballocatedIntVector mapInts(SuballocatedIntVector table)
+    {
+      int size = checkLength(readInt(), 2);
+
+      OffHeapIntVector vector = new OffHeapIntVector(table.getMap0().length);
+      vector.mapElements(m_buffer.asIntBuffer(), size);
+      m_buffer.position(m_buffer.position() + (size << 2));
+      return vector;
+    }
+
+    String readString()
+    {
+      int length = readInt();
+      if (length == -1)
+        return null;
+      checkLength(length, 1);
+
+      char[] chars = new char[length];
+      m_buffer.asCharBuffer().get(chars);
+      m_buffer.position(m_buffer.position() + ((length + (length & 1)) << 1));
+      return new String(chars);
+    }
+
+    /** Append characters written by Output.writeChars() to a buffer. */
+    void readChars(FastStringBuffer chars)
+    {
+      int length = checkLength(readInt(), 1);
+      CharBuffer source = m_buffer.asCharBuffer();
+      char[] chunk = new char[Math.min(CHAR_CHUNK, length)];
+      for (int i = 0; i < length; i += CHAR_CHUNK)
+      {
+        int n = Math.min(CHAR_CHUNK, length - i);
+        source.get(chunk, 0, n);
+        chars.append(chunk, 0, n);
+      }
+      m_buffer.position(m_buffer.position() + ((length + (length & 1)) << 1));
+    }
+  }
+}
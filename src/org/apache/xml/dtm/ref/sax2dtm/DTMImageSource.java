@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.dtm.ref.sax2dtm;
+
+import java.io.File;
+
+import javax.xml.transform.Source;
+
+/**
+ * A Source which names a pre-built DTM image file written by
+ * {@link DTMImage#write(org.apache.xml.dtm.DTM, File)}. It can be passed
+ * wherever a Source is accepted by the interpretive processor, including
+ * from a URIResolver for the document() function; the document is then
+ * opened from the image instead of being parsed.
+ * <p>
+ * The image holds the document exactly as it was built, so whitespace
+ * stripping rules of the stylesheet using it are not applied again.</p>
+ */
+public class DTMImageSource implements Source
+{
+  /** The image file. */
+  private final File m_file;
+
+  /** The system ID, or null to use the one recorded in the image. */
+  private String m_systemId;
+
+  /**
+   * Create a source for an image file. The document keeps the base URI it
+   * had when the image was written.
+   *
+   * @param file The image file.
+   */
+  public DTMImageSource(File file)
+  {
+    this(file, null);
+  }
+
+  /**
+   * Create a source for an image file, with a system ID which is used as
+   * the base URI of the document.
+   *
+   * @param file The image file.
+   * @param systemId The system ID, or null.
+   */
+  public DTMImageSource(File file, String systemId)
+  {
+    m_file = file;
+    m_systemId = systemId;
+  }
+
+  /**
+   * Get the image file.
+   *
+   * @return the file.
+   */
+  public File getFile()
+  {
+    return m_file;
+  }
+
+  /**
+   * Set the system ID, which is used as the base URI of the document.
+   *
+   * @param systemId The system ID, or null.
+   */
+  public void setSystemId(String systemId)
+  {
+    m_systemId = systemId;
+  }
+
+  /**
+   * Get the system ID set on this source.
+   *
+   * @return the system ID, or null.
+   */
+  public String getSystemId()
+  {
+    return m_systemId;
+  }
+}
@@ -202,7 +202,42 @@ public class SAX2DTM extends DTMDefaultBaseIterators
    /** Made protected for access by SAX2RTFDTM.
    */
   protected IntVector m_sourceColumn;
-  
+
+  /**
+   * log2 of the number of nodes, data entries or values released together
+   * when the document is pruned. This matches DEFAULT_BLOCKSIZE, so that
+   * whole blocks of the node tables are released.
+   */
+  private static final int PRUNE_BLOCK_BITS = 9;
+
+  /** Mask used to find an index within its prune block. */
+  private static final int PRUNE_BLOCK_MASK = (1 << PRUNE_BLOCK_BITS) - 1;
+
+  /**
+   * For a document being pruned, the sizes of m_data, m_chars and
+   * m_prunableValues when the last node of each block was added: three ints
+   * per block, which are lower bounds for the entries of every node in the
+   * following blocks. Null if the document is not being pruned.
+   */
+  private IntVector m_pruneMarks = null;
+
+  /**
+   * For a document being pruned, the values of attribute, namespace,
+   * comment and processing instruction nodes, which are not interned in
+   * m_valuesOrPrefixes so that the values of pruned nodes can be released.
+   * Indexed by value index, in blocks of PRUNE_BLOCK_MASK+1.
+   */
+  private String[][] m_prunableValues = null;
+
+  /** The number of values in m_prunableValues. */
+  private int m_prunableValueCount = 0;
+
+  /** Pruning state of the nodes, m_data and m_prunableValues. */
+  private PrunedSpace m_prunedNodes, m_prunedData, m_prunedValues;
+
+  /** The number of characters of m_chars which have been released. */
+  private int m_prunedChars = 0;
+
   /**
    * Construct a SAX2DTM object using the default block size.
    *
@@ -266,8 +301,8 @@ public class SAX2DTM extends DTMDefaultBaseIterators
     }
     else
     {
-      m_data = new SuballocatedIntVector(blocksize, DEFAULT_NUMBLOCKS);
-      m_dataOrQName = new SuballocatedIntVector(blocksize, DEFAULT_NUMBLOCKS);
+      m_data = newIntVector(blocksize, DEFAULT_NUMBLOCKS);
+      m_dataOrQName = newIntVector(blocksize, DEFAULT_NUMBLOCKS);
       m_valuesOrPrefixes = new DTMStringPool();
       m_chars = new FastStringBuffer(10, 13);
       m_contextIndexes = new IntStack();
@@ -299,6 +334,235 @@ public class SAX2DTM extends DTMDefaultBaseIterators
     m_useSourceLocationProperty = useSourceLocation;
   }
 
+  /**
+   * Allow the document to be pruned by {@link #pruneBefore(int)} as it is
+   * read, so that a document built incrementally and visited in document
+   * order can be processed in bounded memory. This must be called before
+   * the document is built; it turns off indexing, and stops attribute and
+   * other values from being interned.
+   */
+  public void enablePruning()
+  {
+    m_indexing = false;
+    m_pruneMarks = new IntVector();
+    m_prunableValues = new String[DEFAULT_NUMBLOCKS][];
+    m_prunedNodes = new PrunedSpace();
+    m_prunedData = new PrunedSpace();
+    m_prunedValues = new PrunedSpace();
+  }
+
+  /**
+   * Tell if the document may be pruned.
+   *
+   * @return true if {@link #enablePruning()} has been called.
+   */
+  public boolean isPrunable()
+  {
+    return null != m_pruneMarks;
+  }
+
+  /**
+   * Release the storage of the nodes which precede the given node in
+   * document order and are not its ancestors, nor attributes or namespace
+   * nodes of its ancestors. The caller promises never to visit those nodes
+   * again, nor any node released by an earlier call. Storage is released in
+   * blocks, so some of those nodes may be kept for a while.
+   * <p>
+   * This does nothing if the document is not prunable, or if the node does
+   * not belong to this DTM.</p>
+   *
+   * @param nodeHandle The node being visited.
+   */
+  public void pruneBefore(int nodeHandle)
+  {
+    if (null == m_pruneMarks)
+      return;
+
+    int identity = makeNodeIdentity(nodeHandle);
+    if (DTM.NULL == identity)
+      return;
+
+    int block = identity >>> PRUNE_BLOCK_BITS;
+    if (block <= m_prunedNodes.m_next)
+      return;
+
+    // Pin the ancestors, with their attributes and namespace nodes. They
+    // follow their element, so each ancestor pins a range of nodes.
+    IntVector nodePins = new IntVector();
+    IntVector dataPins = new IntVector();
+    IntVector valuePins = new IntVector();
+    for (int ancestor = _parent(identity); DTM.NULL != ancestor;
+         ancestor = _parent(ancestor))
+    {
+      nodePins.addElement(ancestor >>> PRUNE_BLOCK_BITS);
+      for (int attr = ancestor + 1; attr < m_size; attr++)
+      {
+        int type = _type(attr);
+        if (DTM.ATTRIBUTE_NODE != type && DTM.NAMESPACE_NODE != type)
+          break;
+
+        nodePins.addElement(attr >>> PRUNE_BLOCK_BITS);
+        int dataIndex = m_dataOrQName.elementAt(attr);
+        if (dataIndex < 0)
+        {
+          dataPins.addElement(-dataIndex >>> PRUNE_BLOCK_BITS);
+          dataPins.addElement((-dataIndex + 1) >>> PRUNE_BLOCK_BITS);
+          dataIndex = m_data.elementAt(-dataIndex + 1);
+        }
+        valuePins.addElement(dataIndex >>> PRUNE_BLOCK_BITS);
+      }
+    }
+
+    int mark = (block - 1) * 3;
+    IntVector released = new IntVector();
+
+    m_prunedNodes.prune(block, nodePins, released);
+    for (int i = 0; i < released.size(); i++)
+    {
+      int start = released.elementAt(i) << PRUNE_BLOCK_BITS;
+      int end = start + PRUNE_BLOCK_MASK + 1;
+      m_exptype.releaseBlocks(start, end);
+      m_firstch.releaseBlocks(start, end);
+      m_nextsib.releaseBlocks(start, end);
+      m_parent.releaseBlocks(start, end);
+      m_dataOrQName.releaseBlocks(start, end);
+      if (null != m_prevsib)
+        m_prevsib.releaseBlocks(start, end);
+    }
+
+    released.removeAllElements();
+    m_prunedData.prune(m_pruneMarks.elementAt(mark) >>> PRUNE_BLOCK_BITS,
+                       dataPins, released);
+    for (int i = 0; i < released.size(); i++)
+    {
+      int start = released.elementAt(i) << PRUNE_BLOCK_BITS;
+      m_data.releaseBlocks(start, start + PRUNE_BLOCK_MASK + 1);
+    }
+
+    int charsMark = m_pruneMarks.elementAt(mark + 1);
+    m_chars.releaseChunks(m_prunedChars, charsMark);
+    m_prunedChars = charsMark;
+
+    released.removeAllElements();
+    m_prunedValues.prune(m_pruneMarks.elementAt(mark + 2) >>> PRUNE_BLOCK_BITS,
+                         valuePins, released);
+    for (int i = 0; i < released.size(); i++)
+    {
+      m_prunableValues[released.elementAt(i)] = null;
+    }
+  }
+
+  /**
+   * Store the value of an attribute, namespace, comment or processing
+   * instruction node.
+   *
+   * @param value The value, which may be null.
+   *
+   * @return the index of the value, for {@link #getValue(int)}.
+   */
+  private int addValue(String value)
+  {
+    if (null == m_prunableValues)
+      return m_valuesOrPrefixes.stringToIndex(value);
+    if (null == value)
+      return DTM.NULL;
+
+    int index = m_prunableValueCount++;
+    int block = index >>> PRUNE_BLOCK_BITS;
+    if (block >= m_prunableValues.length)
+    {
+      String[][] newValues = new String[block + DEFAULT_NUMBLOCKS][];
+      System.arraycopy(m_prunableValues, 0, newValues, 0,
+                       m_prunableValues.length);
+      m_prunableValues = newValues;
+    }
+    if (null == m_prunableValues[block])
+      m_prunableValues[block] = new String[PRUNE_BLOCK_MASK + 1];
+    m_prunableValues[block][index & PRUNE_BLOCK_MASK] = value;
+    return index;
+  }
+
+  /**
+   * Get a value stored by {@link #addValue(String)}.
+   *
+   * @param index The index of the value.
+   *
+   * @return the value, which may be null.
+   */
+  private String getValue(int index)
+  {
+    if (null == m_prunableValues)
+      return m_valuesOrPrefixes.indexToString(index);
+    if (DTM.NULL == index)
+      return null;
+
+    return m_prunableValues[index >>> PRUNE_BLOCK_BITS][index & PRUNE_BLOCK_MASK];
+  }
+
+  /**
+   * Return the string value of a range of characters in m_chars. The
+   * characters are copied if the document may be pruned, since they may be
+   * released while the string is still in use.
+   *
+   * @param offset The offset of the first character.
+   * @param length The number of characters.
+   *
+   * @return the string.
+   */
+  private XMLString newCharsString(int offset, int length)
+  {
+    if (null == m_pruneMarks)
+      return m_xstrf.newstr(m_chars, offset, length);
+
+    return m_xstrf.newstr(m_chars.getString(offset, length));
+  }
+
+  /**
+   * The pruning state of one of the index spaces of a prunable document:
+   * its nodes, m_data, or m_prunableValues. Blocks are released in order,
+   * except blocks which still hold a pinned entry; those are retried on
+   * later calls.
+   */
+  private static final class PrunedSpace
+  {
+    /** The first block not yet considered. Block 0 is always kept. */
+    int m_next = 1;
+
+    /** Blocks which were kept because they held a pinned entry. */
+    final IntVector m_pending = new IntVector();
+
+    /**
+     * Find the blocks which may now be released.
+     *
+     * @param end The block following the last block which may be released.
+     * @param pins The blocks holding pinned entries.
+     * @param released Receives the blocks to release.
+     */
+    void prune(int end, IntVector pins, IntVector released)
+    {
+      int kept = 0;
+      for (int i = 0; i < m_pending.size(); i++)
+      {
+        int block = m_pending.elementAt(i);
+        if (pins.contains(block))
+          m_pending.setElementAt(block, kept++);
+        else
+          released.addElement(block);
+      }
+      m_pending.setSize(kept);
+
+      for (int block = m_next; block < end; block++)
+      {
+        if (pins.contains(block))
+          m_pending.addElement(block);
+        else
+          released.addElement(block);
+      }
+      if (end > m_next)
+        m_next = end;
+    }
+  }
+
   /**
    * Get the data or qualified name for the given node identity.
    *
@@ -326,6 +590,201 @@ public class SAX2DTM extends DTMDefaultBaseIterators
     }
   }
 
+  /**
+   * Return a rough estimate of the memory used by this DTM's node tables
+   * and character data, in bytes. This is meant for the size accounting
+   * of document caches, not as an exact measure.
+   *
+   * @return the estimated size in bytes.
+   */
+  public long getEstimatedSize()
+  {
+    // About six ints of node tables per node (exptype, firstch, nextsib,
+    // parent, prevsib and dataOrQName), plus two bytes per character.
+    return ((long) m_size * 24) + ((long) m_chars.size() * 2);
+  }
+
+  /**
+   * Write the state of this DTM to a binary image; see {@link DTMImage}.
+   * The node count and flags come first, since they are needed to
+   * construct the DTM which will read the image back.
+   *
+   * @param out The image being written.
+   *
+   * @throws java.io.IOException if the image can not be written.
+   */
+  void writeImage(DTMImage.Output out) throws java.io.IOException
+  {
+    out.writeInt(m_size);
+    int flags = (null != m_prevsib) ? DTMImage.FLAG_PREVSIB : 0;
+    if (this instanceof SAX2DTM2)
+      flags |= DTMImage.FLAG_SAX2DTM2;
+    out.writeInt(flags);
+    out.writeString(m_documentBaseURI);
+    out.writeString(m_systemId);
+
+    // Expanded names beyond the predefined node types, in ID order, so
+    // that a new table assigns them the same IDs.
+    int ntypes = m_expandedNameTable.getSize();
+    out.writeInt(ntypes);
+    for (int i = DTM.NTYPES; i < ntypes; i++)
+    {
+      out.writeInt(m_expandedNameTable.getType(i));
+      out.writeString(m_expandedNameTable.getNamespace(i));
+      out.writeString(m_expandedNameTable.getLocalName(i));
+    }
+
+    out.writeInts(m_exptype);
+    out.writeInts(m_firstch);
+    out.writeInts(m_nextsib);
+    out.writeInts(m_parent);
+    if (null != m_prevsib)
+      out.writeInts(m_prevsib);
+    out.writeInts(m_dataOrQName);
+    out.writeInts(m_data);
+    out.writeChars(m_chars);
+
+    int nstrings = m_valuesOrPrefixes.size();
+    out.writeInt(nstrings);
+    for (int i = 0; i < nstrings; i++)
+      out.writeString(m_valuesOrPrefixes.indexToString(i));
+
+    // The namespace declaration sets hold node handles, which depend on
+    // the DTM ID, so they are written as node identities.
+    if (null == m_namespaceDeclSets)
+      out.writeInt(-1);
+    else
+    {
+      int nsets = m_namespaceDeclSets.size();
+      out.writeInt(nsets);
+      for (int i = 0; i < nsets; i++)
+      {
+        SuballocatedIntVector set =
+          (SuballocatedIntVector) m_namespaceDeclSets.elementAt(i);
+        int setSize = set.size();
+        SuballocatedIntVector identities = new SuballocatedIntVector(32);
+        for (int j = 0; j < setSize; j++)
+          identities.addElement(makeNodeIdentity(set.elementAt(j)));
+        out.writeInts(identities);
+      }
+      out.writeInts(m_namespaceDeclSetElements);
+    }
+
+    out.writeInt(m_idAttributes.size());
+    java.util.Enumeration ids = m_idAttributes.keys();
+    while (ids.hasMoreElements())
+    {
+      String id = (String) ids.nextElement();
+      out.writeString(id);
+      out.writeInt(((Integer) m_idAttributes.get(id)).intValue());
+    }
+
+    if (null == m_entities)
+      out.writeInt(-1);
+    else
+    {
+      int nentities = m_entities.size();
+      out.writeInt(nentities);
+      for (int i = 0; i < nentities; i++)
+        out.writeString((String) m_entities.elementAt(i));
+    }
+  }
+
+  /**
+   * Read the state of this DTM from a binary image written by
+   * {@link #writeImage}. The node count and flags have already been read
+   * by the caller. Afterwards the DTM is complete, as if its endDocument()
+   * had been called.
+   *
+   * @param in The image being read.
+   * @param size The number of nodes in the image.
+   *
+   * @throws java.io.IOException if the image is malformed.
+   */
+  void readImage(DTMImage.Input in, int size) throws java.io.IOException
+  {
+    m_size = size;
+    String baseURI = in.readString();
+    if (null == m_documentBaseURI)
+      m_documentBaseURI = baseURI;
+    m_systemId = in.readString();
+
+    // Source locations are not kept in images.
+    m_useSourceLocationProperty = false;
+    m_sourceSystemId = null;
+    m_sourceLine = null;
+    m_sourceColumn = null;
+
+    // Extended addressing: claim an ID for each further block of nodes.
+    int blockSize = 1 << DTMManager.IDENT_DTM_NODE_BITS;
+    for (int node = blockSize; node < size; node += blockSize)
+      addNewDTMID(node);
+
+    m_expandedNameTable = new ExpandedNameTable();
+    int ntypes = in.readInt();
+    for (int i = DTM.NTYPES; i < ntypes; i++)
+    {
+      int type = in.readInt();
+      String namespace = in.readString();
+      String localName = in.readString();
+      if (m_expandedNameTable.getExpandedTypeID(namespace, localName, type) != i)
+        throw new java.io.IOException("Inconsistent expanded name table");
+    }
+
+    // The node tables are read in place from the image.
+    m_exptype = in.mapInts(m_exptype);
+    m_firstch = in.mapInts(m_firstch);
+    m_nextsib = in.mapInts(m_nextsib);
+    m_parent = in.mapInts(m_parent);
+    if (null != m_prevsib)
+      m_prevsib = in.mapInts(m_prevsib);
+    m_dataOrQName = in.mapInts(m_dataOrQName);
+    m_data = in.mapInts(m_data);
+    in.readChars(m_chars);
+
+    int nstrings = in.readInt();
+    if (!"".equals(in.readString()))
+      throw new java.io.IOException("Inconsistent string pool");
+    for (int i = 1; i < nstrings; i++)
+      m_valuesOrPrefixes.stringToIndex(in.readString());
+
+    int nsets = in.readInt();
+    if (nsets >= 0)
+    {
+      m_namespaceDeclSets = new Vector(in.checkLength(nsets, 2));
+      for (int i = 0; i < nsets; i++)
+      {
+        SuballocatedIntVector set = new SuballocatedIntVector(32);
+        in.readInts(set);
+        for (int j = set.size() - 1; j >= 0; j--)
+          set.setElementAt(makeNodeHandle(set.elementAt(j)), j);
+        m_namespaceDeclSets.addElement(set);
+      }
+      m_namespaceDeclSetElements = new SuballocatedIntVector(32);
+      in.readInts(m_namespaceDeclSetElements);
+    }
+
+    int nids = in.readInt();
+    for (int i = 0; i < nids; i++)
+    {
+      String id = in.readString();
+      m_idAttributes.put(id, new Integer(in.readInt()));
+    }
+
+    int nentities = in.readInt();
+    if (nentities >= 0)
+    {
+      m_entities = new Vector(in.checkLength(nentities, 2));
+      for (int i = 0; i < nentities; i++)
+        m_entities.addElement(in.readString());
+    }
+
+    m_parents = null;
+    m_prefixMappings = null;
+    m_contextIndexes = null;
+    m_endDocumentOccured = true;
+  }
+
   /**
    * Ask the CoRoutine parser to doTerminate and clear the reference.
    */
@@ -567,7 +1026,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
           dataIndex = m_data.elementAt(dataIndex + 1);
         }
 
-        String str = m_valuesOrPrefixes.indexToString(dataIndex);
+        String str = getValue(dataIndex);
 
           if(normalize)
             FastStringBuffer.sendNormalizedSAXcharacters(str.toCharArray(),
@@ -871,6 +1330,14 @@ public class SAX2DTM extends DTMDefaultBaseIterators
     // Common to all nodes:
     int nodeIndex = m_size++;
 
+    // Remember where the next block's entries will start, for pruning.
+    if (null != m_pruneMarks && (nodeIndex & PRUNE_BLOCK_MASK) == PRUNE_BLOCK_MASK)
+    {
+      m_pruneMarks.addElement(m_data.size());
+      m_pruneMarks.addElement(m_chars.size());
+      m_pruneMarks.addElement(m_prunableValueCount);
+    }
+
     // Have we overflowed a DTM Identity's addressing range?
     if(m_dtmIdent.size() == (nodeIndex>>>DTMManager.IDENT_DTM_NODE_BITS))
     {
@@ -929,9 +1396,10 @@ public class SAX2DTM extends DTMDefaultBaseIterators
                               
                               // Handle as Extended Addressing
       DTMManagerDefault mgrD=(DTMManagerDefault)m_mgr;
-      int id=mgrD.getFirstFreeDTMID();
+      int id=reserveExtendedDTMID(mgrD);
       mgrD.addDTM(this,id,nodeIndex);
       m_dtmIdent.addElement(id<<DTMManager.IDENT_DTM_NODE_BITS);
+      updateIdentBase();
     }
     catch(ClassCastException e)
     {
@@ -955,15 +1423,18 @@ public class SAX2DTM extends DTMDefaultBaseIterators
     // We have to reset the information in m_dtmIdent and
     // register the DTM with the new manager. 
     int numDTMs = m_dtmIdent.size();
-    int dtmId = m_mgrDefault.getFirstFreeDTMID();
     int nodeIndex = 0;
+    int dtmId = DTM.NULL;
     for (int i = 0; i < numDTMs; i++)
     {     
+      // IDs are reserved one at a time; keep them consecutive if we can.
+      if (i == 0 || !m_mgrDefault.reserveDTMID(++dtmId))
+        dtmId = m_mgrDefault.getFirstFreeDTMID();
       m_dtmIdent.setElementAt(dtmId << DTMManager.IDENT_DTM_NODE_BITS, i);
       m_mgrDefault.addDTM(this, dtmId, nodeIndex);
-      dtmId++;
       nodeIndex += (1 << DTMManager.IDENT_DTM_NODE_BITS);
     }
+    updateIdentBase();
   }
 
   /**
@@ -1025,7 +1496,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
         dataIndex = m_data.elementAt(dataIndex + 1);
       }
 
-      return m_valuesOrPrefixes.indexToString(dataIndex);
+      return getValue(dataIndex);
     }
   }
 
@@ -1260,7 +1731,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
       int offset = m_data.elementAt(dataIndex);
       int length = m_data.elementAt(dataIndex + 1);
 
-      return m_xstrf.newstr(m_chars, offset, length);
+      return newCharsString(offset, length);
     }
     else
     {
@@ -1294,7 +1765,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
 
         if (length > 0)
         {
-          return m_xstrf.newstr(m_chars, offset, length);
+          return newCharsString(offset, length);
         }
       }
       else if(type != DTM.ELEMENT_NODE)
@@ -1306,7 +1777,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
           dataIndex = -dataIndex;
           dataIndex = m_data.elementAt(dataIndex + 1);
         }
-        return m_xstrf.newstr(m_valuesOrPrefixes.indexToString(dataIndex));
+        return m_xstrf.newstr(getValue(dataIndex));
       }
     }
 
@@ -1899,7 +2370,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
       prefix="xml";
       String declURL = "http://www.w3.org/XML/1998/namespace";
       exName = m_expandedNameTable.getExpandedTypeID(null, prefix, DTM.NAMESPACE_NODE);
-      int val = m_valuesOrPrefixes.stringToIndex(declURL);
+      int val = addValue(declURL);
       prev = addNode(DTM.NAMESPACE_NODE, exName, elemNode,
                      prev, val, false);
       m_pastFirstElement=true;
@@ -1916,7 +2387,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
 
       exName = m_expandedNameTable.getExpandedTypeID(null, prefix, DTM.NAMESPACE_NODE);
 
-      int val = m_valuesOrPrefixes.stringToIndex(declURL);
+      int val = addValue(declURL);
 
       prev = addNode(DTM.NAMESPACE_NODE, exName, elemNode,
                      prev, val, false);
@@ -1958,7 +2429,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
       if(null == valString)
         valString = "";
 
-      int val = m_valuesOrPrefixes.stringToIndex(valString);
+      int val = addValue(valString);
       //String attrLocalName = attributes.getLocalName(i);
 
       if (null != prefix)
@@ -2134,7 +2605,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
 
     int exName = m_expandedNameTable.getExpandedTypeID(null, target,
                                          DTM.PROCESSING_INSTRUCTION_NODE);
-    int dataIndex = m_valuesOrPrefixes.stringToIndex(data);
+    int dataIndex = addValue(data);
 
     m_previous = addNode(DTM.PROCESSING_INSTRUCTION_NODE, exName,
                          m_parents.peek(), m_previous,
@@ -2454,8 +2925,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
 
     // For now, treat comments as strings...  I guess we should do a
     // seperate FSB buffer instead.
-    int dataIndex = m_valuesOrPrefixes.stringToIndex(new String(ch, start,
-                      length));
+    int dataIndex = addValue(new String(ch, start, length));
 
 
     m_previous = addNode(DTM.COMMENT_NODE, exName,
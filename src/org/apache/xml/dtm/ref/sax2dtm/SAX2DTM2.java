@@ -1783,6 +1783,9 @@ public class SAX2DTM2 extends SAX2DTM
   private int[] m_parent_map0;
 
   // Double array references to the map arrays in SuballocatedIntVectors.
+  // These are null while the document is being built, and when the node
+  // tables are held off the heap (see OffHeapIntVector); the accessors
+  // then go through the vectors themselves.
   private int[][] m_exptype_map;
   private int[][] m_nextsib_map;
   private int[][] m_firstch_map;
@@ -1925,8 +1928,10 @@ public class SAX2DTM2 extends SAX2DTM
 
     if (identity < m_blocksize)
       return m_exptype_map0[identity];
-    else
+    else if (null != m_exptype_map)
       return m_exptype_map[identity>>>m_SHIFT][identity&m_MASK];
+    else
+      return m_exptype.elementAt(identity);
   }
 
   /**
@@ -1941,8 +1946,10 @@ public class SAX2DTM2 extends SAX2DTM
 
     if (identity < m_blocksize)
       return m_nextsib_map0[identity];
-    else
+    else if (null != m_nextsib_map)
       return m_nextsib_map[identity>>>m_SHIFT][identity&m_MASK];
+    else
+      return m_nextsib.elementAt(identity);
   }
 
   /**
@@ -1957,8 +1964,10 @@ public class SAX2DTM2 extends SAX2DTM
 
     if (identity < m_blocksize)
       return m_firstch_map0[identity];
-    else
+    else if (null != m_firstch_map)
       return m_firstch_map[identity>>>m_SHIFT][identity&m_MASK];
+    else
+      return m_firstch.elementAt(identity);
   }
 
   /**
@@ -1973,8 +1982,10 @@ public class SAX2DTM2 extends SAX2DTM
 
     if (identity < m_blocksize)
       return m_parent_map0[identity];
-    else
+    else if (null != m_parent_map)
       return m_parent_map[identity>>>m_SHIFT][identity&m_MASK];
+    else
+      return m_parent.elementAt(identity);
   }
 
   /**
@@ -1989,8 +2000,10 @@ public class SAX2DTM2 extends SAX2DTM
     int eType;
     if (identity < m_blocksize)
       eType = m_exptype_map0[identity];
-    else
+    else if (null != m_exptype_map)
       eType = m_exptype_map[identity>>>m_SHIFT][identity&m_MASK];
+    else
+      eType = m_exptype.elementAt(identity);
 
     if (NULL != eType)
       return m_extendedTypes[eType].getNodeType();
@@ -2013,8 +2026,10 @@ public class SAX2DTM2 extends SAX2DTM
     if (nodeID != NULL) {
       if (nodeID < m_blocksize)
         return m_exptype_map0[nodeID];
-      else
+      else if (null != m_exptype_map)
         return m_exptype_map[nodeID>>>m_SHIFT][nodeID&m_MASK];
+      else
+        return m_exptype.elementAt(nodeID);
     }
     else
       return NULL;
@@ -2318,6 +2333,46 @@ public class SAX2DTM2 extends SAX2DTM
     m_parent_map  = m_parent.getMap();
   }
 
+  /**
+   * Write the state of this DTM to a binary image; see {@link DTMImage}.
+   */
+  void writeImage(DTMImage.Output out) throws java.io.IOException
+  {
+    super.writeImage(out);
+
+    out.writeInt(m_valueIndex);
+    for (int i = 0; i < m_valueIndex; i++)
+      out.writeString((String) m_values.elementAt(i));
+  }
+
+  /**
+   * Read the state of this DTM from a binary image, and set up the cached
+   * references which endDocument() would have set.
+   */
+  void readImage(DTMImage.Input in, int size) throws java.io.IOException
+  {
+    super.readImage(in, size);
+
+    m_valueIndex = in.readInt();
+    m_values = new Vector(m_valueIndex + 1, 512);
+    for (int i = 0; i < m_valueIndex; i++)
+      m_values.addElement(in.readString());
+
+    m_maxNodeIndex = m_dtmIdent.size() << DTMManager.IDENT_DTM_NODE_BITS;
+
+    // The node tables have been replaced by ones read from the image.
+    m_exptype_map0 = m_exptype.getMap0();
+    m_nextsib_map0 = m_nextsib.getMap0();
+    m_firstch_map0 = m_firstch.getMap0();
+    m_parent_map0  = m_parent.getMap0();
+
+    m_extendedTypes = m_expandedNameTable.getExtendedTypes();
+    m_exptype_map = m_exptype.getMap();
+    m_nextsib_map = m_nextsib.getMap();
+    m_firstch_map = m_firstch.getMap();
+    m_parent_map  = m_parent.getMap();
+  }
+
   /**
    * Construct the node map from the node.
    *
@@ -0,0 +1,391 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is an output stream which hands the bytes written to it over
+ * to a background thread, which writes them to the real output stream, so
+ * that serializing the document and writing it out can overlap. This is
+ * worth doing when the real output stream is slow, such as a compressing
+ * stream or a socket.
+ *
+ * The bytes are copied into a ring of byte buffers. A full buffer is
+ * queued for the background thread and the next free buffer is filled.
+ * When no buffer is free, the writer waits for the background thread to
+ * write one out, so no more than the ring is ever held in memory.
+ *
+ * The background thread is only started once a buffer is handed over to
+ * it, so a document which fits into one buffer is written out without it,
+ * and the thread stops when it has had nothing to write for a while.
+ *
+ * The serializer flushes its writer often, as often as for each element,
+ * so flush() does not wait for the background thread. If the thread is
+ * idle it is handed what has been written so far, and flushes the real
+ * output stream once it has written it; if it is busy, the flush is left
+ * to go with the current buffer, so that flushes do not cut the buffers
+ * short. drain() and close() wait until all the bytes written so far have
+ * been written to the real output stream. An IOException of the
+ * background thread is thrown by the next write(), drain(), flush() or
+ * close().
+ *
+ * This class is only used internally within Xalan.
+ *
+ * @xsl.usage internal
+ */
+final class AsyncOutputStream extends OutputStream implements Runnable
+{
+  /** The size of each buffer, if none is given. */
+  static final int DEFAULT_BUFFER_SIZE = 16*1024;
+
+  /** The milliseconds the background thread waits for more work. */
+  private static final long IDLE_MILLIS = 1000;
+
+  /** The real output stream. */
+  private final OutputStream m_os;
+
+  /** The buffers which are free to be filled. */
+  private final BlockingQueue m_free;
+
+  /** The full buffers, in the order to write them out. */
+  private final BlockingQueue m_full;
+
+  /** The buffer being filled. */
+  private Buffer m_current;
+
+  /**
+   * True if the real output stream is to be flushed once the bytes
+   * written so far have been written to it.
+   */
+  private boolean m_flushPending;
+
+  /**
+   * The number of buffers queued or being written out. Guarded by the
+   * lock on this object.
+   */
+  private int m_pending;
+
+  /**
+   * True while a background thread is running. Guarded by the lock on
+   * this object.
+   */
+  private boolean m_running;
+
+  /**
+   * The first error of the background thread, which may be any Throwable
+   * the real output stream threw. Once set, the background thread throws
+   * away what it is given.
+   */
+  private volatile Throwable m_error;
+
+  /**
+   * Create an output stream writing to another in the background.
+   *
+   * @param os the real output stream.
+   * @param buffers the number of buffers in the ring, at least 2.
+   * @param bufferSize the size of each buffer.
+   */
+  AsyncOutputStream(OutputStream os, int buffers, int bufferSize)
+  {
+    m_os = os;
+    buffers = Math.max(buffers, 2);
+    bufferSize = Math.max(bufferSize, 1);
+    m_free = new ArrayBlockingQueue(buffers);
+    m_full = new ArrayBlockingQueue(buffers);
+    for (int i = 1; i < buffers; i++)
+      m_free.add(new Buffer(bufferSize));
+    m_current = new Buffer(bufferSize);
+  }
+
+  /**
+   * Write a byte.
+   *
+   * @param b the byte to write.
+   *
+   * @throws IOException if an earlier write to the real output stream
+   * failed.
+   */
+  public void write(final int b) throws IOException
+  {
+    final Buffer current = m_current;
+    current.bytes[current.count++] = (byte) b;
+    if (current.count == current.bytes.length)
+      handOff();
+  }
+
+  /**
+   * Write a portion of an array of bytes.
+   *
+   * @param b the bytes.
+   * @param off the offset of the first byte to write.
+   * @param len the number of bytes to write.
+   *
+   * @throws IOException if an earlier write to the real output stream
+   * failed.
+   */
+  public void write(final byte[] b, int off, int len) throws IOException
+  {
+    while (len > 0)
+    {
+      final Buffer current = m_current;
+      final int n = Math.min(len, current.bytes.length - current.count);
+      System.arraycopy(b, off, current.bytes, current.count, n);
+      current.count += n;
+      off += n;
+      len -= n;
+      if (current.count == current.bytes.length)
+        handOff();
+    }
+  }
+
+  /**
+   * Queue the current buffer for the background thread, and take the
+   * next free one, waiting for one if there is none.
+   */
+  private void handOff() throws IOException
+  {
+    checkError();
+    try
+    {
+      m_current.flush = m_flushPending;
+      m_flushPending = false;
+      synchronized (this)
+      {
+        m_pending++;
+        m_full.add(m_current);
+        if (!m_running)
+        {
+          m_running = true;
+          Thread thread = new Thread(this, "Xalan serializer output");
+          thread.setDaemon(true);
+          thread.start();
+        }
+      }
+      m_current = (Buffer) m_free.take();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+  }
+
+  /**
+   * Write out all the bytes written to this stream so far, waiting for
+   * the background thread to be done with them. The real output stream
+   * is only flushed if flush() has been called since it last was.
+   *
+   * @throws IOException if a write to the real output stream failed.
+   */
+  void drain() throws IOException
+  {
+    final Buffer current = m_current;
+    if (current.count > 0)
+    {
+      boolean running;
+      synchronized (this)
+      {
+        running = m_running;
+      }
+      if (running)
+        handOff();
+      else
+      {
+        // Nothing else is queued, so write it here
+        checkError();
+        m_os.write(current.bytes, 0, current.count);
+        current.count = 0;
+      }
+    }
+
+    try
+    {
+      synchronized (this)
+      {
+        while (m_pending > 0)
+          wait();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+    checkError();
+
+    if (m_flushPending)
+    {
+      m_flushPending = false;
+      m_os.flush();
+    }
+  }
+
+  /**
+   * Have the bytes written to this stream so far written to the real
+   * output stream, and the real output stream flushed, without waiting
+   * for it.
+   *
+   * @throws IOException if an earlier write to the real output stream
+   * failed.
+   */
+  public void flush() throws IOException
+  {
+    checkError();
+    m_flushPending = true;
+    synchronized (this)
+    {
+      // The flush goes with a later buffer
+      if (m_pending > 0)
+        return;
+    }
+
+    if (m_current.count > 0)
+      handOff();
+    else
+    {
+      // The background thread is not using the real output stream
+      m_flushPending = false;
+      m_os.flush();
+    }
+  }
+
+  /**
+   * Write out all the bytes written to this stream so far, and close the
+   * real output stream.
+   *
+   * @throws IOException if a write to the real output stream failed.
+   */
+  public void close() throws IOException
+  {
+    try
+    {
+      drain();
+    }
+    finally
+    {
+      m_os.close();
+    }
+  }
+
+  /**
+   * Throw the error of the background thread, if it had one. Errors are
+   * rethrown as they are; other exceptions are wrapped in an IOException.
+   */
+  private void checkError() throws IOException
+  {
+    final Throwable error = m_error;
+    if (error == null)
+      return;
+    if (error instanceof IOException)
+      throw (IOException) error;
+    if (error instanceof Error)
+      throw (Error) error;
+    IOException ioe = new IOException(error.toString());
+    ioe.initCause(error);
+    throw ioe;
+  }
+
+  /**
+   * Write out the full buffers as they come, until there have been none
+   * for a while.
+   */
+  public void run()
+  {
+    while (true)
+    {
+      Buffer buffer;
+      try
+      {
+        buffer = (Buffer) m_full.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        // Nothing but this class knows of the thread; keep going, as
+        // the writer may be waiting for a buffer
+        continue;
+      }
+
+      if (buffer == null)
+      {
+        synchronized (this)
+        {
+          if (m_full.isEmpty())
+          {
+            m_running = false;
+            return;
+          }
+        }
+        continue;
+      }
+
+      try
+      {
+        if (m_error == null)
+        {
+          try
+          {
+            m_os.write(buffer.bytes, 0, buffer.count);
+            if (buffer.flush)
+              m_os.flush();
+          }
+          catch (Throwable t)
+          {
+            // Whatever it is, the writer must hear of it rather than
+            // wait for this thread forever
+            m_error = t;
+          }
+        }
+        buffer.count = 0;
+        m_free.add(buffer);
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          if (--m_pending == 0)
+            notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * A buffer of the ring, the number of bytes in it, and whether to flush
+   * the real output stream after writing them.
+   */
+  private static final class Buffer
+  {
+    final byte[] bytes;
+    int count;
+    boolean flush;
+
+    Buffer(int size)
+    {
+      bytes = new byte[size];
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * A transformation result which is a byte channel, such as a
+ * <code>FileChannel</code> or a <code>SocketChannel</code>. The
+ * transformers of Xalan serialize the result tree straight into byte
+ * buffers written to the channel; for example:
+ * <pre>
+ *   FileChannel channel = new FileOutputStream("out.xml").getChannel();
+ *   transformer.transform(source, new ChannelResult(channel));
+ *   channel.close();
+ * </pre>
+ * The buffers can be set with the
+ * {@link OutputPropertiesFactory#S_KEY_CHANNEL_BUFFER_SIZE} and
+ * {@link OutputPropertiesFactory#S_KEY_CHANNEL_BUFFER_DIRECT} output
+ * properties. The channel is not closed at the end of the transformation.
+ * <p>
+ * To other transformers this is an ordinary <code>StreamResult</code>
+ * whose output stream writes to the channel.
+ *
+ * @xsl.usage general
+ */
+public class ChannelResult extends StreamResult
+{
+    /** The channel to write to. */
+    private final WritableByteChannel m_channel;
+
+    /**
+     * Create a result writing to a byte channel.
+     *
+     * @param channel the channel to write to, in blocking mode.
+     */
+    public ChannelResult(WritableByteChannel channel)
+    {
+        super(Channels.newOutputStream(channel));
+        m_channel = channel;
+    }
+
+    /**
+     * Get the channel to write to.
+     *
+     * @return the channel this result was created with.
+     */
+    public WritableByteChannel getChannel()
+    {
+        return m_channel;
+    }
+}
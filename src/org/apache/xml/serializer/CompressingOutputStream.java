@@ -0,0 +1,512 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * This class is an output stream which compresses the bytes written to it
+ * in the gzip (RFC 1952) or zlib (RFC 1950, the HTTP "deflate" content
+ * coding) format, and writes them to another output stream.
+ *
+ * Unlike a java.util.zip.GZIPOutputStream, it deflates straight from the
+ * array handed to write(), which is the byte buffer of the serializer's
+ * writer, into a buffer as large as the writer's, and it ignores flush(),
+ * which the serializer calls as often as for each element, since flushing
+ * a deflater makes the output larger. The compressed document is finished,
+ * with its trailer, by finish(), which the serializer calls at the end of
+ * the document; after that the next byte written starts a new compressed
+ * document.
+ *
+ * Given a block size, the bytes are instead cut into blocks of that size,
+ * which are compressed in parallel in the common fork-join pool. Each
+ * block is primed with the last 32K of the one before it and ends on a
+ * byte boundary, so that the blocks together are a single deflate stream,
+ * which is only a little larger than had it been compressed in one go.
+ *
+ * The number of bytes written to this stream, and written by it to the
+ * other stream, are counted for each compressed document.
+ *
+ * This class is only used internally within Xalan, by the serializer and
+ * by XSLTC, which sets it up itself.
+ *
+ * @xsl.usage internal
+ */
+public final class CompressingOutputStream extends OutputStream
+{
+  /** The gzip format. */
+  static final String GZIP = "gzip";
+
+  /** The zlib format, which HTTP calls "deflate". */
+  static final String DEFLATE = "deflate";
+
+  /** The size of the buffer the deflater compresses into. */
+  private static final int OUTPUT_BUFFER_SIZE = 16*1024;
+
+  /** The size of the deflate window, and of the dictionary of a block. */
+  private static final int WINDOW_SIZE = 32*1024;
+
+  /** The output stream the compressed bytes are written to. */
+  private final OutputStream m_os;
+
+  /** True for the gzip format, false for the zlib format. */
+  private final boolean m_gzip;
+
+  /** The compression level, 0-9 or Deflater.DEFAULT_COMPRESSION. */
+  private final int m_level;
+
+  /** The checksum of the trailer of the format. */
+  private final Checksum m_checksum;
+
+  /** The deflater of the serial mode, or null in the parallel mode. */
+  private final Deflater m_deflater;
+
+  /** The buffer m_deflater compresses into. */
+  private byte[] m_outputBuffer;
+
+  /** The block being filled in the parallel mode, or null. */
+  private byte[] m_block;
+
+  /** The number of bytes in m_block. */
+  private int m_blockCount;
+
+  /** The block before m_block, whose end primes the next block. */
+  private byte[] m_previousBlock;
+
+  /**
+   * The blocks being compressed, as Futures of their compressed bytes,
+   * in the order in which they are written out.
+   */
+  private final LinkedList m_blocks = new LinkedList();
+
+  /** The number of blocks compressed at once, at most. */
+  private final int m_maxBlocks;
+
+  /** True once the header of the current document is written. */
+  private boolean m_started;
+
+  /**
+   * True if bytes have been written to m_os since it was last flushed.
+   */
+  private boolean m_dirty;
+
+  /** The array for write(int). */
+  private final byte[] m_oneByte = new byte[1];
+
+  /** The number of bytes written to this stream for the document. */
+  private long m_uncompressedCount;
+
+  /** The number of bytes written to m_os for the document. */
+  private long m_compressedCount;
+
+  /**
+   * Create an output stream which compresses to another.
+   *
+   * @param os the output stream to write the compressed bytes to.
+   * @param format {@link #GZIP} or {@link #DEFLATE}.
+   * @param level the compression level, 0-9 or -1 for the default.
+   * @param blockSize the size of the blocks to compress in parallel, or
+   * 0 to compress the bytes as they are written.
+   */
+  CompressingOutputStream(OutputStream os, String format, int level,
+      int blockSize)
+  {
+    m_os = os;
+    m_gzip = !DEFLATE.equals(format);
+    m_level = (level >= Deflater.NO_COMPRESSION
+               && level <= Deflater.BEST_COMPRESSION)
+      ? level : Deflater.DEFAULT_COMPRESSION;
+    m_checksum = m_gzip ? (Checksum) new CRC32() : (Checksum) new Adler32();
+
+    if (blockSize > 0 && ForkJoinPool.getCommonPoolParallelism() > 1)
+    {
+      m_deflater = null;
+      m_block = new byte[Math.max(blockSize, WINDOW_SIZE)];
+      m_maxBlocks = 2 * ForkJoinPool.getCommonPoolParallelism();
+    }
+    else
+    {
+      m_deflater = new Deflater(m_level, true);
+      m_outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+      m_maxBlocks = 0;
+    }
+  }
+
+  /**
+   * Create an output stream which compresses to another, as the values of
+   * the {@link OutputPropertiesFactory#S_KEY_COMPRESSION},
+   * {@link OutputPropertiesFactory#S_KEY_COMPRESSION_LEVEL} and
+   * {@link OutputPropertiesFactory#S_KEY_COMPRESSION_BLOCK_SIZE} output
+   * properties ask.
+   *
+   * @param os the output stream to write the compressed bytes to.
+   * @param format "gzip" or "deflate", or null.
+   * @param level the compression level, or null for the default.
+   * @param blockSize the size of the blocks to compress in parallel, or
+   * null to compress the bytes as they are written.
+   * @return the stream, or null if the format is not one of the two.
+   */
+  public static CompressingOutputStream newInstance(OutputStream os,
+      String format, String level, String blockSize)
+  {
+    if (format != null)
+      format = format.trim().toLowerCase();
+    if (!GZIP.equals(format) && !DEFLATE.equals(format))
+      return null;
+
+    int levelValue = -1;
+    int blockSizeValue = 0;
+    try
+    {
+      if (level != null)
+        levelValue = Integer.parseInt(level.trim());
+      if (blockSize != null)
+        blockSizeValue = Integer.parseInt(blockSize.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      // keep the default level, or compress as it is written
+    }
+    return new CompressingOutputStream(os, format, levelValue,
+                                       blockSizeValue);
+  }
+
+  /**
+   * Write a byte.
+   *
+   * @param b the byte to write.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(final int b) throws IOException
+  {
+    m_oneByte[0] = (byte) b;
+    write(m_oneByte, 0, 1);
+  }
+
+  /**
+   * Write a portion of an array of bytes.
+   *
+   * @param b the bytes.
+   * @param off the offset of the first byte to write.
+   * @param len the number of bytes to write.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(final byte[] b, int off, int len) throws IOException
+  {
+    if (!m_started)
+      start();
+    m_checksum.update(b, off, len);
+    m_uncompressedCount += len;
+
+    if (m_deflater != null)
+    {
+      m_deflater.setInput(b, off, len);
+      while (!m_deflater.needsInput())
+        deflate(Deflater.NO_FLUSH);
+      return;
+    }
+
+    while (len > 0)
+    {
+      final int n = Math.min(len, m_block.length - m_blockCount);
+      System.arraycopy(b, off, m_block, m_blockCount, n);
+      m_blockCount += n;
+      off += n;
+      len -= n;
+      if (m_blockCount == m_block.length)
+        submitBlock();
+    }
+  }
+
+  /**
+   * Flush the output stream the compressed bytes are written to, if any
+   * have been written since it was last flushed. The bytes held by the
+   * deflater are not flushed, as that would make the output larger.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void flush() throws IOException
+  {
+    if (m_dirty)
+    {
+      m_dirty = false;
+      m_os.flush();
+    }
+  }
+
+  /**
+   * Finish the compressed document, writing the rest of it and its
+   * trailer. The output stream the compressed bytes are written to is not
+   * flushed or closed.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void finish() throws IOException
+  {
+    if (!m_started)
+      return;
+
+    if (m_deflater != null)
+    {
+      m_deflater.finish();
+      while (!m_deflater.finished())
+        deflate(Deflater.NO_FLUSH);
+      m_deflater.reset();
+    }
+    else
+    {
+      while (!m_blocks.isEmpty())
+        writeBlock();
+      // The last block, compressed here as nothing else is left to do
+      final byte[] last = compressBlock(m_block, m_blockCount,
+                                        m_previousBlock, true);
+      writeOut(last, 0, last.length);
+      m_blockCount = 0;
+      m_previousBlock = null;
+    }
+
+    final long checksum = m_checksum.getValue();
+    if (m_gzip)
+    {
+      final long size = m_uncompressedCount;
+      writeOut(new byte[] {
+        (byte) checksum, (byte) (checksum >> 8),
+        (byte) (checksum >> 16), (byte) (checksum >> 24),
+        (byte) size, (byte) (size >> 8),
+        (byte) (size >> 16), (byte) (size >> 24) }, 0, 8);
+    }
+    else
+    {
+      writeOut(new byte[] {
+        (byte) (checksum >> 24), (byte) (checksum >> 16),
+        (byte) (checksum >> 8), (byte) checksum }, 0, 4);
+    }
+    m_started = false;
+  }
+
+  /**
+   * Finish the compressed document, and close the output stream the
+   * compressed bytes are written to.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void close() throws IOException
+  {
+    try
+    {
+      finish();
+    }
+    finally
+    {
+      if (m_deflater != null)
+        m_deflater.end();
+      m_os.close();
+    }
+  }
+
+  /**
+   * Get the number of bytes written to this stream for the current, or
+   * the last, compressed document.
+   */
+  long getUncompressedCount()
+  {
+    return m_uncompressedCount;
+  }
+
+  /**
+   * Get the number of compressed bytes, including the header and
+   * trailer, written for the current, or the last, compressed document.
+   */
+  long getCompressedCount()
+  {
+    return m_compressedCount;
+  }
+
+  /**
+   * Start a compressed document, writing its header.
+   */
+  private void start() throws IOException
+  {
+    m_started = true;
+    m_uncompressedCount = 0;
+    m_compressedCount = 0;
+    m_checksum.reset();
+    if (m_gzip)
+    {
+      // No file name or time, the same as a GZIPOutputStream
+      writeOut(new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED,
+                            0, 0, 0, 0, 0, 0, 0 }, 0, 10);
+    }
+    else
+    {
+      // A 32K window, and the level as zlib would give it
+      final int cmf = 0x78;
+      int flg;
+      if (m_level == Deflater.DEFAULT_COMPRESSION || m_level == 6)
+        flg = 2 << 6;
+      else if (m_level < 2)
+        flg = 0;
+      else if (m_level < 6)
+        flg = 1 << 6;
+      else
+        flg = 3 << 6;
+      flg += 31 - (cmf * 256 + flg) % 31;
+      writeOut(new byte[] { (byte) cmf, (byte) flg }, 0, 2);
+    }
+  }
+
+  /**
+   * Compress what m_deflater has to compress into m_outputBuffer, and
+   * write it out.
+   */
+  private void deflate(int flush) throws IOException
+  {
+    final int n = m_deflater.deflate(m_outputBuffer, 0,
+                                     m_outputBuffer.length, flush);
+    if (n > 0)
+      writeOut(m_outputBuffer, 0, n);
+  }
+
+  /**
+   * Write compressed bytes to the output stream, counting them.
+   */
+  private void writeOut(byte[] b, int off, int len) throws IOException
+  {
+    m_os.write(b, off, len);
+    m_compressedCount += len;
+    m_dirty = true;
+  }
+
+  /**
+   * Hand the full block over to the fork-join pool, and start the next
+   * one. If there are as many blocks being compressed as there should be,
+   * the first of them is waited for and written out first.
+   */
+  private void submitBlock() throws IOException
+  {
+    while (m_blocks.size() >= m_maxBlocks)
+      writeBlock();
+
+    final byte[] block = m_block;
+    final int count = m_blockCount;
+    final byte[] dictionary = m_previousBlock;
+    m_blocks.addLast(ForkJoinPool.commonPool().submit(
+      new Callable()
+      {
+        public Object call()
+        {
+          return compressBlock(block, count, dictionary, false);
+        }
+      }));
+
+    // The block is read by its task, so it is not reused
+    m_previousBlock = block;
+    m_block = new byte[block.length];
+    m_blockCount = 0;
+  }
+
+  /**
+   * Wait for the first block being compressed, and write it out.
+   */
+  private void writeBlock() throws IOException
+  {
+    final Future future = (Future) m_blocks.removeFirst();
+    final byte[] compressed;
+    try
+    {
+      compressed = (byte[]) future.get();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+    catch (ExecutionException e)
+    {
+      throw new IOException(e.getCause().toString());
+    }
+    writeOut(compressed, 0, compressed.length);
+  }
+
+  /**
+   * Compress a block, as part of a deflate stream.
+   *
+   * @param block the bytes to compress.
+   * @param count the number of bytes in block.
+   * @param dictionary the block before this one, or null for the first.
+   * @param last true for the last block, which ends the deflate stream.
+   *
+   * @return the compressed bytes, which end on a byte boundary.
+   */
+  private byte[] compressBlock(byte[] block, int count, byte[] dictionary,
+                               boolean last)
+  {
+    final Deflater deflater = new Deflater(m_level, true);
+    try
+    {
+      if (dictionary != null)
+        deflater.setDictionary(dictionary, dictionary.length - WINDOW_SIZE,
+                               WINDOW_SIZE);
+      deflater.setInput(block, 0, count);
+      if (last)
+        deflater.finish();
+
+      byte[] out = new byte[count / 2 + 64];
+      int length = 0;
+      while (true)
+      {
+        if (length == out.length)
+        {
+          final byte[] bigger = new byte[out.length * 2];
+          System.arraycopy(out, 0, bigger, 0, length);
+          out = bigger;
+        }
+        final int n = deflater.deflate(out, length, out.length - length,
+            last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+        length += n;
+        // A sync flush is done once it leaves room to spare
+        if (last ? deflater.finished() : length < out.length)
+          break;
+      }
+
+      final byte[] compressed = new byte[length];
+      System.arraycopy(out, 0, compressed, 0, length);
+      return compressed;
+    }
+    finally
+    {
+      deflater.end();
+    }
+  }
+}
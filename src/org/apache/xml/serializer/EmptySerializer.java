@@ -23,6 +23,7 @@ package org.apache.xml.serializer;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Vector;
@@ -190,6 +191,13 @@ public class EmptySerializer implements SerializationHandler
     {
         aMethodIsCalled();
     }
+    /**
+     * @see SerializationHandler#setOutputChannel(java.nio.channels.WritableByteChannel)
+     */
+    public void setOutputChannel(WritableByteChannel channel)
+    {
+        aMethodIsCalled();
+    }
     /**
      * @see SerializationHandler#setVersion(java.lang.String)
      */
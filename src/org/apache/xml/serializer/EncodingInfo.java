@@ -20,6 +20,9 @@
  */
 package org.apache.xml.serializer;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 
 /**
  * Holds information about a given encoding, which is the Java name for the
@@ -36,20 +39,12 @@ package org.apache.xml.serializer;
  * </pre>
  * which can be called if the two characters from a high/low surrogate pair.
  * <p>
- * An EncodingInfo object is a node in a binary search tree. Such a node
- * will answer if a character is in the encoding, and do so for a given
- * range of unicode values (<code>m_first</code> to
- * <code>m_last</code>). It will handle a certain range of values
- * explicitly (<code>m_explFirst</code> to <code>m_explLast</code>).
- * If the unicode point is before that explicit range, that is it
- * is in the range <code>m_first <= value < m_explFirst</code>, then it will delegate to another EncodingInfo object for The root
- * of such a tree, m_before.  Likewise for values in the range 
- * <code>m_explLast < value <= m_last</code>, but delgating to <code>m_after</code>
- * <p>
- * Actually figuring out if a code point is in the encoding is expensive. So the
- * purpose of this tree is to cache such determinations, and not to build the
- * entire tree of information at the start, but only build up as much of the 
- * tree as is used during the transformation.
+ * Actually figuring out if a code point is in the encoding is expensive. So
+ * the answers are kept in bitmaps, one bit per code point, for pages of 256
+ * code points. A page is only filled in when a code point in it is first
+ * asked about, and the bitmaps of an encoding are shared by all the
+ * EncodingInfo objects for that encoding in the process, so each page is
+ * worked out once rather than once per serializer.
  * <p>
  * This Class is not a public API, and should only be used internally within
  * the serializer.
@@ -103,12 +98,7 @@ public final class EncodingInfo extends Object
      */
     public boolean isInEncoding(char ch) {
         if (m_encoding == null) {
-            m_encoding = new EncodingImpl();
-            
-            // One could put alternate logic in here to
-            // instantiate another object that implements the
-            // InEncoding interface. For example if the JRE is 1.4 or up
-            // we could have an object that uses JRE 1.4 methods
+            m_encoding = getEncodingBitmap(javaName);
         }
         return m_encoding.isInEncoding(ch); 
     }
@@ -124,12 +114,7 @@ public final class EncodingInfo extends Object
      */
     public boolean isInEncoding(char high, char low) {
         if (m_encoding == null) {
-            m_encoding = new EncodingImpl();
-            
-            // One could put alternate logic in here to
-            // instantiate another object that implements the
-            // InEncoding interface. For example if the JRE is 1.4 or up
-            // we could have an object that uses JRE 1.4 methods
+            m_encoding = getEncodingBitmap(javaName);
         }
         return m_encoding.isInEncoding(high, low); 
     }
@@ -178,233 +163,163 @@ public final class EncodingInfo extends Object
     }
 
     /**
-     * This class implements the 
+     * The bitmaps of the encodings used so far in this process,
+     * by Java name of the encoding.
      */
-    private class EncodingImpl implements InEncoding {
-        
-
+    private static final ConcurrentHashMap s_bitmaps = new ConcurrentHashMap();
 
-        public boolean isInEncoding(char ch1) {
-            final boolean ret;
-            int codePoint = Encodings.toCodePoint(ch1);
-            if (codePoint < m_explFirst) {
-                // The unicode value is before the range
-                // that we explictly manage, so we delegate the answer.
-                
-                // If we don't have an m_before object to delegate to, make one.
-                if (m_before == null)
-                    m_before =
-                        new EncodingImpl(
-                            m_encoding,
-                            m_first,
-                            m_explFirst - 1,
-                            codePoint);
-                ret = m_before.isInEncoding(ch1);
-            } else if (m_explLast < codePoint) {
-                // The unicode value is after the range
-                // that we explictly manage, so we delegate the answer.
-                
-                // If we don't have an m_after object to delegate to, make one.
-                if (m_after == null)
-                    m_after =
-                        new EncodingImpl(
-                            m_encoding,
-                            m_explLast + 1,
-                            m_last,
-                            codePoint);
-                ret = m_after.isInEncoding(ch1);
-            } else {
-                // The unicode value is in the range we explitly handle
-                final int idx = codePoint - m_explFirst;
-                
-                // If we already know the answer, just return it.
-                if (m_alreadyKnown[idx])
-                    ret = m_isInEncoding[idx];
-                else {
-                    // We don't know the answer, so find out,
-                    // which may be expensive, then cache the answer 
-                    ret = inEncoding(ch1, m_encoding);
-                    m_alreadyKnown[idx] = true;
-                    m_isInEncoding[idx] = ret;
-                }
-            }
-            return ret;
+    /**
+     * Answers for any character if we don't have an encoding.
+     */
+    private static final InEncoding s_noEncoding = new InEncoding() {
+        public boolean isInEncoding(char ch) {
+            return true;
         }
 
         public boolean isInEncoding(char high, char low) {
-            final boolean ret;
-            int codePoint = Encodings.toCodePoint(high,low);
-            if (codePoint < m_explFirst) {
-                // The unicode value is before the range
-                // that we explictly manage, so we delegate the answer.
-                
-                // If we don't have an m_before object to delegate to, make one.
-                if (m_before == null)
-                    m_before =
-                        new EncodingImpl(
-                            m_encoding,
-                            m_first,
-                            m_explFirst - 1,
-                            codePoint);
-                ret = m_before.isInEncoding(high,low);
-            } else if (m_explLast < codePoint) {
-                // The unicode value is after the range
-                // that we explictly manage, so we delegate the answer.
-                
-                // If we don't have an m_after object to delegate to, make one.
-                if (m_after == null)
-                    m_after =
-                        new EncodingImpl(
-                            m_encoding,
-                            m_explLast + 1,
-                            m_last,
-                            codePoint);
-                ret = m_after.isInEncoding(high,low);
-            } else {
-                // The unicode value is in the range we explitly handle
-                final int idx = codePoint - m_explFirst;
-                
-                // If we already know the answer, just return it.
-                if (m_alreadyKnown[idx])
-                    ret = m_isInEncoding[idx];
-                else {
-                    // We don't know the answer, so find out,
-                    // which may be expensive, then cache the answer 
-                    ret = inEncoding(high, low, m_encoding);
-                    m_alreadyKnown[idx] = true;
-                    m_isInEncoding[idx] = ret;
-                }
-            }
-            return ret;
+            return false;
         }
+    };
 
-        /**
-         * The encoding.
-         */
-        final private String m_encoding;
-        /**
-         * m_first through m_last is the range of unicode
-         * values that this object will return an answer on.
-         * It may delegate to a similar object with a different
-         * range
+    /**
+     * Get the bitmaps of an encoding, shared by the whole process.
+     * 
+     * @param javaName the Java name of the encoding, or null.
+     */
+    private static InEncoding getEncodingBitmap(String javaName) {
+        /* A little bit more than optimization.
+         * 
+         * We will say that any character is in the encoding if
+         * we don't have an encoding.
+         * This is meaningful when the serializer is being used
+         * in temporary output state, where we are not writing to
+         * the final output tree.  It is when writing to the
+         * final output tree that we need to worry about the output
+         * encoding
          */
-        final private int m_first;
-        
+        if (javaName == null)
+            return s_noEncoding;
+
+        InEncoding bitmap = (InEncoding) s_bitmaps.get(javaName);
+        if (bitmap == null) {
+            bitmap = new EncodingBitmap(javaName);
+            final InEncoding other =
+                (InEncoding) s_bitmaps.putIfAbsent(javaName, bitmap);
+            if (other != null)
+                bitmap = other;
+        }
+        return bitmap;
+    }
+
+    /**
+     * This class answers whether a code point is in an encoding from
+     * bitmaps of pages of 256 code points, working out a whole page when
+     * it is first needed. It is safe for use by several threads: a page
+     * is only published once it is filled in, and two threads filling in
+     * the same page at once just get the same answers.
+     */
+    private static final class EncodingBitmap implements InEncoding {
+
         /**
-         * m_explFirst through m_explLast is the range of unicode
-         * value that this object handles explicitly and does not
-         * delegate to a similar object.
+         * The number of bits needed to index a code point in a page.
          */
-        final private int m_explFirst;
-        final private int m_explLast;
-        final private int m_last;
+        private static final int PAGE_SHIFT = 8;
 
         /**
-         * The object, of the same type as this one,
-         * that handles unicode values in a range before
-         * the range explictly handled by this object, and
-         * to which this object may delegate.
+         * The number of code points in a page.
          */
-        private InEncoding m_before;
+        private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
         /**
-         * The object, of the same type as this one,
-         * that handles unicode values in a range after
-         * the range explictly handled by this object, and
-         * to which this object may delegate.
+         * The Java name of the encoding.
          */
-        private InEncoding m_after;
-        
+        private final String m_encoding;
+
         /**
-         * The number of unicode values explicitly handled
-         * by a single EncodingInfo object. This value is 
-         * tuneable, but is set to 128 because that covers the
-         * entire low range of ASCII type chars within a single
-         * object.
+         * The bitmaps of the pages of the Basic Multilingual Plane,
+         * indexed by the code point shifted right by PAGE_SHIFT, null
+         * for pages not yet worked out.
          */
-        private static final int RANGE = 128;
+        private final AtomicReferenceArray m_bmp =
+            new AtomicReferenceArray(0x10000 >> PAGE_SHIFT);
 
         /**
-         * A flag to record if we already know the answer
-         * for the given unicode value.
+         * The bitmaps of the pages of supplementary characters used so
+         * far, written as surrogate pairs, by the code point shifted right
+         * by PAGE_SHIFT.
          */
-        final private boolean m_alreadyKnown[] = new boolean[RANGE];
+        private final ConcurrentHashMap m_supplementary =
+            new ConcurrentHashMap();
+
         /**
-         * A table holding the answer on whether the given unicode
-         * value is in the encoding.
+         * True if the characters from 1 to 126 are known to be in the
+         * encoding.
          */
-        final private boolean m_isInEncoding[] = new boolean[RANGE];
-        
-        private EncodingImpl() {
-            // This object will answer whether any unicode value
-            // is in the encoding, it handles values 0 through Integer.MAX_VALUE
-            this(javaName, 0, Integer.MAX_VALUE, (char) 0);
-        }
+        private final boolean m_asciiKnown;
 
-        private EncodingImpl(String encoding, int first, int last, int codePoint) {
-            // Set the range of unicode values that this object manages
-            // either explicitly or implicitly.
-            m_first = first;
-            m_last = last;  
-                      
-            // Set the range of unicode values that this object 
-            // explicitly manages
-            m_explFirst = codePoint;
-            m_explLast = codePoint + (RANGE-1);  
-            
+        EncodingBitmap(String encoding) {
             m_encoding = encoding;
-            
-            if (javaName != null)
-            {
-                // Some optimization.
-                if (0 <= m_explFirst && m_explFirst <= 127) {
-                    // This particular EncodingImpl explicitly handles
-                    // characters in the low range.
-                    if ("UTF8".equals(javaName)
-                        || "UTF-16".equals(javaName)
-                        || "ASCII".equals(javaName)
-                        || "US-ASCII".equals(javaName)
-                        || "Unicode".equals(javaName)
-                        || "UNICODE".equals(javaName)
-                        || javaName.startsWith("ISO8859")) {
-                        
-                        // Not only does this EncodingImpl object explicitly
-                        // handle chracters in the low range, it is
-                        // also one that we know something about, without
-                        // needing to call inEncoding(char ch, String encoding)
-                        // for this low range
-                        //
-                        // By initializing the table ahead of time
-                        // for these low values, we prevent the expensive
-                        // inEncoding(char ch, String encoding)
-                        // from being called, at least for these common
-                        // encodings.
-                        for (int unicode = 1; unicode < 127; unicode++) {
-                            final int idx = unicode - m_explFirst;
-                            if (0 <= idx && idx < RANGE) {
-                                m_alreadyKnown[idx] = true;
-                                m_isInEncoding[idx] = true;
-                            }
-                        }
-                    }
-                }
 
-                /* A little bit more than optimization.
-                 * 
-                 * We will say that any character is in the encoding if
-                 * we don't have an encoding.
-                 * This is meaningful when the serializer is being used
-                 * in temporary output state, where we are not writing to
-                 * the final output tree.  It is when writing to the
-                 * final output tree that we need to worry about the output
-                 * encoding
-                 */
-                if (javaName == null) {
-                    for (int idx = 0; idx < m_alreadyKnown.length; idx++) {
-                        m_alreadyKnown[idx] = true;
-                        m_isInEncoding[idx] = true;
-                    }
+            // Some optimization, for encodings that we know something
+            // about without needing to call inEncoding(char ch, String
+            // encoding) for the low range.
+            m_asciiKnown = "UTF8".equals(encoding)
+                || "UTF-16".equals(encoding)
+                || "ASCII".equals(encoding)
+                || "US-ASCII".equals(encoding)
+                || "Unicode".equals(encoding)
+                || "UNICODE".equals(encoding)
+                || encoding.startsWith("ISO8859");
+        }
+
+        public boolean isInEncoding(char ch) {
+            final int index = ch >> PAGE_SHIFT;
+            long[] page = (long[]) m_bmp.get(index);
+            if (page == null) {
+                page = fillPage(index << PAGE_SHIFT);
+                m_bmp.set(index, page);
+            }
+            return (page[(ch & (PAGE_SIZE - 1)) >> 6] & (1L << ch)) != 0;
+        }
+
+        public boolean isInEncoding(char high, char low) {
+            final int codePoint = Encodings.toCodePoint(high, low);
+            final Integer index = Integer.valueOf(codePoint >> PAGE_SHIFT);
+            long[] page = (long[]) m_supplementary.get(index);
+            if (page == null) {
+                page = fillPage(index.intValue() << PAGE_SHIFT);
+                m_supplementary.put(index, page);
+            }
+            return (page[(codePoint & (PAGE_SIZE - 1)) >> 6]
+                    & (1L << codePoint)) != 0;
+        }
+
+        /**
+         * Work out which of the code points of a page are in the
+         * encoding.
+         * 
+         * @param first the first code point of the page.
+         * @return the bitmap of the page.
+         */
+        private long[] fillPage(int first) {
+            final long[] page = new long[PAGE_SIZE >> 6];
+            final char[] pair = new char[2];
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                final int codePoint = first + i;
+                final boolean in;
+                if (codePoint >= 0x10000) {
+                    Character.toChars(codePoint, pair, 0);
+                    in = inEncoding(pair[0], pair[1], m_encoding);
                 }
+                else if (m_asciiKnown && 1 <= codePoint && codePoint < 127)
+                    in = true;
+                else
+                    in = inEncoding((char) codePoint, m_encoding);
+
+                if (in)
+                    page[i >> 6] |= 1L << i;
             }
+            return page;
         }
     }
 
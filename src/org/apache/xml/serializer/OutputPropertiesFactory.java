@@ -75,6 +75,34 @@ import org.apache.xml.serializer.utils.WrappedRuntimeException;
  * <li> <b>S_OMIT_META_TAG </b> -
  * This non-standard property key is used to set a value of "yes" if the META tag should be omitted where it would
  *  otherwise be supplied.
+ * 
+ * <li> <b>S_KEY_CHANNEL_BUFFER_SIZE </b> -
+ * This non-standard property key is used to set the size in bytes of each of the buffers
+ * used when serializing to a byte channel.
+ * 
+ * <li> <b>S_KEY_CHANNEL_BUFFER_DIRECT </b> -
+ * This non-standard property key is used to set a value of "yes" if the buffers used when
+ * serializing to a byte channel should be direct byte buffers.
+ * 
+ * <li> <b>S_KEY_ASYNC_OUTPUT_BUFFERS </b> -
+ * This non-standard property key is used to set the number of buffers in the ring
+ * handed over to a background thread which writes them to the output stream. If it is
+ * not set, or is 0, the serializer writes to the output stream itself.
+ * 
+ * <li> <b>S_KEY_ASYNC_OUTPUT_BUFFER_SIZE </b> -
+ * This non-standard property key is used to set the size in bytes of each of the buffers
+ * handed over to the background thread.
+ * 
+ * <li> <b>S_KEY_COMPRESSION </b> -
+ * This non-standard property key is used to set a value of "gzip" or "deflate" if the
+ * serializer should compress what it writes to an output stream.
+ * 
+ * <li> <b>S_KEY_COMPRESSION_LEVEL </b> -
+ * This non-standard property key is used to set the compression level, from 0 to 9.
+ * 
+ * <li> <b>S_KEY_COMPRESSION_BLOCK_SIZE </b> -
+ * This non-standard property key is used to set the size in bytes of the blocks which
+ * are compressed in parallel. If it is not set, the output is compressed as it is written.
  * </ul>
  * 
  * @see SerializerFactory
@@ -159,6 +187,57 @@ public final class OutputPropertiesFactory
     public static final String S_OMIT_META_TAG =
         S_BUILTIN_EXTENSIONS_UNIVERSAL + "omit-meta-tag";
 
+    /** 
+     * This non-standard property key is used to set the size in bytes of each of the buffers
+     * that characters are encoded into when serializing to a byte channel.
+     */
+    public static final String S_KEY_CHANNEL_BUFFER_SIZE =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "channel-buffer-size";
+
+    /** 
+     * This non-standard property key is used to set a value of "yes" if the buffers that
+     * characters are encoded into when serializing to a byte channel should be direct
+     * byte buffers.
+     */
+    public static final String S_KEY_CHANNEL_BUFFER_DIRECT =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "channel-buffer-direct";
+
+    /** 
+     * This non-standard property key is used to set the number of buffers in the ring
+     * that a background thread writes to the output stream, so that serializing and
+     * writing overlap. A value of 0, the default, means no background thread.
+     */
+    public static final String S_KEY_ASYNC_OUTPUT_BUFFERS =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "async-output-buffers";
+
+    /** 
+     * This non-standard property key is used to set the size in bytes of each of the buffers
+     * that a background thread writes to the output stream.
+     */
+    public static final String S_KEY_ASYNC_OUTPUT_BUFFER_SIZE =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "async-output-buffer-size";
+
+    /** 
+     * This non-standard property key is used to set a value of "gzip" or "deflate" (the
+     * zlib format) if the serializer should compress what it writes to an output stream.
+     */
+    public static final String S_KEY_COMPRESSION =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "compression";
+
+    /** 
+     * This non-standard property key is used to set the compression level, from 0 (no
+     * compression) to 9 (best compression), of compressed output.
+     */
+    public static final String S_KEY_COMPRESSION_LEVEL =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "compression-level";
+
+    /** 
+     * This non-standard property key is used to set the size in bytes of the blocks which
+     * compressed output is cut into to be compressed in parallel.
+     */
+    public static final String S_KEY_COMPRESSION_BLOCK_SIZE =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "compression-block-size";
+
     /**
      * The old built-in extension namespace, this is not a public API.
      */
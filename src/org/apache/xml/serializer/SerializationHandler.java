@@ -21,6 +21,7 @@
 package org.apache.xml.serializer;
 
 import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 
 import javax.xml.transform.Transformer;
 
@@ -81,6 +82,17 @@ public interface SerializationHandler
      */
     public boolean setEscaping(boolean escape) throws SAXException;
 
+    /**
+     * Specifies a byte channel to which the document should be serialized,
+     * as with {@link Serializer#setOutputStream(java.io.OutputStream)}.
+     * Serializers which write characters encode them straight into
+     * buffers written to the channel. The channel is not closed when the
+     * document ends.
+     * 
+     * @param channel the channel to write to, in blocking mode.
+     */
+    public void setOutputChannel(WritableByteChannel channel);
+
     /**
      * Set the number of spaces to indent for each indentation level.
      * @param spaces the number of spaces to indent for each indentation level.
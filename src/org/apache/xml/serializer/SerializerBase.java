@@ -21,6 +21,8 @@
 package org.apache.xml.serializer;
 
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -938,6 +940,41 @@ public abstract class SerializerBase
     {
         return m_transformer;
     }
+
+    /**
+     * Sets the byte channel to write to. Serializers which do not
+     * encode characters themselves write to it as to an output stream.
+     * @param channel the channel to write to
+     * @see SerializationHandler#setOutputChannel(WritableByteChannel)
+     */
+    public void setOutputChannel(WritableByteChannel channel)
+    {
+        setOutputStream(Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Get the number of bytes compressed for the current, or the last,
+     * document. Serializers which do not write to an output stream do not
+     * compress.
+     * @return -1, as the output is not compressed
+     * @see OutputPropertiesFactory#S_KEY_COMPRESSION
+     */
+    public long getUncompressedByteCount()
+    {
+        return -1;
+    }
+
+    /**
+     * Get the number of compressed bytes written for the current, or the
+     * last, document. Serializers which do not write to an output stream
+     * do not compress.
+     * @return -1, as the output is not compressed
+     * @see OutputPropertiesFactory#S_KEY_COMPRESSION
+     */
+    public long getCompressedByteCount()
+    {
+        return -1;
+    }
     
     /**
      * This method gets the nodes value as a String and uses that String as if
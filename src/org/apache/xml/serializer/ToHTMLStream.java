@@ -1401,8 +1401,23 @@ public class ToHTMLStream extends ToStream
         int cleanLength = 0;
 
         char ch = 0;
+        updateCleanChars();
         for (int i = 0; i < end; i++)
         {
+            // Skip over the run of characters that are clean in any
+            // attribute value, they are written out together later
+            final int endClean = scanCleanChars(chars, i, end, false);
+            if (endClean > i)
+            {
+                cleanLength += endClean - i;
+                i = endClean;
+                if (i == end)
+                {
+                    ch = chars[i - 1];
+                    break;
+                }
+            }
+
             ch = chars[i];
 
             // System.out.println("SPECIALSSIZE: "+SPECIALSSIZE);
@@ -25,6 +25,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 import java.util.EmptyStackException;
 import java.util.Enumeration;
 import java.util.Iterator;
@@ -230,6 +231,30 @@ abstract public class ToStream extends SerializerBase
      */
     protected boolean m_escaping = true;
 
+    /**
+     * The characters below 128 that are written out as they are, with no
+     * escaping, in text nodes, as bits of two words: characters 0 to 63 in
+     * the low word and 64 to 127 in the high one.
+     * Computed by {@link #updateCleanChars()} for m_cleanCharInfo and
+     * m_cleanLineFeed.
+     */
+    private long m_cleanTextLow;
+    private long m_cleanTextHigh;
+
+    /**
+     * The characters below 128 that are written out as they are, with no
+     * escaping, in attribute values, as bits as in m_cleanTextLow and
+     * m_cleanTextHigh.
+     */
+    private long m_cleanAttrLow;
+    private long m_cleanAttrHigh;
+
+    /** The character mappings the clean character bits are computed for. */
+    private CharInfo m_cleanCharInfo;
+
+    /** True if line feeds are clean in the text node bits. */
+    private boolean m_cleanLineFeed;
+
     /**
      * Flush the formatter's result stream.
      *
@@ -249,7 +274,13 @@ abstract public class ToStream extends SerializerBase
                     else
                          ((WriterToUTF8Buffered) writer).flushBuffer();
                 }
-                if (writer instanceof WriterToASCI)
+                else if (writer instanceof WriterToChannel)
+                {
+                    // Byte channels have nothing to flush beyond
+                    // the buffers
+                    ((WriterToChannel) writer).flushBuffer();
+                }
+                else if (writer instanceof WriterToASCI)
                 {
                     if (m_shouldFlush)
                         writer.flush();
@@ -261,6 +292,13 @@ abstract public class ToStream extends SerializerBase
                     // by this class, but don't have a choice.
                     writer.flush();
                 }
+
+                // What the writer wrote may still be in the buffers of
+                // the background thread
+                if (m_asyncOutput != null)
+                    m_asyncOutput.drain();
+                if (m_compressedOutput != null)
+                    m_compressedOutput.finish();
             }
             catch (IOException ioe)
             {
@@ -281,6 +319,32 @@ abstract public class ToStream extends SerializerBase
         return m_outputStream;
     }
 
+    /**
+     * The stage between the writer and m_outputStream which writes to it
+     * in the background, or null.
+     */
+    private AsyncOutputStream m_asyncOutput;
+
+    /**
+     * The stage before m_outputStream which compresses what is written to
+     * it, or null.
+     */
+    private CompressingOutputStream m_compressedOutput;
+
+    /** The channel the document is serialized to, or null. */
+    WritableByteChannel m_outputChannel;
+
+    /**
+     * Get the byte channel where the events will be serialized to.
+     *
+     * @return reference to the result channel, or null if a writer or an
+     * output stream was set instead.
+     */
+    public WritableByteChannel getOutputChannel()
+    {
+        return m_outputChannel;
+    }
+
     // Implement DeclHandler
 
     /**
@@ -387,10 +451,30 @@ abstract public class ToStream extends SerializerBase
 
             char first = getFirstCharLocName(name);
             switch (first) {
+            case 'a':
+                if (OutputPropertiesFactory.S_KEY_ASYNC_OUTPUT_BUFFERS.equals(name)
+                        || OutputPropertiesFactory.S_KEY_ASYNC_OUTPUT_BUFFER_SIZE.equals(name)) {
+                    // If there was a previously set OutputStream, wrap it again
+                    if (m_outputStream != null && !m_writer_set_by_user
+                            && !val.equals(getOutputProperty(name))) {
+                        super.setProp(name, val, defaultVal);
+                        setOutputStreamInternal(m_outputStream, false);
+                    }
+                }
+                break;
             case 'c':
                 if (OutputKeys.CDATA_SECTION_ELEMENTS.equals(name)) {
                     String cdataSectionNames = val;
                     addCdataSectionElements(cdataSectionNames);
+                } else if (OutputPropertiesFactory.S_KEY_COMPRESSION.equals(name)
+                        || OutputPropertiesFactory.S_KEY_COMPRESSION_LEVEL.equals(name)
+                        || OutputPropertiesFactory.S_KEY_COMPRESSION_BLOCK_SIZE.equals(name)) {
+                    // If there was a previously set OutputStream, wrap it again
+                    if (m_outputStream != null && !m_writer_set_by_user
+                            && !val.equals(getOutputProperty(name))) {
+                        super.setProp(name, val, defaultVal);
+                        setOutputStreamInternal(m_outputStream, false);
+                    }
                 }
                 break;
             case 'd':
@@ -476,7 +560,8 @@ abstract public class ToStream extends SerializerBase
                            
                            // if there was a previously set OutputStream
                            OutputStream os = getOutputStream();
-                           if (os != null) {
+                           WritableByteChannel channel = getOutputChannel();
+                           if (os != null || channel != null) {
                                Writer w = getWriter();
                                
                                // If the writer was previously set, but
@@ -490,7 +575,10 @@ abstract public class ToStream extends SerializerBase
                                    // which will stomp on the old Writer (if any)
                                    // with a new Writer with the new encoding.
                                    super.setProp(name, val, defaultVal);
-                                   setOutputStreamInternal(os,false);
+                                   if (channel != null)
+                                       setOutputChannel(channel);
+                                   else
+                                       setOutputStreamInternal(os,false);
                                }
                            }
                        }
@@ -648,8 +736,27 @@ abstract public class ToStream extends SerializerBase
      */
     public void setWriter(Writer writer)
     {        
+        m_asyncOutput = null;
+        m_compressedOutput = null;
         setWriterInternal(writer, true);
     }
+
+    /**
+     * Take over the output stages of another serializer, whose writer has
+     * been given to this one with setWriter(), so that this serializer
+     * drains and finishes them at the end of the document. This is used
+     * when ToUnknownStream replaces its XML serializer by an HTML one.
+     *
+     * @param other the serializer which wrote to the writer before
+     */
+    void takeOutputStages(ToStream other)
+    {
+        m_outputStream = other.m_outputStream;
+        m_asyncOutput = other.m_asyncOutput;
+        m_compressedOutput = other.m_compressedOutput;
+        other.m_asyncOutput = null;
+        other.m_compressedOutput = null;
+    }
     
     private boolean m_writer_set_by_user;
     private void setWriterInternal(Writer writer, boolean setByUser) {
@@ -711,6 +818,13 @@ abstract public class ToStream extends SerializerBase
     private void setOutputStreamInternal(OutputStream output, boolean setByUser)
     {
         m_outputStream = output;
+        m_outputChannel = null;
+        m_compressedOutput = newCompressedOutput(output);
+        if (m_compressedOutput != null)
+            output = m_compressedOutput;
+        m_asyncOutput = newAsyncOutput(output);
+        if (m_asyncOutput != null)
+            output = m_asyncOutput;
         String encoding = getOutputProperty(OutputKeys.ENCODING);        
         if (Encodings.DEFAULT_MIME_ENCODING.equalsIgnoreCase(encoding))
         {
@@ -762,6 +876,160 @@ abstract public class ToStream extends SerializerBase
         }
     }
 
+    /**
+     * Create the stage which compresses what is written to the output
+     * stream, if the {@link OutputPropertiesFactory#S_KEY_COMPRESSION}
+     * property asks for one.
+     *
+     * @param output the output stream to write the compressed bytes to
+     * @return the stage, or null to write to the output stream directly
+     */
+    private CompressingOutputStream newCompressedOutput(OutputStream output)
+    {
+        return CompressingOutputStream.newInstance(output,
+            getOutputProperty(OutputPropertiesFactory.S_KEY_COMPRESSION),
+            getOutputProperty(OutputPropertiesFactory.S_KEY_COMPRESSION_LEVEL),
+            getOutputProperty(
+                OutputPropertiesFactory.S_KEY_COMPRESSION_BLOCK_SIZE));
+    }
+
+    /**
+     * Get the number of bytes compressed for the current, or the last,
+     * document, if the {@link OutputPropertiesFactory#S_KEY_COMPRESSION}
+     * property is set.
+     *
+     * @return the number of bytes before compression, or -1 if the output
+     * is not compressed
+     */
+    public long getUncompressedByteCount()
+    {
+        if (m_compressedOutput == null)
+            return -1;
+        return m_compressedOutput.getUncompressedCount();
+    }
+
+    /**
+     * Get the number of compressed bytes written for the current, or the
+     * last, document, if the {@link OutputPropertiesFactory#S_KEY_COMPRESSION}
+     * property is set.
+     *
+     * @return the number of bytes written to the output stream, or -1 if
+     * the output is not compressed
+     */
+    public long getCompressedByteCount()
+    {
+        if (m_compressedOutput == null)
+            return -1;
+        return m_compressedOutput.getCompressedCount();
+    }
+
+    /**
+     * Create the stage which writes to the output stream in the background,
+     * if the {@link OutputPropertiesFactory#S_KEY_ASYNC_OUTPUT_BUFFERS}
+     * property asks for one.
+     *
+     * @param output the output stream to write to in the background
+     * @return the stage, or null to write to the output stream directly
+     */
+    private AsyncOutputStream newAsyncOutput(OutputStream output)
+    {
+        int buffers = 0;
+        int size = AsyncOutputStream.DEFAULT_BUFFER_SIZE;
+        try
+        {
+            String value = getOutputProperty(
+                OutputPropertiesFactory.S_KEY_ASYNC_OUTPUT_BUFFERS);
+            if (value != null)
+                buffers = Integer.parseInt(value.trim());
+            value = getOutputProperty(
+                OutputPropertiesFactory.S_KEY_ASYNC_OUTPUT_BUFFER_SIZE);
+            if (value != null)
+                size = Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            // write directly, or keep the default size
+        }
+        if (buffers <= 0)
+            return null;
+        return new AsyncOutputStream(output, buffers, size);
+    }
+
+    /**
+     * Specifies a byte channel to which the document should be
+     * serialized. The characters are encoded straight into byte buffers
+     * which are written to the channel, rather than through an
+     * OutputStream. This method should not be called while the
+     * serializer is in the process of serializing a document.
+     * <p>
+     * The encoding specified in the output properties is used, or
+     * if no encoding was specified, the default for the selected
+     * output method. The size of the buffers, and whether they are
+     * direct buffers, can be set with the
+     * {@link OutputPropertiesFactory#S_KEY_CHANNEL_BUFFER_SIZE} and
+     * {@link OutputPropertiesFactory#S_KEY_CHANNEL_BUFFER_DIRECT}
+     * properties. The channel is not closed when the document ends.
+     *
+     * @param channel The output channel, in blocking mode
+     * @see SerializationHandler#setOutputChannel(WritableByteChannel)
+     */
+    public void setOutputChannel(WritableByteChannel channel)
+    {
+        String encoding = getOutputProperty(OutputKeys.ENCODING);
+        if (encoding == null)
+            encoding = Encodings.DEFAULT_MIME_ENCODING;
+
+        int size = WriterToChannel.DEFAULT_BUFFER_SIZE;
+        String sizeValue = getOutputProperty(
+            OutputPropertiesFactory.S_KEY_CHANNEL_BUFFER_SIZE);
+        if (sizeValue != null)
+        {
+            try
+            {
+                size = Integer.parseInt(sizeValue.trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // keep the default size
+            }
+        }
+        boolean direct = "yes".equals(getOutputProperty(
+            OutputPropertiesFactory.S_KEY_CHANNEL_BUFFER_DIRECT));
+
+        Writer writer;
+        try
+        {
+            writer = new WriterToChannel(channel,
+                Encodings.convertMime2JavaEncoding(encoding), size, direct);
+        }
+        catch (UnsupportedEncodingException uee)
+        {
+            System.out.println(
+                "Warning: encoding \""
+                    + encoding
+                    + "\" not supported"
+                    + ", using "
+                    + Encodings.DEFAULT_MIME_ENCODING);
+
+            setEncoding(Encodings.DEFAULT_MIME_ENCODING);
+            try
+            {
+                writer = new WriterToChannel(channel, "UTF8", size, direct);
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                // We can't really get here, UTF-8 is always supported
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+
+        m_outputStream = null;
+        m_asyncOutput = null;
+        m_compressedOutput = null;
+        m_outputChannel = channel;
+        setWriterInternal(writer, false);
+    }
+
     /**
      * @see SerializationHandler#setEscaping(boolean)
      */
@@ -1519,8 +1787,15 @@ abstract public class ToStream extends SerializerBase
                 m_ispreserve = true;
             
             
+            updateCleanChars();
             for (; i < end; i++)
             {
+                // Skip over the run of clean characters up to the next
+                // dirty one, they are written out together before it
+                i = scanCleanChars(chars, i, end, true);
+                if (i == end)
+                    break;
+
                 char ch = chars[i];
                 
                 if (m_charInfo.shouldMapTextChar(ch)) {
@@ -1651,6 +1926,101 @@ abstract public class ToStream extends SerializerBase
 		return lastProcessed;
 	}
 
+    /**
+     * Recompute the bits of the clean characters below 128 if the
+     * character mappings or the line separator changed since they were
+     * last computed.
+     */
+    final void updateCleanChars()
+    {
+        final boolean lineFeedClean = !m_lineSepUse
+            || (m_lineSepLen == 1 && m_lineSep[0] == CharInfo.S_LINEFEED);
+        if (m_cleanCharInfo == m_charInfo && m_cleanLineFeed == lineFeedClean)
+            return;
+
+        long textLow = 0, textHigh = 0, attrLow = 0, attrHigh = 0;
+        for (int ch = 0; ch < CharInfo.ASCII_MAX; ch++)
+        {
+            // Range 0x20 through 0x7E inclusive, normal ASCII chars
+            final boolean printable = (CharInfo.S_SPACE <= ch && ch < 0x7F);
+            final long bit = 1L << ch;
+
+            if ((printable
+                 || ch == CharInfo.S_HORIZONAL_TAB
+                 || (ch == CharInfo.S_LINEFEED && lineFeedClean))
+                && !m_charInfo.shouldMapTextChar(ch))
+            {
+                if (ch < 64)
+                    textLow |= bit;
+                else
+                    textHigh |= bit;
+            }
+            if (printable && !m_charInfo.shouldMapAttrChar(ch))
+            {
+                if (ch < 64)
+                    attrLow |= bit;
+                else
+                    attrHigh |= bit;
+            }
+        }
+        m_cleanTextLow = textLow;
+        m_cleanTextHigh = textHigh;
+        m_cleanAttrLow = attrLow;
+        m_cleanAttrHigh = attrHigh;
+        m_cleanCharInfo = m_charInfo;
+        m_cleanLineFeed = lineFeedClean;
+    }
+
+    /**
+     * Find the end of a run of clean characters, those that are
+     * written out as they are, with no escaping. Characters below 128 are
+     * looked up in the bits computed by {@link #updateCleanChars()},
+     * which must be up to date; other characters are clean if they are
+     * neither control characters nor LINE SEPARATOR, have no mapping to a
+     * String and are in the encoding.
+     *
+     * @param chars array of characters being processed
+     * @param i the index of the first character to look at
+     * @param end one (1) beyond the last character to look at
+     * @param fromTextNode true if the characters are from a text node,
+     * false if they are from an attribute value
+     * @return the index of the first dirty character, or end
+     */
+    final int scanCleanChars(
+        final char[] chars,
+        int i,
+        final int end,
+        final boolean fromTextNode)
+    {
+        final long low = fromTextNode ? m_cleanTextLow : m_cleanAttrLow;
+        final long high = fromTextNode ? m_cleanTextHigh : m_cleanAttrHigh;
+        for (; i < end; i++)
+        {
+            final char ch = chars[i];
+            if (ch < 64)
+            {
+                if ((low & (1L << ch)) == 0)
+                    break;
+            }
+            else if (ch < CharInfo.ASCII_MAX)
+            {
+                // the shift only uses the low 6 bits of ch
+                if ((high & (1L << ch)) == 0)
+                    break;
+            }
+            else if (ch <= 0x9F
+                || ch == CharInfo.S_LINE_SEPARATOR
+                || (fromTextNode
+                    ? m_charInfo.shouldMapTextChar(ch)
+                    : m_charInfo.shouldMapAttrChar(ch))
+                || !m_encodingInfo.isInEncoding(ch))
+            {
+                break;
+            }
+        }
+        return i;
+    }
+
     private void writeOutCleanChars(final char[] chars, int i, int lastProcessed) throws IOException {
         int startClean;
         startClean = lastProcessed + 1;
@@ -2103,8 +2473,20 @@ abstract public class ToStream extends SerializerBase
         string.getChars(0,len, m_attrBuff, 0);   
         final char[] stringChars = m_attrBuff;
 
+        updateCleanChars();
         for (int i = 0; i < len; i++)
         {
+            // Write out the run of clean characters up to the next
+            // dirty one with a single call
+            final int endClean = scanCleanChars(stringChars, i, len, false);
+            if (endClean > i)
+            {
+                writer.write(stringChars, i, endClean - i);
+                i = endClean;
+                if (i == len)
+                    break;
+            }
+
             char ch = stringChars[i];
             
             if (m_charInfo.shouldMapAttrChar(ch)) {
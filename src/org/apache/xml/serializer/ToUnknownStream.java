@@ -23,6 +23,7 @@ package org.apache.xml.serializer;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Properties;
 import java.util.Vector;
 
@@ -181,6 +182,28 @@ public final class ToUnknownStream extends SerializerBase
         return m_handler.getOutputStream();
     }
 
+    /**
+     * passes the call on to the underlying XML or HTML handler
+     * @see SerializerBase#getUncompressedByteCount()
+     */
+    public long getUncompressedByteCount()
+    {
+        if (m_handler instanceof SerializerBase)
+            return ((SerializerBase) m_handler).getUncompressedByteCount();
+        return -1;
+    }
+
+    /**
+     * passes the call on to the underlying XML or HTML handler
+     * @see SerializerBase#getCompressedByteCount()
+     */
+    public long getCompressedByteCount()
+    {
+        if (m_handler instanceof SerializerBase)
+            return ((SerializerBase) m_handler).getCompressedByteCount();
+        return -1;
+    }
+
     /**
      * @see Serializer#getWriter()
      * @return the Writer of the underlying XML or HTML handler
@@ -243,6 +266,16 @@ public final class ToUnknownStream extends SerializerBase
         m_handler.setOutputStream(output);
     }
 
+    /**
+     * Sets the byte channel to write to
+     * @param channel the channel to write to
+     * @see SerializationHandler#setOutputChannel(WritableByteChannel)
+     */
+    public void setOutputChannel(WritableByteChannel channel)
+    {
+        m_handler.setOutputChannel(channel);
+    }
+
     /**
      * Sets the writer to write to
      * @param writer the writer to write to
@@ -996,7 +1029,17 @@ public final class ToUnknownStream extends SerializerBase
             Writer writer = oldHandler.getWriter();
 
             if (null != writer)
+            {
                 m_handler.setWriter(writer);
+
+                // The old handler's writer may write to a stage which
+                // compresses the output, or writes it in the background,
+                // which the new handler must finish at the end.
+                if (m_handler instanceof ToStream
+                        && oldHandler instanceof ToStream)
+                    ((ToStream) m_handler).takeOutputStages(
+                        (ToStream) oldHandler);
+            }
             else
             {
                 OutputStream os = oldHandler.getOutputStream();
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * This class writes unicode characters to a byte channel
+ * (java.nio.channels.WritableByteChannel), encoding them straight into
+ * byte buffers which are reused for the whole document. There are several
+ * buffers, which are written to the channel together, with a single
+ * gathering write when the channel supports it, once they are all full or
+ * when this writer is flushed.
+ *
+ * The buffers must be flushed to the channel when done. This flushing
+ * is done via the close() flush() or flushBuffer() method. Closing this
+ * writer also closes the channel. The channel should be in blocking mode.
+ *
+ * This class is only used internally within Xalan.
+ *
+ * @xsl.usage internal
+ */
+final class WriterToChannel extends Writer implements WriterChain
+{
+  /** The size of each byte buffer, if none is given. */
+  static final int DEFAULT_BUFFER_SIZE = 16*1024;
+
+  /** The number of byte buffers gathered into one write to the channel. */
+  private static final int BUFFER_COUNT = 4;
+
+  /** The number of characters held before they are encoded. */
+  private static final int CHARS_MAX = 4*1024;
+
+  /** The channel to write to. */
+  private final WritableByteChannel m_channel;
+
+  /** The encoder of the characters into m_buffers. */
+  private final CharsetEncoder m_encoder;
+
+  /** The byte buffers, filled in turn. */
+  private final ByteBuffer[] m_buffers;
+
+  /** The index of the buffer in m_buffers being filled. */
+  private int m_current;
+
+  /**
+   * The characters written but not yet encoded. It is always ready to be
+   * put into; a high surrogate at its end is kept in it until the
+   * low surrogate comes.
+   */
+  private final CharBuffer m_chars;
+
+  /** A stream writing to m_channel, for getOutputStream(). */
+  private OutputStream m_os;
+
+  /**
+   * Create a writer to a byte channel.
+   *
+   * @param channel the channel to write to.
+   * @param encoding the Java name of the encoding.
+   * @param bufferSize the size of each byte buffer.
+   * @param direct true to allocate direct byte buffers.
+   *
+   * @throws UnsupportedEncodingException if the encoding is not supported.
+   */
+  WriterToChannel(WritableByteChannel channel, String encoding,
+      int bufferSize, boolean direct) throws UnsupportedEncodingException
+  {
+    Charset charset;
+    try
+    {
+      charset = Charset.forName(encoding);
+    }
+    catch (IllegalArgumentException e)
+    {
+      throw new UnsupportedEncodingException(encoding);
+    }
+
+    m_channel = channel;
+    // The same as an OutputStreamWriter would do
+    m_encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Each buffer must hold at least one encoded character
+    bufferSize = Math.max(bufferSize, 2 * (int) Math.ceil(m_encoder.maxBytesPerChar()));
+    m_buffers = new ByteBuffer[BUFFER_COUNT];
+    for (int i = 0; i < BUFFER_COUNT; i++)
+    {
+      m_buffers[i] = direct ? ByteBuffer.allocateDirect(bufferSize)
+                            : ByteBuffer.allocate(bufferSize);
+    }
+    m_chars = CharBuffer.allocate(CHARS_MAX);
+  }
+
+  /**
+   * Write a single character.
+   *
+   * @param c an int specifying a character to be written.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(final int c) throws IOException
+  {
+    if (!m_chars.hasRemaining())
+      encodeChars();
+    m_chars.put((char) c);
+  }
+
+  /**
+   * Write a portion of an array of characters.
+   *
+   * @param chars buffer of characters
+   * @param start offset from which to start writing characters
+   * @param length number of characters to write
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(final char chars[], int start, int length)
+    throws IOException
+  {
+    while (length > 0)
+    {
+      if (!m_chars.hasRemaining())
+        encodeChars();
+      final int n = Math.min(length, m_chars.remaining());
+      m_chars.put(chars, start, n);
+      start += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * Write an array of characters.
+   *
+   * @param chars buffer of characters
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(final char chars[]) throws IOException
+  {
+    write(chars, 0, chars.length);
+  }
+
+  /**
+   * Write a string.
+   *
+   * @param s String to be written
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(final String s) throws IOException
+  {
+    write(s, 0, s.length());
+  }
+
+  /**
+   * Write a portion of a string.
+   *
+   * @param s String to be written
+   * @param start offset from which to start writing characters
+   * @param length number of characters to write
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(final String s, int start, int length)
+    throws IOException
+  {
+    final char[] chars = m_chars.array();
+    while (length > 0)
+    {
+      if (!m_chars.hasRemaining())
+        encodeChars();
+      final int n = Math.min(length, m_chars.remaining());
+      final int pos = m_chars.position();
+      s.getChars(start, start + n, chars, pos);
+      m_chars.position(pos + n);
+      start += n;
+      length -= n;
+    }
+  }
+
+  /**
+   * Encode the characters held into the byte buffers, writing the buffers
+   * to the channel when they are all full.
+   */
+  private void encodeChars() throws IOException
+  {
+    m_chars.flip();
+    while (true)
+    {
+      final CoderResult result =
+        m_encoder.encode(m_chars, m_buffers[m_current], false);
+      if (result.isOverflow())
+      {
+        if (++m_current == BUFFER_COUNT)
+          writeBuffers();
+      }
+      else if (result.isUnderflow())
+        break;
+      else
+        result.throwException();
+    }
+    m_chars.compact();
+  }
+
+  /**
+   * Write the filled byte buffers to the channel, and empty them.
+   */
+  private void writeBuffers() throws IOException
+  {
+    final int count = Math.min(m_current + 1, BUFFER_COUNT);
+    long remaining = 0;
+    for (int i = 0; i < count; i++)
+    {
+      m_buffers[i].flip();
+      remaining += m_buffers[i].remaining();
+    }
+
+    if (m_channel instanceof GatheringByteChannel)
+    {
+      final GatheringByteChannel channel = (GatheringByteChannel) m_channel;
+      while (remaining > 0)
+        remaining -= channel.write(m_buffers, 0, count);
+    }
+    else
+    {
+      for (int i = 0; i < count; i++)
+      {
+        while (m_buffers[i].hasRemaining())
+          m_channel.write(m_buffers[i]);
+      }
+    }
+
+    for (int i = 0; i < count; i++)
+      m_buffers[i].clear();
+    m_current = 0;
+  }
+
+  /**
+   * Flush the internal buffers
+   *
+   * @throws IOException
+   */
+  public void flushBuffer() throws IOException
+  {
+    encodeChars();
+    if (m_current > 0 || m_buffers[0].position() > 0)
+      writeBuffers();
+  }
+
+  /**
+   * Flush the stream.  If the stream has saved any characters from the
+   * various write() methods in a buffer, write them immediately to their
+   * intended destination. Byte channels have nothing further to flush.
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void flush() throws IOException
+  {
+    flushBuffer();
+  }
+
+  /**
+   * Close the stream, flushing it first.  Once a stream has been closed,
+   * further write() or flush() invocations will cause an IOException to be
+   * thrown.  Closing a previously-closed stream, however, has no effect.
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void close() throws IOException
+  {
+    if (!m_channel.isOpen())
+      return;
+
+    // Whatever is left over, such as a lone high surrogate, and what the
+    // encoder still holds
+    m_chars.flip();
+    while (m_encoder.encode(m_chars, m_buffers[m_current], true).isOverflow())
+    {
+      if (++m_current == BUFFER_COUNT)
+        writeBuffers();
+    }
+    m_chars.clear();
+    while (m_encoder.flush(m_buffers[m_current]).isOverflow())
+    {
+      if (++m_current == BUFFER_COUNT)
+        writeBuffers();
+    }
+    if (m_current > 0 || m_buffers[0].position() > 0)
+      writeBuffers();
+    m_channel.close();
+  }
+
+  /**
+   * Get the output stream where the events will be serialized to.
+   *
+   * @return a stream writing to the channel of this writer.
+   */
+  public OutputStream getOutputStream()
+  {
+    if (m_os == null)
+      m_os = Channels.newOutputStream(m_channel);
+    return m_os;
+  }
+
+  /**
+   * Get the writer that this writer directly chains to.
+   */
+  public Writer getWriter()
+  {
+    // Only one of getWriter() or getOutputStream() can return null
+    // This type of writer wraps an OutputStream, not a Writer.
+    return null;
+  }
+
+  /**
+   * Get the channel where the events will be serialized to.
+   */
+  WritableByteChannel getChannel()
+  {
+    return m_channel;
+  }
+}
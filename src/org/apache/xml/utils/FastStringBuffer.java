@@ -152,6 +152,15 @@ public class FastStringBuffer
    */
   int m_lastChunk = 0;
 
+  /** The most chunks kept for reuse by releaseChunks(). */
+  private static final int MAX_SPARE_CHUNKS = 16;
+
+  /** Chunks given up by releaseChunks(), kept for reuse, or null. */
+  private char[][] m_spareChunks;
+
+  /** Number of chunks in m_spareChunks. */
+  private int m_spareCount = 0;
+
   /**
    * Field m_firstFree is an index into m_array[m_lastChunk][], pointing to
    * the first character in the Chunked Array which is not part of the
@@ -309,6 +318,58 @@ public class FastStringBuffer
     m_array[0] = new char[m_chunkSize];
   }
 
+  /**
+   * Give up the storage of a range of characters which will never be read
+   * again, so that it can be reused for new chunks or garbage collected.
+   * The characters preceding start in its chunk must be dead as well, so
+   * that successive calls can release contiguous ranges; the chunk holding
+   * end, the first chunk, and the chunk currently being filled are always
+   * kept. Reading a released character throws a NullPointerException.
+   *
+   * @param start Offset of the first character which may be released
+   * @param end Offset following the last character which may be released
+   */
+  public final void releaseChunks(int start, int end)
+  {
+    int first = start >>> m_chunkBits;
+    int last = end >>> m_chunkBits;
+
+    if (first < 1)
+      first = 1;
+    if (last > m_lastChunk)
+      last = m_lastChunk;
+
+    for (int i = first; i < last; i++)
+    {
+      char[] chunk = m_array[i];
+      m_array[i] = null;
+      if (null != chunk && m_spareCount < MAX_SPARE_CHUNKS)
+      {
+        if (null == m_spareChunks)
+          m_spareChunks = new char[MAX_SPARE_CHUNKS][];
+        m_spareChunks[m_spareCount++] = chunk;
+      }
+    }
+  }
+
+  /**
+   * Get a new chunk, reusing one given up by releaseChunks() if there is
+   * one of the current chunk size.
+   *
+   * @return a chunk of m_chunkSize characters
+   */
+  private char[] newChunk()
+  {
+    while (m_spareCount > 0)
+    {
+      char[] chunk = m_spareChunks[--m_spareCount];
+      m_spareChunks[m_spareCount] = null;
+      if (chunk.length == m_chunkSize)
+        return chunk;
+    }
+    return new char[m_chunkSize];
+  }
+
   /**
    * Directly set how much of the FastStringBuffer's storage is to be
    * considered part of its content. This is a fast but hazardous
@@ -455,7 +516,7 @@ public class FastStringBuffer
         }
 
         // Add a chunk.
-        chunk = m_array[m_lastChunk] = new char[m_chunkSize];
+        chunk = m_array[m_lastChunk] = newChunk();
       }
 
       m_firstFree = 0;
@@ -535,7 +596,7 @@ public class FastStringBuffer
           }
 
           // Add a chunk. 
-          chunk = m_array[m_lastChunk] = new char[m_chunkSize];
+          chunk = m_array[m_lastChunk] = newChunk();
         }
 
         available = m_chunkSize;
@@ -617,7 +678,7 @@ public class FastStringBuffer
           }
 
           // Add a chunk.
-          chunk = m_array[m_lastChunk] = new char[m_chunkSize];
+          chunk = m_array[m_lastChunk] = newChunk();
         }
 
         available = m_chunkSize;
@@ -700,7 +761,7 @@ public class FastStringBuffer
           }
 
           // Add a chunk.
-          chunk = m_array[m_lastChunk] = new char[m_chunkSize];
+          chunk = m_array[m_lastChunk] = newChunk();
         }
 
         available = m_chunkSize;
@@ -800,7 +861,7 @@ public class FastStringBuffer
           }
 
           // Add a chunk. 
-          chunk = m_array[m_lastChunk] = new char[m_chunkSize];
+          chunk = m_array[m_lastChunk] = newChunk();
         }
 
         available = m_chunkSize;
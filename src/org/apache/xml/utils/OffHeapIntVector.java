@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A SuballocatedIntVector which keeps all but its first block outside the
+ * Java heap, in direct buffers. The ints stored in it are then invisible to
+ * the garbage collector, which is what makes very large documents' node
+ * tables cheap to keep around.
+ * <p>
+ * The first block stays on the heap, so {@link #getMap0()} works as usual
+ * and small documents pay nothing for the indirection. {@link #getMap()}
+ * returns null; callers which read blocks directly must fall back to
+ * {@link #elementAt(int)} in that case.</p>
+ * <p>
+ * Off-heap memory is allocated in segments of 1MB, and is given back when
+ * the vector is garbage collected. The total is limited by the JVM's
+ * maximum direct memory size (-XX:MaxDirectMemorySize).</p>
+ */
+public class OffHeapIntVector extends SuballocatedIntVector
+{
+  /** log2 of the number of ints in each off-heap segment. */
+  private static final int SEGMENT_BITS = 18;
+
+  /** The number of ints in each off-heap segment. */
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+  /** Mask used to find an int within its segment. */
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+  /**
+   * The off-heap segments, indexed by (index &gt;&gt;&gt; SEGMENT_BITS).
+   * The part of the first segment shadowed by the heap block is unused.
+   */
+  private IntBuffer[] m_segments = new IntBuffer[4];
+
+  /**
+   * The number of ints released from each segment by releaseBlocks(), or
+   * null if nothing has been released.
+   */
+  private int[] m_released;
+
+  /**
+   * A segment given up by releaseBlocks(), kept for reuse, or null. Direct
+   * buffers are only freed by the garbage collector, and allocating them
+   * is slow, so a document pruned as it is built keeps cycling through the
+   * same few segments instead.
+   */
+  private IntBuffer m_spareSegment;
+
+  /** Zeros, to clear reused segments with. */
+  private static final int[] ZEROS = new int[4096];
+
+  /**
+   * Construct an OffHeapIntVector.
+   *
+   * @param blocksize Size of the heap-resident first block; rounded up to
+   *                  a power of two, as for SuballocatedIntVector
+   */
+  public OffHeapIntVector(int blocksize)
+  {
+    super(blocksize, 1);
+    m_map = null;
+  }
+
+  /**
+   * Append a int onto the vector.
+   *
+   * @param value Int to add to the list
+   */
+  public void addElement(int value)
+  {
+    if (m_firstFree < m_blocksize)
+      m_map0[m_firstFree] = value;
+    else
+      getSegment(m_firstFree).put(m_firstFree & SEGMENT_MASK, value);
+    ++m_firstFree;
+  }
+
+  /**
+   * Append ints read from a buffer onto the vector.
+   *
+   * @param src Buffer to read from, starting at its current position
+   * @param count Number of ints to append
+   */
+  public void addElements(IntBuffer src, int count)
+  {
+    if (m_firstFree < m_blocksize && count > 0)
+    {
+      int copied = Math.min(m_blocksize - m_firstFree, count);
+      src.get(m_map0, m_firstFree, copied);
+      m_firstFree += copied;
+      count -= copied;
+    }
+
+    while (count > 0)
+    {
+      int offset = m_firstFree & SEGMENT_MASK;
+      int copied = Math.min(SEGMENT_SIZE - offset, count);
+      IntBuffer segment = getSegment(m_firstFree).duplicate();
+      segment.position(offset);
+
+      IntBuffer part = src.slice();
+      part.limit(copied);
+      segment.put(part);
+      src.position(src.position() + copied);
+
+      m_firstFree += copied;
+      count -= copied;
+    }
+  }
+
+  /**
+   * Make an empty vector read its contents straight from a buffer, without
+   * copying them; only the first block is copied onto the heap. This is how
+   * DTM images serve their node tables from the mapped image file. If the
+   * buffer is read-only, so is the vector beyond its first block.
+   *
+   * @param src Buffer holding the ints, starting at its current position,
+   *            which is not changed
+   * @param count Number of ints
+   */
+  public void mapElements(IntBuffer src, int count)
+  {
+    int start = src.position();
+    IntBuffer first = src.duplicate();
+    first.get(m_map0, 0, Math.min(m_blocksize, count));
+
+    int nsegments = (count + SEGMENT_MASK) >>> SEGMENT_BITS;
+    if (nsegments > m_segments.length)
+      m_segments = new IntBuffer[nsegments];
+    for (int i = 0; i < nsegments; i++)
+    {
+      int offset = i << SEGMENT_BITS;
+      IntBuffer segment = src.duplicate();
+      segment.limit(start + Math.min(offset + SEGMENT_SIZE, count));
+      segment.position(start + offset);
+      m_segments[i] = segment.slice();
+    }
+    m_firstFree = count;
+  }
+
+  /**
+   * Copy a range of the vector into an array.
+   *
+   * @param start Index of the first int to copy
+   * @param dest Array to copy into
+   * @param destOffset Index in dest of the first int copied
+   * @param length Number of ints to copy
+   */
+  public void getElements(int start, int[] dest, int destOffset, int length)
+  {
+    if (start < m_blocksize && length > 0)
+    {
+      int copied = Math.min(m_blocksize - start, length);
+      System.arraycopy(m_map0, start, dest, destOffset, copied);
+      start += copied;
+      destOffset += copied;
+      length -= copied;
+    }
+
+    while (length > 0)
+    {
+      int offset = start & SEGMENT_MASK;
+      int copied = Math.min(SEGMENT_SIZE - offset, length);
+      IntBuffer segment = m_segments[start >>> SEGMENT_BITS].duplicate();
+      segment.position(offset);
+      segment.get(dest, destOffset, copied);
+      start += copied;
+      destOffset += copied;
+      length -= copied;
+    }
+  }
+
+  /**
+   * Wipe it out. Off-heap segments are kept for reuse.
+   */
+  public void removeAllElements()
+  {
+    m_firstFree = 0;
+  }
+
+  /**
+   * Give up the storage of a range of the vector which will never be read
+   * or written again. Off-heap segments are dropped, or kept for reuse,
+   * once every int in them has been released; each int must be released at
+   * most once.
+   *
+   * @param start Index of the first element which may be released
+   * @param end Index following the last element which may be released
+   */
+  public void releaseBlocks(int start, int end)
+  {
+    if (start < m_blocksize)
+      start = m_blocksize;
+
+    while (start < end)
+    {
+      int index = start >>> SEGMENT_BITS;
+      int released = Math.min(end, (index + 1) << SEGMENT_BITS) - start;
+
+      if (null == m_released)
+        m_released = new int[m_segments.length];
+      else if (index >= m_released.length)
+      {
+        int[] newReleased = new int[m_segments.length];
+        System.arraycopy(m_released, 0, newReleased, 0, m_released.length);
+        m_released = newReleased;
+      }
+
+      m_released[index] += released;
+      if (m_released[index] == SEGMENT_SIZE && index < m_segments.length)
+      {
+        if (null == m_spareSegment)
+          m_spareSegment = m_segments[index];
+        m_segments[index] = null;
+      }
+      start += released;
+    }
+  }
+
+  /**
+   * Sets the component at the specified index of this vector to be the
+   * specified object, extending the vector if needed.
+   *
+   * @param value object to set
+   * @param at    Index of where to set the object
+   */
+  public void setElementAt(int value, int at)
+  {
+    if (at < m_blocksize)
+      m_map0[at] = value;
+    else
+      getSegment(at).put(at & SEGMENT_MASK, value);
+
+    if (at >= m_firstFree)
+      m_firstFree = at + 1;
+  }
+
+  /**
+   * Get the nth element.
+   *
+   * @param i index of object to get
+   *
+   * @return object at given index
+   */
+  public int elementAt(int i)
+  {
+    if (i < m_blocksize)
+      return m_map0[i];
+
+    return m_segments[i >>> SEGMENT_BITS].get(i & SEGMENT_MASK);
+  }
+
+  /**
+   * Searches for the first occurence of the given argument,
+   * beginning the search at index, and testing for equality
+   * using the equals method.
+   *
+   * @param elem object to look for
+   * @param index Index of where to begin search
+   * @return the index of the first occurrence of the object
+   * argument in this vector at position index or later in the
+   * vector; returns -1 if the object is not found.
+   */
+  public int indexOf(int elem, int index)
+  {
+    for (int i = index; i < m_firstFree; i++)
+    {
+      if (elementAt(i) == elem)
+        return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Searches for the first occurence of the given argument,
+   * beginning the search at index, and testing for equality
+   * using the equals method.
+   *
+   * @param elem object to look for
+   * @return the index of the first occurrence of the object
+   * argument in this vector at position index or later in the
+   * vector; returns -1 if the object is not found.
+   */
+  public int indexOf(int elem)
+  {
+    return indexOf(elem, 0);
+  }
+
+  /**
+   * Return the segment holding the given index, allocating it (and growing
+   * the segment table) if needed.
+   *
+   * @param at An index at or beyond the heap block
+   *
+   * @return the segment
+   */
+  private IntBuffer getSegment(int at)
+  {
+    int index = at >>> SEGMENT_BITS;
+    if (index >= m_segments.length)
+    {
+      IntBuffer[] newSegments = new IntBuffer[Math.max(index + 1, m_segments.length * 2)];
+      System.arraycopy(m_segments, 0, newSegments, 0, m_segments.length);
+      m_segments = newSegments;
+    }
+
+    IntBuffer segment = m_segments[index];
+    if (null == segment)
+    {
+      if (null != m_spareSegment)
+      {
+        segment = m_spareSegment;
+        m_spareSegment = null;
+        segment.clear();
+        while (segment.hasRemaining())
+          segment.put(ZEROS);
+        segment.clear();
+      }
+      else
+        segment = ByteBuffer.allocateDirect(SEGMENT_SIZE << 2)
+                            .order(ByteOrder.nativeOrder()).asIntBuffer();
+      m_segments[index] = segment;
+    }
+    return segment;
+  }
+}
@@ -20,6 +20,9 @@
  */
 package org.apache.xml.utils;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
 /**
  * A very simple table that stores a list of int. Very similar API to our
  * IntVector class (same API); different internal storage.
@@ -70,6 +73,15 @@ public class SuballocatedIntVector
   protected int m_buildCache[];
   protected int m_buildCacheStartIndex;
 
+  /** The most blocks kept for reuse by releaseBlocks(). */
+  private static final int MAX_SPARE_BLOCKS = 16;
+
+  /** Blocks given up by releaseBlocks(), kept for reuse, or null. */
+  private int m_spareBlocks[][];
+
+  /** Number of blocks in m_spareBlocks. */
+  private int m_spareCount = 0;
+
 
   /**
    * Default constructor.  Note that the default
@@ -170,7 +182,7 @@ public class SuballocatedIntVector
       }
       int[] block=m_map[index];
       if(null==block)
-	block=m_map[index]=new int[m_blocksize];
+	block=m_map[index]=newBlock();
       block[offset]=value;
 
       // Cache the current row of m_map.  Next m_blocksize-1
@@ -182,6 +194,66 @@ public class SuballocatedIntVector
     }
   }
 
+  /**
+   * Append ints read from a buffer onto the vector, copying a block at a
+   * time. This is used to load large vectors in bulk, for instance from a
+   * memory-mapped file.
+   *
+   * @param src Buffer to read from, starting at its current position
+   * @param count Number of ints to append
+   */
+  public void addElements(IntBuffer src, int count)
+  {
+    if (count <= 0)
+      return;
+
+    int last = (m_firstFree + count - 1) >>> m_SHIFT;
+    if (last >= m_map.length)
+    {
+      int[][] newMap = new int[last + m_numblocks][];
+      System.arraycopy(m_map, 0, newMap, 0, m_map.length);
+      m_map = newMap;
+    }
+
+    while (count > 0)
+    {
+      int index = m_firstFree >>> m_SHIFT;
+      int offset = m_firstFree & m_MASK;
+      int[] block = m_map[index];
+      if (null == block)
+        block = m_map[index] = newBlock();
+
+      int copied = (m_blocksize - offset < count) ? m_blocksize - offset : count;
+      src.get(block, offset, copied);
+
+      m_buildCache = block;
+      m_buildCacheStartIndex = m_firstFree - offset;
+      m_firstFree += copied;
+      count -= copied;
+    }
+  }
+
+  /**
+   * Copy a range of the vector into an array.
+   *
+   * @param start Index of the first int to copy
+   * @param dest Array to copy into
+   * @param destOffset Index in dest of the first int copied
+   * @param length Number of ints to copy
+   */
+  public void getElements(int start, int[] dest, int destOffset, int length)
+  {
+    while (length > 0)
+    {
+      int offset = start & m_MASK;
+      int copied = (m_blocksize - offset < length) ? m_blocksize - offset : length;
+      System.arraycopy(m_map[start >>> m_SHIFT], offset, dest, destOffset, copied);
+      start += copied;
+      destOffset += copied;
+      length -= copied;
+    }
+  }
+
   /**
    * Append several int values onto the vector.
    *
@@ -210,7 +282,7 @@ public class SuballocatedIntVector
         }
         int[] block=m_map[index];
         if(null==block)
-          block=m_map[index]=new int[m_blocksize];
+          block=m_map[index]=newBlock();
         int copied=(m_blocksize-offset < numberOfElements)
           ? m_blocksize-offset : numberOfElements;
         numberOfElements-=copied;
@@ -236,7 +308,7 @@ public class SuballocatedIntVector
       int index=m_firstFree>>>m_SHIFT;
       int newindex=(m_firstFree+numberOfElements)>>>m_SHIFT;
       for(int i=index+1;i<=newindex;++i)
-        m_map[i]=new int[m_blocksize];
+        m_map[i]=newBlock();
     }
     m_firstFree=newlen;
   }
@@ -268,7 +340,7 @@ public class SuballocatedIntVector
       }
       int[] block=m_map[index];
       if(null==block)
-        block=m_map[index]=new int[m_blocksize];
+        block=m_map[index]=newBlock();
       int offset=at&m_MASK;
           block[offset]=value;
           m_firstFree=offset+1;
@@ -289,7 +361,7 @@ public class SuballocatedIntVector
         if(null==block)
         {
           push=0;
-          block=m_map[index]=new int[m_blocksize];
+          block=m_map[index]=newBlock();
         }
         else
         {
@@ -314,6 +386,62 @@ public class SuballocatedIntVector
     m_buildCacheStartIndex = 0;
   }
 
+  /**
+   * Give up the storage of a range of the vector which will never be read
+   * or written again, so that it can be reused for new blocks or garbage
+   * collected. Only the blocks lying wholly within the range are released;
+   * the first block, and the block currently being filled, are always
+   * kept. Reading a released element throws a NullPointerException.
+   *
+   * @param start Index of the first element which may be released
+   * @param end Index following the last element which may be released
+   */
+  public void releaseBlocks(int start, int end)
+  {
+    int first = (start + m_MASK) >>> m_SHIFT;
+    int last = end >>> m_SHIFT;
+
+    if (first < 1)
+      first = 1;
+    if (last > m_map.length)
+      last = m_map.length;
+
+    for (int i = first; i < last; i++)
+    {
+      int[] block = m_map[i];
+      if (block != m_buildCache)
+      {
+        m_map[i] = null;
+        if (null != block && m_spareCount < MAX_SPARE_BLOCKS)
+        {
+          if (null == m_spareBlocks)
+            m_spareBlocks = new int[MAX_SPARE_BLOCKS][];
+          m_spareBlocks[m_spareCount++] = block;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get a new, zero-filled block, reusing one given up by releaseBlocks()
+   * if there is one. When a document is pruned as it is built, blocks are
+   * released about as fast as new ones are needed, so that the vector's
+   * storage is recycled rather than left to the garbage collector.
+   *
+   * @return a block of m_blocksize ints
+   */
+  private int[] newBlock()
+  {
+    if (m_spareCount > 0)
+    {
+      int[] block = m_spareBlocks[--m_spareCount];
+      m_spareBlocks[m_spareCount] = null;
+      Arrays.fill(block, 0);
+      return block;
+    }
+    return new int[m_blocksize];
+  }
+
   /**
    * Removes the first occurrence of the argument from this vector.
    * If the object is found in this vector, each component in the vector
@@ -356,7 +484,7 @@ public class SuballocatedIntVector
         int copylen=m_blocksize-offset-1;
         int[] block=m_map[index];
         if(null==block)
-          block=m_map[index]=new int[m_blocksize];
+          block=m_map[index]=newBlock();
         else
           System.arraycopy(block, offset+1, block, offset, copylen);
         if(index<maxindex)
@@ -403,7 +531,7 @@ public class SuballocatedIntVector
 
       int[] block=m_map[index];
       if(null==block)
-	block=m_map[index]=new int[m_blocksize];
+	block=m_map[index]=newBlock();
       block[offset]=value;
     }
 
@@ -0,0 +1,690 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A cache of compiled stylesheets, used by the TransformerFactory
+ * implementations to return the same Templates object for the same
+ * stylesheet.
+ * <p>
+ * Stylesheets are identified by their content rather than their URI: the
+ * key of a stylesheet is a SHA-256 digest of the system ID and the text of
+ * the stylesheet and of every stylesheet it imports or includes, found by
+ * resolving the href attributes of its xsl:import and xsl:include elements
+ * through the factory's URIResolver. A stylesheet which has changed, or
+ * one of whose imports has changed, therefore gets a new key and is
+ * compiled again, and the old Templates object is eventually evicted.</p>
+ * <p>
+ * Only stylesheets which can be read more than once can be cached: stream
+ * sources, and SAX sources without an XMLReader of their own. Others, such
+ * as DOM sources, and stylesheets importing one, are compiled every time.
+ * External entities of the stylesheets are not part of the key.</p>
+ * <p>
+ * Concurrent requests for a stylesheet which is not cached compile it only
+ * once; the other callers wait for that compilation. The cache holds at
+ * most a given number of Templates objects, and evicts the least recently
+ * used first. Lookups do not take any lock of the cache.</p>
+ * @xsl.usage internal
+ */
+public class TemplatesCache
+{
+  /** The namespace of the XSLT elements. */
+  private static final String XSLT_NAMESPACE =
+    "http://www.w3.org/1999/XSL/Transform";
+
+  /** Map from key to Entry. */
+  private final ConcurrentHashMap m_entries = new ConcurrentHashMap();
+
+  /** The maximum number of cached Templates objects. */
+  private volatile int m_maxEntries;
+
+  /** Logical clock used to order entries by recency of use. */
+  private final AtomicLong m_clock = new AtomicLong();
+
+  /** Lock held while choosing and removing eviction victims. */
+  private final Object m_evictionLock = new Object();
+
+  // Statistics.
+  private final AtomicLong m_hits = new AtomicLong();
+  private final AtomicLong m_misses = new AtomicLong();
+  private final AtomicLong m_evictions = new AtomicLong();
+  private final AtomicLong m_uncacheable = new AtomicLong();
+
+  /**
+   * Compiles a stylesheet into a Templates object; implemented by the
+   * factory which owns the cache.
+   */
+  public interface Compiler
+  {
+    /**
+     * Compile a stylesheet.
+     *
+     * @param source The stylesheet.
+     * @param key The key of the stylesheet, or null if it can not be
+     * cached.
+     *
+     * @return the Templates object, or null if the stylesheet could not be
+     * compiled and the error was reported rather than thrown.
+     *
+     * @throws TransformerConfigurationException if the stylesheet could not
+     * be compiled.
+     */
+    public Templates compile(Source source, String key)
+      throws TransformerConfigurationException;
+  }
+
+  /**
+   * Create a cache.
+   *
+   * @param maxEntries The maximum number of cached Templates objects.
+   */
+  public TemplatesCache(int maxEntries)
+  {
+    m_maxEntries = Math.max(1, maxEntries);
+  }
+
+  /**
+   * Set the maximum number of cached Templates objects.
+   *
+   * @param max The new maximum, at least 1.
+   */
+  public void setMaxEntries(int max)
+  {
+    m_maxEntries = Math.max(1, max);
+    evict(null);
+  }
+
+  /**
+   * Get the maximum number of cached Templates objects.
+   *
+   * @return the maximum.
+   */
+  public int getMaxEntries()
+  {
+    return m_maxEntries;
+  }
+
+  /**
+   * Get the Templates object for a stylesheet, compiling it if it is not
+   * cached. A stylesheet which can not be cached is simply compiled.
+   *
+   * @param source The stylesheet.
+   * @param resolver The resolver for the stylesheets it imports and
+   * includes, or null to read them from their URIs.
+   * @param compiler The compiler to use if the stylesheet is not cached.
+   *
+   * @return the Templates object, or null if the compiler returned null.
+   *
+   * @throws TransformerConfigurationException if the stylesheet could not
+   * be compiled.
+   */
+  public Templates getTemplates(Source source, URIResolver resolver,
+                                final Compiler compiler)
+    throws TransformerConfigurationException
+  {
+    final Stylesheet stylesheet = read(source, resolver);
+    final String key = stylesheet.getKey();
+
+    if (null == key)
+    {
+      m_uncacheable.incrementAndGet();
+      return compiler.compile(stylesheet.getSource(), null);
+    }
+
+    Entry entry = (Entry) m_entries.get(key);
+    boolean compile = false;
+
+    if (null == entry)
+    {
+      Entry newEntry = new Entry(new Callable()
+      {
+        public Object call() throws Exception
+        {
+          return compiler.compile(stylesheet.getSource(), key);
+        }
+      });
+      entry = (Entry) m_entries.putIfAbsent(key, newEntry);
+      if (null == entry)
+      {
+        entry = newEntry;
+        compile = true;
+      }
+    }
+
+    entry.m_lastUsed = m_clock.incrementAndGet();
+    if (compile)
+    {
+      m_misses.incrementAndGet();
+      entry.m_task.run();
+    }
+    else
+      m_hits.incrementAndGet();
+
+    Templates templates;
+    try
+    {
+      templates = (Templates) entry.m_task.get();
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new TransformerConfigurationException(ie);
+    }
+    catch (ExecutionException ee)
+    {
+      // Let the next request try again
+      m_entries.remove(key, entry);
+
+      Throwable cause = ee.getCause();
+      if (cause instanceof TransformerConfigurationException)
+        throw (TransformerConfigurationException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new TransformerConfigurationException(cause);
+    }
+
+    if (null == templates)
+      m_entries.remove(key, entry);
+    else if (compile)
+      evict(entry);
+    return templates;
+  }
+
+  /**
+   * Read a stylesheet, and the stylesheets it imports and includes, and
+   * compute its key. Reading the stylesheet may use up the source, so the
+   * stylesheet should then be compiled from the source of the result.
+   *
+   * @param source The stylesheet.
+   * @param resolver The resolver for the stylesheets it imports and
+   * includes, or null to read them from their URIs.
+   *
+   * @return the stylesheet, whose key is null if it can not be cached.
+   */
+  public static Stylesheet read(Source source, URIResolver resolver)
+  {
+    Content root;
+    try
+    {
+      root = Content.read(source);
+    }
+    catch (IOException ioe)
+    {
+      // Let the compiler report it
+      root = null;
+    }
+    String key = (null == root) ? null : digest(root, resolver);
+    return new Stylesheet(key, root, source);
+  }
+
+  /**
+   * Remove all Templates objects from the cache.
+   */
+  public void clear()
+  {
+    m_entries.clear();
+  }
+
+  /**
+   * Get the number of cached (or compiling) stylesheets.
+   *
+   * @return the number of stylesheets.
+   */
+  public int getEntryCount()
+  {
+    return m_entries.size();
+  }
+
+  /**
+   * Get the number of requests served from the cache, including requests
+   * which waited for another to compile the stylesheet.
+   *
+   * @return the hit count.
+   */
+  public long getHitCount()
+  {
+    return m_hits.get();
+  }
+
+  /**
+   * Get the number of requests which compiled the stylesheet.
+   *
+   * @return the miss count.
+   */
+  public long getMissCount()
+  {
+    return m_misses.get();
+  }
+
+  /**
+   * Get the number of Templates objects evicted to respect the size limit.
+   *
+   * @return the eviction count.
+   */
+  public long getEvictionCount()
+  {
+    return m_evictions.get();
+  }
+
+  /**
+   * Get the number of requests for stylesheets which could not be cached.
+   *
+   * @return the count.
+   */
+  public long getUncacheableCount()
+  {
+    return m_uncacheable.get();
+  }
+
+  /**
+   * Evict the least recently used entries until the cache is within its
+   * limit. Entries still compiling are left alone.
+   *
+   * @param keep An entry not to evict, or null.
+   */
+  private void evict(Entry keep)
+  {
+    if (m_entries.size() <= m_maxEntries)
+      return;
+
+    synchronized (m_evictionLock)
+    {
+      while (m_entries.size() > m_maxEntries)
+      {
+        Object victimKey = null;
+        long oldest = Long.MAX_VALUE;
+
+        Iterator it = m_entries.entrySet().iterator();
+        while (it.hasNext())
+        {
+          java.util.Map.Entry e = (java.util.Map.Entry) it.next();
+          Entry entry = (Entry) e.getValue();
+          if (entry != keep && entry.m_task.isDone()
+              && entry.m_lastUsed < oldest)
+          {
+            oldest = entry.m_lastUsed;
+            victimKey = e.getKey();
+          }
+        }
+
+        if (null == victimKey)
+          return;
+        if (null != m_entries.remove(victimKey))
+          m_evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Compute the key of a stylesheet: the digest of its system ID and text,
+   * followed by those of the stylesheets it imports and includes, in the
+   * order they are found.
+   *
+   * @return the key, or null if the stylesheet can not be cached.
+   */
+  private static String digest(Content root, URIResolver resolver)
+  {
+    MessageDigest md;
+    try
+    {
+      md = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException nsae)
+    {
+      return null;
+    }
+
+    Set seen = new HashSet();
+    List pending = new ArrayList();
+    pending.add(root);
+    if (null != root.m_systemId)
+      seen.add(root.m_systemId);
+
+    try
+    {
+      for (int i = 0; i < pending.size(); i++)
+      {
+        Content content = (Content) pending.get(i);
+        content.update(md);
+
+        List hrefs = content.findImports();
+        for (int j = 0; j < hrefs.size(); j++)
+        {
+          String href = (String) hrefs.get(j);
+          Content imported = resolve(href, content.m_systemId, resolver);
+          // Without a system ID, a cycle of imports could not be told
+          if (null == imported || null == imported.m_systemId)
+            return null;
+          if (seen.add(imported.m_systemId))
+            pending.add(imported);
+        }
+      }
+    }
+    catch (IOException ioe)
+    {
+      return null;
+    }
+    catch (SAXException se)
+    {
+      // Let the compiler report it
+      return null;
+    }
+    catch (TransformerException te)
+    {
+      return null;
+    }
+
+    byte[] hash = md.digest();
+    StringBuffer key = new StringBuffer(hash.length * 2);
+    for (int i = 0; i < hash.length; i++)
+    {
+      key.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+      key.append(Character.forDigit(hash[i] & 0xF, 16));
+    }
+    return key.toString();
+  }
+
+  /**
+   * Read an imported or included stylesheet, as the compiler would find it.
+   *
+   * @return the stylesheet, or null if it can not be read more than once.
+   */
+  private static Content resolve(String href, String base,
+                                 URIResolver resolver)
+    throws IOException, TransformerException
+  {
+    Source source = null;
+    if (null != resolver)
+      source = resolver.resolve(href, base);
+    if (null == source)
+      source = new StreamSource(SystemIDResolver.getAbsoluteURI(href, base));
+    return Content.read(source);
+  }
+
+  /**
+   * A stylesheet read by {@link TemplatesCache#read}: its key, and what it
+   * should be compiled from.
+   */
+  public static final class Stylesheet
+  {
+    private final String m_key;
+    private final Content m_content;
+    private final Source m_source;
+
+    Stylesheet(String key, Content content, Source source)
+    {
+      m_key = key;
+      m_content = content;
+      m_source = source;
+    }
+
+    /**
+     * Get the key of the stylesheet: a digest of its text, and of the text
+     * of the stylesheets it imports and includes.
+     *
+     * @return the key, as hexadecimal digits, or null if the stylesheet can
+     * not be cached.
+     */
+    public String getKey()
+    {
+      return m_key;
+    }
+
+    /**
+     * Get a source from which to compile the stylesheet. For a stylesheet
+     * which was read, this is a fresh source for the text; otherwise it is
+     * the original source.
+     *
+     * @return the source.
+     */
+    public Source getSource()
+    {
+      return (null == m_content) ? m_source : m_content.toSource();
+    }
+  }
+
+  /**
+   * A cached, or compiling, Templates object.
+   */
+  private static final class Entry
+  {
+    /** The compilation, which is run by the first thread to ask. */
+    final FutureTask m_task;
+
+    /** Logical time of the last use. */
+    volatile long m_lastUsed;
+
+    Entry(Callable compilation)
+    {
+      m_task = new FutureTask(compilation);
+    }
+  }
+
+  /**
+   * The text of a stylesheet, read from its source, as bytes or as
+   * characters.
+   */
+  private static final class Content
+  {
+    final String m_systemId;
+    final String m_publicId;
+    final byte[] m_bytes;
+    final String m_chars;
+
+    private Content(String systemId, String publicId, byte[] bytes,
+                    String chars)
+    {
+      m_systemId = systemId;
+      m_publicId = publicId;
+      m_bytes = bytes;
+      m_chars = chars;
+    }
+
+    /**
+     * Read the text of a source.
+     *
+     * @return the text, or null if the source can not be read more than
+     * once.
+     */
+    static Content read(Source source) throws IOException
+    {
+      InputStream is = null;
+      Reader r = null;
+      String publicId = null;
+
+      if (source instanceof StreamSource)
+      {
+        StreamSource ss = (StreamSource) source;
+        is = ss.getInputStream();
+        r = ss.getReader();
+        publicId = ss.getPublicId();
+      }
+      else if (source instanceof SAXSource
+               && null == ((SAXSource) source).getXMLReader()
+               && null != ((SAXSource) source).getInputSource())
+      {
+        InputSource isource = ((SAXSource) source).getInputSource();
+        is = isource.getByteStream();
+        r = isource.getCharacterStream();
+        publicId = isource.getPublicId();
+      }
+      else
+        return null;
+
+      String systemId = source.getSystemId();
+      if (null != systemId)
+        systemId = SystemIDResolver.getAbsoluteURI(systemId);
+
+      if (null != is)
+        return new Content(systemId, publicId, readBytes(is), null);
+      if (null != r)
+        return new Content(systemId, publicId, null, readChars(r));
+      if (null == systemId)
+        return null;
+
+      InputStream in = new URL(systemId).openStream();
+      try
+      {
+        return new Content(systemId, publicId, readBytes(in), null);
+      }
+      finally
+      {
+        in.close();
+      }
+    }
+
+    private static byte[] readBytes(InputStream is) throws IOException
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = is.read(buffer)) > 0)
+        out.write(buffer, 0, n);
+      return out.toByteArray();
+    }
+
+    private static String readChars(Reader r) throws IOException
+    {
+      StringBuffer out = new StringBuffer();
+      char[] buffer = new char[4096];
+      int n;
+      while ((n = r.read(buffer)) > 0)
+        out.append(buffer, 0, n);
+      return out.toString();
+    }
+
+    /**
+     * Add the system ID and text to a digest.
+     */
+    void update(MessageDigest md) throws IOException
+    {
+      md.update((null == m_systemId ? "" : m_systemId).getBytes("UTF-8"));
+      md.update((byte) 0);
+      if (null != m_bytes)
+      {
+        md.update((byte) 'B');
+        md.update(m_bytes);
+      }
+      else
+      {
+        md.update((byte) 'C');
+        md.update(m_chars.getBytes("UTF-8"));
+      }
+      md.update((byte) 0);
+    }
+
+    /**
+     * Get a fresh source for the text, for the compiler.
+     */
+    Source toSource()
+    {
+      StreamSource source = (null != m_bytes)
+        ? new StreamSource(new ByteArrayInputStream(m_bytes))
+        : new StreamSource(new StringReader(m_chars));
+      source.setSystemId(m_systemId);
+      source.setPublicId(m_publicId);
+      return source;
+    }
+
+    /**
+     * Find the href attributes of the xsl:import and xsl:include elements
+     * of the stylesheet.
+     */
+    List findImports() throws IOException, SAXException
+    {
+      final List hrefs = new ArrayList();
+      InputSource isource = new InputSource(m_systemId);
+      isource.setPublicId(m_publicId);
+      if (null != m_bytes)
+        isource.setByteStream(new ByteArrayInputStream(m_bytes));
+      else
+        isource.setCharacterStream(new StringReader(m_chars));
+
+      XMLReaderManager manager = XMLReaderManager.getInstance();
+      XMLReader reader = manager.getXMLReader();
+      try
+      {
+        DefaultHandler handler = new DefaultHandler()
+        {
+          public void startElement(String uri, String localName,
+                                   String qName, Attributes atts)
+          {
+            if (XSLT_NAMESPACE.equals(uri)
+                && ("import".equals(localName)
+                    || "include".equals(localName)))
+            {
+              String href = atts.getValue("href");
+              if (null != href)
+                hrefs.add(href);
+            }
+          }
+        };
+        reader.setContentHandler(handler);
+        // Errors are left to the compiler to report
+        reader.setErrorHandler(handler);
+        reader.parse(isource);
+      }
+      finally
+      {
+        reader.setContentHandler(null);
+        reader.setErrorHandler(null);
+        manager.releaseXMLReader(reader);
+      }
+      return hrefs;
+    }
+  }
+}
@@ -31,6 +31,9 @@ import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.DTMManagerDefault;
+import org.apache.xml.dtm.ref.SharedDTMCache;
 import org.apache.xml.utils.SystemIDResolver;
 
 import org.xml.sax.XMLReader;
@@ -48,17 +51,62 @@ public class SourceTreeManager
   private Vector m_sourceTree = new Vector();
 
   /**
-   * Reset the list of SourceTree objects that this manager manages.
+   * Reset the list of SourceTree objects that this manager manages, and
+   * give back the documents taken from the shared document cache.
    *
    */
   public void reset()
   {
     m_sourceTree = new Vector();
+    releaseSharedDocuments();
   }
 
   /** The TrAX URI resolver used to obtain source trees. */
   URIResolver m_uriResolver;
 
+  /** Documents shared with other transformations, or null. */
+  private SharedDTMCache m_documentCache;
+
+  /** The DTMs this manager holds references to in m_documentCache. */
+  private Vector m_sharedDocuments = new Vector();
+
+  /**
+   * Set a cache from which source trees are taken, and so shared with
+   * other transformations, instead of being parsed privately. The cache
+   * must only be used if the caller's whitespace filter (if any) would not
+   * strip anything.
+   *
+   * @param cache The shared cache, or null.
+   */
+  public void setDocumentCache(SharedDTMCache cache)
+  {
+    releaseSharedDocuments();
+    m_documentCache = cache;
+  }
+
+  /**
+   * Give back the references taken to documents in the shared document
+   * cache, which the cache may then release if they have been evicted.
+   * Nodes of those documents must not be used afterwards.
+   */
+  public void releaseSharedDocuments()
+  {
+    int n = m_sharedDocuments.size();
+    for (int i = 0; i < n; i++)
+      m_documentCache.release((DTM) m_sharedDocuments.elementAt(i));
+    m_sharedDocuments.removeAllElements();
+  }
+
+  /**
+   * Get the cache from which source trees are taken, if any.
+   *
+   * @return The shared cache, or null.
+   */
+  public SharedDTMCache getDocumentCache()
+  {
+    return m_documentCache;
+  }
+
   /**
    * Set an object that will be used to resolve URIs used in
    * document(), etc.
@@ -278,7 +326,11 @@ public class SourceTreeManager
     if (DTM.NULL != n)
       return n;
 
-    n = parseToNode(source, locator, xctxt);
+    if (null != m_documentCache && SharedDTMCache.isCacheable(source))
+      n = getSharedNode(source, locator, xctxt);
+
+    if (DTM.NULL == n)
+      n = parseToNode(source, locator, xctxt);
 
     if (DTM.NULL != n)
       putDocumentInCache(n, source);
@@ -286,6 +338,47 @@ public class SourceTreeManager
     return n;
   }
 
+  /**
+   * Try to get a source tree from the shared document cache, and make it
+   * addressable through the DTMManager of the XPathContext.
+   *
+   * @param source The Source object that identifies the source node.
+   * @param locator The location of the caller, for diagnostic purposes.
+   *
+   * @return the document node, or DTM.NULL if the shared document could
+   * not be used, in which case the caller should parse its own copy.
+   *
+   * @throws TransformerException if the document can not be loaded.
+   */
+  private int getSharedNode(Source source, SourceLocator locator, XPathContext xctxt)
+          throws TransformerException
+  {
+    DTMManager mgr = xctxt.getDTMManager();
+
+    if (!(mgr instanceof DTMManagerDefault))
+      return DTM.NULL;
+
+    DTM dtm;
+    try
+    {
+      dtm = m_documentCache.acquireDTM(source);
+    }
+    catch (Exception e)
+    {
+      throw new TransformerException(e.getMessage(), locator, e);
+    }
+
+    // Hold on to the document until reset(), even if it is evicted.
+    if (((DTMManagerDefault) mgr).addSharedDTM(dtm))
+    {
+      m_sharedDocuments.addElement(dtm);
+      return dtm.getDocument();
+    }
+
+    m_documentCache.release(dtm);
+    return DTM.NULL;
+  }
+
   /**
    * Try to create a DOM source tree from the input source.
    *
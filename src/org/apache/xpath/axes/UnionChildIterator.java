@@ -22,6 +22,7 @@ package org.apache.xpath.axes;
 
 import org.apache.xml.dtm.DTMIterator;
 import org.apache.xpath.XPathContext;
+import org.apache.xpath.XPathVisitor;
 import org.apache.xpath.objects.XObject;
 import org.apache.xpath.patterns.NodeTest;
 
@@ -147,4 +148,20 @@ public class UnionChildIterator extends ChildTestIterator
     return DTMIterator.FILTER_SKIP;
   }
 
+  /**
+   * Call the visitors on the predicates of each of the node tests in the
+   * union, which are not this iterator's own predicates.
+   *
+   * @param visitor The visitor whose appropriate method will be called.
+   */
+  public void callPredicateVisitors(XPathVisitor visitor)
+  {
+    super.callPredicateVisitors(visitor);
+    if (null != m_nodeTests)
+    {
+      for (int i = 0; i < m_nodeTests.length; i++)
+        m_nodeTests[i].callPredicateVisitors(visitor);
+    }
+  }
+
 }
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// $Id$
+
+package org.apache.xpath.jaxp;
+
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.DTMManagerDefault;
+import org.apache.xpath.XPathContext;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+
+/**
+ * Keeps an XPathContext for each DOM Document which XPath expressions are
+ * evaluated against, so that one evaluation after another can use the
+ * same context, and with it the DOM2DTM its DTMManager built around the
+ * document. A DOM2DTM is built as the expressions walk the document, so
+ * without this every evaluation would build again as much of it as it
+ * visits.
+ * <p>
+ * The context is kept in the user data of the document, so it goes when
+ * the document does. It is only kept for documents which send DOM
+ * mutation events: any change to the document throws the context away,
+ * since its DOM2DTM no longer matches the DOM. The context is also thrown
+ * away when an evaluation failed, or brought other documents into its
+ * DTMManager (from a variable or an extension function, say), since these
+ * could change unseen.</p>
+ * <p>
+ * A context is only used by one evaluation at a time; an evaluation which
+ * finds the context of its document in use gets a new one, as it would
+ * without this class. Contexts for nodes outside of any document tree, or
+ * for no node at all, are not kept either.</p>
+ */
+final class JAXPContextPool {
+
+    /** The key of the Entry in the user data of a document. */
+    private static final String USER_DATA_KEY =
+        "org.apache.xpath.jaxp.JAXPContextPool";
+
+    /** The DOM event fired after any change to a document. */
+    private static final String SUBTREE_MODIFIED = "DOMSubtreeModified";
+
+    private JAXPContextPool() {
+    }
+
+    /**
+     * Get a context for evaluating an expression.
+     *
+     * @param contextItem The item the expression is evaluated against.
+     * @param functionResolver The function resolver, or null.
+     * @param featureSecureProcessing True if extension functions may not be
+     *   called.
+     * @param variableResolver The variable resolver.
+     *
+     * @return A context, which should be handed back to
+     *   {@link #release(Object, XPathContext, boolean)} once the result of
+     *   the evaluation has been converted.
+     */
+    static XPathContext acquire(Object contextItem,
+            XPathFunctionResolver functionResolver,
+            boolean featureSecureProcessing,
+            XPathVariableResolver variableResolver) {
+        XPathContext xpathSupport = null;
+        Entry entry = getEntry(contextItem, true);
+        if ( entry != null ) {
+            xpathSupport = entry.checkOut(functionResolver,
+                    featureSecureProcessing);
+        }
+        if ( xpathSupport == null ) {
+            xpathSupport = createContext(functionResolver,
+                    featureSecureProcessing);
+        }
+        xpathSupport.setVarStack(new JAXPVariableStack(variableResolver));
+        return xpathSupport;
+    }
+
+    /**
+     * Get a context for evaluating an expression against a document which
+     * will not be used again, such as one just parsed for the evaluation.
+     * The context is not kept.
+     */
+    static XPathContext newContext(XPathFunctionResolver functionResolver,
+            boolean featureSecureProcessing,
+            XPathVariableResolver variableResolver) {
+        XPathContext xpathSupport = createContext(functionResolver,
+                featureSecureProcessing);
+        xpathSupport.setVarStack(new JAXPVariableStack(variableResolver));
+        return xpathSupport;
+    }
+
+    /**
+     * Hand back a context obtained from
+     * {@link #acquire(Object, XPathFunctionResolver, boolean, XPathVariableResolver)}.
+     *
+     * @param contextItem The item the expression was evaluated against.
+     * @param xpathSupport The context.
+     * @param reusable False if the evaluation failed, so that the context
+     *   may be in any state.
+     */
+    static void release(Object contextItem, XPathContext xpathSupport,
+            boolean reusable) {
+        Entry entry = getEntry(contextItem, false);
+        if ( entry != null ) {
+            entry.checkIn(xpathSupport, reusable);
+        }
+    }
+
+    /**
+     * Create an XPathContext that doesn't support pushing and popping of
+     * variable resolution scopes.  Sufficient for simple XPath 1.0
+     * expressions.
+     */
+    private static XPathContext createContext(
+            XPathFunctionResolver functionResolver,
+            boolean featureSecureProcessing) {
+        if ( functionResolver != null ) {
+            JAXPExtensionsProvider jep = new JAXPExtensionsProvider(
+                    functionResolver, featureSecureProcessing );
+            return new XPathContext(jep, false);
+        } else {
+            return new XPathContext(false);
+        }
+    }
+
+    /**
+     * Find the Entry of the document of a context item.
+     *
+     * @param contextItem The context item.
+     * @param create True to create the Entry if there is none yet.
+     *
+     * @return The Entry, or null if the item is not a node within the
+     *   tree of a document which sends mutation events.
+     */
+    private static Entry getEntry(Object contextItem, boolean create) {
+        if ( !( contextItem instanceof Node ) ) {
+            return null;
+        }
+        Node node = (Node) contextItem;
+        Document document = ( node.getNodeType() == Node.DOCUMENT_NODE )
+            ? (Document) node : node.getOwnerDocument();
+        if ( !( document instanceof EventTarget ) ) {
+            return null;
+        }
+
+        // Changes to a subtree which is not attached to the document would
+        // not be seen.
+        Node root = node;
+        for ( Node p = parentOf(node); p != null; p = parentOf(p) ) {
+            root = p;
+        }
+        if ( root != document ) {
+            return null;
+        }
+
+        // Neither the DOM nor its user data are safe for use by several
+        // threads, but evaluations against the same document from several
+        // threads should not be able to break the document.
+        synchronized ( document ) {
+            try {
+                Entry entry = (Entry) document.getUserData( USER_DATA_KEY );
+                if ( entry == null && create ) {
+                    entry = new Entry();
+                    ((EventTarget) document).addEventListener(
+                            SUBTREE_MODIFIED, entry, false );
+                    document.setUserData( USER_DATA_KEY, entry, null );
+                }
+                return entry;
+            } catch ( RuntimeException e ) {
+                // DOM implementations which do not support user data.
+                return null;
+            } catch ( AbstractMethodError e ) {
+                // DOM Level 2 implementations.
+                return null;
+            }
+        }
+    }
+
+    private static Node parentOf(Node node) {
+        return ( node.getNodeType() == Node.ATTRIBUTE_NODE )
+            ? ((Attr) node).getOwnerElement() : node.getParentNode();
+    }
+
+    /**
+     * The context kept for a document. It stays registered for the
+     * mutation events of the document for as long as the document lives,
+     * and drops its context on each change.
+     */
+    private static final class Entry implements EventListener {
+
+        /** The kept context, or null. */
+        private XPathContext m_context;
+
+        /** The function resolver m_context was created for. */
+        private XPathFunctionResolver m_functionResolver;
+
+        /** The secure processing feature m_context was created for. */
+        private boolean m_featureSecureProcessing;
+
+        /** True while m_context is used by an evaluation. */
+        private boolean m_inUse;
+
+        /**
+         * Incremented on every change to the document, so that a context
+         * in use during a change is not kept.
+         */
+        private int m_generation;
+
+        /** m_generation when m_context was checked out. */
+        private int m_checkOutGeneration;
+
+        /**
+         * The number of documents in the DTMManager of m_context when it
+         * was checked out.
+         */
+        private int m_checkOutDTMCount;
+
+        synchronized XPathContext checkOut(
+                XPathFunctionResolver functionResolver,
+                boolean featureSecureProcessing) {
+            if ( m_inUse ) {
+                return null;
+            }
+            if ( m_context == null
+                 || m_functionResolver != functionResolver
+                 || m_featureSecureProcessing != featureSecureProcessing ) {
+                m_context = createContext(functionResolver,
+                        featureSecureProcessing);
+                m_functionResolver = functionResolver;
+                m_featureSecureProcessing = featureSecureProcessing;
+            }
+            DTMManager manager = m_context.getDTMManager();
+            if ( !( manager instanceof DTMManagerDefault ) ) {
+                // Can't tell what else it might be keeping.
+                m_context = null;
+                return null;
+            }
+            m_inUse = true;
+            m_checkOutGeneration = m_generation;
+            m_checkOutDTMCount =
+                ((DTMManagerDefault) manager).getAddedDTMCount();
+            return m_context;
+        }
+
+        synchronized void checkIn(XPathContext xpathSupport,
+                boolean reusable) {
+            if ( !m_inUse || xpathSupport != m_context ) {
+                return;
+            }
+            m_inUse = false;
+
+            // The document itself is added by the first evaluation.
+            int dtmCount = ((DTMManagerDefault)
+                    m_context.getDTMManager()).getAddedDTMCount();
+            if ( !reusable
+                 || m_generation != m_checkOutGeneration
+                 || dtmCount > Math.max( m_checkOutDTMCount, 1 ) ) {
+                m_context = null;
+            }
+        }
+
+        public synchronized void handleEvent(Event evt) {
+            m_generation++;
+            if ( !m_inUse ) {
+                m_context = null;
+            }
+        }
+    }
+}
@@ -88,29 +88,7 @@ public class XPathExpressionImpl  implements javax.xml.xpath.XPathExpression{
 
     public Object eval(Object item, QName returnType)
             throws javax.xml.transform.TransformerException {
-        XObject resultObject = eval ( item );
-        return getResultAsType( resultObject, returnType );
-    }
-    
-    private XObject eval ( Object contextItem )
-            throws javax.xml.transform.TransformerException {
-        org.apache.xpath.XPathContext xpathSupport = null;
-
-        // Create an XPathContext that doesn't support pushing and popping of
-        // variable resolution scopes.  Sufficient for simple XPath 1.0
-        // expressions.
-        if ( functionResolver != null ) {
-            JAXPExtensionsProvider jep = new JAXPExtensionsProvider(
-                    functionResolver, featureSecureProcessing );
-            xpathSupport = new org.apache.xpath.XPathContext(jep, false);
-        } else {
-            xpathSupport = new org.apache.xpath.XPathContext(false);
-        }
-
-        xpathSupport.setVarStack(new JAXPVariableStack(variableResolver));
-        XObject xobj = null;
-          
-        Node contextNode = (Node)contextItem;
+        Node contextNode = (Node)item;
         // We always need to have a ContextNode with Xalan XPath implementation
         // To allow simple expression evaluation like 1+1 we are setting 
         // dummy Document as Context Node
@@ -118,8 +96,26 @@ public class XPathExpressionImpl  implements javax.xml.xpath.XPathExpression{
               contextNode = getDummyDocument();
         } 
 
-        xobj = xpath.execute(xpathSupport, contextNode, prefixResolver );
-        return xobj;
+        // The result has to be converted before the context can be used
+        // by another evaluation.
+        org.apache.xpath.XPathContext xpathSupport = JAXPContextPool.acquire(
+                contextNode, functionResolver, featureSecureProcessing,
+                variableResolver );
+        boolean reusable = false;
+        try {
+            XObject resultObject = eval( contextNode, xpathSupport );
+            Object result = getResultAsType( resultObject, returnType );
+            reusable = true;
+            return result;
+        } finally {
+            JAXPContextPool.release( contextNode, xpathSupport, reusable );
+        }
+    }
+    
+    private XObject eval ( Node contextNode,
+            org.apache.xpath.XPathContext xpathSupport )
+            throws javax.xml.transform.TransformerException {
+        return xpath.execute(xpathSupport, contextNode, prefixResolver );
     }
 
 
@@ -285,7 +281,10 @@ public class XPathExpressionImpl  implements javax.xml.xpath.XPathExpression{
             }
             db = dbf.newDocumentBuilder();
             Document document = db.parse( source );
-            return eval(  document, returnType );
+            XObject resultObject = eval( document,
+                    JAXPContextPool.newContext( functionResolver,
+                            featureSecureProcessing, variableResolver ) );
+            return getResultAsType( resultObject, returnType );
         } catch ( Exception e ) {
             throw new XPathExpressionException ( e );
         }
@@ -363,7 +362,10 @@ public class XPathExpressionImpl  implements javax.xml.xpath.XPathExpression{
     }
 
 
-    private static Document getDummyDocument( ) {
+    private static synchronized Document getDummyDocument( ) {
+        if ( d != null ) {
+            return d;
+        }
         try {
             if ( dbf == null ) {
                 dbf = DocumentBuilderFactory.newInstance();
@@ -44,6 +44,8 @@ import org.xml.sax.SAXException;
 import javax.xml.parsers.*;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * The XPathImpl class provides implementation for the methods defined  in
@@ -68,6 +70,23 @@ public class XPathImpl implements javax.xml.xpath.XPath {
     // extensions function need to throw XPathFunctionException
     private boolean featureSecureProcessing = false; 
 
+    // The number of expressions compiled by evaluate() which are kept, so
+    // that evaluating the same expression string again does not compile it
+    // again.
+    private static final int MAX_COMPILED_EXPRESSIONS = 64;
+
+    // Compiled expressions by expression string, least recently used
+    // first. They depend on the namespace context, so are dropped when it
+    // changes.
+    private final Map compiledExpressions =
+        new LinkedHashMap( 16, 0.75f, true ) {
+            static final long serialVersionUID = 2845612063749117624L;
+
+            protected boolean removeEldestEntry( Map.Entry eldest ) {
+                return size() > MAX_COMPILED_EXPRESSIONS;
+            }
+        };
+
     XPathImpl( XPathVariableResolver vr, XPathFunctionResolver fr ) {
         this.origVariableResolver = this.variableResolver = vr;
         this.origFunctionResolver = this.functionResolver = fr;
@@ -142,6 +161,7 @@ public class XPathImpl implements javax.xml.xpath.XPath {
         }
         this.namespaceContext = nsContext;
         this.prefixResolver = new JAXPPrefixResolver ( nsContext );
+        compiledExpressions.clear();
     }
 
     /**
@@ -190,27 +210,25 @@ public class XPathImpl implements javax.xml.xpath.XPath {
     }
 
     
-    private XObject eval(String expression, Object contextItem)
+    private org.apache.xpath.XPath getXPath(String expression)
         throws javax.xml.transform.TransformerException {
-        org.apache.xpath.XPath xpath = new org.apache.xpath.XPath( expression,
-            null, prefixResolver, org.apache.xpath.XPath.SELECT ); 
-        org.apache.xpath.XPathContext xpathSupport = null;
-
-        // Create an XPathContext that doesn't support pushing and popping of
-        // variable resolution scopes.  Sufficient for simple XPath 1.0
-        // expressions.
-        if ( functionResolver != null ) {
-            JAXPExtensionsProvider jep = new JAXPExtensionsProvider(
-                    functionResolver, featureSecureProcessing );
-            xpathSupport = new org.apache.xpath.XPathContext(jep, false);
-        } else { 
-            xpathSupport = new org.apache.xpath.XPathContext(false);
+        org.apache.xpath.XPath xpath =
+            (org.apache.xpath.XPath) compiledExpressions.get( expression );
+        if ( xpath == null ) {
+            xpath = new org.apache.xpath.XPath( expression, null,
+                prefixResolver, org.apache.xpath.XPath.SELECT );
+            compiledExpressions.put( expression, xpath );
         }
+        return xpath;
+    }
+
+    private XObject eval(String expression, Object contextItem,
+            org.apache.xpath.XPathContext xpathSupport)
+        throws javax.xml.transform.TransformerException {
+        org.apache.xpath.XPath xpath = getXPath( expression );
 
         XObject xobj = null;
         
-        xpathSupport.setVarStack(new JAXPVariableStack(variableResolver));
-        
         // If item is null, then we will create a a Dummy contextNode
         if ( contextItem instanceof Node ) {
             xobj = xpath.execute (xpathSupport, (Node)contextItem,
@@ -276,10 +294,18 @@ public class XPathImpl implements javax.xml.xpath.XPath {
             throw new IllegalArgumentException ( fmsg );
         }
 
+        // The result has to be converted before the context can be used
+        // by another evaluation.
+        org.apache.xpath.XPathContext xpathSupport = JAXPContextPool.acquire(
+                item, functionResolver, featureSecureProcessing,
+                variableResolver );
+        boolean reusable = false;
         try {
  
-            XObject resultObject = eval( expression, item );
-            return getResultAsType( resultObject, returnType );
+            XObject resultObject = eval( expression, item, xpathSupport );
+            Object result = getResultAsType( resultObject, returnType );
+            reusable = true;
+            return result;
         } catch ( java.lang.NullPointerException npe ) {
             // If VariableResolver returns null Or if we get 
             // NullPointerException at this stage for some other reason
@@ -294,7 +320,9 @@ public class XPathImpl implements javax.xml.xpath.XPath {
                 // XPathExpressionException ( as per spec )
                 throw new XPathExpressionException ( te );
             }
-        } 
+        } finally {
+            JAXPContextPool.release( item, xpathSupport, reusable );
+        }
         
     }
 
@@ -397,8 +425,7 @@ public class XPathImpl implements javax.xml.xpath.XPath {
             throw new NullPointerException ( fmsg );
         }
         try {
-            org.apache.xpath.XPath xpath = new XPath (expression, null,
-                    prefixResolver, org.apache.xpath.XPath.SELECT );
+            org.apache.xpath.XPath xpath = getXPath( expression );
             // Can have errorListener
             XPathExpressionImpl ximpl = new XPathExpressionImpl (xpath,
                     prefixResolver, functionResolver, variableResolver,
@@ -473,7 +500,9 @@ public class XPathImpl implements javax.xml.xpath.XPath {
 
             Document document = getParser().parse( source );
 
-            XObject resultObject = eval( expression, document );
+            XObject resultObject = eval( expression, document,
+                    JAXPContextPool.newContext( functionResolver,
+                            featureSecureProcessing, variableResolver ) );
             return getResultAsType( resultObject, returnType );
         } catch ( SAXException e ) {
             throw new XPathExpressionException ( e );
@@ -540,6 +569,7 @@ public class XPathImpl implements javax.xml.xpath.XPath {
         this.variableResolver = this.origVariableResolver;
         this.functionResolver = this.origFunctionResolver;
         this.namespaceContext = null;
+        compiledExpressions.clear();
     }
  
 }
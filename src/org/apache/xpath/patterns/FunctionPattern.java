@@ -51,6 +51,27 @@ public class FunctionPattern extends StepPattern
     m_functionExpr = expr;
   }
 
+  /**
+   * Which nodes the function returns is only known by calling it.
+   *
+   * @return true
+   */
+  public boolean matchesNodeTest(
+          XPathContext xctxt, int context, DTM dtm, int expType)
+  {
+    return true;
+  }
+
+  /**
+   * A function pattern is never just a node test.
+   *
+   * @return false
+   */
+  public boolean isNodeTestOnly()
+  {
+    return false;
+  }
+
   /**
    * Static calc of match score.
    */
@@ -413,6 +413,44 @@ public class StepPattern extends NodeTest implements SubContextList, ExpressionO
     return score;
   }
 
+  /**
+   * Test a node against the node test of this step alone, leaving out its
+   * predicates and the steps before it.  The result depends only on the
+   * expanded type of the node, so it holds for every node of that type.
+   *
+   * @param xctxt XPath runtime context.
+   * @param currentNode The node being tested.
+   * @param dtm The DTM of the current node.
+   * @param expType The expanded type ID of the current node.
+   *
+   * @return false if no node of this expanded type can match the pattern.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  public boolean matchesNodeTest(
+          XPathContext xctxt, int currentNode, DTM dtm, int expType)
+            throws javax.xml.transform.TransformerException
+  {
+
+    if (m_whatToShow == NodeTest.SHOW_BYFUNCTION)
+      return true;
+
+    return super.execute(xctxt, currentNode, dtm, expType)
+           != NodeTest.SCORE_NONE;
+  }
+
+  /**
+   * Tell if this pattern is nothing but its node test, so that a node
+   * matches it if and only if {@link #matchesNodeTest} is true.
+   *
+   * @return true if this step has no predicates and no steps before it.
+   */
+  public boolean isNodeTestOnly()
+  {
+    return (m_whatToShow != NodeTest.SHOW_BYFUNCTION)
+           && (getPredicateCount() == 0) && (null == m_relativePathPattern);
+  }
+
   /**
    * New Method to check whether the current node satisfies a position predicate
    *